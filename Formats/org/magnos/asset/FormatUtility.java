@@ -17,16 +17,22 @@
 package org.magnos.asset;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.magnos.asset.audio.AudioFormat;
 import org.magnos.asset.audio.MidiFormat;
+import org.magnos.asset.base.SizedInputStream;
 import org.magnos.asset.csv.CsvFormat;
 import org.magnos.asset.dat.DatFormat;
 import org.magnos.asset.font.FontFormat;
 import org.magnos.asset.image.GifFormat;
 import org.magnos.asset.image.ImageFormat;
+import org.magnos.asset.io.BufferPool;
 import org.magnos.asset.java.ClassFormat;
 import org.magnos.asset.java.JarFormat;
 import org.magnos.asset.json.JsonFormat;
@@ -46,9 +52,38 @@ import org.magnos.asset.zip.ZipFormat;
 public class FormatUtility
 {
 
+	/**
+	 * The size of the pooled buffers used to read and copy streams, in bytes.
+	 */
+	public static final int CHUNK_SIZE = 16384;
+
+	/**
+	 * The maximum number of idle buffers kept in the pool.
+	 */
+	public static final int POOL_SIZE = 64;
+
+	/**
+	 * The largest number of bytes that can be held in a single array.
+	 */
+	public static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	// The buffers shared by all reads and copies.
+	private static final BufferPool pool = new BufferPool( CHUNK_SIZE, POOL_SIZE );
+
+	/**
+	 * Returns the pool of buffers used to read and copy streams.
+	 * 
+	 * @return The reference to the shared BufferPool.
+	 */
+	public static BufferPool getBufferPool()
+	{
+		return pool;
+	}
+
 	/**
 	 * Drains the given InputStream of all data and returns an OutputStream which
-	 * contains all of that data.
+	 * contains all of that data. If the stream is a {@link SizedInputStream}
+	 * its size is used to allocate the OutputStream.
 	 * 
 	 * @param input
 	 *        The InputStream to drain of all data.
@@ -58,23 +93,37 @@ public class FormatUtility
 	 */
 	public static ByteArrayOutputStream getOutput( InputStream input ) throws IOException
 	{
-		ByteArrayOutputStream output = new ByteArrayOutputStream( input.available() );
+		return getOutput( input, SizedInputStream.getSize( input ) );
+	}
 
-		int read = 0;
-		byte[] data = new byte[4096];
+	/**
+	 * Drains the given InputStream of all data and returns an OutputStream which
+	 * contains all of that data. The data is read directly into the
+	 * OutputStream's buffer, which is allocated at the expected length.
+	 * 
+	 * @param input
+	 *        The InputStream to drain of all data.
+	 * @param expectedLength
+	 *        The number of bytes the stream is expected to have, or a negative
+	 *        number if it's not known. The stream may have more or less data.
+	 * @return The OutputStream containing all of the data drained.
+	 * @throws IOException
+	 *         An error occurred reading from the given InputStream.
+	 */
+	public static ByteArrayOutputStream getOutput( InputStream input, long expectedLength ) throws IOException
+	{
+		int capacity = (expectedLength < 0 ? CHUNK_SIZE : getArraySize( expectedLength ));
 
-		while ((read = input.read( data )) > 0)
-		{
-			output.write( data, 0, read );
-		}
-		output.flush();
+		DrainOutputStream output = new DrainOutputStream( capacity );
+		output.drain( input );
 
 		return output;
 	}
 
 	/**
 	 * Drains the given InputStream of all data and returns a byte array which
-	 * contains all of that data.
+	 * contains all of that data. If the stream is a {@link SizedInputStream}
+	 * its size is used to allocate the array.
 	 * 
 	 * @param input
 	 *        The InputStream to drain of all data.
@@ -84,7 +133,266 @@ public class FormatUtility
 	 */
 	public static byte[] getBytes( InputStream input ) throws IOException
 	{
-		return getOutput( input ).toByteArray();
+		return getBytes( input, SizedInputStream.getSize( input ) );
+	}
+
+	/**
+	 * Drains the given InputStream of all data and returns a byte array which
+	 * contains all of that data. When the length is known the data is read
+	 * straight into an array of that length, otherwise it's read into pooled
+	 * buffers and copied once into an array of the exact length.
+	 * 
+	 * @param input
+	 *        The InputStream to drain of all data.
+	 * @param expectedLength
+	 *        The number of bytes the stream is expected to have, or a negative
+	 *        number if it's not known. The stream may have more or less data.
+	 * @return The byte array containing all of the data.
+	 * @throws IOException
+	 *         An error occurred reading from the given InputStream.
+	 */
+	public static byte[] getBytes( InputStream input, long expectedLength ) throws IOException
+	{
+		if (expectedLength < 0)
+		{
+			return getChunkedBytes( input );
+		}
+
+		byte[] data = new byte[getArraySize( expectedLength )];
+		int read = read( input, data, 0, data.length );
+
+		if (read < data.length)
+		{
+			byte[] shorter = new byte[read];
+			System.arraycopy( data, 0, shorter, 0, read );
+
+			return shorter;
+		}
+
+		int next = input.read();
+
+		if (next == -1)
+		{
+			return data;
+		}
+
+		// the stream is longer than expected, continue with the remaining data.
+		DrainOutputStream output = new DrainOutputStream( getArraySize( (long)data.length * 2 + 1 ) );
+		output.write( data );
+		output.write( next );
+		output.drain( input );
+
+		return output.toByteArray();
+	}
+
+	/**
+	 * Copies all remaining data from the InputStream to the OutputStream using
+	 * a pooled buffer. Neither stream is closed or flushed.
+	 * 
+	 * @param input
+	 *        The InputStream to read from.
+	 * @param output
+	 *        The OutputStream to write to.
+	 * @return The number of bytes copied.
+	 * @throws IOException
+	 *         An error occurred reading or writing to either stream.
+	 */
+	public static long copy( InputStream input, OutputStream output ) throws IOException
+	{
+		byte[] chunk = pool.acquire();
+		long total = 0;
+
+		try
+		{
+			int read = 0;
+
+			while ((read = input.read( chunk )) != -1)
+			{
+				output.write( chunk, 0, read );
+				total += read;
+			}
+		}
+		finally
+		{
+			pool.release( chunk );
+		}
+
+		return total;
+	}
+
+	/**
+	 * Copies exactly the given number of bytes from the InputStream to the
+	 * OutputStream using a pooled buffer. Neither stream is closed or flushed.
+	 * 
+	 * @param input
+	 *        The InputStream to read from.
+	 * @param output
+	 *        The OutputStream to write to.
+	 * @param length
+	 *        The number of bytes to copy.
+	 * @throws EOFException
+	 *         The InputStream ended before length bytes were copied.
+	 * @throws IOException
+	 *         An error occurred reading or writing to either stream.
+	 */
+	public static void copy( InputStream input, OutputStream output, long length ) throws IOException
+	{
+		byte[] chunk = pool.acquire();
+
+		try
+		{
+			long remaining = length;
+
+			while (remaining > 0)
+			{
+				int read = input.read( chunk, 0, (int)Math.min( chunk.length, remaining ) );
+
+				if (read == -1)
+				{
+					throw new EOFException( "Stream ended " + remaining + " bytes early" );
+				}
+
+				output.write( chunk, 0, read );
+				remaining -= read;
+			}
+		}
+		finally
+		{
+			pool.release( chunk );
+		}
+	}
+
+	/**
+	 * Reads from the InputStream until the given section of the array is full
+	 * or the stream ends.
+	 * 
+	 * @param input
+	 *        The InputStream to read from.
+	 * @param data
+	 *        The array to read into.
+	 * @param offset
+	 *        The index in the array to start reading into.
+	 * @param length
+	 *        The maximum number of bytes to read.
+	 * @return The number of bytes read, less than length only if the stream
+	 *         ended.
+	 * @throws IOException
+	 *         An error occurred reading from the given InputStream.
+	 */
+	public static int read( InputStream input, byte[] data, int offset, int length ) throws IOException
+	{
+		int total = 0;
+
+		while (total < length)
+		{
+			int read = input.read( data, offset + total, length - total );
+
+			if (read == -1)
+			{
+				break;
+			}
+
+			total += read;
+		}
+
+		return total;
+	}
+
+	/**
+	 * Reads a stream of unknown length into pooled chunks and copies them
+	 * into an array of the exact length.
+	 */
+	private static byte[] getChunkedBytes( InputStream input ) throws IOException
+	{
+		List<byte[]> chunks = new ArrayList<byte[]>();
+		long total = 0;
+
+		try
+		{
+			int read = 0;
+
+			do
+			{
+				byte[] chunk = pool.acquire();
+				chunks.add( chunk );
+
+				read = read( input, chunk, 0, chunk.length );
+				total += read;
+			}
+			while (read == CHUNK_SIZE);
+
+			byte[] data = new byte[getArraySize( total )];
+			int offset = 0;
+
+			for (byte[] chunk : chunks)
+			{
+				int length = Math.min( chunk.length, data.length - offset );
+				System.arraycopy( chunk, 0, data, offset, length );
+				offset += length;
+			}
+
+			return data;
+		}
+		finally
+		{
+			for (byte[] chunk : chunks)
+			{
+				pool.release( chunk );
+			}
+		}
+	}
+
+	/**
+	 * Validates that the given number of bytes can be held in an array.
+	 */
+	private static int getArraySize( long length ) throws IOException
+	{
+		if (length > MAX_ARRAY_SIZE)
+		{
+			throw new IOException( "An asset of " + length + " bytes can not be held in an array" );
+		}
+
+		return (int)length;
+	}
+
+	/**
+	 * A ByteArrayOutputStream which reads a stream directly into its buffer.
+	 */
+	private static class DrainOutputStream extends ByteArrayOutputStream
+	{
+
+		public DrainOutputStream( int capacity )
+		{
+			super( capacity );
+		}
+
+		public void drain( InputStream input ) throws IOException
+		{
+			for (;;)
+			{
+				if (count == buf.length)
+				{
+					// the buffer may be exactly the size of the stream
+					int next = input.read();
+
+					if (next == -1)
+					{
+						break;
+					}
+
+					write( next );
+				}
+
+				int read = input.read( buf, count, buf.length - count );
+
+				if (read == -1)
+				{
+					break;
+				}
+
+				count += read;
+			}
+		}
 	}
 
 	/**
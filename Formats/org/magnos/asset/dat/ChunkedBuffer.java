@@ -0,0 +1,635 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.dat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.magnos.asset.FormatUtility;
+import org.magnos.asset.io.BufferPool;
+
+
+/**
+ * A read-only sequence of bytes held in a list of ByteBuffer segments and
+ * addressed with a long index. This allows assets larger than a single array
+ * or buffer can address to be loaded without a contiguous allocation.
+ * 
+ * Every segment except the last has the same size, and when there is more than
+ * one segment that size is a multiple of 8 so the typed views of each segment
+ * start on an element boundary.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class ChunkedBuffer
+{
+
+	/**
+	 * The default number of bytes in each segment.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 1 << 30;
+
+	// The initial capacity of a segment when the size of the stream is not known.
+	private static final int INITIAL_CAPACITY = 65536;
+
+	// The segments, duplicated from those given so their order can be changed.
+	private final ByteBuffer[] segments;
+
+	// The number of bytes in every segment except the last.
+	private final int segmentSize;
+
+	// The total number of bytes in all segments.
+	private final long size;
+
+	// The byte order used to read primitives.
+	private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+	/**
+	 * Instantiates a new ChunkedBuffer. The bytes of each segment are those from
+	 * zero to its limit.
+	 * 
+	 * @param segments
+	 *        The segments of the buffer, in order.
+	 * @throws IllegalArgumentException
+	 *         No segments were given, the segments were not of equal size, or
+	 *         the size is not a multiple of 8.
+	 */
+	public ChunkedBuffer( ByteBuffer ... segments )
+	{
+		if (segments.length == 0)
+		{
+			throw new IllegalArgumentException( "At least one segment is required" );
+		}
+
+		int first = segments[0].limit();
+
+		if (segments.length > 1 && (first == 0 || first % 8 != 0))
+		{
+			throw new IllegalArgumentException( "The segment size must be a positive multiple of 8" );
+		}
+
+		long total = 0;
+
+		this.segments = new ByteBuffer[segments.length];
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			ByteBuffer segment = segments[i].duplicate();
+			segment.position( 0 );
+
+			if (i < segments.length - 1 && segment.limit() != first)
+			{
+				throw new IllegalArgumentException( "Segment " + i + " has " + segment.limit() + " bytes, expected " + first );
+			}
+
+			this.segments[i] = segment;
+			total += segment.limit();
+		}
+
+		this.segmentSize = Math.max( 1, first );
+		this.size = total;
+	}
+
+	/**
+	 * Reads all data from the given stream into a new ChunkedBuffer.
+	 * 
+	 * @param input
+	 *        The stream to read from.
+	 * @param size
+	 *        The number of bytes expected in the stream, or a negative number
+	 *        if the size is not known. The stream may have more or less data.
+	 * @param segmentSize
+	 *        The number of bytes in each segment, a multiple of 8.
+	 * @param direct
+	 *        True if the segments should be allocated via
+	 *        {@link ByteBuffer#allocateDirect(int)} or false if they should be
+	 *        allocated via {@link ByteBuffer#allocate(int)}.
+	 * @return The ChunkedBuffer containing the data of the stream.
+	 * @throws IOException
+	 *         An error occurred reading from the stream.
+	 */
+	public static ChunkedBuffer read( InputStream input, long size, int segmentSize, boolean direct ) throws IOException
+	{
+		if (segmentSize <= 0 || segmentSize % 8 != 0)
+		{
+			throw new IllegalArgumentException( "The segment size must be a positive multiple of 8" );
+		}
+
+		List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+		long remaining = size;
+		boolean ended = false;
+
+		while (!ended)
+		{
+			int capacity = (int)(remaining < 0 ? Math.min( INITIAL_CAPACITY, segmentSize ) : Math.min( segmentSize, remaining ));
+			ByteBuffer segment = allocate( capacity, direct );
+
+			for (;;)
+			{
+				ended = fill( input, segment );
+
+				if (ended || segment.capacity() == segmentSize)
+				{
+					break;
+				}
+
+				// the segment is full but not a complete segment, grow it if there is more.
+				int next = input.read();
+
+				if (next == -1)
+				{
+					ended = true;
+					break;
+				}
+
+				int grown = (int)Math.min( segmentSize, Math.max( INITIAL_CAPACITY, (long)segment.capacity() * 2 ) );
+				segment.flip();
+				segment = allocate( grown, direct ).put( segment );
+				segment.put( (byte)next );
+			}
+
+			segment.flip();
+
+			if (segment.hasRemaining() || segments.isEmpty())
+			{
+				segments.add( segment );
+			}
+
+			if (remaining >= 0)
+			{
+				remaining = Math.max( 0, remaining - segment.limit() );
+			}
+		}
+
+		return new ChunkedBuffer( segments.toArray( new ByteBuffer[segments.size()] ) );
+	}
+
+	/**
+	 * Allocates a buffer with the given capacity.
+	 */
+	private static ByteBuffer allocate( int capacity, boolean direct )
+	{
+		return (direct ? ByteBuffer.allocateDirect( capacity ) : ByteBuffer.allocate( capacity ));
+	}
+
+	/**
+	 * Reads from the stream until the segment is full or the stream ends.
+	 * Returns true if the stream ended.
+	 */
+	private static boolean fill( InputStream input, ByteBuffer segment ) throws IOException
+	{
+		if (segment.hasArray())
+		{
+			while (segment.hasRemaining())
+			{
+				int read = input.read( segment.array(), segment.arrayOffset() + segment.position(), segment.remaining() );
+
+				if (read == -1)
+				{
+					return true;
+				}
+
+				segment.position( segment.position() + read );
+			}
+
+			return false;
+		}
+
+		BufferPool pool = FormatUtility.getBufferPool();
+		byte[] chunk = pool.acquire();
+
+		try
+		{
+			while (segment.hasRemaining())
+			{
+				int read = input.read( chunk, 0, Math.min( chunk.length, segment.remaining() ) );
+
+				if (read == -1)
+				{
+					return true;
+				}
+
+				segment.put( chunk, 0, read );
+			}
+
+			return false;
+		}
+		finally
+		{
+			pool.release( chunk );
+		}
+	}
+
+	/**
+	 * The total number of bytes in the buffer.
+	 * 
+	 * @return The number of bytes in the buffer.
+	 */
+	public long size()
+	{
+		return size;
+	}
+
+	/**
+	 * The number of bytes in every segment except the last.
+	 * 
+	 * @return The number of bytes in a segment.
+	 */
+	public int getSegmentSize()
+	{
+		return segmentSize;
+	}
+
+	/**
+	 * The number of segments in the buffer.
+	 * 
+	 * @return The number of segments.
+	 */
+	public int getSegmentCount()
+	{
+		return segments.length;
+	}
+
+	/**
+	 * Returns a read-only view of the segment at the given index. The view
+	 * has the byte order of this buffer.
+	 * 
+	 * @param index
+	 *        The index of the segment.
+	 * @return The read-only view of the segment.
+	 */
+	public ByteBuffer getSegment( int index )
+	{
+		return segments[index].asReadOnlyBuffer().order( order );
+	}
+
+	/**
+	 * The byte order used to read primitives from this buffer.
+	 * 
+	 * @return The byte order of this buffer.
+	 */
+	public ByteOrder order()
+	{
+		return order;
+	}
+
+	/**
+	 * Sets the byte order used to read primitives from this buffer.
+	 * 
+	 * @param order
+	 *        The new byte order.
+	 * @return This buffer.
+	 */
+	public ChunkedBuffer order( ByteOrder order )
+	{
+		this.order = order;
+
+		for (ByteBuffer segment : segments)
+		{
+			segment.order( order );
+		}
+
+		return this;
+	}
+
+	/**
+	 * Returns the byte at the given index.
+	 * 
+	 * @param index
+	 *        The index of the byte.
+	 * @return The byte at the index.
+	 */
+	public byte get( long index )
+	{
+		check( index, 1 );
+
+		return segments[(int)(index / segmentSize)].get( (int)(index % segmentSize) );
+	}
+
+	/**
+	 * Copies bytes starting at the given index into the array.
+	 * 
+	 * @param index
+	 *        The index of the first byte to copy.
+	 * @param data
+	 *        The array to copy into.
+	 * @param offset
+	 *        The index in the array to copy the first byte to.
+	 * @param length
+	 *        The number of bytes to copy.
+	 */
+	public void get( long index, byte[] data, int offset, int length )
+	{
+		check( index, length );
+
+		while (length > 0)
+		{
+			ByteBuffer segment = segments[(int)(index / segmentSize)].duplicate();
+			segment.position( (int)(index % segmentSize) );
+
+			int copied = Math.min( length, segment.remaining() );
+			segment.get( data, offset, copied );
+
+			index += copied;
+			offset += copied;
+			length -= copied;
+		}
+	}
+
+	/**
+	 * Returns the short starting at the given byte index.
+	 * 
+	 * @param index
+	 *        The index of the first byte of the short.
+	 * @return The short at the index.
+	 */
+	public short getShort( long index )
+	{
+		ByteBuffer segment = getSegment( index, 2 );
+
+		return (segment == null ? (short)getBits( index, 2 ) : segment.getShort( (int)(index % segmentSize) ));
+	}
+
+	/**
+	 * Returns the int starting at the given byte index.
+	 * 
+	 * @param index
+	 *        The index of the first byte of the int.
+	 * @return The int at the index.
+	 */
+	public int getInt( long index )
+	{
+		ByteBuffer segment = getSegment( index, 4 );
+
+		return (segment == null ? (int)getBits( index, 4 ) : segment.getInt( (int)(index % segmentSize) ));
+	}
+
+	/**
+	 * Returns the long starting at the given byte index.
+	 * 
+	 * @param index
+	 *        The index of the first byte of the long.
+	 * @return The long at the index.
+	 */
+	public long getLong( long index )
+	{
+		ByteBuffer segment = getSegment( index, 8 );
+
+		return (segment == null ? getBits( index, 8 ) : segment.getLong( (int)(index % segmentSize) ));
+	}
+
+	/**
+	 * Returns the float starting at the given byte index.
+	 * 
+	 * @param index
+	 *        The index of the first byte of the float.
+	 * @return The float at the index.
+	 */
+	public float getFloat( long index )
+	{
+		return Float.intBitsToFloat( getInt( index ) );
+	}
+
+	/**
+	 * Returns the double starting at the given byte index.
+	 * 
+	 * @param index
+	 *        The index of the first byte of the double.
+	 * @return The double at the index.
+	 */
+	public double getDouble( long index )
+	{
+		return Double.longBitsToDouble( getLong( index ) );
+	}
+
+	/**
+	 * Returns a stream which reads this buffer from start to end. The stream
+	 * does not copy the buffer.
+	 * 
+	 * @return A new stream over this buffer.
+	 */
+	public InputStream getInputStream()
+	{
+		return new ChunkedInputStream();
+	}
+
+	/**
+	 * Returns a view of each segment as shorts. Any bytes at the end of the
+	 * last segment which do not form a complete short are ignored.
+	 * 
+	 * @return The views of each segment.
+	 */
+	public ShortBuffer[] asShortBuffers()
+	{
+		ShortBuffer[] views = new ShortBuffer[segments.length];
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			views[i] = getSegment( i ).asShortBuffer();
+		}
+
+		return views;
+	}
+
+	/**
+	 * Returns a view of each segment as ints. Any bytes at the end of the
+	 * last segment which do not form a complete int are ignored.
+	 * 
+	 * @return The views of each segment.
+	 */
+	public IntBuffer[] asIntBuffers()
+	{
+		IntBuffer[] views = new IntBuffer[segments.length];
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			views[i] = getSegment( i ).asIntBuffer();
+		}
+
+		return views;
+	}
+
+	/**
+	 * Returns a view of each segment as longs. Any bytes at the end of the
+	 * last segment which do not form a complete long are ignored.
+	 * 
+	 * @return The views of each segment.
+	 */
+	public LongBuffer[] asLongBuffers()
+	{
+		LongBuffer[] views = new LongBuffer[segments.length];
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			views[i] = getSegment( i ).asLongBuffer();
+		}
+
+		return views;
+	}
+
+	/**
+	 * Returns a view of each segment as floats. Any bytes at the end of the
+	 * last segment which do not form a complete float are ignored.
+	 * 
+	 * @return The views of each segment.
+	 */
+	public FloatBuffer[] asFloatBuffers()
+	{
+		FloatBuffer[] views = new FloatBuffer[segments.length];
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			views[i] = getSegment( i ).asFloatBuffer();
+		}
+
+		return views;
+	}
+
+	/**
+	 * Returns a view of each segment as doubles. Any bytes at the end of the
+	 * last segment which do not form a complete double are ignored.
+	 * 
+	 * @return The views of each segment.
+	 */
+	public DoubleBuffer[] asDoubleBuffers()
+	{
+		DoubleBuffer[] views = new DoubleBuffer[segments.length];
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			views[i] = getSegment( i ).asDoubleBuffer();
+		}
+
+		return views;
+	}
+
+	/**
+	 * Returns the segment which holds all of the given bytes, or null if the
+	 * bytes span two segments.
+	 */
+	private ByteBuffer getSegment( long index, int bytes )
+	{
+		check( index, bytes );
+
+		ByteBuffer segment = segments[(int)(index / segmentSize)];
+
+		return ((index % segmentSize) + bytes <= segment.limit() ? segment : null);
+	}
+
+	/**
+	 * Reads the given number of bytes starting at the index one at a time,
+	 * for primitives which span two segments.
+	 */
+	private long getBits( long index, int bytes )
+	{
+		long bits = 0;
+
+		for (int i = 0; i < bytes; i++)
+		{
+			long b = get( index + i ) & 0xFF;
+			int shift = (order == ByteOrder.BIG_ENDIAN ? bytes - 1 - i : i) * 8;
+
+			bits |= b << shift;
+		}
+
+		return bits;
+	}
+
+	/**
+	 * Throws an IndexOutOfBoundsException if the given bytes are not all in
+	 * this buffer.
+	 */
+	private void check( long index, int bytes )
+	{
+		if (index < 0 || bytes < 0 || index > size - bytes)
+		{
+			throw new IndexOutOfBoundsException( "Index " + index + " (" + bytes + " bytes) is outside of " + size + " bytes" );
+		}
+	}
+
+	/**
+	 * A stream which reads the buffer sequentially.
+	 */
+	private class ChunkedInputStream extends InputStream
+	{
+
+		private long position = 0;
+		private long mark = 0;
+
+		public int read()
+		{
+			return (position >= size ? -1 : get( position++ ) & 0xFF);
+		}
+
+		public int read( byte[] data, int offset, int length )
+		{
+			if (length == 0)
+			{
+				return 0;
+			}
+			if (position >= size)
+			{
+				return -1;
+			}
+
+			int copied = (int)Math.min( length, size - position );
+			get( position, data, offset, copied );
+			position += copied;
+
+			return copied;
+		}
+
+		public long skip( long n )
+		{
+			long skipped = Math.max( 0, Math.min( n, size - position ) );
+			position += skipped;
+
+			return skipped;
+		}
+
+		public int available()
+		{
+			return (int)Math.min( Integer.MAX_VALUE, size - position );
+		}
+
+		public boolean markSupported()
+		{
+			return true;
+		}
+
+		public void mark( int readlimit )
+		{
+			mark = position;
+		}
+
+		public void reset()
+		{
+			position = mark;
+		}
+	}
+
+}
@@ -18,8 +18,11 @@ package org.magnos.asset.dat;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Array;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.DoubleBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
@@ -27,9 +30,13 @@ import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
 
 import org.magnos.asset.AssetInfo;
+import org.magnos.asset.AssetSource;
 import org.magnos.asset.FormatUtility;
 import org.magnos.asset.base.BaseAssetFormat;
+import org.magnos.asset.base.SizedInputStream;
 import org.magnos.asset.info.ByteBufferInfo;
+import org.magnos.asset.source.FileSource;
+import org.magnos.asset.source.PackSource;
 
 
 /**
@@ -56,14 +63,43 @@ import org.magnos.asset.info.ByteBufferInfo;
  * <li>{@link java.nio.LongBuffer}</li>
  * <li>{@link java.nio.FloatBuffer}</li>
  * <li>{@link java.nio.DoubleBuffer}</li>
+ * <li>{@link ChunkedBuffer}</li>
  * </ul>
  * 
+ * When a buffer type is requested with a {@link ByteBufferInfo} that is
+ * {@link ByteBufferInfo#isMapped() mapped} and the asset is served by a
+ * {@link FileSource} the buffer returned is a read-only memory mapping of the
+ * file instead of a copy of its contents. Assets stored uncompressed in a
+ * {@link PackSource} are likewise returned as a slice of the mapped pack.
+ * 
+ * Primitive arrays are decoded straight from the stream in chunks using the
+ * {@link ByteBufferInfo#getOrder() byte order} of the info. When the source
+ * knows the size of the asset the array is allocated once at its exact size.
+ * 
+ * Arrays and buffers are limited to 2GB, larger assets can be requested as a
+ * {@link ChunkedBuffer} which holds the asset in segments of
+ * {@link #SEGMENT_SIZE} bytes. A mapped ChunkedBuffer from a FileSource maps
+ * each segment of the file without reading it.
+ * 
  * @author Philip Diffenderfer
  * 
  */
 public class DatFormat extends BaseAssetFormat
 {
 
+	/**
+	 * The number of bytes in each segment of a loaded {@link ChunkedBuffer}.
+	 */
+	public static final int SEGMENT_SIZE = ChunkedBuffer.DEFAULT_SEGMENT_SIZE;
+
+	// The number of bytes read from the stream at a time when decoding
+	// primitive arrays. This must be a multiple of the largest primitive.
+	private static final int CHUNK_SIZE = 8192;
+
+	// The initial number of elements of a primitive array when the size of
+	// the asset is not known.
+	private static final int INITIAL_CAPACITY = 1024;
+
 	/**
 	 * Instantiates a new DatFormat.
 	 */
@@ -71,7 +107,7 @@ public class DatFormat extends BaseAssetFormat
 	{
 		super( new String[] { "dat" }, byte[].class, ByteArrayOutputStream.class, InputStream.class, ByteBuffer.class,
 			ShortBuffer.class, IntBuffer.class, LongBuffer.class, FloatBuffer.class, DoubleBuffer.class, short[].class,
-			int[].class, long[].class, float[].class, double[].class );
+			int[].class, long[].class, float[].class, double[].class, ChunkedBuffer.class );
 	}
 	
 	public AssetInfo getInfo( Class<?> requestType )
@@ -100,107 +136,119 @@ public class DatFormat extends BaseAssetFormat
 		}
 		else if (info.isType( ByteBuffer.class ))
 		{
-			asset = wrap( info.isDirect(), FormatUtility.getBytes( input ) );
+			asset = getBuffer( input, info );
 		}
 		else if (info.isType( ShortBuffer.class ))
 		{
-			asset = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asShortBuffer();
+			asset = getBuffer( input, info ).asShortBuffer();
 		}
 		else if (info.isType( IntBuffer.class ))
 		{
-			asset = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asIntBuffer();
+			asset = getBuffer( input, info ).asIntBuffer();
 		}
 		else if (info.isType( LongBuffer.class ))
 		{
-			asset = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asLongBuffer();
+			asset = getBuffer( input, info ).asLongBuffer();
 		}
 		else if (info.isType( FloatBuffer.class ))
 		{
-			asset = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asFloatBuffer();
+			asset = getBuffer( input, info ).asFloatBuffer();
 		}
 		else if (info.isType( DoubleBuffer.class ))
 		{
-			asset = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asDoubleBuffer();
+			asset = getBuffer( input, info ).asDoubleBuffer();
 		}
 		else if (info.isType( short[].class ))
 		{
-			ShortBuffer buffer = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asShortBuffer();
-			
-			if ( buffer.hasArray() )
-			{
-				asset = buffer.array();
-			}
-			else
-			{
-				short[] data = new short[ buffer.limit() ];
-				buffer.get( data );
-				asset = data;
-			}
+			asset = readShorts( input, info.getOrder(), SizedInputStream.getSize( input ) );
 		}
 		else if (info.isType( int[].class ))
 		{
-			IntBuffer buffer = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asIntBuffer();
-			
-			if ( buffer.hasArray() )
-			{
-				asset = buffer.array();
-			}
-			else
-			{
-				int[] data = new int[ buffer.limit() ];
-				buffer.get( data );
-				asset = data;
-			}
+			asset = readInts( input, info.getOrder(), SizedInputStream.getSize( input ) );
 		}
 		else if (info.isType( long[].class ))
 		{
-			LongBuffer buffer = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asLongBuffer();
-			
-			if ( buffer.hasArray() )
-			{
-				asset = buffer.array();
-			}
-			else
-			{
-				long[] data = new long[ buffer.limit() ];
-				buffer.get( data );
-				asset = data;
-			}
+			asset = readLongs( input, info.getOrder(), SizedInputStream.getSize( input ) );
 		}
 		else if (info.isType( float[].class ))
 		{
-			FloatBuffer buffer = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asFloatBuffer();
-			
-			if ( buffer.hasArray() )
-			{
-				asset = buffer.array();
-			}
-			else
-			{
-				float[] data = new float[ buffer.limit() ];
-				buffer.get( data );
-				asset = data;
-			}
+			asset = readFloats( input, info.getOrder(), SizedInputStream.getSize( input ) );
 		}
 		else if (info.isType( double[].class ))
 		{
-			DoubleBuffer buffer = wrap( info.isDirect(), FormatUtility.getBytes( input ) ).asDoubleBuffer();
-			
-			if ( buffer.hasArray() )
-			{
-				asset = buffer.array();
-			}
-			else
-			{
-				double[] data = new double[ buffer.limit() ];
-				buffer.get( data );
-				asset = data;
-			}
+			asset = readDoubles( input, info.getOrder(), SizedInputStream.getSize( input ) );
+		}
+		else if (info.isType( ChunkedBuffer.class ))
+		{
+			asset = getChunkedBuffer( input, info );
 		}
 
 		return asset;
 	}
 
+	/**
+	 * Returns a ByteBuffer containing the asset. If the info requests a mapped
+	 * buffer and the source of the asset is a FileSource the file is mapped
+	 * into memory (or a PackSource the entry is mapped from the pack),
+	 * otherwise the stream is drained and wrapped.
+	 * 
+	 * @param input
+	 *        The stream to read data from if the asset cannot be mapped.
+	 * @param info
+	 *        The information on the asset being loaded.
+	 * @return A ByteBuffer containing the asset.
+	 * @throws IOException
+	 *         An error occurred reading or mapping the asset.
+	 */
+	private ByteBuffer getBuffer( InputStream input, ByteBufferInfo info ) throws IOException
+	{
+		AssetSource source = info.getSource();
+		long size = SizedInputStream.getSize( input );
+
+		if (size > Integer.MAX_VALUE)
+		{
+			throw new IOException( "Asset of " + size + " bytes is too large for a ByteBuffer, request a ChunkedBuffer instead" );
+		}
+
+		if (info.isMapped() && source instanceof FileSource)
+		{
+			return ((FileSource)source).map( info.getRequest() ).order( info.getOrder() );
+		}
+
+		if (info.isMapped() && source instanceof PackSource)
+		{
+			return ((PackSource)source).map( info.getRequest() ).order( info.getOrder() );
+		}
+
+		return wrap( info.isDirect(), FormatUtility.getBytes( input ) ).order( info.getOrder() );
+	}
+
+	/**
+	 * Returns a ChunkedBuffer containing the asset. If the info requests a
+	 * mapped buffer and the source of the asset is a FileSource each segment of
+	 * the file is mapped into memory, otherwise the stream is read into
+	 * segments.
+	 * 
+	 * @param input
+	 *        The stream to read data from if the asset cannot be mapped.
+	 * @param info
+	 *        The information on the asset being loaded.
+	 * @return A ChunkedBuffer containing the asset.
+	 * @throws IOException
+	 *         An error occurred reading or mapping the asset.
+	 */
+	private ChunkedBuffer getChunkedBuffer( InputStream input, ByteBufferInfo info ) throws IOException
+	{
+		AssetSource source = info.getSource();
+
+		if (info.isMapped() && source instanceof FileSource)
+		{
+			return new ChunkedBuffer( ((FileSource)source).map( info.getRequest(), SEGMENT_SIZE ) ).order( info.getOrder() );
+		}
+
+		return ChunkedBuffer.read( input, SizedInputStream.getSize( input ), SEGMENT_SIZE, info.isDirect() ).order( info.getOrder() );
+	}
+
 	/**
 	 * Wraps the given bytes with a ByteBuffer.
 	 * 
@@ -220,4 +268,200 @@ public class DatFormat extends BaseAssetFormat
 		return b;
 	}
 
+	/**
+	 * Reads all shorts from the given stream.
+	 * 
+	 * @param input
+	 *        The stream to read from.
+	 * @param order
+	 *        The byte order of the shorts in the stream.
+	 * @param size
+	 *        The number of bytes expected in the stream, or a negative number
+	 *        if the size is not known.
+	 * @return The array of shorts read.
+	 * @throws IOException
+	 *         An error occurred reading from the stream.
+	 */
+	public static short[] readShorts( InputStream input, ByteOrder order, long size ) throws IOException
+	{
+		return (short[])read( input, order, size, short.class, 2 );
+	}
+
+	/**
+	 * Reads all ints from the given stream.
+	 * 
+	 * @param input
+	 *        The stream to read from.
+	 * @param order
+	 *        The byte order of the ints in the stream.
+	 * @param size
+	 *        The number of bytes expected in the stream, or a negative number
+	 *        if the size is not known.
+	 * @return The array of ints read.
+	 * @throws IOException
+	 *         An error occurred reading from the stream.
+	 */
+	public static int[] readInts( InputStream input, ByteOrder order, long size ) throws IOException
+	{
+		return (int[])read( input, order, size, int.class, 4 );
+	}
+
+	/**
+	 * Reads all longs from the given stream.
+	 * 
+	 * @param input
+	 *        The stream to read from.
+	 * @param order
+	 *        The byte order of the longs in the stream.
+	 * @param size
+	 *        The number of bytes expected in the stream, or a negative number
+	 *        if the size is not known.
+	 * @return The array of longs read.
+	 * @throws IOException
+	 *         An error occurred reading from the stream.
+	 */
+	public static long[] readLongs( InputStream input, ByteOrder order, long size ) throws IOException
+	{
+		return (long[])read( input, order, size, long.class, 8 );
+	}
+
+	/**
+	 * Reads all floats from the given stream.
+	 * 
+	 * @param input
+	 *        The stream to read from.
+	 * @param order
+	 *        The byte order of the floats in the stream.
+	 * @param size
+	 *        The number of bytes expected in the stream, or a negative number
+	 *        if the size is not known.
+	 * @return The array of floats read.
+	 * @throws IOException
+	 *         An error occurred reading from the stream.
+	 */
+	public static float[] readFloats( InputStream input, ByteOrder order, long size ) throws IOException
+	{
+		return (float[])read( input, order, size, float.class, 4 );
+	}
+
+	/**
+	 * Reads all doubles from the given stream.
+	 * 
+	 * @param input
+	 *        The stream to read from.
+	 * @param order
+	 *        The byte order of the doubles in the stream.
+	 * @param size
+	 *        The number of bytes expected in the stream, or a negative number
+	 *        if the size is not known.
+	 * @return The array of doubles read.
+	 * @throws IOException
+	 *         An error occurred reading from the stream.
+	 */
+	public static double[] readDoubles( InputStream input, ByteOrder order, long size ) throws IOException
+	{
+		return (double[])read( input, order, size, double.class, 8 );
+	}
+
+	/**
+	 * Reads the stream in chunks decoding each chunk directly into a primitive
+	 * array. If the size is known the array is allocated once, otherwise the
+	 * array grows as needed and is trimmed once the stream is exhausted. Any
+	 * trailing bytes which do not form a complete primitive are ignored.
+	 * 
+	 * @param input
+	 *        The stream to read from.
+	 * @param order
+	 *        The byte order of the primitives in the stream.
+	 * @param size
+	 *        The number of bytes expected in the stream, or a negative number
+	 *        if the size is not known.
+	 * @param type
+	 *        The primitive type of the array.
+	 * @param bytes
+	 *        The number of bytes in a single primitive.
+	 * @return The array of primitives read.
+	 * @throws IOException
+	 *         An error occurred reading from the stream.
+	 */
+	private static Object read( InputStream input, ByteOrder order, long size, Class<?> type, int bytes ) throws IOException
+	{
+		if (size / bytes > Integer.MAX_VALUE)
+		{
+			throw new IOException( "Asset of " + size + " bytes is too large for a " + type + " array, request a ChunkedBuffer instead" );
+		}
+
+		int capacity = (size < 0 ? INITIAL_CAPACITY : (int)(size / bytes));
+		int count = 0;
+		Object array = Array.newInstance( type, capacity );
+
+		byte[] chunk = new byte[CHUNK_SIZE];
+		ByteBuffer buffer = ByteBuffer.wrap( chunk ).order( order );
+		int filled = 0;
+		int read = 0;
+
+		while ((read = input.read( chunk, filled, chunk.length - filled )) != -1)
+		{
+			filled += read;
+
+			int elements = filled / bytes;
+			int decoded = elements * bytes;
+
+			if (count + elements > capacity)
+			{
+				capacity = Math.max( count + elements, capacity + (capacity >> 1) );
+				array = resize( array, type, count, capacity );
+			}
+
+			buffer.clear();
+			buffer.limit( decoded );
+			decode( buffer, type, array, count, elements );
+			count += elements;
+
+			// Move the bytes of a partially read primitive to the front.
+			filled -= decoded;
+			System.arraycopy( chunk, decoded, chunk, 0, filled );
+		}
+
+		return (count == capacity ? array : resize( array, type, count, count ));
+	}
+
+	/**
+	 * Decodes the primitives in the given buffer into the array.
+	 */
+	private static void decode( ByteBuffer buffer, Class<?> type, Object array, int offset, int length )
+	{
+		if (type == short.class)
+		{
+			buffer.asShortBuffer().get( (short[])array, offset, length );
+		}
+		else if (type == int.class)
+		{
+			buffer.asIntBuffer().get( (int[])array, offset, length );
+		}
+		else if (type == long.class)
+		{
+			buffer.asLongBuffer().get( (long[])array, offset, length );
+		}
+		else if (type == float.class)
+		{
+			buffer.asFloatBuffer().get( (float[])array, offset, length );
+		}
+		else if (type == double.class)
+		{
+			buffer.asDoubleBuffer().get( (double[])array, offset, length );
+		}
+	}
+
+	/**
+	 * Copies the first count elements of the array into a new array with the
+	 * given capacity.
+	 */
+	private static Object resize( Object array, Class<?> type, int count, int capacity )
+	{
+		Object resized = Array.newInstance( type, capacity );
+		System.arraycopy( array, 0, resized, 0, count );
+		return resized;
+	}
+
 }
@@ -2,6 +2,7 @@
 package org.magnos.asset.info;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import org.magnos.asset.AssetInfo;
 import org.magnos.asset.base.BaseAssetInfo;
@@ -21,6 +22,16 @@ public class ByteBufferInfo extends BaseAssetInfo
 	 */
 	public static final boolean DEFAULT_DIRECT = false;
 
+	/**
+	 * The default value for whether the ByteBuffer is mapped.
+	 */
+	public static final boolean DEFAULT_MAPPED = false;
+
+	/**
+	 * The default byte order of the ByteBuffer and the primitive arrays.
+	 */
+	public static final ByteOrder DEFAULT_ORDER = ByteOrder.BIG_ENDIAN;
+
 	/**
 	 * The default value for the request type of the AssetInfo.
 	 */
@@ -28,12 +39,18 @@ public class ByteBufferInfo extends BaseAssetInfo
 	
 	// properties
 	public static final String[] PROPERTIES = {
-		"direct"
+		"direct", "mapped", "order"
 	};
 	
 	// If the ByteBuffer is Direct, if not it is Heap.
 	private final boolean direct;
 
+	// If the ByteBuffer is mapped directly from the file when possible.
+	private final boolean mapped;
+
+	// The byte order used to decode multi-byte values.
+	private final ByteOrder order;
+
 	/**
 	 * Instantiates a new ByteBufferInfo for the Heap.
 	 */
@@ -75,16 +92,69 @@ public class ByteBufferInfo extends BaseAssetInfo
 	 *        the JVM, or false if the ByteBuffer is allocated to the Heap.
 	 */
 	public ByteBufferInfo( Class<?> requestType, boolean direct )
+	{
+		this( requestType, direct, DEFAULT_MAPPED );
+	}
+
+	/**
+	 * Instantiates a new ByteBufferInfo.
+	 * 
+	 * @param requestType
+	 * 		  The request type of the info.
+	 * @param direct
+	 *        True if the ByteBuffer is allocated directly in memory outside of
+	 *        the JVM, or false if the ByteBuffer is allocated to the Heap.
+	 * @param mapped
+	 *        True if the ByteBuffer should be a read-only memory mapping of the
+	 *        asset when the asset source supports it, otherwise false.
+	 */
+	public ByteBufferInfo( Class<?> requestType, boolean direct, boolean mapped )
+	{
+		this( requestType, direct, mapped, DEFAULT_ORDER );
+	}
+
+	/**
+	 * Instantiates a new ByteBufferInfo.
+	 * 
+	 * @param requestType
+	 * 		  The request type of the info.
+	 * @param order
+	 *        The byte order used to decode multi-byte values.
+	 */
+	public ByteBufferInfo( Class<?> requestType, ByteOrder order )
+	{
+		this( requestType, DEFAULT_DIRECT, DEFAULT_MAPPED, order );
+	}
+
+	/**
+	 * Instantiates a new ByteBufferInfo.
+	 * 
+	 * @param requestType
+	 * 		  The request type of the info.
+	 * @param direct
+	 *        True if the ByteBuffer is allocated directly in memory outside of
+	 *        the JVM, or false if the ByteBuffer is allocated to the Heap.
+	 * @param mapped
+	 *        True if the ByteBuffer should be a read-only memory mapping of the
+	 *        asset when the asset source supports it, otherwise false.
+	 * @param order
+	 *        The byte order used to decode multi-byte values.
+	 */
+	public ByteBufferInfo( Class<?> requestType, boolean direct, boolean mapped, ByteOrder order )
 	{
 		super( requestType );
 
 		this.direct = direct;
+		this.mapped = mapped;
+		this.order = order;
 	}
 
 	@Override
 	protected Object getProperty( String name )
 	{
 		if (name.equals( "direct" )) return direct;
+		if (name.equals( "mapped" )) return mapped;
+		if (name.equals( "order" )) return order;
 
 		return null;
 	}
@@ -97,7 +167,9 @@ public class ByteBufferInfo extends BaseAssetInfo
 			ByteBufferInfo byteBuffer = (ByteBufferInfo)info;
 			
 			return (
-				byteBuffer.direct == direct
+				byteBuffer.direct == direct &&
+				byteBuffer.mapped == mapped &&
+				byteBuffer.order == order
 			);
 		}
 		
@@ -121,4 +193,34 @@ public class ByteBufferInfo extends BaseAssetInfo
 		return direct;
 	}
 
+	/**
+	 * Returns whether the ByteBuffer should be mapped from the asset source.
+	 * 
+	 * @return True if the ByteBuffer should be a read-only memory mapping of
+	 *         the asset when the asset source supports it, otherwise false.
+	 */
+	public boolean isMapped()
+	{
+		return mapped;
+	}
+
+	/**
+	 * A mapped asset is never read, so it's not deduplicated either.
+	 */
+	@Override
+	protected boolean isShareable()
+	{
+		return !mapped && super.isShareable();
+	}
+
+	/**
+	 * Returns the byte order used to decode multi-byte values.
+	 * 
+	 * @return The byte order of the ByteBuffer and primitive arrays.
+	 */
+	public ByteOrder getOrder()
+	{
+		return order;
+	}
+
 }
@@ -0,0 +1,141 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A thread-safe pool of equally sized byte arrays. Arrays are lent out with
+ * {@link #acquire()} and given back with {@link #release(byte[])}, when the
+ * pool is empty a new array is allocated and when the pool is full a released
+ * array is left to the garbage collector.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class BufferPool
+{
+
+	// The size of every buffer in the pool.
+	private final int bufferSize;
+
+	// The maximum number of buffers kept in the pool.
+	private final int maxBuffers;
+
+	// The buffers available to be lent out.
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+
+	// The number of buffers in the queue, ConcurrentLinkedQueue.size is O(n).
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * Instantiates a new BufferPool.
+	 * 
+	 * @param bufferSize
+	 *        The size of every buffer in the pool, in bytes.
+	 * @param maxBuffers
+	 *        The maximum number of released buffers to keep for reuse.
+	 */
+	public BufferPool( int bufferSize, int maxBuffers )
+	{
+		if (bufferSize <= 0)
+		{
+			throw new IllegalArgumentException( "bufferSize must be positive" );
+		}
+
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	/**
+	 * Takes a buffer from the pool, allocating one if the pool is empty.
+	 * 
+	 * @return A buffer of {@link #getBufferSize()} bytes. The contents of the
+	 *         buffer are undefined.
+	 */
+	public byte[] acquire()
+	{
+		byte[] buffer = buffers.poll();
+
+		if (buffer == null)
+		{
+			return new byte[bufferSize];
+		}
+
+		pooled.decrementAndGet();
+
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use the buffer after
+	 * it's been released. Buffers not acquired from this pool are ignored.
+	 * 
+	 * @param buffer
+	 *        The buffer to return to the pool.
+	 */
+	public void release( byte[] buffer )
+	{
+		if (buffer == null || buffer.length != bufferSize)
+		{
+			return;
+		}
+
+		if (pooled.incrementAndGet() > maxBuffers)
+		{
+			pooled.decrementAndGet();
+			return;
+		}
+
+		buffers.offer( buffer );
+	}
+
+	/**
+	 * The size of every buffer in the pool.
+	 * 
+	 * @return The number of bytes in each buffer.
+	 */
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * The maximum number of released buffers kept for reuse.
+	 * 
+	 * @return The maximum number of pooled buffers.
+	 */
+	public int getMaxBuffers()
+	{
+		return maxBuffers;
+	}
+
+	/**
+	 * The number of buffers currently waiting in the pool.
+	 * 
+	 * @return The number of pooled buffers.
+	 */
+	public int size()
+	{
+		return pooled.get();
+	}
+
+}
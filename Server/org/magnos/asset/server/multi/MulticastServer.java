@@ -14,21 +14,45 @@
  * 				Open Software License (OSL 3.0)
  */
 
+
 package org.magnos.asset.server.multi;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.magnos.asset.FormatUtility;
+import org.magnos.asset.base.ByteCache;
 import org.magnos.asset.server.BaseAssetServer;
 import org.magnos.asset.source.MulticastSource;
 
 
 /**
  * An AssetServer for transmitting assets over Multicast.
+ * <p>
+ * Every response sent to the group is seen by every server in it, so a server
+ * which sees a response for a path within the suppression window stays quiet
+ * when asked for that path. When several servers share a group a response
+ * delay can be given, each server then waits a random time up to the delay
+ * before answering and the first to answer suppresses the rest.
+ * </p>
+ * <p>
+ * Requests from a {@link MulticastSource} are answered in fragments no larger
+ * than the packet size of the source or server (whichever is smaller), other
+ * requests are answered with a single packet. The bytes of assets are kept in
+ * a {@link ByteCache} so popular assets aren't read from the source for each
+ * request.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -36,10 +60,28 @@ import org.magnos.asset.source.MulticastSource;
 public class MulticastServer extends BaseAssetServer
 {
 
+	// The default number of milliseconds after a response for a path is seen
+	// during which requests for that path are not answered.
+	public static final int DEFAULT_SUPPRESS_WINDOW = 50;
+
+	// The default most milliseconds to wait before answering a request.
+	public static final int DEFAULT_RESPONSE_DELAY = 0;
+
+	// The number of paths with a recent response tracked before expired ones
+	// are removed.
+	public static final int RESPONSE_HISTORY = 1024;
+
 	private final int serverPort;
 	private final InetAddress serverGroup;
 	private final DatagramPacket serverPacket;
+	private final ByteCache cache;
+	private final ConcurrentHashMap<String, Long> responses;
+	private final Random random;
+	private final AtomicLong suppressed;
 	private MulticastSocket serverSocket;
+	private ScheduledExecutorService scheduler;
+	private volatile int suppressWindow = DEFAULT_SUPPRESS_WINDOW;
+	private volatile int responseDelay = DEFAULT_RESPONSE_DELAY;
 
 	/**
 	 * Instantiates a new MulticastServer.
@@ -56,6 +98,18 @@ public class MulticastServer extends BaseAssetServer
 		this.serverPort = serverPort;
 		this.serverGroup = serverGroup;
 		this.serverPacket = new DatagramPacket( new byte[packetSize], packetSize );
+		this.cache = new ByteCache();
+		this.responses = new ConcurrentHashMap<String, Long>();
+		this.random = new Random();
+		this.suppressed = new AtomicLong();
+	}
+
+	@Override
+	public void start() throws IOException, InterruptedException
+	{
+		scheduler = Executors.newSingleThreadScheduledExecutor();
+
+		super.start();
 	}
 
 	@Override
@@ -68,6 +122,7 @@ public class MulticastServer extends BaseAssetServer
 	@Override
 	protected void onClose() throws IOException
 	{
+		scheduler.shutdownNow();
 		serverSocket.leaveGroup( serverGroup );
 		serverSocket.close();
 	}
@@ -75,36 +130,272 @@ public class MulticastServer extends BaseAssetServer
 	@Override
 	protected void onExecute() throws IOException
 	{
+		serverPacket.setLength( serverPacket.getData().length );
 		serverSocket.receive( serverPacket );
 
 		try
 		{
+			byte[] data = serverPacket.getData();
+			int length = serverPacket.getLength();
+
+			// Remember responses, they suppress requests for the same path.
+			String response = MulticastSource.getResponseString( data, length );
+
+			if (response != null)
+			{
+				addResponse( response );
+
+				return;
+			}
+
 			// Get the request from the packet.
-			String request = MulticastSource.getRequestString( serverPacket.getData() );
+			String request = MulticastSource.getRequestString( data, length );
 
-			// If request is null, it was a response packet.
+			// If request is null, it was not a request packet.
 			if (request != null)
 			{
 				triggerRequest( request );
 
-				// Get the asset as an InputStream.
-				InputStream asset = getSource().getStream( request );
+				int packetSize = MulticastSource.getRequestPacketSize( data, length );
+				int delay = responseDelay;
+
+				if (delay > 0)
+				{
+					scheduler.schedule( new Response( request, packetSize ), random.nextInt( delay + 1 ), TimeUnit.MILLISECONDS );
+				}
+				else
+				{
+					respond( request, packetSize );
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			triggerError( e, false );
+		}
+	}
+
+	/**
+	 * Sends the requested asset to the group unless a response for it was
+	 * seen within the suppression window.
+	 * 
+	 * @param request
+	 *        The request of the asset.
+	 * @param packetSize
+	 *        The largest packet the requester can receive, or -1 if it only
+	 *        accepts a single response packet.
+	 * @throws Exception
+	 *         An error occurred reading or sending the asset.
+	 */
+	protected void respond( String request, int packetSize ) throws Exception
+	{
+		Long seen = responses.get( request );
+
+		if (seen != null && System.currentTimeMillis() - seen.longValue() < suppressWindow)
+		{
+			suppressed.incrementAndGet();
 
-				triggerResponse( request, asset );
+			return;
+		}
 
-				// Convert it to an array of bytes.
-				byte[] data = FormatUtility.getBytes( asset );
+		byte[] data = getBytes( request );
 
-				// Convert the data and request into a response byte array.
-				byte[] response = MulticastSource.getResponsePacket( data, request );
+		if (packetSize < 0)
+		{
+			byte[] response = MulticastSource.getResponsePacket( data, request );
 
-				// Send the response packet.
-				serverSocket.send( new DatagramPacket( response, response.length, serverGroup, serverPort ) );
+			serverSocket.send( new DatagramPacket( response, response.length, serverGroup, serverPort ) );
+		}
+		else
+		{
+			sendFragments( request, data, Math.min( packetSize, serverPacket.getData().length ) );
+		}
+
+		addResponse( request );
+	}
+
+	/**
+	 * Sends the given asset to the group in fragments which fit in the given
+	 * packet size.
+	 */
+	private void sendFragments( String request, byte[] data, int packetSize ) throws IOException
+	{
+		byte[] path = request.getBytes();
+		byte[] packet = new byte[packetSize];
+		int capacity = packetSize - 2 - path.length - MulticastSource.FRAGMENT_HEADER;
+
+		if (capacity <= 0)
+		{
+			throw new IOException( "The request " + request + " leaves no room for the asset in a packet of " + packetSize + " bytes" );
+		}
+
+		int count = MulticastSource.getFragmentCount( data.length, capacity );
+		int fragmentSize = MulticastSource.getFragmentSize( data.length, count );
+
+		for (int index = 0; index < count; index++)
+		{
+			int offset = index * fragmentSize;
+			int length = MulticastSource.putFragment( packet, path, index, count, data.length, data, offset, Math.min( fragmentSize, data.length - offset ) );
+
+			serverSocket.send( new DatagramPacket( packet, length, serverGroup, serverPort ) );
+		}
+	}
+
+	/**
+	 * Returns the bytes of the requested asset from the cache, reading them
+	 * from the source if they're not cached.
+	 */
+	private byte[] getBytes( String request ) throws Exception
+	{
+		byte[] data = cache.get( request );
+
+		if (data != null)
+		{
+			triggerResponse( request, new ByteArrayInputStream( data ) );
+
+			return data;
+		}
+
+		// Get the asset as an InputStream.
+		InputStream asset = getSource().getStream( request );
+
+		triggerResponse( request, asset );
+
+		// Convert it to an array of bytes.
+		try
+		{
+			data = FormatUtility.getBytes( asset );
+		}
+		finally
+		{
+			asset.close();
+		}
+
+		cache.put( request, data );
+
+		return data;
+	}
+
+	/**
+	 * Remembers that a response for the given path was just sent to the group,
+	 * forgetting expired responses when too many are remembered.
+	 */
+	private void addResponse( String request )
+	{
+		long now = System.currentTimeMillis();
+
+		responses.put( request, now );
+
+		if (responses.size() > RESPONSE_HISTORY)
+		{
+			Iterator<Long> iterator = responses.values().iterator();
+
+			while (iterator.hasNext())
+			{
+				if (now - iterator.next().longValue() >= suppressWindow)
+				{
+					iterator.remove();
+				}
 			}
 		}
-		catch (Exception e)
+	}
+
+	/**
+	 * Returns the cache of asset bytes.
+	 * 
+	 * @return The reference to the cache.
+	 */
+	public ByteCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Returns the number of milliseconds after a response for a path is seen
+	 * during which requests for that path are not answered.
+	 * 
+	 * @return The suppression window in milliseconds.
+	 */
+	public int getSuppressWindow()
+	{
+		return suppressWindow;
+	}
+
+	/**
+	 * Sets the number of milliseconds after a response for a path is seen
+	 * during which requests for that path are not answered. This should be
+	 * less than the resend interval of the sources in the group.
+	 * 
+	 * @param suppressWindow
+	 *        The suppression window in milliseconds, zero answers every request.
+	 */
+	public void setSuppressWindow( int suppressWindow )
+	{
+		this.suppressWindow = suppressWindow;
+	}
+
+	/**
+	 * Returns the most milliseconds to wait before answering a request.
+	 * 
+	 * @return The response delay in milliseconds.
+	 */
+	public int getResponseDelay()
+	{
+		return responseDelay;
+	}
+
+	/**
+	 * Sets the most milliseconds to wait before answering a request. Each
+	 * request is answered after a random delay up to this, so when several
+	 * servers share a group the first to answer suppresses the others.
+	 * 
+	 * @param responseDelay
+	 *        The response delay in milliseconds, zero answers immediately.
+	 */
+	public void setResponseDelay( int responseDelay )
+	{
+		this.responseDelay = responseDelay;
+	}
+
+	/**
+	 * Returns the number of requests which were not answered because a
+	 * response was seen within the suppression window.
+	 * 
+	 * @return The number of suppressed responses.
+	 */
+	public long getSuppressedCount()
+	{
+		return suppressed.get();
+	}
+
+	/**
+	 * A response waiting for its delay to pass.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private class Response implements Runnable
+	{
+
+		private final String request;
+		private final int packetSize;
+
+		public Response( String request, int packetSize )
 		{
-			triggerError( e, false );
+			this.request = request;
+			this.packetSize = packetSize;
+		}
+
+		public void run()
+		{
+			try
+			{
+				respond( request, packetSize );
+			}
+			catch (Exception e)
+			{
+				triggerError( e, false );
+			}
 		}
 	}
 
@@ -0,0 +1,169 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.server.tcp;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Statistics on the responses a TcpServer compressed: how many were
+ * compressed or skipped, the number of bytes before and after compression,
+ * and the CPU time spent compressing.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class CompressionStats
+{
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final AtomicLong compressed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong originalBytes = new AtomicLong();
+	private final AtomicLong compressedBytes = new AtomicLong();
+	private final AtomicLong cpuTime = new AtomicLong();
+
+	/**
+	 * Records a compressed response.
+	 * 
+	 * @param original
+	 *        The number of bytes in the asset.
+	 * @param encoded
+	 *        The number of bytes sent.
+	 * @param time
+	 *        The nanoseconds of CPU time spent compressing.
+	 */
+	public void record( long original, long encoded, long time )
+	{
+		compressed.incrementAndGet();
+		originalBytes.addAndGet( original );
+		compressedBytes.addAndGet( encoded );
+		cpuTime.addAndGet( time );
+	}
+
+	/**
+	 * Records a response which the client would accept compressed but was
+	 * sent as is because of its size or type.
+	 */
+	public void skip()
+	{
+		skipped.incrementAndGet();
+	}
+
+	/**
+	 * Resets the statistics.
+	 */
+	public void reset()
+	{
+		compressed.set( 0 );
+		skipped.set( 0 );
+		originalBytes.set( 0 );
+		compressedBytes.set( 0 );
+		cpuTime.set( 0 );
+	}
+
+	/**
+	 * The number of responses compressed.
+	 * 
+	 * @return The number of compressed responses.
+	 */
+	public long getCompressedCount()
+	{
+		return compressed.get();
+	}
+
+	/**
+	 * The number of responses sent as is because of their size or type.
+	 * 
+	 * @return The number of skipped responses.
+	 */
+	public long getSkippedCount()
+	{
+		return skipped.get();
+	}
+
+	/**
+	 * The number of bytes in the compressed responses before compression.
+	 * 
+	 * @return The number of original bytes.
+	 */
+	public long getOriginalBytes()
+	{
+		return originalBytes.get();
+	}
+
+	/**
+	 * The number of bytes sent for the compressed responses.
+	 * 
+	 * @return The number of compressed bytes.
+	 */
+	public long getCompressedBytes()
+	{
+		return compressedBytes.get();
+	}
+
+	/**
+	 * The ratio of compressed bytes to original bytes, lower is better.
+	 * 
+	 * @return The compression ratio, or 1 if nothing was compressed.
+	 */
+	public double getRatio()
+	{
+		long original = originalBytes.get();
+
+		return (original == 0 ? 1.0 : (double)compressedBytes.get() / original);
+	}
+
+	/**
+	 * The CPU time spent compressing responses. If the JVM can't measure the
+	 * CPU time of a thread this is the elapsed time instead.
+	 * 
+	 * @return The time spent compressing in nanoseconds.
+	 */
+	public long getCpuTime()
+	{
+		return cpuTime.get();
+	}
+
+	/**
+	 * Returns the CPU time of the current thread if the JVM can measure it,
+	 * otherwise the current value of the system timer.
+	 * 
+	 * @return A time in nanoseconds which is only meaningful compared with
+	 *         another time from the same thread.
+	 */
+	public static long getThreadTime()
+	{
+		if (THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled())
+		{
+			return THREADS.getCurrentThreadCpuTime();
+		}
+
+		return System.nanoTime();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "CompressionStats[compressed=%d skipped=%d original=%d sent=%d ratio=%.3f cpu=%.1fms]",
+			getCompressedCount(), getSkippedCount(), getOriginalBytes(), getCompressedBytes(), getRatio(), getCpuTime() / 1000000.0 );
+	}
+
+}
@@ -18,19 +18,38 @@ package org.magnos.asset.server.tcp;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.FormatUtility;
+import org.magnos.asset.base.SizedInputStream;
+import org.magnos.asset.io.BufferPool;
+import org.magnos.asset.source.MultiplexConnection;
 import org.magnos.asset.source.TcpSource;
+import org.magnos.asset.source.TransportCodec;
 
 
 /**
  * A Thread for handling a single TCP socket requesting assets.
  * 
+ * If the client agrees on the multiplexed protocol the handler only reads
+ * requests, each request is answered by the server's executor and the frames
+ * of concurrent responses are interleaved on the socket. If the client also
+ * agrees on compression, responses the server chooses to compress are sent
+ * encoded with one of the codecs the client supports.
+ * 
  * @author Philip Diffenderfer
  * 
  */
@@ -42,6 +61,12 @@ public class TcpHandler extends Thread
 	private DataInputStream socketInput;
 	private DataOutputStream socketOutput;
 
+	// The multiplexed requests being answered and whether they've been cancelled.
+	private final ConcurrentHashMap<Integer, AtomicBoolean> inflight = new ConcurrentHashMap<Integer, AtomicBoolean>();
+
+	// The names of the codecs the client supports.
+	private List<String> accepted = Collections.emptyList();
+
 	/**
 	 * Instantiates a new TcpHandler.
 	 * 
@@ -69,15 +94,37 @@ public class TcpHandler extends Thread
 		{
 			try
 			{
-				String request = TcpSource.getRequest( socketInput );
+				int length = socketInput.readInt();
 
-				assetServer.triggerRequest( request );
+				if (length >= 0)
+				{
+					sendAsset( TcpSource.getRequest( socketInput, length ) );
+				}
+				else if (length == TcpSource.OP_METADATA)
+				{
+					sendMetadata( TcpSource.getRequest( socketInput ) );
+				}
+				else if (length == TcpSource.OP_HELLO)
+				{
+					int version = Math.min( socketInput.readInt(), TcpSource.PROTOCOL_VERSION );
 
-				InputStream asset = assetServer.getSource().getStream( request );
+					socketOutput.writeInt( version );
+					socketOutput.flush();
 
-				assetServer.triggerResponse( request, asset );
+					if (version >= TcpSource.PROTOCOL_COMPRESSED)
+					{
+						accepted = TcpSource.readCodecs( socketInput );
+					}
 
-				send( asset, socketOutput );
+					if (version >= TcpSource.PROTOCOL_MULTIPLEX)
+					{
+						runMultiplexed();
+					}
+				}
+				else
+				{
+					throw new IOException( "Unknown operation " + length );
+				}
 			}
 			catch (IOException e)
 			{
@@ -90,6 +137,466 @@ public class TcpHandler extends Thread
 				assetServer.triggerError( e, false );
 			}
 		}
+
+		close();
+	}
+
+	/**
+	 * Sends the requested asset, or {@link TcpSource#SIZE_NOT_FOUND} if the
+	 * asset could not be retrieved from the server's source.
+	 * 
+	 * @param request
+	 *        The request for the asset.
+	 * @throws IOException
+	 *         An error occurred writing to the socket.
+	 */
+	private void sendAsset( String request ) throws IOException
+	{
+		assetServer.triggerRequest( request );
+
+		InputStream asset = null;
+		try
+		{
+			asset = assetServer.getSource().getStream( request );
+		}
+		catch (Exception e)
+		{
+			assetServer.triggerError( e, false );
+		}
+
+		if (asset == null)
+		{
+			socketOutput.writeInt( TcpSource.SIZE_NOT_FOUND );
+			socketOutput.flush();
+			return;
+		}
+
+		assetServer.triggerResponse( request, asset );
+
+		try
+		{
+			send( asset, socketOutput );
+		}
+		finally
+		{
+			asset.close();
+		}
+	}
+
+	/**
+	 * Sends the metadata of the requested asset. If the metadata could not be
+	 * determined the asset is reported as not present.
+	 * 
+	 * @param request
+	 *        The request for the metadata.
+	 * @throws IOException
+	 *         An error occurred writing to the socket.
+	 */
+	private void sendMetadata( String request ) throws IOException
+	{
+		assetServer.triggerRequest( request );
+
+		AssetMetadata metadata = AssetMetadata.NOT_PRESENT;
+		try
+		{
+			metadata = assetServer.getSource().getMetadata( request );
+		}
+		catch (Exception e)
+		{
+			assetServer.triggerError( e, false );
+		}
+
+		TcpSource.writeMetadata( socketOutput, metadata );
+		socketOutput.flush();
+	}
+
+	/**
+	 * Reads multiplexed requests and hands them to the server's executor until
+	 * the socket is closed.
+	 * 
+	 * @throws IOException
+	 *         An error occurred reading from the socket.
+	 */
+	private void runMultiplexed() throws IOException
+	{
+		for (;;)
+		{
+			int id = socketInput.readInt();
+			byte type = socketInput.readByte();
+			byte[] payload = new byte[MultiplexConnection.readFrameLength( socketInput )];
+			socketInput.readFully( payload );
+
+			switch (type)
+			{
+			case MultiplexConnection.REQUEST_STREAM:
+			case MultiplexConnection.REQUEST_METADATA:
+				AtomicBoolean cancelled = new AtomicBoolean();
+				inflight.put( id, cancelled );
+				try
+				{
+					assetServer.getExecutor().execute( new MultiplexedRequest( id, type, new String( payload ), cancelled ) );
+				}
+				catch (RejectedExecutionException e)
+				{
+					throw new IOException( "The server is stopping" );
+				}
+				break;
+			case MultiplexConnection.REQUEST_CANCEL:
+				AtomicBoolean request = inflight.get( id );
+				if (request != null)
+				{
+					request.set( true );
+				}
+				break;
+			default:
+				throw new IOException( "Unknown frame type " + type );
+			}
+		}
+	}
+
+	/**
+	 * Sends the requested asset in frames, or a
+	 * {@link MultiplexConnection#RESPONSE_NOT_FOUND} frame if the asset could
+	 * not be retrieved from the server's source.
+	 * 
+	 * @param id
+	 *        The ID of the request.
+	 * @param request
+	 *        The request for the asset.
+	 * @param cancelled
+	 *        Set when the client no longer wants the rest of the asset.
+	 * @throws IOException
+	 *         An error occurred writing to the socket.
+	 */
+	private void sendFrames( int id, String request, AtomicBoolean cancelled ) throws IOException
+	{
+		assetServer.triggerRequest( request );
+
+		InputStream asset = null;
+		try
+		{
+			asset = assetServer.getSource().getStream( request );
+		}
+		catch (Exception e)
+		{
+			assetServer.triggerError( e, false );
+		}
+
+		if (asset == null)
+		{
+			sendFrame( id, MultiplexConnection.RESPONSE_NOT_FOUND, null, 0 );
+			return;
+		}
+
+		assetServer.triggerResponse( request, asset );
+
+		BufferPool pool = FormatUtility.getBufferPool();
+		byte[] chunk = pool.acquire();
+		try
+		{
+			TransportCodec codec = assetServer.getCodec( request, SizedInputStream.getSize( asset ), accepted );
+
+			if (codec != null)
+			{
+				sendEncoded( id, asset, codec, chunk, cancelled );
+				return;
+			}
+
+			byte[] size = ByteBuffer.allocate( 8 ).putLong( SizedInputStream.getSize( asset ) ).array();
+			sendFrame( id, MultiplexConnection.RESPONSE_BEGIN, size, size.length );
+
+			int read = chunk.length;
+
+			while (read == chunk.length && !cancelled.get())
+			{
+				try
+				{
+					read = FormatUtility.read( asset, chunk, 0, chunk.length );
+				}
+				catch (IOException e)
+				{
+					assetServer.triggerError( e, false );
+					sendFrame( id, MultiplexConnection.RESPONSE_FAILED, null, 0 );
+					return;
+				}
+
+				if (read > 0)
+				{
+					sendFrame( id, MultiplexConnection.RESPONSE_DATA, chunk, read );
+				}
+			}
+
+			if (!cancelled.get())
+			{
+				sendFrame( id, MultiplexConnection.RESPONSE_END, null, 0 );
+			}
+		}
+		finally
+		{
+			pool.release( chunk );
+			asset.close();
+		}
+	}
+
+	/**
+	 * Sends the asset in frames encoded by the given codec, recording the
+	 * compression in the server's statistics.
+	 * 
+	 * @param id
+	 *        The ID of the request.
+	 * @param asset
+	 *        The stream of the asset.
+	 * @param codec
+	 *        The codec to encode the asset with.
+	 * @param chunk
+	 *        The buffer to read the asset into.
+	 * @param cancelled
+	 *        Set when the client no longer wants the rest of the asset.
+	 * @throws IOException
+	 *         An error occurred writing to the socket.
+	 */
+	private void sendEncoded( int id, InputStream asset, TransportCodec codec, byte[] chunk, AtomicBoolean cancelled ) throws IOException
+	{
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerOutput = new DataOutputStream( header );
+		headerOutput.writeLong( SizedInputStream.getSize( asset ) );
+		headerOutput.writeUTF( codec.getName() );
+
+		sendFrame( id, MultiplexConnection.RESPONSE_ENCODED, header.toByteArray(), header.size() );
+
+		BufferPool pool = FormatUtility.getBufferPool();
+		FrameOutputStream frames = new FrameOutputStream( id, pool.acquire(), cancelled );
+		OutputStream encoder = codec.encode( frames );
+		boolean finished = false;
+		long original = 0;
+		long time = 0;
+
+		try
+		{
+			int read = chunk.length;
+
+			while (read == chunk.length && !cancelled.get())
+			{
+				try
+				{
+					read = FormatUtility.read( asset, chunk, 0, chunk.length );
+				}
+				catch (IOException e)
+				{
+					assetServer.triggerError( e, false );
+					frames.abandon();
+					sendFrame( id, MultiplexConnection.RESPONSE_FAILED, null, 0 );
+					return;
+				}
+
+				if (read > 0)
+				{
+					long start = CompressionStats.getThreadTime();
+					encoder.write( chunk, 0, read );
+					time += CompressionStats.getThreadTime() - start;
+					original += read;
+				}
+			}
+
+			if (!cancelled.get())
+			{
+				long start = CompressionStats.getThreadTime();
+				encoder.close();
+				time += CompressionStats.getThreadTime() - start;
+				finished = true;
+
+				assetServer.getCompressionStats().record( original, frames.getCount(), time );
+
+				sendFrame( id, MultiplexConnection.RESPONSE_END, null, 0 );
+			}
+		}
+		finally
+		{
+			if (!finished)
+			{
+				// release the codec's resources without sending anything more
+				frames.abandon();
+				encoder.close();
+			}
+
+			pool.release( frames.buffer );
+		}
+	}
+
+	/**
+	 * Sends the metadata of the requested asset in a frame. If the metadata
+	 * could not be determined the asset is reported as not present.
+	 * 
+	 * @param id
+	 *        The ID of the request.
+	 * @param request
+	 *        The request for the metadata.
+	 * @throws IOException
+	 *         An error occurred writing to the socket.
+	 */
+	private void sendMetadataFrame( int id, String request ) throws IOException
+	{
+		assetServer.triggerRequest( request );
+
+		AssetMetadata metadata = AssetMetadata.NOT_PRESENT;
+		try
+		{
+			metadata = assetServer.getSource().getMetadata( request );
+		}
+		catch (Exception e)
+		{
+			assetServer.triggerError( e, false );
+		}
+
+		ByteArrayOutputStream payload = new ByteArrayOutputStream();
+		TcpSource.writeMetadata( new DataOutputStream( payload ), metadata );
+
+		sendFrame( id, MultiplexConnection.RESPONSE_METADATA, payload.toByteArray(), payload.size() );
+	}
+
+	/**
+	 * Writes and flushes a single frame, frames from concurrent responses are
+	 * written one at a time.
+	 */
+	private void sendFrame( int id, byte type, byte[] payload, int length ) throws IOException
+	{
+		synchronized (socketOutput)
+		{
+			MultiplexConnection.writeFrame( socketOutput, id, type, payload, 0, length );
+			socketOutput.flush();
+		}
+	}
+
+	/**
+	 * A stream which sends the bytes written to it in data frames of a single
+	 * response.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private class FrameOutputStream extends OutputStream
+	{
+
+		private final int id;
+		private final byte[] buffer;
+		private final AtomicBoolean cancelled;
+		private int length;
+		private long count;
+		private boolean abandoned;
+
+		public FrameOutputStream( int id, byte[] buffer, AtomicBoolean cancelled )
+		{
+			this.id = id;
+			this.buffer = buffer;
+			this.cancelled = cancelled;
+		}
+
+		public void write( int b ) throws IOException
+		{
+			buffer[length++] = (byte)b;
+
+			if (length == buffer.length)
+			{
+				flush();
+			}
+		}
+
+		public void write( byte[] b, int off, int len ) throws IOException
+		{
+			while (len > 0)
+			{
+				int copied = Math.min( len, buffer.length - length );
+				System.arraycopy( b, off, buffer, length, copied );
+				length += copied;
+				off += copied;
+				len -= copied;
+
+				if (length == buffer.length)
+				{
+					flush();
+				}
+			}
+		}
+
+		public void flush() throws IOException
+		{
+			if (length > 0 && !abandoned && !cancelled.get())
+			{
+				sendFrame( id, MultiplexConnection.RESPONSE_DATA, buffer, length );
+				count += length;
+			}
+
+			length = 0;
+		}
+
+		public void close() throws IOException
+		{
+			flush();
+		}
+
+		/**
+		 * Discards everything written from now on.
+		 */
+		public void abandon()
+		{
+			abandoned = true;
+		}
+
+		/**
+		 * The number of bytes sent.
+		 */
+		public long getCount()
+		{
+			return count;
+		}
+	}
+
+	/**
+	 * Answers a single multiplexed request on the server's executor.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private class MultiplexedRequest implements Runnable
+	{
+
+		private final int id;
+		private final byte type;
+		private final String request;
+		private final AtomicBoolean cancelled;
+
+		public MultiplexedRequest( int id, byte type, String request, AtomicBoolean cancelled )
+		{
+			this.id = id;
+			this.type = type;
+			this.request = request;
+			this.cancelled = cancelled;
+		}
+
+		public void run()
+		{
+			try
+			{
+				if (type == MultiplexConnection.REQUEST_METADATA)
+				{
+					sendMetadataFrame( id, request );
+				}
+				else
+				{
+					sendFrames( id, request, cancelled );
+				}
+			}
+			catch (IOException e)
+			{
+				assetServer.triggerError( e, true );
+
+				close();
+			}
+			finally
+			{
+				inflight.remove( id );
+			}
+		}
 	}
 
 	/**
@@ -113,9 +620,10 @@ public class TcpHandler extends Thread
 	}
 
 	/**
-	 * Sends the data in the InputStream to the given OutputStream.
-	 * 
-	 * TODO Make more efficient!
+	 * Sends the data in the InputStream to the given OutputStream. If the
+	 * size of the stream is known the data is copied straight to the socket
+	 * through a pooled buffer, otherwise it's read into an array first to
+	 * determine its size.
 	 * 
 	 * @param input
 	 *        The InputStream to read from.
@@ -126,10 +634,21 @@ public class TcpHandler extends Thread
 	 */
 	public void send( InputStream input, DataOutputStream output ) throws IOException
 	{
-		byte[] data = FormatUtility.getBytes( input );
+		long size = SizedInputStream.getSize( input );
+
+		if (size >= 0 && size <= Integer.MAX_VALUE)
+		{
+			output.writeInt( (int)size );
+			FormatUtility.copy( input, output, size );
+		}
+		else
+		{
+			byte[] data = FormatUtility.getBytes( input );
+
+			output.writeInt( data.length );
+			output.write( data );
+		}
 
-		output.writeInt( data.length );
-		output.write( data );
 		output.flush();
 	}
 
@@ -19,15 +19,33 @@ package org.magnos.asset.server.tcp;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import org.magnos.asset.Assets;
 import org.magnos.asset.server.BaseAssetServer;
 import org.magnos.asset.server.util.HashcodeComparator;
+import org.magnos.asset.source.DeflateCodec;
+import org.magnos.asset.source.TransportCodec;
 
 
 /**
  * An AssetServer for transmitting assets over TCP.
+ * <p>
+ * Clients using version 3 of the protocol tell the server which codecs they
+ * support, and responses are compressed with the first of the server's codecs
+ * the client supports. Assets smaller than {@link #getMinCompress()} bytes or
+ * with an extension of an already compressed type (PNG, JPEG, ZIP...) are
+ * sent as is. The effect of compression can be examined through
+ * {@link #getCompressionStats()}.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -35,10 +53,28 @@ import org.magnos.asset.server.util.HashcodeComparator;
 public class TcpServer extends BaseAssetServer
 {
 
+	// The default number of threads answering multiplexed requests.
+	public static final int DEFAULT_WORKERS = 8;
+
+	// The default size in bytes an asset must be before it's compressed.
+	public static final int DEFAULT_MIN_COMPRESS = 1024;
+
+	// The default extensions of assets which are already compressed.
+	public static final String[] DEFAULT_COMPRESSED_EXTENSIONS = {
+		"png", "jpg", "jpeg", "gif", "zip", "gz", "jar", "mp3", "ogg"
+	};
+
 	protected final int serverPort;
 	protected final int serverBacklog;
+	protected final int serverWorkers;
 	protected ConcurrentSkipListSet<TcpHandler> assetHandlers;
 	protected ServerSocket serverSocket;
+	protected ExecutorService executor;
+	protected final List<TransportCodec> codecs = new CopyOnWriteArrayList<TransportCodec>();
+	protected final Set<String> compressedExtensions = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+	protected final CompressionStats compressionStats = new CompressionStats();
+	protected volatile boolean compressing = true;
+	protected volatile int minCompress = DEFAULT_MIN_COMPRESS;
 
 	/**
 	 * Instantiates a new TcpServer.
@@ -49,10 +85,37 @@ public class TcpServer extends BaseAssetServer
 	 *        The maximum number of waiting connections to queue.
 	 */
 	public TcpServer( int serverPort, int serverBacklog )
+	{
+		this( serverPort, serverBacklog, DEFAULT_WORKERS );
+	}
+
+	/**
+	 * Instantiates a new TcpServer.
+	 * 
+	 * @param serverPort
+	 *        The port to bind to.
+	 * @param serverBacklog
+	 *        The maximum number of waiting connections to queue.
+	 * @param serverWorkers
+	 *        The number of threads shared by all connections using the
+	 *        multiplexed protocol to answer requests.
+	 */
+	public TcpServer( int serverPort, int serverBacklog, int serverWorkers )
 	{
 		this.serverPort = serverPort;
 		this.serverBacklog = serverBacklog;
+		this.serverWorkers = serverWorkers;
 		this.assetHandlers = new ConcurrentSkipListSet<TcpHandler>( new HashcodeComparator() );
+		this.codecs.add( new DeflateCodec() );
+		this.compressedExtensions.addAll( Arrays.asList( DEFAULT_COMPRESSED_EXTENSIONS ) );
+	}
+
+	@Override
+	public void start() throws IOException, InterruptedException
+	{
+		executor = Executors.newFixedThreadPool( serverWorkers );
+
+		super.start();
 	}
 
 	@Override
@@ -69,6 +132,7 @@ public class TcpServer extends BaseAssetServer
 			handler.close();
 		}
 
+		executor.shutdownNow();
 		serverSocket.close();
 	}
 
@@ -94,6 +158,150 @@ public class TcpServer extends BaseAssetServer
 		assetHandlers.remove( handler );
 	}
 
+	/**
+	 * Returns the executor which answers requests made with the multiplexed
+	 * protocol.
+	 * 
+	 * @return The reference to the executor.
+	 */
+	public ExecutorService getExecutor()
+	{
+		return executor;
+	}
+
+	/**
+	 * Returns the codec to compress the requested asset with, or null if it
+	 * should be sent as is.
+	 * 
+	 * @param request
+	 *        The request for the asset.
+	 * @param size
+	 *        The size of the asset, or a negative number if it's not known.
+	 * @param accepted
+	 *        The names of the codecs the client supports.
+	 * @return The codec to compress the asset with, or null.
+	 */
+	public TransportCodec getCodec( String request, long size, List<String> accepted )
+	{
+		if (!compressing || accepted.isEmpty())
+		{
+			return null;
+		}
+
+		if ((size >= 0 && size < minCompress) || compressedExtensions.contains( Assets.getExtension( request ).toLowerCase() ))
+		{
+			compressionStats.skip();
+
+			return null;
+		}
+
+		for (TransportCodec codec : codecs)
+		{
+			if (accepted.contains( codec.getName() ))
+			{
+				return codec;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Adds a codec responses may be compressed with. Codecs added first are
+	 * preferred, replacing a codec keeps its place.
+	 * 
+	 * @param codec
+	 *        The codec to add, replacing any codec with the same name.
+	 */
+	public void addCodec( TransportCodec codec )
+	{
+		for (int i = 0; i < codecs.size(); i++)
+		{
+			if (codecs.get( i ).getName().equals( codec.getName() ))
+			{
+				codecs.set( i, codec );
+
+				return;
+			}
+		}
+
+		codecs.add( codec );
+	}
+
+	/**
+	 * The codecs responses may be compressed with, in order of preference.
+	 * 
+	 * @return The reference to the list of codecs.
+	 */
+	public List<TransportCodec> getCodecs()
+	{
+		return codecs;
+	}
+
+	/**
+	 * The extensions of assets which are already compressed and are sent as
+	 * is, in lower case.
+	 * 
+	 * @return The reference to the set of extensions.
+	 */
+	public Set<String> getCompressedExtensions()
+	{
+		return compressedExtensions;
+	}
+
+	/**
+	 * Whether responses are compressed for clients which support it.
+	 * 
+	 * @return True if responses are compressed, otherwise false.
+	 */
+	public boolean isCompressing()
+	{
+		return compressing;
+	}
+
+	/**
+	 * Sets whether responses are compressed for clients which support it.
+	 * 
+	 * @param compressing
+	 *        True if responses should be compressed, otherwise false.
+	 */
+	public void setCompressing( boolean compressing )
+	{
+		this.compressing = compressing;
+	}
+
+	/**
+	 * The size in bytes an asset must be before it's compressed. Assets of an
+	 * unknown size are always compressed.
+	 * 
+	 * @return The minimum size of a compressed asset.
+	 */
+	public int getMinCompress()
+	{
+		return minCompress;
+	}
+
+	/**
+	 * Sets the size in bytes an asset must be before it's compressed.
+	 * 
+	 * @param minCompress
+	 *        The minimum size of a compressed asset.
+	 */
+	public void setMinCompress( int minCompress )
+	{
+		this.minCompress = minCompress;
+	}
+
+	/**
+	 * The statistics of the responses this server compressed.
+	 * 
+	 * @return The reference to the statistics.
+	 */
+	public CompressionStats getCompressionStats()
+	{
+		return compressionStats;
+	}
+
 	/**
 	 * Returns the set of handlers currently handling requests.
 	 * 
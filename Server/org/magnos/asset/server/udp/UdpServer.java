@@ -20,14 +20,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.FormatUtility;
 import org.magnos.asset.server.BaseAssetServer;
 import org.magnos.asset.source.UdpSource;
 
 
 /**
- * An AssetServer for transmitting assets over UDP.
+ * An AssetServer for transmitting assets over UDP. Assets requested by a
+ * {@link UdpSource} are sent in fragments no larger than the packet size of
+ * the client or server (whichever is smaller), and fragments the client did
+ * not receive are sent again when it asks for them. The server keeps no state
+ * between requests, a resend reads the asset from the source again.
  * 
  * @author Philip Diffenderfer
  * 
@@ -37,6 +43,7 @@ public class UdpServer extends BaseAssetServer
 
 	private final int serverPort;
 	private final DatagramPacket serverPacket;
+	private final byte[] fragmentBuffer;
 	private DatagramSocket serverSocket;
 
 	/**
@@ -51,6 +58,7 @@ public class UdpServer extends BaseAssetServer
 	{
 		this.serverPort = port;
 		this.serverPacket = new DatagramPacket( new byte[packetSize], packetSize );
+		this.fragmentBuffer = new byte[packetSize];
 	}
 
 	@Override
@@ -68,19 +76,55 @@ public class UdpServer extends BaseAssetServer
 	@Override
 	protected void onExecute() throws IOException
 	{
+		serverPacket.setLength( serverPacket.getData().length );
 		serverSocket.receive( serverPacket );
 
 		try
 		{
 			String request = UdpSource.getRequest( serverPacket );
+			byte operation = UdpSource.getOperation( serverPacket );
 
 			triggerRequest( request );
 
-			InputStream asset = getSource().getStream( request );
-
-			triggerResponse( request, asset );
-
-			byte[] response = FormatUtility.getBytes( asset );
+			byte[] response = null;
+
+			if (operation == UdpSource.OP_FRAGMENTS || operation == UdpSource.OP_RESEND)
+			{
+				int[] indices = (operation == UdpSource.OP_RESEND ? UdpSource.getIndices( serverPacket ) : null);
+
+				sendFragments( request, UdpSource.getRequestId( serverPacket ), UdpSource.getPacketSize( serverPacket ), indices );
+
+				return;
+			}
+			else if (operation == UdpSource.OP_METADATA)
+			{
+				AssetMetadata metadata = AssetMetadata.NOT_PRESENT;
+				try
+				{
+					metadata = getSource().getMetadata( request );
+				}
+				catch (Exception e)
+				{
+					triggerError( e, false );
+				}
+
+				response = UdpSource.getMetadataPacket( UdpSource.getRequestId( serverPacket ), metadata );
+			}
+			else
+			{
+				InputStream asset = getSource().getStream( request );
+
+				triggerResponse( request, asset );
+
+				try
+				{
+					response = FormatUtility.getBytes( asset );
+				}
+				finally
+				{
+					asset.close();
+				}
+			}
 
 			serverSocket.send( new DatagramPacket( response, response.length,
 					serverPacket.getAddress(), serverPacket.getPort() ) );
@@ -92,4 +136,76 @@ public class UdpServer extends BaseAssetServer
 		}
 	}
 
+	/**
+	 * Sends the fragments of the requested asset to the client of the current
+	 * packet. If the asset could not be read a single fragment with a count of
+	 * zero is sent so the client does not wait for it.
+	 * 
+	 * @param request
+	 *        The request of the asset.
+	 * @param id
+	 *        The id the client gave the request.
+	 * @param packetSize
+	 *        The largest packet the client can receive.
+	 * @param indices
+	 *        The indices of the fragments to send, or null for all of them.
+	 * @throws IOException
+	 *         An error occurred sending a fragment.
+	 */
+	private void sendFragments( String request, int id, int packetSize, int[] indices ) throws IOException
+	{
+		SocketAddress client = serverPacket.getSocketAddress();
+		byte[] data = null;
+
+		try
+		{
+			InputStream asset = getSource().getStream( request );
+
+			if (asset != null)
+			{
+				triggerResponse( request, asset );
+
+				try
+				{
+					data = FormatUtility.getBytes( asset );
+				}
+				finally
+				{
+					asset.close();
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			triggerError( e, false );
+		}
+
+		if (data == null)
+		{
+			int length = UdpSource.putFragment( fragmentBuffer, id, 0, 0, -1, null, 0, 0 );
+
+			serverSocket.send( new DatagramPacket( fragmentBuffer, length, client ) );
+
+			return;
+		}
+
+		int maximum = Math.min( packetSize, fragmentBuffer.length );
+		int count = UdpSource.getFragmentCount( data.length, maximum );
+		int fragmentSize = UdpSource.getFragmentSize( data.length, count );
+		int total = (indices == null ? count : indices.length);
+
+		for (int i = 0; i < total; i++)
+		{
+			int index = (indices == null ? i : indices[i]);
+
+			if (index >= 0 && index < count)
+			{
+				int offset = index * fragmentSize;
+				int length = UdpSource.putFragment( fragmentBuffer, id, index, count, data.length, data, offset, Math.min( fragmentSize, data.length - offset ) );
+
+				serverSocket.send( new DatagramPacket( fragmentBuffer, length, client ) );
+			}
+		}
+	}
+
 }
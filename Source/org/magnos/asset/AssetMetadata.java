@@ -0,0 +1,140 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset;
+
+/**
+ * Information about an asset in an AssetSource which can be determined
+ * without reading the asset itself. Any value a source is unable to determine
+ * cheaply is left unknown.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class AssetMetadata
+{
+
+	/**
+	 * The length of an asset whose length is not known.
+	 */
+	public static final long UNKNOWN_LENGTH = -1;
+
+	/**
+	 * The last modified time of an asset whose last modified time is not known.
+	 */
+	public static final long UNKNOWN_LAST_MODIFIED = 0;
+
+	/**
+	 * The metadata of an asset which does not exist.
+	 */
+	public static final AssetMetadata NOT_PRESENT = new AssetMetadata( false, UNKNOWN_LENGTH, UNKNOWN_LAST_MODIFIED, null );
+
+	/**
+	 * The metadata of an asset which exists but nothing else is known.
+	 */
+	public static final AssetMetadata PRESENT = new AssetMetadata( true, UNKNOWN_LENGTH, UNKNOWN_LAST_MODIFIED, null );
+
+	private final boolean present;
+	private final long length;
+	private final long lastModified;
+	private final String tag;
+
+	/**
+	 * Instantiates a new AssetMetadata for an asset that exists.
+	 * 
+	 * @param length
+	 *        The length of the asset in bytes, or {@link #UNKNOWN_LENGTH}.
+	 * @param lastModified
+	 *        The time the asset was last modified in milliseconds since the
+	 *        epoch, or {@link #UNKNOWN_LAST_MODIFIED}.
+	 * @param tag
+	 *        A tag which changes whenever the asset changes, or null.
+	 */
+	public AssetMetadata( long length, long lastModified, String tag )
+	{
+		this( true, length, lastModified, tag );
+	}
+
+	/**
+	 * Instantiates a new AssetMetadata.
+	 * 
+	 * @param present
+	 *        Whether the asset exists.
+	 * @param length
+	 *        The length of the asset in bytes, or {@link #UNKNOWN_LENGTH}.
+	 * @param lastModified
+	 *        The time the asset was last modified in milliseconds since the
+	 *        epoch, or {@link #UNKNOWN_LAST_MODIFIED}.
+	 * @param tag
+	 *        A tag which changes whenever the asset changes, or null.
+	 */
+	public AssetMetadata( boolean present, long length, long lastModified, String tag )
+	{
+		this.present = present;
+		this.length = (length < 0 ? UNKNOWN_LENGTH : length);
+		this.lastModified = lastModified;
+		this.tag = tag;
+	}
+
+	/**
+	 * Whether the asset exists.
+	 * 
+	 * @return True if the asset exists in the source, otherwise false.
+	 */
+	public boolean isPresent()
+	{
+		return present;
+	}
+
+	/**
+	 * The length of the asset in bytes.
+	 * 
+	 * @return The length of the asset, or {@link #UNKNOWN_LENGTH}.
+	 */
+	public long getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * The time the asset was last modified.
+	 * 
+	 * @return The time in milliseconds since the epoch, or
+	 *         {@link #UNKNOWN_LAST_MODIFIED}.
+	 */
+	public long getLastModified()
+	{
+		return lastModified;
+	}
+
+	/**
+	 * A tag of the current version of the asset which changes whenever the
+	 * asset changes, like an HTTP ETag.
+	 * 
+	 * @return The reference to the tag, or null if unknown.
+	 */
+	public String getTag()
+	{
+		return tag;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "{present=%s, length=%d, lastModified=%d, tag=%s}", present, length, lastModified, tag );
+	}
+
+}
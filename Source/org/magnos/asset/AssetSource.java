@@ -63,9 +63,8 @@ public interface AssetSource
 	 * determine if the asset is in the proper format however, it only returns
 	 * whether something with the given request exists.
 	 * 
-	 * The default implementation will try to create the stream and return true
-	 * if the stream was created without error. Implementing classes should
-	 * override this functionality to something more efficient.
+	 * The default implementation returns whether the metadata of the request
+	 * says it's present.
 	 * 
 	 * @param request
 	 *        The request to check for existence.
@@ -73,6 +72,25 @@ public interface AssetSource
 	 */
 	public boolean isPresent( String request );
 
+	/**
+	 * Returns the metadata of the given request without reading the asset.
+	 * This can be used to check for existence, presize buffers, or determine
+	 * whether an asset has changed. Any value which cannot be determined
+	 * cheaply by the source is left unknown.
+	 * 
+	 * The default implementation will try to create the stream and return it's
+	 * size if known. Implementing classes should override this functionality
+	 * to something more efficient.
+	 * 
+	 * @param request
+	 *        The request to get the metadata of.
+	 * @return The metadata of the request, {@link AssetMetadata#NOT_PRESENT}
+	 *         if the request does not exist in this source.
+	 * @throws Exception
+	 *         An error occurred determining the metadata.
+	 */
+	public AssetMetadata getMetadata( String request ) throws Exception;
+
 	/**
 	 * Returns an InputStream to the requested asset. If the asset doesn't exist
 	 * in this source then an exception will be thrown or null will be returned
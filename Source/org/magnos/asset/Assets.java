@@ -23,6 +23,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.magnos.asset.base.BaseFutureAsset;
+import org.magnos.asset.base.ContentCache;
 import org.magnos.asset.ex.UnknownAssetFormatException;
 import org.magnos.asset.ex.UnknownAssetSourceException;
 
@@ -107,6 +108,12 @@ public class Assets
 	 */
 	private static boolean cache = true;
 
+	/**
+	 * The cache of decoded assets by content, or null if assets with identical
+	 * content are not deduplicated.
+	 */
+	private static volatile ContentCache contents;
+
 	/**
 	 * The number of cache hits.
 	 */
@@ -913,6 +920,13 @@ public class Assets
 		}
 
 		assets.clear();
+
+		ContentCache current = contents;
+
+		if (current != null)
+		{
+			current.clear();
+		}
 	}
 
 	/**
@@ -1234,6 +1248,47 @@ public class Assets
 		return cache;
 	}
 
+	/**
+	 * Enables or Disables the deduplication of assets by content. When enabled
+	 * the bytes of each asset loaded are hashed and assets with identical
+	 * content (decoded by the same format into the same type) share a single
+	 * decoded instance across all of their paths. By default assets are not
+	 * deduplicated.
+	 * 
+	 * @param deduplicating
+	 *        True if assets should be deduplicated, otherwise false.
+	 * @see ContentCache
+	 */
+	public static void setDeduplicating( boolean deduplicating )
+	{
+		if (deduplicating != (contents != null))
+		{
+			contents = (deduplicating ? new ContentCache() : null);
+		}
+	}
+
+	/**
+	 * Whether the deduplication of assets by content is enabled or disabled.
+	 * 
+	 * @return True if deduplication is enabled, otherwise false.
+	 */
+	public static boolean isDeduplicating()
+	{
+		return (contents != null);
+	}
+
+	/**
+	 * Returns the cache of decoded assets by content, which can be configured
+	 * to verify content with SHA-256.
+	 * 
+	 * @return The reference to the ContentCache, or null if assets are not
+	 *         deduplicated.
+	 */
+	public static ContentCache getContentCache()
+	{
+		return contents;
+	}
+
 	/**
 	 * Returns the number of assets returned that were cached and didn't have 
 	 * to be re-loaded.
@@ -19,10 +19,12 @@ package org.magnos.asset.base;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.Buffer;
 
 import org.magnos.asset.AssetFormat;
 import org.magnos.asset.AssetInfo;
 import org.magnos.asset.AssetSource;
+import org.magnos.asset.Assets;
 import org.magnos.asset.ex.AssetException;
 
 
@@ -39,8 +41,11 @@ public class BaseAssetInfo implements AssetInfo
 
 	public static final String[] PROPERTIES_NONE = {};
 
+	// The info whose asset is being created on each thread.
+	private static final ThreadLocal<AssetInfo> creating = new ThreadLocal<AssetInfo>();
+
 	private final Class<?> type;
-	private Object asset;
+	private volatile Object asset;
 	private String path;
 	private String request;
 	private AssetFormat format;
@@ -98,6 +103,19 @@ public class BaseAssetInfo implements AssetInfo
 		return (A)asset;
 	}
 
+	/**
+	 * Returns the AssetInfo whose asset is being created on the current
+	 * thread. A source wrapped by another source (like a SmartSource) can use
+	 * this to find the path its stream is cached under.
+	 * 
+	 * @return The AssetInfo being created, or null if no asset is being
+	 *         created on the current thread.
+	 */
+	public static AssetInfo getCreating()
+	{
+		return creating.get();
+	}
+
 	@Override
 	public <A> A create() throws AssetException
 	{
@@ -127,7 +145,17 @@ public class BaseAssetInfo implements AssetInfo
 		try
 		{
 			// Get the input stream from the source.
-			in = source.getStream( request );
+			AssetInfo previous = creating.get();
+			creating.set( this );
+
+			try
+			{
+				in = source.getStream( request );
+			}
+			finally
+			{
+				creating.set( previous );
+			}
 
 			// Wrap with a buffered input stream if its not one already.
 			if (!(in instanceof BufferedInputStream))
@@ -137,8 +165,18 @@ public class BaseAssetInfo implements AssetInfo
 
 			try
 			{
-				// Get the asset from the input stream (buffered).
-				asset = format.loadAsset( in, this );
+				ContentCache contents = Assets.getContentCache();
+
+				// Share the asset decoded from identical content if any.
+				if (contents != null && isShareable() && contents.isCacheable( in ))
+				{
+					asset = contents.load( in, this );
+				}
+				else
+				{
+					// Get the asset from the input stream (buffered).
+					asset = format.loadAsset( in, this );
+				}
 			}
 			finally
 			{
@@ -160,6 +198,18 @@ public class BaseAssetInfo implements AssetInfo
 		return (A)asset;
 	}
 
+	/**
+	 * Returns whether the asset may be shared by every path with the same
+	 * content when deduplicating (see {@link ContentCache}). Buffers and
+	 * streams have a position of their own, so they're never shared.
+	 * 
+	 * @return True if the asset can be loaded through the ContentCache.
+	 */
+	protected boolean isShareable()
+	{
+		return !Buffer.class.isAssignableFrom( type ) && !InputStream.class.isAssignableFrom( type );
+	}
+
 	@Override
 	public <A> void set( A asset )
 	{
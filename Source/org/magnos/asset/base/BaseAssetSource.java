@@ -16,9 +16,17 @@
 
 package org.magnos.asset.base;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.regex.Pattern;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.AssetSource;
 
 
@@ -79,6 +87,20 @@ public abstract class BaseAssetSource implements AssetSource
 
 	@Override
 	public boolean isPresent( String request )
+	{
+		try
+		{
+			return getMetadata( request ).isPresent();
+		}
+		catch (Exception e)
+		{
+			// if an error occurred the asset must not be present
+			return false;
+		}
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
 	{
 		InputStream input = null;
 		// try creating the stream...
@@ -89,10 +111,15 @@ public abstract class BaseAssetSource implements AssetSource
 		catch (Exception e)
 		{
 			// if an error occurred the asset must not be present
-			return false;
+			return AssetMetadata.NOT_PRESENT;
+		}
+
+		if (input == null)
+		{
+			return AssetMetadata.NOT_PRESENT;
 		}
 
-		// assume the asset was present and now close the stream
+		// the asset was present, now close the stream
 		try
 		{
 			input.close();
@@ -101,7 +128,168 @@ public abstract class BaseAssetSource implements AssetSource
 		{
 			// swallow *gulp*
 		}
-		return true;
+
+		return new AssetMetadata( SizedInputStream.getSize( input ), AssetMetadata.UNKNOWN_LAST_MODIFIED, null );
+	}
+
+	/**
+	 * Opens a stream to the resource at the given URL. The stream is a
+	 * {@link SizedInputStream} carrying the length reported by the URL's
+	 * connection so formats can allocate the asset at its final size.
+	 * 
+	 * @param url
+	 *        The URL of the resource to open.
+	 * @return The stream to the resource.
+	 * @throws IOException
+	 *         An error occurred connecting to the URL.
+	 */
+	public static InputStream openStream( URL url ) throws IOException
+	{
+		URLConnection connection = url.openConnection();
+		InputStream input = connection.getInputStream();
+
+		return new SizedInputStream( input, connection.getContentLength() );
+	}
+
+	/**
+	 * Reads the given stream entirely and closes it. If the stream is a
+	 * {@link SizedInputStream} the bytes are read into an array of that size.
+	 * 
+	 * @param input
+	 *        The stream to read.
+	 * @return The bytes read from the stream.
+	 * @throws IOException
+	 *         An error occurred reading the stream.
+	 */
+	public static byte[] readFully( InputStream input ) throws IOException
+	{
+		try
+		{
+			long size = SizedInputStream.getSize( input );
+			ByteArrayOutputStream output = new ByteArrayOutputStream( size > 0 && size < Integer.MAX_VALUE ? (int)size : 8192 );
+			byte[] chunk = new byte[8192];
+			int read;
+
+			while ((read = input.read( chunk )) != -1)
+			{
+				output.write( chunk, 0, read );
+			}
+
+			return output.toByteArray();
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Returns the metadata of the given file.
+	 * 
+	 * @param file
+	 *        The file to get the metadata of.
+	 * @return The metadata of the file.
+	 */
+	public static AssetMetadata getMetadata( File file )
+	{
+		if (!file.isFile() || !file.canRead())
+		{
+			return AssetMetadata.NOT_PRESENT;
+		}
+
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String tag = Long.toHexString( lastModified ) + "-" + Long.toHexString( length );
+
+		return new AssetMetadata( length, lastModified, tag );
+	}
+
+	/**
+	 * Returns the metadata of the resource at the given URL. Resources on the
+	 * file-system are examined directly, resources over HTTP with a HEAD
+	 * request, and other resources by connecting to the URL without reading
+	 * the resource. The connection is always closed.
+	 * 
+	 * @param url
+	 *        The URL of the resource, or null if it doesn't exist.
+	 * @return The metadata of the resource.
+	 * @throws Exception
+	 *         An error occurred connecting to the URL.
+	 */
+	public static AssetMetadata getMetadata( URL url ) throws Exception
+	{
+		if (url == null)
+		{
+			return AssetMetadata.NOT_PRESENT;
+		}
+
+		if (url.getProtocol().equals( "file" ))
+		{
+			return getMetadata( new File( url.toURI() ) );
+		}
+
+		URLConnection connection = url.openConnection();
+
+		if (connection instanceof HttpURLConnection)
+		{
+			return getMetadata( (HttpURLConnection)connection, "HEAD" );
+		}
+
+		try
+		{
+			connection.connect();
+
+			return new AssetMetadata( connection.getContentLength(), connection.getLastModified(), null );
+		}
+		catch (FileNotFoundException e)
+		{
+			return AssetMetadata.NOT_PRESENT;
+		}
+		finally
+		{
+			try
+			{
+				connection.getInputStream().close();
+			}
+			catch (IOException e)
+			{
+				// not opened
+			}
+		}
+	}
+
+	/**
+	 * Returns the metadata of the resource of the given HTTP connection by
+	 * requesting it with the given method, falling back to a GET when the
+	 * server does not allow HEAD. The body of the response is never read.
+	 */
+	private static AssetMetadata getMetadata( HttpURLConnection connection, String method ) throws IOException
+	{
+		try
+		{
+			connection.setRequestMethod( method );
+
+			int code = connection.getResponseCode();
+
+			if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE)
+			{
+				return AssetMetadata.NOT_PRESENT;
+			}
+			if (code == HttpURLConnection.HTTP_BAD_METHOD && method.equals( "HEAD" ))
+			{
+				return getMetadata( (HttpURLConnection)connection.getURL().openConnection(), "GET" );
+			}
+			if (code / 100 != 2)
+			{
+				throw new IOException( method + " " + connection.getURL() + " returned " + code );
+			}
+
+			return new AssetMetadata( connection.getContentLength(), connection.getLastModified(), connection.getHeaderField( "ETag" ) );
+		}
+		finally
+		{
+			connection.disconnect();
+		}
 	}
 
 }
@@ -0,0 +1,278 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.base;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * A cache of the bytes of assets by request, so popular assets can be served
+ * without reading them from their source each time. The
+ * cache holds at most a given number of bytes, evicting the least recently
+ * used assets to make room, and an asset is read again from the source once
+ * it has been cached longer than the lifetime of the cache.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class ByteCache
+{
+
+	// The default number of bytes the cache can hold.
+	public static final long DEFAULT_CAPACITY = 16 * 1024 * 1024;
+
+	// The default number of milliseconds an asset is cached for.
+	public static final long DEFAULT_LIFETIME = 60000;
+
+	private final LinkedHashMap<String, Entry> entries;
+	private long capacity;
+	private long lifetime;
+	private long size;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Instantiates a new ByteCache with the default capacity and lifetime.
+	 */
+	public ByteCache()
+	{
+		this( DEFAULT_CAPACITY, DEFAULT_LIFETIME );
+	}
+
+	/**
+	 * Instantiates a new ByteCache.
+	 * 
+	 * @param capacity
+	 *        The number of bytes the cache can hold, zero disables the cache.
+	 * @param lifetime
+	 *        The number of milliseconds an asset is cached for, zero caches
+	 *        assets until they're evicted.
+	 */
+	public ByteCache( long capacity, long lifetime )
+	{
+		this.entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+		this.capacity = capacity;
+		this.lifetime = lifetime;
+	}
+
+	/**
+	 * Returns the cached bytes of the given request.
+	 * 
+	 * @param request
+	 *        The request of the asset.
+	 * @return The bytes of the asset, or null if it's not cached or expired.
+	 */
+	public synchronized byte[] get( String request )
+	{
+		Entry entry = entries.get( request );
+
+		if (entry != null && lifetime > 0 && System.currentTimeMillis() - entry.time > lifetime)
+		{
+			remove( request );
+			entry = null;
+		}
+
+		if (entry == null)
+		{
+			misses++;
+
+			return null;
+		}
+
+		hits++;
+
+		return entry.data;
+	}
+
+	/**
+	 * Caches the bytes of the given request, evicting the least recently used
+	 * assets until they fit. Assets larger than the capacity are not cached.
+	 * 
+	 * @param request
+	 *        The request of the asset.
+	 * @param data
+	 *        The bytes of the asset.
+	 */
+	public synchronized void put( String request, byte[] data )
+	{
+		remove( request );
+
+		if (data.length > capacity)
+		{
+			return;
+		}
+
+		entries.put( request, new Entry( data ) );
+		size += data.length;
+
+		evict( capacity );
+	}
+
+	/**
+	 * Removes the given request from the cache.
+	 * 
+	 * @param request
+	 *        The request of the asset.
+	 */
+	public synchronized void remove( String request )
+	{
+		Entry entry = entries.remove( request );
+
+		if (entry != null)
+		{
+			size -= entry.data.length;
+		}
+	}
+
+	/**
+	 * Removes all assets from the cache.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Evicts the least recently used assets until the cache holds no more
+	 * than the given number of bytes.
+	 */
+	private void evict( long maximum )
+	{
+		Iterator<Entry> iterator = entries.values().iterator();
+
+		while (size > maximum && iterator.hasNext())
+		{
+			size -= iterator.next().data.length;
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes the cache can hold.
+	 * 
+	 * @return The capacity in bytes.
+	 */
+	public synchronized long getCapacity()
+	{
+		return capacity;
+	}
+
+	/**
+	 * Sets the number of bytes the cache can hold, evicting assets if it now
+	 * holds too many.
+	 * 
+	 * @param capacity
+	 *        The capacity in bytes, zero disables the cache.
+	 */
+	public synchronized void setCapacity( long capacity )
+	{
+		this.capacity = capacity;
+
+		evict( capacity );
+	}
+
+	/**
+	 * Returns the number of milliseconds an asset is cached for.
+	 * 
+	 * @return The lifetime in milliseconds, zero if assets are cached until
+	 *         they're evicted.
+	 */
+	public synchronized long getLifetime()
+	{
+		return lifetime;
+	}
+
+	/**
+	 * Sets the number of milliseconds an asset is cached for.
+	 * 
+	 * @param lifetime
+	 *        The lifetime in milliseconds, zero caches assets until they're
+	 *        evicted.
+	 */
+	public synchronized void setLifetime( long lifetime )
+	{
+		this.lifetime = lifetime;
+	}
+
+	/**
+	 * Returns the number of bytes currently cached.
+	 * 
+	 * @return The size of the cache in bytes.
+	 */
+	public synchronized long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of assets currently cached.
+	 * 
+	 * @return The number of assets.
+	 */
+	public synchronized int getCount()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache.
+	 * 
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * Returns the number of requests which were not cached.
+	 * 
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format( "ByteCache[count=%d size=%d capacity=%d hits=%d misses=%d]", entries.size(), size, capacity, hits, misses );
+	}
+
+	/**
+	 * The bytes of a cached asset and when they were cached.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private static class Entry
+	{
+
+		private final byte[] data;
+		private final long time = System.currentTimeMillis();
+
+		public Entry( byte[] data )
+		{
+			this.data = data;
+		}
+	}
+
+}
@@ -0,0 +1,486 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.base;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.magnos.asset.AssetFormat;
+import org.magnos.asset.AssetInfo;
+
+
+/**
+ * A cache of decoded assets by the content they were decoded from, so assets
+ * with byte-identical content under different paths (the same icon in
+ * several directories, the same CSV in several archives) share one decoded
+ * instance instead of each being decoded and held separately.
+ * <p>
+ * The bytes of an asset are read and hashed with a fast 64-bit
+ * non-cryptographic hash before they're decoded. An asset decoded before from
+ * content with the same hash and length, by the same format into the same
+ * type with a matching AssetInfo, is returned instead of decoding the bytes
+ * again. When verifying, the SHA-256 digest of the content must also match
+ * so a hash collision can never return the wrong asset.
+ * </p>
+ * The cache only weakly references the assets, an asset is dropped from the
+ * cache once no path references it. Since the instance is shared, a mutable
+ * asset changed through one path is changed for every path. Buffers, streams
+ * and memory mapped assets are not deduplicated (see
+ * {@link BaseAssetInfo#isShareable()}).
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class ContentCache
+{
+
+	// The default largest asset in bytes which is deduplicated.
+	public static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+	// The algorithm used to verify content with the same hash.
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+
+	private final Map<Key, List<Entry>> entries = new HashMap<Key, List<Entry>>();
+	private volatile boolean verifying;
+	private volatile long maxSize = DEFAULT_MAX_SIZE;
+	private long hits;
+	private long misses;
+	private long collisions;
+
+	/**
+	 * Returns whether the asset in the given stream can be deduplicated, an
+	 * asset is not deduplicated if its source knows it's larger than the
+	 * maximum size. An asset of unknown size is cacheable, but is decoded
+	 * normally once more than the maximum size has been read from it.
+	 * 
+	 * @param input
+	 *        The stream of the asset.
+	 * @return True if the asset can be loaded through this cache.
+	 */
+	public boolean isCacheable( InputStream input )
+	{
+		return SizedInputStream.getSize( input ) <= maxSize;
+	}
+
+	/**
+	 * Loads the asset in the given stream, returning the asset previously
+	 * decoded from the same content if there is one.
+	 * 
+	 * @param input
+	 *        The stream of the asset, which is read entirely and closed
+	 *        unless its content is larger than the maximum size.
+	 * @param info
+	 *        The information on the asset being loaded.
+	 * @return The decoded asset.
+	 * @throws Exception
+	 *         An error occurred reading or decoding the asset.
+	 */
+	public Object load( InputStream input, AssetInfo info ) throws Exception
+	{
+		byte[] data;
+
+		if (SizedInputStream.getSize( input ) < 0)
+		{
+			ByteArrayOutputStream buffered = readAtMost( input, maxSize );
+
+			// Too large to deduplicate, decode the bytes read followed by the rest.
+			if (buffered.size() > maxSize)
+			{
+				InputStream rest = new SequenceInputStream( new ByteArrayInputStream( buffered.toByteArray() ), input );
+
+				return info.getFormat().loadAsset( new BufferedInputStream( rest ), info );
+			}
+
+			data = buffered.toByteArray();
+		}
+		else
+		{
+			data = BaseAssetSource.readFully( input );
+		}
+
+		Key key = new Key( hash( data, 0, data.length ), data.length, info.getFormat(), info.getType() );
+		byte[] digest = (verifying ? digest( data ) : null);
+
+		Object existing = find( key, info, digest );
+
+		if (existing != null)
+		{
+			return existing;
+		}
+
+		Object asset = info.getFormat().loadAsset( new SizedInputStream( new ByteArrayInputStream( data ), data.length ), info );
+
+		return store( key, info, digest, asset );
+	}
+
+	/**
+	 * Reads the given stream until it ends or more than the given number of
+	 * bytes have been read, returning the bytes read.
+	 */
+	private ByteArrayOutputStream readAtMost( InputStream input, long limit ) throws IOException
+	{
+		ByteArrayOutputStream output = new ByteArrayOutputStream( 8192 );
+		byte[] chunk = new byte[8192];
+		int read;
+
+		while (output.size() <= limit && (read = input.read( chunk )) != -1)
+		{
+			output.write( chunk, 0, read );
+		}
+
+		return output;
+	}
+
+	/**
+	 * Returns the asset decoded from the content with the given key which
+	 * matches the info and digest, removing the entries of assets which are
+	 * no longer referenced.
+	 */
+	private synchronized Object find( Key key, AssetInfo info, byte[] digest )
+	{
+		List<Entry> list = entries.get( key );
+
+		if (list != null)
+		{
+			Iterator<Entry> iterator = list.iterator();
+
+			while (iterator.hasNext())
+			{
+				Entry entry = iterator.next();
+				Object asset = entry.asset.get();
+				AssetInfo owner = entry.info.get();
+
+				if (asset == null || owner == null)
+				{
+					iterator.remove();
+				}
+				else if (owner.isMatch( info ))
+				{
+					if (digest == null || (entry.digest != null && Arrays.equals( digest, entry.digest )))
+					{
+						hits++;
+
+						return asset;
+					}
+
+					if (entry.digest != null)
+					{
+						collisions++;
+					}
+				}
+			}
+
+			if (list.isEmpty())
+			{
+				entries.remove( key );
+			}
+		}
+
+		misses++;
+
+		return null;
+	}
+
+	/**
+	 * Stores the asset decoded from the content with the given key, unless
+	 * another thread stored a matching asset while it was decoded in which
+	 * case that asset is returned so it's shared.
+	 */
+	private synchronized Object store( Key key, AssetInfo info, byte[] digest, Object asset )
+	{
+		List<Entry> list = entries.get( key );
+
+		if (list == null)
+		{
+			list = new ArrayList<Entry>( 1 );
+			entries.put( key, list );
+		}
+
+		for (Entry entry : list)
+		{
+			Object existing = entry.asset.get();
+			AssetInfo owner = entry.info.get();
+
+			if (existing != null && owner != null && owner.isMatch( info ) &&
+				(digest == null || (entry.digest != null && Arrays.equals( digest, entry.digest ))))
+			{
+				return existing;
+			}
+		}
+
+		if (asset != null)
+		{
+			list.add( new Entry( asset, info, digest ) );
+		}
+
+		return asset;
+	}
+
+	/**
+	 * Removes every asset from the cache and resets its statistics.
+	 */
+	public synchronized void clear()
+	{
+		entries.clear();
+		hits = 0;
+		misses = 0;
+		collisions = 0;
+	}
+
+	/**
+	 * The number of assets in the cache, including assets which are no longer
+	 * referenced but have not been removed yet.
+	 * 
+	 * @return The number of cached assets.
+	 */
+	public synchronized int size()
+	{
+		int size = 0;
+
+		for (List<Entry> list : entries.values())
+		{
+			size += list.size();
+		}
+
+		return size;
+	}
+
+	/**
+	 * The number of assets that were shared instead of decoded.
+	 * 
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * The number of assets that had to be decoded.
+	 * 
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * The number of times content with the same hash had a different digest
+	 * while verifying.
+	 * 
+	 * @return The number of hash collisions found.
+	 */
+	public synchronized long getCollisions()
+	{
+		return collisions;
+	}
+
+	/**
+	 * Whether content with the same hash is verified to have the same SHA-256
+	 * digest before an asset is shared.
+	 * 
+	 * @return True if content is verified, otherwise false.
+	 */
+	public boolean isVerifying()
+	{
+		return verifying;
+	}
+
+	/**
+	 * Sets whether content with the same hash is verified to have the same
+	 * SHA-256 digest before an asset is shared. Assets cached while not
+	 * verifying are not shared while verifying.
+	 * 
+	 * @param verifying
+	 *        True if content should be verified, otherwise false.
+	 */
+	public void setVerifying( boolean verifying )
+	{
+		this.verifying = verifying;
+	}
+
+	/**
+	 * The largest asset in bytes which is deduplicated.
+	 * 
+	 * @return The maximum size of a deduplicated asset.
+	 */
+	public long getMaxSize()
+	{
+		return maxSize;
+	}
+
+	/**
+	 * Sets the largest asset in bytes which is deduplicated, larger assets
+	 * are loaded from their stream as usual.
+	 * 
+	 * @param maxSize
+	 *        The maximum size of a deduplicated asset.
+	 */
+	public void setMaxSize( long maxSize )
+	{
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Hashes the given bytes with a fast 64-bit non-cryptographic hash, which
+	 * mixes eight bytes at a time.
+	 * 
+	 * @param data
+	 *        The bytes to hash.
+	 * @param offset
+	 *        The offset of the first byte to hash.
+	 * @param length
+	 *        The number of bytes to hash.
+	 * @return The 64-bit hash of the bytes.
+	 */
+	public static long hash( byte[] data, int offset, int length )
+	{
+		long h = PRIME3 ^ (length * PRIME1);
+		int end = offset + length;
+		int i = offset;
+
+		for (; i + 8 <= end; i += 8)
+		{
+			long k = (data[i] & 0xFFL) |
+				((data[i + 1] & 0xFFL) << 8) |
+				((data[i + 2] & 0xFFL) << 16) |
+				((data[i + 3] & 0xFFL) << 24) |
+				((data[i + 4] & 0xFFL) << 32) |
+				((data[i + 5] & 0xFFL) << 40) |
+				((data[i + 6] & 0xFFL) << 48) |
+				((data[i + 7] & 0xFFL) << 56);
+
+			k *= PRIME2;
+			k = Long.rotateLeft( k, 31 );
+			k *= PRIME1;
+			h ^= k;
+			h = Long.rotateLeft( h, 27 ) * PRIME1 + PRIME3;
+		}
+
+		for (; i < end; i++)
+		{
+			h ^= (data[i] & 0xFFL) * PRIME3;
+			h = Long.rotateLeft( h, 11 ) * PRIME1;
+		}
+
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		h ^= h >>> 32;
+
+		return h;
+	}
+
+	/**
+	 * Returns the SHA-256 digest of the given bytes.
+	 */
+	private static byte[] digest( byte[] data )
+	{
+		try
+		{
+			return MessageDigest.getInstance( DIGEST_ALGORITHM ).digest( data );
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException( e );
+		}
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format( "ContentCache[assets=%d hits=%d misses=%d collisions=%d verifying=%b]",
+			size(), hits, misses, collisions, verifying );
+	}
+
+	/**
+	 * The content an asset was decoded from and how it was decoded.
+	 */
+	private static class Key
+	{
+		private final long hash;
+		private final int length;
+		private final AssetFormat format;
+		private final Class<?> type;
+
+		private Key( long hash, int length, AssetFormat format, Class<?> type )
+		{
+			this.hash = hash;
+			this.length = length;
+			this.format = format;
+			this.type = type;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int)(hash ^ (hash >>> 32));
+		}
+
+		@Override
+		public boolean equals( Object o )
+		{
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+
+			Key k = (Key)o;
+
+			return (hash == k.hash && length == k.length && format == k.format && type == k.type);
+		}
+	}
+
+	/**
+	 * An asset decoded from content, the info it was decoded with and the
+	 * digest of the content if it was verified.
+	 */
+	private static class Entry
+	{
+		private final WeakReference<Object> asset;
+		private final WeakReference<AssetInfo> info;
+		private final byte[] digest;
+
+		private Entry( Object asset, AssetInfo info, byte[] digest )
+		{
+			this.asset = new WeakReference<Object>( asset );
+			this.info = new WeakReference<AssetInfo>( info );
+			this.digest = digest;
+		}
+	}
+
+}
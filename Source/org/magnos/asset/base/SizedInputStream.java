@@ -0,0 +1,81 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.base;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+
+
+/**
+ * A buffered stream over an asset which carries the number of bytes the
+ * source expects the asset to have. Formats can use the size to allocate
+ * their final structures once instead of growing them as data is read.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class SizedInputStream extends BufferedInputStream
+{
+
+	/**
+	 * The size of a stream whose size is not known.
+	 */
+	public static final long UNKNOWN_SIZE = -1;
+
+	// The number of bytes expected from the stream.
+	private final long size;
+
+	/**
+	 * Instantiates a new SizedInputStream.
+	 * 
+	 * @param input
+	 *        The stream to buffer.
+	 * @param size
+	 *        The number of bytes the stream is expected to have, or a negative
+	 *        number if the size is not known.
+	 */
+	public SizedInputStream( InputStream input, long size )
+	{
+		super( input );
+
+		this.size = (size < 0 ? UNKNOWN_SIZE : size);
+	}
+
+	/**
+	 * The number of bytes the stream was expected to have when it was opened.
+	 * 
+	 * @return The expected number of bytes, or {@link #UNKNOWN_SIZE}.
+	 */
+	public long getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of bytes the given stream is expected to have if it's
+	 * a SizedInputStream.
+	 * 
+	 * @param input
+	 *        The stream to get the expected size of.
+	 * @return The expected number of bytes, or {@link #UNKNOWN_SIZE}.
+	 */
+	public static long getSize( InputStream input )
+	{
+		return (input instanceof SizedInputStream ? ((SizedInputStream)input).getSize() : UNKNOWN_SIZE);
+	}
+
+}
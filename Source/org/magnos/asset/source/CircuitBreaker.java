@@ -0,0 +1,374 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A circuit breaker which stops requests to a source that is failing or slow,
+ * so callers skip it immediately instead of waiting on it to time out.
+ * <p>
+ * A closed breaker allows every request and records its outcome. Once the
+ * window holds at least the minimum number of requests and either the
+ * failure rate or the rate of requests slower than the slow threshold
+ * reaches its limit, the breaker opens and allows no requests. After the
+ * open duration the breaker is half-open and allows a single probe request
+ * at a time, a successful probe closes the breaker and a failed one opens it
+ * again.
+ * </p>
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class CircuitBreaker
+{
+
+	/**
+	 * The states of a circuit breaker.
+	 */
+	public enum State
+	{
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	// The default number of recent requests the rates are measured over.
+	public static final int DEFAULT_WINDOW = 20;
+
+	// The default least number of requests in the window before the breaker
+	// can open.
+	public static final int DEFAULT_MINIMUM_REQUESTS = 10;
+
+	// The default fraction of failed requests which opens the breaker.
+	public static final double DEFAULT_FAILURE_RATE = 0.5;
+
+	// The default number of milliseconds after which a request is slow.
+	public static final long DEFAULT_SLOW_THRESHOLD = 2000;
+
+	// The default fraction of slow requests which opens the breaker.
+	public static final double DEFAULT_SLOW_RATE = 0.5;
+
+	// The default number of milliseconds the breaker stays open.
+	public static final long DEFAULT_OPEN_DURATION = 5000;
+
+	private final LatencyTracker tracker;
+	private State state = State.CLOSED;
+	private long opened;
+	private boolean probing;
+
+	private volatile int minimumRequests = DEFAULT_MINIMUM_REQUESTS;
+	private volatile double failureRate = DEFAULT_FAILURE_RATE;
+	private volatile long slowThreshold = DEFAULT_SLOW_THRESHOLD;
+	private volatile double slowRate = DEFAULT_SLOW_RATE;
+	private volatile long openDuration = DEFAULT_OPEN_DURATION;
+
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong trips = new AtomicLong();
+
+	/**
+	 * Instantiates a new CircuitBreaker with the default window.
+	 */
+	public CircuitBreaker()
+	{
+		this( DEFAULT_WINDOW );
+	}
+
+	/**
+	 * Instantiates a new CircuitBreaker.
+	 * 
+	 * @param window
+	 *        The number of recent requests the rates are measured over.
+	 */
+	public CircuitBreaker( int window )
+	{
+		this.tracker = new LatencyTracker( window, LatencyTracker.DEFAULT_WEIGHT );
+	}
+
+	/**
+	 * Determines whether a request may be made now. If this returns true the
+	 * outcome of the request must be given to {@link #success(long)} or
+	 * {@link #failure(long)}.
+	 * 
+	 * @return True if the request may be made, false if it should be skipped.
+	 */
+	public synchronized boolean allow()
+	{
+		if (state == State.OPEN && System.currentTimeMillis() - opened >= openDuration)
+		{
+			state = State.HALF_OPEN;
+			probing = false;
+		}
+
+		if (state == State.CLOSED || (state == State.HALF_OPEN && !probing))
+		{
+			probing = (state == State.HALF_OPEN);
+
+			return true;
+		}
+
+		rejected.incrementAndGet();
+
+		return false;
+	}
+
+	/**
+	 * Records a successful request. A slow request counts towards the slow
+	 * rate, and fails a probe.
+	 * 
+	 * @param latency
+	 *        The number of milliseconds the request took.
+	 */
+	public synchronized void success( long latency )
+	{
+		if (state == State.HALF_OPEN)
+		{
+			if (latency > slowThreshold)
+			{
+				open();
+			}
+			else
+			{
+				close();
+			}
+
+			return;
+		}
+
+		tracker.success( latency );
+
+		check();
+	}
+
+	/**
+	 * Records a failed request.
+	 * 
+	 * @param latency
+	 *        The number of milliseconds until the request failed.
+	 */
+	public synchronized void failure( long latency )
+	{
+		if (state == State.HALF_OPEN)
+		{
+			open();
+
+			return;
+		}
+
+		tracker.failure( latency );
+
+		check();
+	}
+
+	/**
+	 * Opens the breaker if the window has enough requests and too many of
+	 * them failed or were slow.
+	 */
+	private void check()
+	{
+		if (state == State.CLOSED && tracker.getWindowSize() >= minimumRequests &&
+			(tracker.getErrorRate() >= failureRate || tracker.getSlowRate( slowThreshold ) >= slowRate))
+		{
+			open();
+		}
+	}
+
+	private void open()
+	{
+		state = State.OPEN;
+		opened = System.currentTimeMillis();
+		probing = false;
+		trips.incrementAndGet();
+	}
+
+	private void close()
+	{
+		state = State.CLOSED;
+		probing = false;
+		tracker.reset();
+	}
+
+	/**
+	 * Closes the breaker and forgets every request recorded.
+	 */
+	public synchronized void reset()
+	{
+		close();
+	}
+
+	/**
+	 * Returns the state of the breaker, an open breaker whose open duration
+	 * has passed is reported as half-open.
+	 * 
+	 * @return The current state.
+	 */
+	public synchronized State getState()
+	{
+		if (state == State.OPEN && System.currentTimeMillis() - opened >= openDuration)
+		{
+			return State.HALF_OPEN;
+		}
+
+		return state;
+	}
+
+	/**
+	 * Returns the requests recorded while the breaker was closed.
+	 * 
+	 * @return The reference to the tracker of the breaker.
+	 */
+	public LatencyTracker getTracker()
+	{
+		return tracker;
+	}
+
+	/**
+	 * Returns the number of requests rejected by this breaker.
+	 * 
+	 * @return The number of rejected requests.
+	 */
+	public long getRejectedCount()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * Returns the number of times this breaker opened.
+	 * 
+	 * @return The number of trips.
+	 */
+	public long getTripCount()
+	{
+		return trips.get();
+	}
+
+	/**
+	 * Returns the least number of requests in the window before the breaker
+	 * can open.
+	 * 
+	 * @return The minimum number of requests.
+	 */
+	public int getMinimumRequests()
+	{
+		return minimumRequests;
+	}
+
+	/**
+	 * Sets the least number of requests in the window before the breaker can
+	 * open.
+	 * 
+	 * @param minimumRequests
+	 *        The minimum number of requests.
+	 */
+	public void setMinimumRequests( int minimumRequests )
+	{
+		this.minimumRequests = minimumRequests;
+	}
+
+	/**
+	 * Returns the fraction of failed requests which opens the breaker.
+	 * 
+	 * @return The failure rate between 0 and 1.
+	 */
+	public double getFailureRate()
+	{
+		return failureRate;
+	}
+
+	/**
+	 * Sets the fraction of failed requests which opens the breaker.
+	 * 
+	 * @param failureRate
+	 *        The failure rate between 0 and 1.
+	 */
+	public void setFailureRate( double failureRate )
+	{
+		this.failureRate = failureRate;
+	}
+
+	/**
+	 * Returns the number of milliseconds after which a request is slow.
+	 * 
+	 * @return The slow threshold in milliseconds.
+	 */
+	public long getSlowThreshold()
+	{
+		return slowThreshold;
+	}
+
+	/**
+	 * Sets the number of milliseconds after which a request is slow.
+	 * 
+	 * @param slowThreshold
+	 *        The slow threshold in milliseconds.
+	 */
+	public void setSlowThreshold( long slowThreshold )
+	{
+		this.slowThreshold = slowThreshold;
+	}
+
+	/**
+	 * Returns the fraction of slow requests which opens the breaker.
+	 * 
+	 * @return The slow rate between 0 and 1.
+	 */
+	public double getSlowRate()
+	{
+		return slowRate;
+	}
+
+	/**
+	 * Sets the fraction of slow requests which opens the breaker.
+	 * 
+	 * @param slowRate
+	 *        The slow rate between 0 and 1.
+	 */
+	public void setSlowRate( double slowRate )
+	{
+		this.slowRate = slowRate;
+	}
+
+	/**
+	 * Returns the number of milliseconds the breaker stays open before
+	 * allowing a probe.
+	 * 
+	 * @return The open duration in milliseconds.
+	 */
+	public long getOpenDuration()
+	{
+		return openDuration;
+	}
+
+	/**
+	 * Sets the number of milliseconds the breaker stays open before allowing
+	 * a probe.
+	 * 
+	 * @param openDuration
+	 *        The open duration in milliseconds.
+	 */
+	public void setOpenDuration( long openDuration )
+	{
+		this.openDuration = openDuration;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "CircuitBreaker[state=%s trips=%d rejected=%d %s]",
+			getState(), getTripCount(), getRejectedCount(), tracker );
+	}
+
+}
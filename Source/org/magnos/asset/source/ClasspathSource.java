@@ -16,9 +16,27 @@
 
 package org.magnos.asset.source;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 import java.util.regex.Pattern;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.base.BaseAssetSource;
 
 
@@ -26,6 +44,16 @@ import org.magnos.asset.base.BaseAssetSource;
  * A source that reads assets from the class-path. If this application is
  * bundled in a jar then all resources bundled in the jar with it are accessible
  * through this source.
+ * <p>
+ * An indexed source scans the roots of the class-path of its loader once (the
+ * directories and jars of each URLClassLoader in the chain and the system
+ * class-path, and the jars named in the Class-Path of their manifests) and
+ * maps every resource to its location, so requests and existence checks don't
+ * search the class loaders. The index is rebuilt when the loader of the
+ * source is changed or the source is refreshed. If the chain contains a class
+ * loader which can't be scanned, requests missing from the index are still
+ * given to the loader.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -43,7 +71,9 @@ public class ClasspathSource extends BaseAssetSource
 	// The default loader for loading resources from the class-path.
 	public static final ClassLoader DEFAULT_LOADER = ClasspathSource.class.getClassLoader();
 
-	private final ClassLoader loader;
+	private volatile ClassLoader loader;
+	private volatile boolean indexed;
+	private Index index;
 
 	/**
 	 * Instantiates a new ClasspathSource with the default base and the default
@@ -96,10 +126,31 @@ public class ClasspathSource extends BaseAssetSource
 	 *        it will be handled as the default class loader.
 	 */
 	public ClasspathSource( String base, ClassLoader loader )
+	{
+		this( base, loader, false );
+	}
+
+	/**
+	 * Instantiates a new ClasspathSource with the given base and the given class
+	 * loader.
+	 * 
+	 * @param base
+	 *        The base to use to load assets. This base is effectively prepended
+	 *        to each request string. If null it will be handled as the default
+	 *        base.
+	 * @param loader
+	 *        The loader to use to load assets. The getResourceAsStream method is
+	 *        invoked on this loader when a request for an asset is made. If null
+	 *        it will be handled as the default class loader.
+	 * @param indexed
+	 *        Whether the resources of the class-path should be indexed.
+	 */
+	public ClasspathSource( String base, ClassLoader loader, boolean indexed )
 	{
 		super( REGEX_VALID, base, DEFAULT_BASE );
 
 		this.loader = (loader != null ? loader : DEFAULT_LOADER);
+		this.indexed = indexed;
 	}
 
 	/**
@@ -113,10 +164,404 @@ public class ClasspathSource extends BaseAssetSource
 		return loader;
 	}
 
+	/**
+	 * Sets the loader to which the assets are loaded from. If this source is
+	 * indexed the index is rebuilt on the next request.
+	 * 
+	 * @param loader
+	 *        The loader to use to load assets. If null it will be handled as
+	 *        the default class loader.
+	 */
+	public void setLoader( ClassLoader loader )
+	{
+		this.loader = (loader != null ? loader : DEFAULT_LOADER);
+	}
+
+	/**
+	 * Returns whether the resources of the class-path are indexed.
+	 * 
+	 * @return True if requests are served from an index.
+	 */
+	public boolean isIndexed()
+	{
+		return indexed;
+	}
+
+	/**
+	 * Sets whether the resources of the class-path are indexed.
+	 * 
+	 * @param indexed
+	 *        True if requests should be served from an index.
+	 */
+	public void setIndexed( boolean indexed )
+	{
+		this.indexed = indexed;
+	}
+
+	/**
+	 * Discards the index of this source so it's rebuilt on the next request.
+	 * This is necessary when resources are added to or removed from a
+	 * directory on the class-path.
+	 */
+	public synchronized void refresh()
+	{
+		index = null;
+	}
+
+	/**
+	 * Returns the number of resources in the index of this source, building
+	 * the index if necessary.
+	 * 
+	 * @return The number of indexed resources.
+	 */
+	public int getIndexedCount()
+	{
+		return getIndex().locations.size();
+	}
+
 	@Override
-	public InputStream getStream( String request )
+	public boolean isPresent( String request )
+	{
+		if (!indexed)
+		{
+			return super.isPresent( request );
+		}
+
+		String absolute = getAbsolute( request );
+		Index current = getIndex();
+
+		if (current.locations.containsKey( absolute ))
+		{
+			return true;
+		}
+
+		return (!current.complete && current.loader.getResource( absolute ) != null);
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		String absolute = getAbsolute( request );
+
+		if (indexed)
+		{
+			Location location = getIndex().locations.get( absolute );
+
+			if (location != null)
+			{
+				return location.getMetadata();
+			}
+		}
+
+		return getMetadata( getResource( absolute ) );
+	}
+
+	@Override
+	public InputStream getStream( String request ) throws Exception
+	{
+		URL url = getResource( getAbsolute( request ) );
+
+		return (url == null ? null : openStream( url ));
+	}
+
+	/**
+	 * Returns the URL of the resource with the given path, from the index if
+	 * this source is indexed and otherwise from the loader.
+	 * 
+	 * @param absolute
+	 *        The absolute path of the resource.
+	 * @return The URL of the resource, or null if it doesn't exist.
+	 */
+	private URL getResource( String absolute )
+	{
+		if (!indexed)
+		{
+			return loader.getResource( absolute );
+		}
+
+		Index current = getIndex();
+		Location location = current.locations.get( absolute );
+
+		if (location != null)
+		{
+			return location.url;
+		}
+
+		return (current.complete ? null : current.loader.getResource( absolute ));
+	}
+
+	/**
+	 * Returns the index of the current loader, building it if there is no
+	 * index or the loader has changed.
+	 * 
+	 * @return The index of the class-path.
+	 */
+	private synchronized Index getIndex()
+	{
+		ClassLoader current = loader;
+
+		if (index == null || index.loader != current)
+		{
+			Set<File> roots = new LinkedHashSet<File>();
+			boolean complete = getRoots( current, roots );
+
+			index = new Index( current, roots, complete );
+		}
+
+		return index;
+	}
+
+	/**
+	 * Adds the roots of the class-path of the given loader to the given set,
+	 * parents first so resources are found in the same order the loader
+	 * would find them.
+	 * 
+	 * @param loader
+	 *        The loader to get the roots of.
+	 * @param roots
+	 *        The set to add the directories and jars to.
+	 * @return True if every loader in the chain could be examined, the loaders
+	 *         above the system class loader only serve the platform's own
+	 *         resources and are not examined.
+	 */
+	private static boolean getRoots( ClassLoader loader, Set<File> roots )
+	{
+		List<ClassLoader> chain = new ArrayList<ClassLoader>();
+
+		for (ClassLoader l = loader; l != null; l = l.getParent())
+		{
+			chain.add( 0, l );
+		}
+
+		ClassLoader system = ClassLoader.getSystemClassLoader();
+		Set<ClassLoader> platform = new HashSet<ClassLoader>();
+		boolean complete = true;
+
+		for (ClassLoader l = system.getParent(); l != null; l = l.getParent())
+		{
+			platform.add( l );
+		}
+
+		for (ClassLoader l : chain)
+		{
+			if (l instanceof URLClassLoader)
+			{
+				for (URL url : ((URLClassLoader)l).getURLs())
+				{
+					if (url.getProtocol().equals( "file" ))
+					{
+						try
+						{
+							roots.add( new File( url.toURI() ) );
+						}
+						catch (URISyntaxException e)
+						{
+							complete = false;
+						}
+					}
+					else
+					{
+						complete = false;
+					}
+				}
+			}
+			else if (l == system)
+			{
+				for (String path : System.getProperty( "java.class.path", "" ).split( Pattern.quote( File.pathSeparator ) ))
+				{
+					if (path.length() > 0)
+					{
+						roots.add( new File( path ).getAbsoluteFile() );
+					}
+				}
+			}
+			else if (!platform.contains( l ))
+			{
+				complete = false;
+			}
+		}
+
+		return complete;
+	}
+
+	/**
+	 * The resources found in the roots of the class-path of a loader.
+	 */
+	private static class Index
 	{
-		return loader.getResourceAsStream( getAbsolute( request ) );
+		public final ClassLoader loader;
+		public final boolean complete;
+		public final Map<String, Location> locations;
+
+		public Index( ClassLoader loader, Set<File> roots, boolean complete )
+		{
+			Map<String, Location> found = new HashMap<String, Location>();
+			Set<File> visited = new HashSet<File>();
+			boolean scanned = complete;
+
+			for (File root : roots)
+			{
+				if (!addRoot( found, visited, root ))
+				{
+					scanned = false;
+				}
+			}
+
+			this.loader = loader;
+			this.complete = scanned;
+			this.locations = Collections.unmodifiableMap( found );
+		}
+
+		private static boolean addRoot( Map<String, Location> found, Set<File> visited, File root )
+		{
+			if (!visited.add( root ))
+			{
+				return true;
+			}
+
+			boolean scanned = true;
+
+			try
+			{
+				if (root.isDirectory())
+				{
+					addDirectory( found, root, "" );
+				}
+				else if (root.isFile())
+				{
+					// Jars on the Class-Path of a jar are searched right after it.
+					for (URL url : addJar( found, root ))
+					{
+						if (url.getProtocol().equals( "file" ))
+						{
+							try
+							{
+								scanned &= addRoot( found, visited, new File( url.toURI() ) );
+							}
+							catch (URISyntaxException e)
+							{
+								scanned = false;
+							}
+						}
+						else
+						{
+							scanned = false;
+						}
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				scanned = false;
+			}
+
+			return scanned;
+		}
+
+		private static void addDirectory( Map<String, Location> found, File directory, String prefix ) throws IOException
+		{
+			File[] files = directory.listFiles();
+
+			if (files == null)
+			{
+				throw new IOException( "The directory " + directory + " could not be listed" );
+			}
+
+			for (File file : files)
+			{
+				String path = prefix + file.getName();
+
+				if (file.isDirectory())
+				{
+					addDirectory( found, file, path + "/" );
+				}
+				else if (!found.containsKey( path ))
+				{
+					found.put( path, new Location( file.toURI().toURL(), file ) );
+				}
+			}
+		}
+
+		private static List<URL> addJar( Map<String, Location> found, File file ) throws IOException
+		{
+			JarFile jar = new JarFile( file );
+
+			try
+			{
+				URL location = file.toURI().toURL();
+				String base = "jar:" + location + "!/";
+				Enumeration<JarEntry> entries = jar.entries();
+
+				while (entries.hasMoreElements())
+				{
+					JarEntry entry = entries.nextElement();
+					String path = entry.getName();
+
+					if (!entry.isDirectory() && !found.containsKey( path ))
+					{
+						found.put( path, new Location( new URL( base + path ), entry ) );
+					}
+				}
+
+				return getClassPath( jar, location );
+			}
+			finally
+			{
+				jar.close();
+			}
+		}
+
+		private static List<URL> getClassPath( JarFile jar, URL location ) throws IOException
+		{
+			List<URL> urls = new ArrayList<URL>();
+			Manifest manifest = jar.getManifest();
+			String classPath = (manifest == null ? null : manifest.getMainAttributes().getValue( "Class-Path" ));
+
+			if (classPath != null)
+			{
+				for (String path : classPath.trim().split( "\\s+" ))
+				{
+					if (path.length() > 0)
+					{
+						urls.add( new URL( location, path ) );
+					}
+				}
+			}
+
+			return urls;
+		}
+	}
+
+	/**
+	 * The location of a resource in a directory or jar.
+	 */
+	private static class Location
+	{
+		public final URL url;
+		public final File file;
+		public final long length;
+		public final long lastModified;
+
+		public Location( URL url, File file )
+		{
+			this.url = url;
+			this.file = file;
+			this.length = -1;
+			this.lastModified = -1;
+		}
+
+		public Location( URL url, JarEntry entry )
+		{
+			this.url = url;
+			this.file = null;
+			this.length = entry.getSize();
+			this.lastModified = Math.max( entry.getTime(), AssetMetadata.UNKNOWN_LAST_MODIFIED );
+		}
+
+		public AssetMetadata getMetadata()
+		{
+			return (file != null ? BaseAssetSource.getMetadata( file ) : new AssetMetadata( length, lastModified, null ));
+		}
 	}
 
 }
@@ -0,0 +1,466 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.source;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+
+/**
+ * A bounded pool of database connections created from a DataSource, where
+ * each connection keeps the statements prepared on it so a query is prepared
+ * once per connection instead of once per asset.
+ * 
+ * At most {@link #getMaxTotal()} connections are lent out or idle at once, a
+ * request for a connection when the pool is exhausted waits up to the wait
+ * timeout for one to be released. Idle connections older than the idle
+ * timeout are closed the next time the pool is used, and a connection which
+ * has been idle longer than the validate interval is checked with
+ * {@link Connection#isValid(int)} before it's lent out.
+ * 
+ * Every connection taken with {@link #acquire()} must be given back exactly
+ * once with {@link #release(PooledConnection)} or
+ * {@link #invalidate(PooledConnection)}.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class ConnectionPool
+{
+
+	// The default maximum number of connections lent out or idle at once.
+	public static final int DEFAULT_MAX_TOTAL = 8;
+
+	// The default number of milliseconds a connection can be idle before it's
+	// closed.
+	public static final long DEFAULT_IDLE_TIMEOUT = 300000;
+
+	// The default number of milliseconds a connection can be idle before it's
+	// validated when it's lent out.
+	public static final long DEFAULT_VALIDATE_INTERVAL = 1000;
+
+	// The number of seconds to wait for a connection to be validated.
+	public static final int VALIDATE_TIMEOUT = 5;
+
+	// The default number of milliseconds to wait for a connection when the
+	// pool is exhausted.
+	public static final long DEFAULT_WAIT_TIMEOUT = 30000;
+
+	// The source of new connections.
+	private final DataSource dataSource;
+
+	// The connections lent out and idle.
+	private final ResourcePool<PooledConnection, SQLException> pool;
+
+	/**
+	 * Instantiates a new ConnectionPool with the default size.
+	 * 
+	 * @param dataSource
+	 *        The DataSource to create connections with.
+	 */
+	public ConnectionPool( DataSource dataSource )
+	{
+		this( dataSource, DEFAULT_MAX_TOTAL );
+	}
+
+	/**
+	 * Instantiates a new ConnectionPool.
+	 * 
+	 * @param dataSource
+	 *        The DataSource to create connections with.
+	 * @param maxTotal
+	 *        The maximum number of connections lent out or idle at once.
+	 */
+	public ConnectionPool( DataSource dataSource, int maxTotal )
+	{
+		this.dataSource = dataSource;
+		this.pool = new ResourcePool<PooledConnection, SQLException>( new ConnectionFactory(), maxTotal, maxTotal );
+		this.pool.setIdleTimeout( DEFAULT_IDLE_TIMEOUT );
+		this.pool.setValidateInterval( DEFAULT_VALIDATE_INTERVAL );
+		this.pool.setWaitTimeout( DEFAULT_WAIT_TIMEOUT );
+	}
+
+	/**
+	 * Lends out a connection. An idle connection is reused if one is valid,
+	 * otherwise a new connection is created.
+	 * 
+	 * @return The connection and its prepared statements.
+	 * @throws SQLException
+	 *         The pool was exhausted for longer than the wait timeout, or an
+	 *         error occurred creating a connection.
+	 */
+	public PooledConnection acquire() throws SQLException
+	{
+		PooledConnection connection = null;
+
+		try
+		{
+			connection = pool.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			throw new SQLException( "Interrupted waiting for a database connection" );
+		}
+
+		if (connection == null)
+		{
+			throw new SQLException( "Timed out waiting for a database connection" );
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Returns a connection to the pool once the statement executed on it has
+	 * been closed.
+	 * 
+	 * @param connection
+	 *        The connection to return.
+	 */
+	public void release( PooledConnection connection )
+	{
+		pool.release( connection );
+	}
+
+	/**
+	 * Closes a connection which can't be reused, for example after an error.
+	 * 
+	 * @param connection
+	 *        The connection to close.
+	 */
+	public void invalidate( PooledConnection connection )
+	{
+		pool.invalidate( connection );
+	}
+
+	/**
+	 * Closes all connections which have been idle longer than the idle
+	 * timeout.
+	 */
+	public void evict()
+	{
+		pool.evict();
+	}
+
+	/**
+	 * Closes all idle connections. Connections currently lent out are kept
+	 * until they are released.
+	 */
+	public void clear()
+	{
+		pool.clear();
+	}
+
+	/**
+	 * Determines whether an idle connection can be used for another query.
+	 * 
+	 * @param connection
+	 *        The idle connection to validate.
+	 * @return True if the connection can be reused, otherwise false.
+	 */
+	protected boolean validate( Connection connection )
+	{
+		try
+		{
+			return connection.isValid( VALIDATE_TIMEOUT );
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+		catch (AbstractMethodError e)
+		{
+			// the driver predates JDBC 4, trust an open connection.
+			try
+			{
+				return !connection.isClosed();
+			}
+			catch (SQLException e1)
+			{
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The DataSource connections are created with.
+	 * 
+	 * @return The reference to the DataSource.
+	 */
+	public DataSource getDataSource()
+	{
+		return dataSource;
+	}
+
+	/**
+	 * The maximum number of connections lent out or idle at once.
+	 * 
+	 * @return The maximum number of connections.
+	 */
+	public int getMaxTotal()
+	{
+		return pool.getMaxTotal();
+	}
+
+	/**
+	 * The number of milliseconds a connection can be idle before it's closed.
+	 * 
+	 * @return The idle timeout in milliseconds.
+	 */
+	public long getIdleTimeout()
+	{
+		return pool.getIdleTimeout();
+	}
+
+	/**
+	 * Sets the number of milliseconds a connection can be idle before it's
+	 * closed.
+	 * 
+	 * @param idleTimeout
+	 *        The idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout( long idleTimeout )
+	{
+		pool.setIdleTimeout( idleTimeout );
+	}
+
+	/**
+	 * The number of milliseconds a connection can be idle before it's
+	 * validated when it's lent out.
+	 * 
+	 * @return The validate interval in milliseconds.
+	 */
+	public long getValidateInterval()
+	{
+		return pool.getValidateInterval();
+	}
+
+	/**
+	 * Sets the number of milliseconds a connection can be idle before it's
+	 * validated when it's lent out.
+	 * 
+	 * @param validateInterval
+	 *        The validate interval in milliseconds.
+	 */
+	public void setValidateInterval( long validateInterval )
+	{
+		pool.setValidateInterval( validateInterval );
+	}
+
+	/**
+	 * The number of milliseconds to wait for a connection when the pool is
+	 * exhausted.
+	 * 
+	 * @return The wait timeout in milliseconds.
+	 */
+	public long getWaitTimeout()
+	{
+		return pool.getWaitTimeout();
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for a connection when the pool
+	 * is exhausted.
+	 * 
+	 * @param waitTimeout
+	 *        The wait timeout in milliseconds.
+	 */
+	public void setWaitTimeout( long waitTimeout )
+	{
+		pool.setWaitTimeout( waitTimeout );
+	}
+
+	/**
+	 * The number of connections currently lent out.
+	 * 
+	 * @return The number of active connections.
+	 */
+	public int getActiveCount()
+	{
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * The number of connections currently idle in the pool.
+	 * 
+	 * @return The number of idle connections.
+	 */
+	public int getIdleCount()
+	{
+		return pool.getIdleCount();
+	}
+
+	/**
+	 * The number of connections created by the pool.
+	 * 
+	 * @return The number of connections created.
+	 */
+	public long getCreatedCount()
+	{
+		return pool.getCreatedCount();
+	}
+
+	/**
+	 * The number of connections closed by the pool.
+	 * 
+	 * @return The number of connections closed.
+	 */
+	public long getDestroyedCount()
+	{
+		return pool.getDestroyedCount();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ConnectionPool[" + pool + "]";
+	}
+
+	/**
+	 * Creates, validates and closes the connections of the pool.
+	 */
+	private class ConnectionFactory implements ResourcePool.Factory<PooledConnection, SQLException>
+	{
+
+		public PooledConnection create() throws SQLException
+		{
+			return new PooledConnection( dataSource.getConnection() );
+		}
+
+		public boolean isOpen( PooledConnection connection )
+		{
+			// a failed connection is invalidated by its user.
+			return true;
+		}
+
+		public boolean validate( PooledConnection connection )
+		{
+			return ConnectionPool.this.validate( connection.connection );
+		}
+
+		public void destroy( PooledConnection connection )
+		{
+			connection.close();
+		}
+	}
+
+	/**
+	 * A connection lent out by the pool and the statements prepared on it. A
+	 * pooled connection is used by one thread at a time.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	public static class PooledConnection
+	{
+
+		private final Connection connection;
+		private final Map<String, PreparedStatement> statements;
+
+		/**
+		 * Instantiates a new PooledConnection.
+		 * 
+		 * @param connection
+		 *        The connection to the database.
+		 */
+		public PooledConnection( Connection connection )
+		{
+			this.connection = connection;
+			this.statements = new HashMap<String, PreparedStatement>();
+		}
+
+		/**
+		 * Returns the statement for the given query, preparing it the first
+		 * time the query is used on this connection. The statement must not be
+		 * closed by the caller.
+		 * 
+		 * @param query
+		 *        The query to prepare.
+		 * @return The prepared statement.
+		 * @throws SQLException
+		 *         An error occurred preparing the statement.
+		 */
+		public PreparedStatement prepare( String query ) throws SQLException
+		{
+			PreparedStatement statement = statements.get( query );
+
+			if (statement == null)
+			{
+				statement = connection.prepareStatement( query );
+				statements.put( query, statement );
+			}
+
+			return statement;
+		}
+
+		/**
+		 * The connection to the database.
+		 * 
+		 * @return The reference to the connection.
+		 */
+		public Connection getConnection()
+		{
+			return connection;
+		}
+
+		/**
+		 * The number of statements prepared on this connection.
+		 * 
+		 * @return The number of statements.
+		 */
+		public int getStatementCount()
+		{
+			return statements.size();
+		}
+
+		/**
+		 * Closes the statements and the connection, ignoring errors.
+		 */
+		private void close()
+		{
+			for (PreparedStatement statement : statements.values())
+			{
+				try
+				{
+					statement.close();
+				}
+				catch (SQLException e)
+				{
+					// ignore
+				}
+			}
+
+			statements.clear();
+
+			try
+			{
+				connection.close();
+			}
+			catch (SQLException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+}
@@ -16,18 +16,49 @@
 
 package org.magnos.asset.source;
 
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.sql.DataSource;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
+import org.magnos.asset.source.ConnectionPool.PooledConnection;
 
 
 /**
  * A source that reads assets from a database connection.
+ * <p>
+ * A source given a single Connection runs one query at a time on it, reusing
+ * the statement it prepared, and reads each asset entirely before the next
+ * query can run. A source given a DataSource streams each asset straight from
+ * the results of its query, which stay open until the returned stream is
+ * closed. Given a pool size, the connections of a DataSource are kept in a
+ * {@link ConnectionPool} and each query is prepared once per connection;
+ * otherwise a connection is created and closed for each asset.
+ * </p>
+ * <p>
+ * Given a batch query many assets can be selected at once with
+ * {@link #getBytes(Collection)}, or selected ahead of time with
+ * {@link #prefetch(Collection)} so loading them doesn't query the database.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -39,9 +70,19 @@ public class DatabaseSource extends BaseAssetSource
 	// meaning all requests given must be a full path.
 	public static final String DEFAULT_BASE = "";
 
+	// The default maximum number of requests selected by one batch query.
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
 	private final DataSource dataSource;
 	private final String query;
 	private final Connection connection;
+	private final ConnectionPool pool;
+	private final Map<String, PreparedStatement> statements;
+	private final ReentrantLock lock;
+	private final ConcurrentHashMap<String, byte[]> prefetched;
+	private String metadataQuery;
+	private String batchQuery;
+	private int batchSize = DEFAULT_BATCH_SIZE;
 
 	/**
 	 * Instantiates a new DatabaseSource that uses the given connection.
@@ -53,7 +94,7 @@ public class DatabaseSource extends BaseAssetSource
 	 */
 	public DatabaseSource( Connection connection, String query )
 	{
-		this( null, connection, query );
+		this( null, connection, null, query );
 	}
 
 	/**
@@ -70,7 +111,9 @@ public class DatabaseSource extends BaseAssetSource
 	 */
 	public DatabaseSource( Connection connection, String tableName, String assetColumn, String requestColumn )
 	{
-		this( null, connection, String.format( "SELECT %s FROM % WHERE %s=?", assetColumn, tableName, requestColumn ) );
+		this( null, connection, null, String.format( "SELECT %s FROM %s WHERE %s=?", assetColumn, tableName, requestColumn ) );
+
+		this.batchQuery = String.format( "SELECT %s, %s FROM %s WHERE %s IN (?)", requestColumn, assetColumn, tableName, requestColumn );
 	}
 
 	/**
@@ -84,19 +127,53 @@ public class DatabaseSource extends BaseAssetSource
 	 */
 	public DatabaseSource( DataSource dataSource, String query )
 	{
-		this( dataSource, null, query );
+		this( dataSource, null, null, query );
+	}
+
+	/**
+	 * Instantiates a new DatabaseSource that keeps a pool of connections
+	 * created from the given DataSource.
+	 * 
+	 * @param dataSource
+	 *        The DataSource to create connections with.
+	 * @param query
+	 *        The query used to select the asset from the database.
+	 * @param poolSize
+	 *        The maximum number of connections to keep open at once.
+	 */
+	public DatabaseSource( DataSource dataSource, String query, int poolSize )
+	{
+		this( new ConnectionPool( dataSource, poolSize ), query );
+	}
+
+	/**
+	 * Instantiates a new DatabaseSource that takes connections from the given
+	 * pool.
+	 * 
+	 * @param pool
+	 *        The pool to take connections from.
+	 * @param query
+	 *        The query used to select the asset from the database.
+	 */
+	public DatabaseSource( ConnectionPool pool, String query )
+	{
+		this( pool.getDataSource(), null, pool, query );
 	}
 
 	/**
 	 * Instantiates a new DatabaseSource.
 	 */
-	private DatabaseSource( DataSource dataSource, Connection connection, String query )
+	private DatabaseSource( DataSource dataSource, Connection connection, ConnectionPool pool, String query )
 	{
 		super( null, null, DEFAULT_BASE );
 
 		this.dataSource = dataSource;
 		this.connection = connection;
+		this.pool = pool;
 		this.query = query;
+		this.statements = new HashMap<String, PreparedStatement>();
+		this.lock = new ReentrantLock( true );
+		this.prefetched = new ConcurrentHashMap<String, byte[]>();
 	}
 
 	/**
@@ -111,6 +188,101 @@ public class DatabaseSource extends BaseAssetSource
 		return query;
 	}
 
+	/**
+	 * The query used to select the metadata of an asset from the database. The
+	 * query is given the request as its only parameter and must return the
+	 * length of the asset in bytes as its first column, it may optionally
+	 * return the time the asset was last modified as a second column and a
+	 * version tag of the asset as a third column. For example:
+	 * 
+	 * <pre>
+	 * SELECT LENGTH(data), modified, version FROM assets WHERE name=?
+	 * </pre>
+	 * 
+	 * @return The reference to the metadata query String, or null if the
+	 *         existence of an asset is determined with the asset query.
+	 */
+	public String getMetadataQuery()
+	{
+		return metadataQuery;
+	}
+
+	/**
+	 * Sets the query used to select the metadata of an asset from the
+	 * database. If no metadata query is given the asset query is used to
+	 * determine whether an asset exists, without reading the asset.
+	 * 
+	 * @param metadataQuery
+	 *        The new metadata query, or null to use the asset query.
+	 * @see #getMetadataQuery()
+	 */
+	public void setMetadataQuery( String metadataQuery )
+	{
+		this.metadataQuery = metadataQuery;
+	}
+
+	/**
+	 * The query used to select many assets from the database at once. The
+	 * query must contain a single parameter which is expanded into one
+	 * parameter for each request of a batch, and it must return the request as
+	 * its first column and the asset as its second. For example:
+	 * 
+	 * <pre>
+	 * SELECT name, data FROM assets WHERE name IN (?)
+	 * </pre>
+	 * 
+	 * @return The reference to the batch query String, or null if assets can
+	 *         only be selected one at a time.
+	 */
+	public String getBatchQuery()
+	{
+		return batchQuery;
+	}
+
+	/**
+	 * Sets the query used to select many assets from the database at once.
+	 * 
+	 * @param batchQuery
+	 *        The new batch query, or null to disable batches.
+	 * @see #getBatchQuery()
+	 */
+	public void setBatchQuery( String batchQuery )
+	{
+		if (batchQuery != null && batchQuery.indexOf( '?' ) == -1)
+		{
+			throw new IllegalArgumentException( "The batch query must contain a parameter" );
+		}
+
+		this.batchQuery = batchQuery;
+	}
+
+	/**
+	 * The maximum number of requests selected by a single batch query. Larger
+	 * batches are selected with several queries.
+	 * 
+	 * @return The maximum number of requests in a query.
+	 */
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * Sets the maximum number of requests selected by a single batch query.
+	 * 
+	 * @param batchSize
+	 *        The maximum number of requests in a query, greater than zero.
+	 */
+	public void setBatchSize( int batchSize )
+	{
+		if (batchSize <= 0)
+		{
+			throw new IllegalArgumentException( "The batch size must be positive" );
+		}
+
+		this.batchSize = batchSize;
+	}
+
 	/**
 	 * The Connection used to query the database for assets. If this is null then
 	 * a DataSource was given to this source.
@@ -133,57 +305,458 @@ public class DatabaseSource extends BaseAssetSource
 		return dataSource;
 	}
 
+	/**
+	 * The pool connections are taken from. If this is null then connections
+	 * are not pooled by this source.
+	 * 
+	 * @return The reference to the pool or null.
+	 */
+	public ConnectionPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Selects the given assets from the database with the batch query, using
+	 * one query for every batch size requests.
+	 * 
+	 * @param requests
+	 *        The requests of the assets to select.
+	 * @return The bytes of each asset found by its request. Requests for
+	 *         assets not in the database are missing from the map.
+	 * @throws IllegalStateException
+	 *         No batch query was given.
+	 * @throws Exception
+	 *         An error occurred querying the database.
+	 */
+	public Map<String, byte[]> getBytes( Collection<String> requests ) throws Exception
+	{
+		if (batchQuery == null)
+		{
+			throw new IllegalStateException( "No batch query was given" );
+		}
+
+		List<String> distinct = new ArrayList<String>( new LinkedHashSet<String>( requests ) );
+		Map<String, byte[]> found = new HashMap<String, byte[]>();
+
+		for (int start = 0; start < distinct.size(); start += batchSize)
+		{
+			List<String> batch = distinct.subList( start, Math.min( start + batchSize, distinct.size() ) );
+			Lease lease = new Lease( getBatchQuery( batch.size() ) );
+
+			try
+			{
+				ResultSet results = lease.execute( batch.toArray( new String[batch.size()] ) );
+
+				while (results.next())
+				{
+					String request = results.getString( 1 );
+					InputStream input = results.getBinaryStream( 2 );
+
+					if (request != null && input != null)
+					{
+						found.put( request, readFully( input ) );
+					}
+				}
+			}
+			catch (Exception e)
+			{
+				lease.failed = true;
+
+				throw e;
+			}
+			finally
+			{
+				lease.close();
+			}
+		}
+
+		return found;
+	}
+
+	/**
+	 * Selects the given assets from the database with the batch query and
+	 * keeps them in memory. The next request for each asset is served from
+	 * memory without querying the database, and then the asset is forgotten.
+	 * 
+	 * @param requests
+	 *        The requests of the assets to select.
+	 * @return The number of assets found.
+	 * @throws IllegalStateException
+	 *         No batch query was given.
+	 * @throws Exception
+	 *         An error occurred querying the database.
+	 * @see #getBytes(Collection)
+	 */
+	public int prefetch( Collection<String> requests ) throws Exception
+	{
+		Map<String, byte[]> found = getBytes( requests );
+
+		prefetched.putAll( found );
+
+		return found.size();
+	}
+
+	/**
+	 * The number of prefetched assets which have not been requested yet.
+	 * 
+	 * @return The number of assets in memory.
+	 */
+	public int getPrefetchedCount()
+	{
+		return prefetched.size();
+	}
+
+	/**
+	 * Forgets all prefetched assets which have not been requested yet.
+	 */
+	public void clearPrefetched()
+	{
+		prefetched.clear();
+	}
+
+	/**
+	 * Returns the batch query with its parameter expanded to the given number
+	 * of parameters.
+	 */
+	private String getBatchQuery( int parameters )
+	{
+		int index = batchQuery.indexOf( '?' );
+		StringBuilder sql = new StringBuilder( batchQuery.length() + parameters * 2 );
+
+		sql.append( batchQuery, 0, index );
+		for (int i = 0; i < parameters; i++)
+		{
+			sql.append( i == 0 ? "?" : ",?" );
+		}
+		sql.append( batchQuery, index + 1, batchQuery.length() );
+
+		return sql.toString();
+	}
+
 	@Override
 	public InputStream getStream( String request ) throws Exception
 	{
-		Connection conn = connection;
-		// If no given connection, create one from the DataSource.
-		if (connection == null)
+		byte[] prefetch = prefetched.remove( request );
+
+		if (prefetch != null)
 		{
-			conn = dataSource.getConnection();
+			return new SizedInputStream( new ByteArrayInputStream( prefetch ), prefetch.length );
 		}
 
-		InputStream input = null;
+		Lease lease = new Lease( query );
+		boolean streaming = false;
+
 		try
 		{
-			// Prepares the query for execution.
-			PreparedStatement statement = conn.prepareStatement( query );
-			try
+			ResultSet results = lease.execute( request );
+
+			// If results were returned, read them in as a binary stream.
+			InputStream input = (results.next() ? results.getBinaryStream( 1 ) : null);
+
+			if (input == null)
+			{
+				return null;
+			}
+
+			// A shared connection can't be held until the caller closes the
+			// stream, so the asset is read before the connection is released.
+			if (connection != null)
+			{
+				byte[] data = readFully( input );
+
+				return new SizedInputStream( new ByteArrayInputStream( data ), data.length );
+			}
+
+			streaming = true;
+
+			return new ResultInputStream( input, lease );
+		}
+		catch (Exception e)
+		{
+			lease.failed = true;
+
+			throw e;
+		}
+		finally
+		{
+			if (!streaming)
+			{
+				lease.close();
+			}
+		}
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		byte[] prefetch = prefetched.get( request );
+
+		if (prefetch != null)
+		{
+			return new AssetMetadata( prefetch.length, AssetMetadata.UNKNOWN_LAST_MODIFIED, null );
+		}
+
+		// Prepares the metadata query, or the asset query if none exists.
+		Lease lease = new Lease( metadataQuery != null ? metadataQuery : query );
+
+		try
+		{
+			ResultSet results = lease.execute( request );
+
+			if (!results.next())
+			{
+				return AssetMetadata.NOT_PRESENT;
+			}
+
+			if (metadataQuery == null)
+			{
+				return AssetMetadata.PRESENT;
+			}
+
+			int columns = results.getMetaData().getColumnCount();
+
+			long length = results.getLong( 1 );
+			if (results.wasNull())
 			{
-				// Places the request string in the query.
-				statement.setString( 1, request );
+				length = AssetMetadata.UNKNOWN_LENGTH;
+			}
+
+			long lastModified = AssetMetadata.UNKNOWN_LAST_MODIFIED;
+			if (columns >= 2)
+			{
+				Timestamp modified = results.getTimestamp( 2 );
 
-				// Executes the query.
-				ResultSet results = statement.executeQuery();
-				try
+				if (modified != null)
 				{
-					// If results were returned, read them in as a binary stream.
-					if (results.next())
+					lastModified = modified.getTime();
+				}
+			}
+
+			String tag = (columns >= 3 ? results.getString( 3 ) : null);
+
+			return new AssetMetadata( length, lastModified, tag );
+		}
+		catch (Exception e)
+		{
+			lease.failed = true;
+
+			throw e;
+		}
+		finally
+		{
+			lease.close();
+		}
+	}
+
+	/**
+	 * Closes the idle connections of the pool, or the statements prepared on
+	 * the given connection. The source can still be used afterwards.
+	 */
+	public void close()
+	{
+		if (pool != null)
+		{
+			pool.clear();
+		}
+
+		if (connection != null)
+		{
+			synchronized (connection)
+			{
+				for (PreparedStatement statement : statements.values())
+				{
+					closeQuietly( statement );
+				}
+
+				statements.clear();
+			}
+		}
+	}
+
+	/**
+	 * Closes the given statement or result set, ignoring errors.
+	 */
+	private static void closeQuietly( Object closeable )
+	{
+		try
+		{
+			if (closeable instanceof ResultSet)
+			{
+				((ResultSet)closeable).close();
+			}
+			else if (closeable instanceof Statement)
+			{
+				((Statement)closeable).close();
+			}
+			else if (closeable instanceof Connection)
+			{
+				((Connection)closeable).close();
+			}
+		}
+		catch (SQLException e)
+		{
+			// ignore
+		}
+	}
+
+	/**
+	 * A statement executed for a single request and the connection it was
+	 * executed on. Closing the lease closes the results and gives the
+	 * connection back: to the pool, to other requests sharing the given
+	 * connection, or closing it if it was created from the DataSource.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private class Lease
+	{
+
+		private final String sql;
+		private PooledConnection pooled;
+		private Connection created;
+		private PreparedStatement statement;
+		private ResultSet results;
+		private boolean locked;
+		private boolean failed;
+		private boolean closed;
+
+		public Lease( String sql )
+		{
+			this.sql = sql;
+		}
+
+		/**
+		 * Prepares the statement (or reuses the one prepared on the connection
+		 * before) and executes it with the given requests as its parameters.
+		 */
+		public ResultSet execute( String ... requests ) throws SQLException
+		{
+			if (pool != null)
+			{
+				pooled = pool.acquire();
+				statement = pooled.prepare( sql );
+			}
+			else if (connection != null)
+			{
+				lock.lock();
+				locked = true;
+
+				synchronized (connection)
+				{
+					statement = statements.get( sql );
+
+					if (statement == null)
 					{
-						input = results.getBinaryStream( 1 );
+						statement = connection.prepareStatement( sql );
+						statements.put( sql, statement );
 					}
 				}
-				finally
+			}
+			else
+			{
+				// If no given connection, create one from the DataSource.
+				created = dataSource.getConnection();
+				statement = created.prepareStatement( sql );
+			}
+
+			// Places the request strings in the query.
+			for (int i = 0; i < requests.length; i++)
+			{
+				statement.setString( i + 1, requests[i] );
+			}
+
+			// Executes the query.
+			results = statement.executeQuery();
+
+			return results;
+		}
+
+		/**
+		 * Closes the results and gives back the connection.
+		 */
+		public void close()
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			closed = true;
+
+			closeQuietly( results );
+
+			if (pooled != null)
+			{
+				if (failed)
+				{
+					pool.invalidate( pooled );
+				}
+				else
 				{
-					results.close();
+					pool.release( pooled );
 				}
 			}
-			finally
+			else if (locked)
+			{
+				if (failed && statement != null)
+				{
+					synchronized (connection)
+					{
+						statements.remove( sql );
+					}
+
+					closeQuietly( statement );
+				}
+
+				lock.unlock();
+			}
+			else
 			{
-				statement.close();
+				closeQuietly( statement );
+				closeQuietly( created );
 			}
 		}
-		finally
+	}
+
+	/**
+	 * A stream of an asset read straight from the results of its query. The
+	 * results stay open, and the connection they were read from stays taken,
+	 * until the stream is closed.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private class ResultInputStream extends FilterInputStream
+	{
+
+		private final Lease lease;
+
+		public ResultInputStream( InputStream input, Lease lease )
+		{
+			super( input );
+
+			this.lease = lease;
+		}
+
+		@Override
+		public void close() throws IOException
 		{
-			// If a connection was created from the DataSource make sure to
-			// close it.
-			if (connection == null)
+			try
 			{
-				conn.close();
+				super.close();
 			}
-		}
+			catch (IOException e)
+			{
+				lease.failed = true;
 
-		return input;
+				throw e;
+			}
+			finally
+			{
+				lease.close();
+			}
+		}
 	}
 
 }
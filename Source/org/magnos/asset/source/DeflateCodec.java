@@ -0,0 +1,110 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * A TransportCodec which compresses assets with deflate (zlib).
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class DeflateCodec implements TransportCodec
+{
+
+	// The name of the codec.
+	public static final String NAME = "deflate";
+
+	// The default compression level, a balance of speed and size.
+	public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+	// The size of the buffers used to encode and decode.
+	private static final int BUFFER_SIZE = 8192;
+
+	private final int level;
+
+	/**
+	 * Instantiates a new DeflateCodec with the default compression level.
+	 */
+	public DeflateCodec()
+	{
+		this( DEFAULT_LEVEL );
+	}
+
+	/**
+	 * Instantiates a new DeflateCodec.
+	 * 
+	 * @param level
+	 *        The compression level from 0 to 9, or -1 for the default.
+	 */
+	public DeflateCodec( int level )
+	{
+		this.level = level;
+	}
+
+	@Override
+	public String getName()
+	{
+		return NAME;
+	}
+
+	@Override
+	public OutputStream encode( OutputStream output )
+	{
+		final Deflater deflater = new Deflater( level );
+
+		return new DeflaterOutputStream( output, deflater, BUFFER_SIZE )
+		{
+			public void close() throws IOException
+			{
+				try
+				{
+					super.close();
+				}
+				finally
+				{
+					// a given deflater is not ended by the stream.
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	@Override
+	public InputStream decode( InputStream input )
+	{
+		return new InflaterInputStream( input );
+	}
+
+	/**
+	 * The compression level of the codec.
+	 * 
+	 * @return The compression level from 0 to 9, or -1 for the default.
+	 */
+	public int getLevel()
+	{
+		return level;
+	}
+
+}
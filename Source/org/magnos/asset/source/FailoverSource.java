@@ -0,0 +1,227 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.AssetSource;
+import org.magnos.asset.base.BaseAssetSource;
+
+
+/**
+ * A source that tries an ordered list of sources, for example a FileSource
+ * to a local cache, then a TcpSource, then a WebSource, and returns the asset
+ * from the first one which has it.
+ * <p>
+ * Every member has a {@link CircuitBreaker}. A member which keeps failing, or
+ * whose requests keep taking longer than the slow threshold of its breaker,
+ * is skipped without being asked until its breaker lets a probe request
+ * through, so requests don't wait on a member's timeouts while it's down. A
+ * member which doesn't have an asset (it returns null or throws a
+ * FileNotFoundException) is healthy, the next member is asked for the asset.
+ * If no member returns the asset and any member failed, that failure is
+ * thrown, the asset is only reported missing when every member tried said so.
+ * </p>
+ * <p>
+ * The latency of a request is the time until the member returned the stream
+ * to the asset, the asset itself is read by the caller.
+ * </p>
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class FailoverSource extends BaseAssetSource
+{
+
+	private final AssetSource[] members;
+	private final CircuitBreaker[] breakers;
+
+	/**
+	 * Instantiates a new FailoverSource.
+	 * 
+	 * @param members
+	 *        The sources to try in order, there must be at least one. The first
+	 *        member determines the absolute path of each request.
+	 */
+	public FailoverSource( AssetSource ... members )
+	{
+		super( null, members[0].getBase(), "" );
+
+		this.members = members.clone();
+		this.breakers = new CircuitBreaker[members.length];
+
+		for (int i = 0; i < members.length; i++)
+		{
+			breakers[i] = new CircuitBreaker();
+		}
+	}
+
+	@Override
+	public String getAbsolute( String request )
+	{
+		return members[0].getAbsolute( request );
+	}
+
+	@Override
+	public boolean isValid( String request )
+	{
+		for (AssetSource member : members)
+		{
+			if (member.isValid( request ))
+			{
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	@Override
+	public InputStream getStream( String request ) throws Exception
+	{
+		Exception failure = null;
+		boolean missing = false;
+
+		for (int i = 0; i < members.length; i++)
+		{
+			if (!members[i].isValid( request ) || !breakers[i].allow())
+			{
+				continue;
+			}
+
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				InputStream input = members[i].getStream( request );
+
+				breakers[i].success( System.currentTimeMillis() - start );
+
+				if (input != null)
+				{
+					return input;
+				}
+
+				missing = true;
+			}
+			catch (FileNotFoundException e)
+			{
+				breakers[i].success( System.currentTimeMillis() - start );
+
+				missing = true;
+			}
+			catch (Exception e)
+			{
+				breakers[i].failure( System.currentTimeMillis() - start );
+
+				failure = e;
+			}
+		}
+
+		// missing is only reported when no member failed to answer
+		if (failure != null)
+		{
+			throw failure;
+		}
+		if (missing)
+		{
+			throw new FileNotFoundException( request );
+		}
+
+		throw new IOException( "No source is available for " + request );
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		Exception failure = null;
+
+		for (int i = 0; i < members.length; i++)
+		{
+			if (!members[i].isValid( request ) || !breakers[i].allow())
+			{
+				continue;
+			}
+
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				AssetMetadata metadata = members[i].getMetadata( request );
+
+				breakers[i].success( System.currentTimeMillis() - start );
+
+				if (metadata.isPresent())
+				{
+					return metadata;
+				}
+			}
+			catch (Exception e)
+			{
+				breakers[i].failure( System.currentTimeMillis() - start );
+
+				failure = e;
+			}
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+
+		return AssetMetadata.NOT_PRESENT;
+	}
+
+	/**
+	 * Returns the number of members.
+	 * 
+	 * @return The number of members.
+	 */
+	public int getMemberCount()
+	{
+		return members.length;
+	}
+
+	/**
+	 * Returns the member at the given index.
+	 * 
+	 * @param index
+	 *        The index of the member.
+	 * @return The reference to the member.
+	 */
+	public AssetSource getMember( int index )
+	{
+		return members[index];
+	}
+
+	/**
+	 * Returns the circuit breaker of the member at the given index, which can
+	 * be configured.
+	 * 
+	 * @param index
+	 *        The index of the member.
+	 * @return The reference to the breaker of the member.
+	 */
+	public CircuitBreaker getBreaker( int index )
+	{
+		return breakers[index];
+	}
+
+}
@@ -18,14 +18,25 @@ package org.magnos.asset.source;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.util.regex.Pattern;
 
+import org.magnos.asset.AssetInfo;
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.base.BaseAssetInfo;
 import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
 
 
 /**
- * A source that reads assets from the file-system.
+ * A source that reads assets from the file-system. A source which is
+ * watching (see {@link #watch()}) invalidates or reloads the cached assets
+ * of the files it served when they change on disk.
  * 
  * @author Philip Diffenderfer
  * 
@@ -40,6 +51,9 @@ public class FileSource extends BaseAssetSource
 	// meaning all requests given must be a full path.
 	public static final String DEFAULT_BASE = "./";
 
+	// The watcher of the files served, or null if they're not watched.
+	private volatile FileWatcher watcher;
+
 	/**
 	 * Instantiates a new FileSource with the default base.
 	 */
@@ -61,18 +75,143 @@ public class FileSource extends BaseAssetSource
 		super( REGEX_VALID, base, DEFAULT_BASE );
 	}
 
-	public boolean isPresent( String request )
+	@Override
+	public AssetMetadata getMetadata( String request )
 	{
 		// get the file and ensure its a file that exists and is readable.
-		File file = new File( getAbsolute( request ) );
-
-		return (file.isFile() && file.canRead());
+		return getMetadata( new File( getAbsolute( request ) ) );
 	}
 
 	@Override
 	public InputStream getStream( String request ) throws Exception
 	{
-		return new FileInputStream( getAbsolute( request ) );
+		String path = getAbsolute( request );
+		File file = new File( path );
+		InputStream input = new SizedInputStream( new FileInputStream( file ), file.length() );
+
+		FileWatcher current = watcher;
+
+		if (current != null)
+		{
+			// the asset is cached under the path it was requested with, which
+			// differs from the file when this source is wrapped by another
+			AssetInfo info = BaseAssetInfo.getCreating();
+
+			current.watch( path, info == null ? path : info.getPath() );
+		}
+
+		return input;
+	}
+
+	/**
+	 * Starts watching the files served by this source so their cached assets
+	 * are invalidated (or reloaded) when they change. Only files served after
+	 * this is invoked are watched.
+	 * 
+	 * @return The watcher of this source, which can be configured.
+	 */
+	public synchronized FileWatcher watch()
+	{
+		if (watcher == null)
+		{
+			watcher = new FileWatcher( this );
+		}
+
+		return watcher;
+	}
+
+	/**
+	 * Stops watching the files served by this source.
+	 */
+	public synchronized void unwatch()
+	{
+		if (watcher != null)
+		{
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+	/**
+	 * The watcher of the files served by this source.
+	 * 
+	 * @return The reference to the watcher, or null if the source isn't
+	 *         watching.
+	 */
+	public FileWatcher getWatcher()
+	{
+		return watcher;
+	}
+
+	/**
+	 * Maps the requested file into memory as a read-only buffer. The contents
+	 * of the file are not read until they are accessed, the pages of the file
+	 * are faulted in lazily by the operating system.
+	 * 
+	 * @param request
+	 *        The request for the asset.
+	 * @return The read-only buffer mapped to the entire file.
+	 * @throws IOException
+	 *         An error occurred opening or mapping the file.
+	 */
+	public MappedByteBuffer map( String request ) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile( getAbsolute( request ), "r" );
+		try
+		{
+			FileChannel channel = file.getChannel();
+
+			// The mapping remains valid after the channel is closed.
+			return channel.map( MapMode.READ_ONLY, 0, channel.size() );
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Maps the file of the requested asset into memory as a sequence of
+	 * read-only segments. Every segment except the last is exactly the given
+	 * size, which allows files larger than a single buffer can address to be
+	 * mapped.
+	 * 
+	 * @param request
+	 *        The request for the asset.
+	 * @param segmentSize
+	 *        The number of bytes in each segment.
+	 * @return The read-only buffers mapped to consecutive sections of the file.
+	 * @throws IOException
+	 *         An error occurred opening or mapping the file.
+	 */
+	public MappedByteBuffer[] map( String request, int segmentSize ) throws IOException
+	{
+		if (segmentSize <= 0)
+		{
+			throw new IllegalArgumentException( "segmentSize must be positive" );
+		}
+
+		RandomAccessFile file = new RandomAccessFile( getAbsolute( request ), "r" );
+		try
+		{
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			int count = (int)Math.max( 1, (size + segmentSize - 1) / segmentSize );
+			MappedByteBuffer[] segments = new MappedByteBuffer[count];
+
+			for (int i = 0; i < count; i++)
+			{
+				long position = (long)i * segmentSize;
+
+				segments[i] = channel.map( MapMode.READ_ONLY, position, Math.min( segmentSize, size - position ) );
+			}
+
+			return segments;
+		}
+		finally
+		{
+			file.close();
+		}
 	}
 
 }
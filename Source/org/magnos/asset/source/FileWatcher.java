@@ -0,0 +1,366 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnos.asset.AssetInfo;
+import org.magnos.asset.Assets;
+import org.magnos.asset.ex.AssetException;
+
+
+/**
+ * Watches the files a {@link FileSource} has served and invalidates the
+ * assets cached in {@link Assets} when their files change. Optionally the
+ * assets are reloaded in the background instead and the new asset replaces
+ * the old one in its AssetInfo once it's loaded, so callers see either the
+ * old asset or the new one but never a missing one.
+ * 
+ * A daemon thread compares the modification time and length of each file
+ * every interval. A change is acted on only once the file has stopped
+ * changing for the quiet period, so a burst of writes to a file (an editor
+ * saving several times, or a large file being copied) causes a single
+ * reload. A file is no longer watched once its asset is not cached.
+ * 
+ * An asset is matched to its file by the path it's cached under in
+ * {@link Assets}, so the source may be wrapped by another source (like a
+ * SmartSource or FailoverSource) which the asset was requested through.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class FileWatcher implements Runnable
+{
+
+	// The default number of milliseconds between checks of the files.
+	public static final long DEFAULT_INTERVAL = 250;
+
+	// The default number of milliseconds a file must stay unchanged before its
+	// change is acted on.
+	public static final long DEFAULT_QUIET_PERIOD = 100;
+
+	// The watched files by their absolute path.
+	private final ConcurrentMap<String, Watched> files = new ConcurrentHashMap<String, Watched>();
+
+	// The thread checking the files.
+	private final Thread thread;
+
+	private volatile boolean running = true;
+	private volatile boolean reloading;
+	private volatile long interval = DEFAULT_INTERVAL;
+	private volatile long quietPeriod = DEFAULT_QUIET_PERIOD;
+
+	private final AtomicLong invalidated = new AtomicLong();
+	private final AtomicLong reloaded = new AtomicLong();
+
+	/**
+	 * Instantiates a new FileWatcher and starts its thread.
+	 * 
+	 * @param source
+	 *        The source whose files are watched.
+	 */
+	public FileWatcher( FileSource source )
+	{
+		this.thread = new Thread( this, "FileWatcher[" + source.getBase() + "]" );
+		this.thread.setDaemon( true );
+		this.thread.start();
+	}
+
+	/**
+	 * Starts watching the file with the given absolute path, if it's not
+	 * watched already, for the asset cached under the same path.
+	 * 
+	 * @param file
+	 *        The absolute path of the file.
+	 */
+	public void watch( String file )
+	{
+		watch( file, file );
+	}
+
+	/**
+	 * Starts watching the file with the given absolute path, if it's not
+	 * watched already, for the asset cached under the given path.
+	 * 
+	 * @param file
+	 *        The absolute path of the file.
+	 * @param path
+	 *        The path the asset of the file is cached under.
+	 */
+	public void watch( String file, String path )
+	{
+		Watched watched = files.get( file );
+
+		if (watched == null)
+		{
+			Watched created = new Watched( new File( file ) );
+
+			watched = files.putIfAbsent( file, created );
+
+			if (watched == null)
+			{
+				watched = created;
+			}
+		}
+
+		watched.paths.add( path );
+	}
+
+	/**
+	 * Stops watching the file with the given absolute path.
+	 * 
+	 * @param file
+	 *        The absolute path of the file.
+	 */
+	public void unwatch( String file )
+	{
+		files.remove( file );
+	}
+
+	@Override
+	public void run()
+	{
+		while (running)
+		{
+			try
+			{
+				Thread.sleep( interval );
+			}
+			catch (InterruptedException e)
+			{
+				continue;
+			}
+
+			poll();
+		}
+	}
+
+	/**
+	 * Checks every watched file once, acting on the files which changed and
+	 * have since been quiet for the quiet period.
+	 */
+	public synchronized void poll()
+	{
+		long now = System.currentTimeMillis();
+
+		for (Map.Entry<String, Watched> entry : files.entrySet())
+		{
+			Watched watched = entry.getValue();
+			long modified = watched.file.lastModified();
+			long length = watched.file.length();
+
+			if (modified != watched.modified || length != watched.length)
+			{
+				watched.modified = modified;
+				watched.length = length;
+				watched.changed = now;
+			}
+			else if (watched.changed != 0 && now - watched.changed >= quietPeriod)
+			{
+				watched.changed = 0;
+
+				for (String path : watched.paths)
+				{
+					if (!onChanged( path ))
+					{
+						watched.paths.remove( path );
+					}
+				}
+
+				if (watched.paths.isEmpty())
+				{
+					files.remove( entry.getKey() );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Invalidates or reloads the cached asset of the file which changed.
+	 * 
+	 * @return True if the asset was reloaded and its file is still watched.
+	 */
+	private boolean onChanged( String path )
+	{
+		AssetInfo info = Assets.getInfo( path );
+
+		if (info == null)
+		{
+			return false;
+		}
+
+		if (reloading)
+		{
+			try
+			{
+				info.set( info.create() );
+				reloaded.incrementAndGet();
+
+				return true;
+			}
+			catch (AssetException e)
+			{
+				// the file was removed or can't be read yet, drop the old asset
+			}
+		}
+
+		Assets.unload( info );
+		invalidated.incrementAndGet();
+
+		return false;
+	}
+
+	/**
+	 * Stops the thread of this watcher.
+	 */
+	public void close()
+	{
+		running = false;
+		thread.interrupt();
+	}
+
+	/**
+	 * Returns whether this watcher is still running.
+	 * 
+	 * @return True if the watcher hasn't been closed.
+	 */
+	public boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Returns whether changed assets are reloaded instead of unloaded.
+	 * 
+	 * @return True if changed assets are reloaded in the background.
+	 */
+	public boolean isReloading()
+	{
+		return reloading;
+	}
+
+	/**
+	 * Sets whether changed assets are reloaded instead of unloaded.
+	 * 
+	 * @param reloading
+	 *        True if changed assets should be reloaded in the background.
+	 */
+	public void setReloading( boolean reloading )
+	{
+		this.reloading = reloading;
+	}
+
+	/**
+	 * Returns the number of milliseconds between checks of the files.
+	 * 
+	 * @return The interval in milliseconds.
+	 */
+	public long getInterval()
+	{
+		return interval;
+	}
+
+	/**
+	 * Sets the number of milliseconds between checks of the files.
+	 * 
+	 * @param interval
+	 *        The interval in milliseconds.
+	 */
+	public void setInterval( long interval )
+	{
+		this.interval = interval;
+	}
+
+	/**
+	 * Returns the number of milliseconds a file must stay unchanged before
+	 * its change is acted on.
+	 * 
+	 * @return The quiet period in milliseconds.
+	 */
+	public long getQuietPeriod()
+	{
+		return quietPeriod;
+	}
+
+	/**
+	 * Sets the number of milliseconds a file must stay unchanged before its
+	 * change is acted on.
+	 * 
+	 * @param quietPeriod
+	 *        The quiet period in milliseconds.
+	 */
+	public void setQuietPeriod( long quietPeriod )
+	{
+		this.quietPeriod = quietPeriod;
+	}
+
+	/**
+	 * Returns the number of files being watched.
+	 * 
+	 * @return The number of watched files.
+	 */
+	public int getWatchedCount()
+	{
+		return files.size();
+	}
+
+	/**
+	 * Returns the number of assets unloaded because their file changed.
+	 * 
+	 * @return The number of invalidated assets.
+	 */
+	public long getInvalidatedCount()
+	{
+		return invalidated.get();
+	}
+
+	/**
+	 * Returns the number of assets reloaded because their file changed.
+	 * 
+	 * @return The number of reloaded assets.
+	 */
+	public long getReloadedCount()
+	{
+		return reloaded.get();
+	}
+
+	/**
+	 * A watched file and the state it was last seen in.
+	 */
+	private static class Watched
+	{
+		private final File file;
+		private final Set<String> paths = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+		private long modified;
+		private long length;
+		private long changed;
+
+		public Watched( File file )
+		{
+			this.file = file;
+			this.modified = file.lastModified();
+			this.length = file.length();
+		}
+	}
+
+}
@@ -0,0 +1,488 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.base.SizedInputStream;
+
+
+/**
+ * An authenticated control connection to an FTP server which can transfer
+ * any number of files, one at a time, in binary mode over passive data
+ * connections. The connection is logged in once when it's created, so a
+ * transfer costs only the PASV and RETR commands.
+ * 
+ * A connection is used by one thread at a time, and the stream of a transfer
+ * must be closed before the connection is used again.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class FtpConnection
+{
+
+	// The default port of an FTP server.
+	public static final int DEFAULT_PORT = 21;
+
+	// The default number of milliseconds to wait for the server.
+	public static final int DEFAULT_TIMEOUT = 10000;
+
+	// The pattern of the address in the reply of a PASV command.
+	private static final Pattern PASSIVE = Pattern.compile( "(\\d+),(\\d+),(\\d+),(\\d+),(\\d+),(\\d+)" );
+
+	// The pattern of the size a server may give in the reply of a RETR command.
+	private static final Pattern TRANSFER_SIZE = Pattern.compile( "\\((\\d+) bytes\\)" );
+
+	// The format of the time in the reply of a MDTM command.
+	private static final String MODIFIED_FORMAT = "yyyyMMddHHmmss";
+
+	private final Socket control;
+	private final BufferedReader reader;
+	private final OutputStream writer;
+	private final int timeout;
+	private boolean open;
+	private String reply;
+
+	/**
+	 * Instantiates a new FtpConnection and logs into the server.
+	 * 
+	 * @param address
+	 *        The address of the FTP server.
+	 * @param username
+	 *        The user name to sign into the server.
+	 * @param password
+	 *        The password to sign into the server.
+	 * @param timeout
+	 *        The number of milliseconds to wait for the server.
+	 * @throws IOException
+	 *         An error occurred connecting or the login was refused.
+	 */
+	public FtpConnection( InetSocketAddress address, String username, String password, int timeout ) throws IOException
+	{
+		this.timeout = timeout;
+		this.control = new Socket();
+		this.control.connect( address, timeout );
+		this.control.setSoTimeout( timeout );
+		this.reader = new BufferedReader( new InputStreamReader( control.getInputStream(), "UTF-8" ) );
+		this.writer = control.getOutputStream();
+		this.open = true;
+
+		try
+		{
+			expect( readReply(), 2, "connect" );
+
+			int code = command( "USER " + username );
+
+			if (code / 100 == 3)
+			{
+				code = command( "PASS " + password );
+			}
+
+			expect( code, 2, "login" );
+			expect( command( "TYPE I" ), 2, "TYPE I" );
+		}
+		catch (IOException e)
+		{
+			close();
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens a stream to the file at the given path. The stream must be closed
+	 * before this connection is used again.
+	 * 
+	 * @param path
+	 *        The path of the file on the server.
+	 * @return The stream to the file, sized if the server gave its size.
+	 * @throws FileNotFoundException
+	 *         The file does not exist on the server.
+	 * @throws IOException
+	 *         An error occurred starting the transfer.
+	 */
+	public InputStream retrieve( String path ) throws IOException
+	{
+		Socket data = openData();
+
+		try
+		{
+			int code = command( "RETR " + path );
+
+			if (code / 100 == 5)
+			{
+				throw new FileNotFoundException( path );
+			}
+
+			expect( code, 1, "RETR " + path );
+		}
+		catch (IOException e)
+		{
+			data.close();
+
+			throw e;
+		}
+
+		Matcher size = TRANSFER_SIZE.matcher( reply );
+
+		return new SizedInputStream( new TransferInputStream( data ), size.find() ? Long.parseLong( size.group( 1 ) ) : -1 );
+	}
+
+	/**
+	 * Returns the names of the files in the given directory.
+	 * 
+	 * @param directory
+	 *        The path of the directory on the server.
+	 * @return The names of the files as returned by the server, or an empty
+	 *         list if the directory does not exist.
+	 * @throws IOException
+	 *         An error occurred listing the directory.
+	 */
+	public List<String> list( String directory ) throws IOException
+	{
+		List<String> names = new ArrayList<String>();
+		Socket data = openData();
+
+		try
+		{
+			int code = command( directory.length() == 0 ? "NLST" : "NLST " + directory );
+
+			if (code / 100 == 5 || code == 450)
+			{
+				return names;
+			}
+
+			expect( code, 1, "NLST " + directory );
+
+			BufferedReader lines = new BufferedReader( new InputStreamReader( data.getInputStream(), "UTF-8" ) );
+			String line;
+
+			while ((line = lines.readLine()) != null)
+			{
+				if (line.length() > 0)
+				{
+					names.add( line );
+				}
+			}
+
+			data.close();
+
+			expect( readReply(), 2, "NLST " + directory );
+		}
+		finally
+		{
+			data.close();
+		}
+
+		return names;
+	}
+
+	/**
+	 * Returns the metadata of the file at the given path using the SIZE and
+	 * MDTM commands. A server which doesn't support MDTM gives an unknown
+	 * modification time.
+	 * 
+	 * @param path
+	 *        The path of the file on the server.
+	 * @return The metadata of the file.
+	 * @throws IOException
+	 *         An error occurred communicating with the server.
+	 */
+	public AssetMetadata getMetadata( String path ) throws IOException
+	{
+		int code = command( "SIZE " + path );
+
+		if (code / 100 == 5)
+		{
+			return AssetMetadata.NOT_PRESENT;
+		}
+
+		expect( code, 2, "SIZE " + path );
+
+		long length = Long.parseLong( reply.substring( 4 ).trim() );
+		long lastModified = AssetMetadata.UNKNOWN_LAST_MODIFIED;
+
+		if (command( "MDTM " + path ) / 100 == 2)
+		{
+			try
+			{
+				SimpleDateFormat format = new SimpleDateFormat( MODIFIED_FORMAT );
+				format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+				lastModified = format.parse( reply.substring( 4 ).trim() ).getTime();
+			}
+			catch (ParseException e)
+			{
+				// unknown modification time
+			}
+		}
+
+		String tag = (lastModified == AssetMetadata.UNKNOWN_LAST_MODIFIED ? null : Long.toHexString( lastModified ) + "-" + Long.toHexString( length ));
+
+		return new AssetMetadata( length, lastModified, tag );
+	}
+
+	/**
+	 * Determines whether the server still answers on this connection.
+	 * 
+	 * @return True if the server replied to a NOOP command.
+	 */
+	public boolean validate()
+	{
+		try
+		{
+			return (command( "NOOP" ) / 100 == 2);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Returns whether this connection can still be used.
+	 * 
+	 * @return True if the connection has not failed or been closed.
+	 */
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	/**
+	 * Logs out of the server and closes the connection, ignoring errors.
+	 */
+	public void close()
+	{
+		if (open)
+		{
+			try
+			{
+				control.setSoTimeout( Math.min( timeout, 1000 ) );
+				send( "QUIT" );
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+
+		open = false;
+
+		try
+		{
+			control.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+	}
+
+	/**
+	 * Enters passive mode and connects to the data port given by the server.
+	 */
+	private Socket openData() throws IOException
+	{
+		expect( command( "PASV" ), 2, "PASV" );
+
+		Matcher address = PASSIVE.matcher( reply );
+
+		if (!address.find())
+		{
+			throw new IOException( "Invalid PASV reply: " + reply );
+		}
+
+		int port = (Integer.parseInt( address.group( 5 ) ) << 8) | Integer.parseInt( address.group( 6 ) );
+
+		Socket data = new Socket();
+
+		try
+		{
+			data.connect( new InetSocketAddress( control.getInetAddress(), port ), timeout );
+			data.setSoTimeout( timeout );
+		}
+		catch (IOException e)
+		{
+			data.close();
+
+			throw e;
+		}
+
+		return data;
+	}
+
+	/**
+	 * Sends a command and returns the code of the reply.
+	 */
+	private int command( String command ) throws IOException
+	{
+		if (!open)
+		{
+			throw new IOException( "The FTP connection can no longer be used" );
+		}
+
+		send( command );
+
+		return readReply();
+	}
+
+	/**
+	 * Sends a command to the server.
+	 */
+	private void send( String command ) throws IOException
+	{
+		try
+		{
+			writer.write( (command + "\r\n").getBytes( "UTF-8" ) );
+			writer.flush();
+		}
+		catch (IOException e)
+		{
+			open = false;
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Reads a reply from the server, which may span several lines, and
+	 * returns its code. The last line of the reply is kept.
+	 */
+	private int readReply() throws IOException
+	{
+		try
+		{
+			String line = reader.readLine();
+
+			if (line == null || line.length() < 3)
+			{
+				throw new IOException( "The FTP server closed the connection" );
+			}
+
+			String code = line.substring( 0, 3 );
+
+			if (line.length() > 3 && line.charAt( 3 ) == '-')
+			{
+				do
+				{
+					line = reader.readLine();
+
+					if (line == null)
+					{
+						throw new IOException( "The FTP server closed the connection" );
+					}
+				}
+				while (!(line.startsWith( code ) && (line.length() == 3 || line.charAt( 3 ) == ' ')));
+			}
+
+			reply = line;
+
+			return Integer.parseInt( code );
+		}
+		catch (IOException e)
+		{
+			open = false;
+
+			throw e;
+		}
+		catch (NumberFormatException e)
+		{
+			open = false;
+
+			throw new IOException( "Invalid FTP reply" );
+		}
+	}
+
+	/**
+	 * Throws an exception if the given code is not of the given class.
+	 */
+	private void expect( int code, int type, String action ) throws IOException
+	{
+		if (code / 100 != type)
+		{
+			throw new IOException( "FTP " + action + " failed: " + reply );
+		}
+	}
+
+	/**
+	 * The stream of a file transfer. Closing the stream closes the data
+	 * connection and reads the reply which ends the transfer, a transfer
+	 * abandoned early is aborted by the server when the data connection
+	 * closes. A server may send more than one reply for an aborted transfer
+	 * (426 and then 226), so unless the transfer ended with a clean 226 (or
+	 * 250) the connection is no longer used since a reply may be left unread.
+	 */
+	private class TransferInputStream extends FilterInputStream
+	{
+		private final Socket data;
+		private boolean closed;
+
+		public TransferInputStream( Socket data ) throws IOException
+		{
+			super( data.getInputStream() );
+			this.data = data;
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (closed)
+			{
+				return;
+			}
+
+			closed = true;
+
+			try
+			{
+				data.close();
+			}
+			finally
+			{
+				int code = readReply();
+
+				if (code / 100 == 1)
+				{
+					code = readReply();
+				}
+
+				if (code != 226 && code != 250)
+				{
+					open = false;
+				}
+			}
+		}
+	}
+
+}
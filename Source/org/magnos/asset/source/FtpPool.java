@@ -0,0 +1,358 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+
+/**
+ * A bounded pool of logged in {@link FtpConnection}s to one FTP server, so
+ * requests reuse control connections instead of logging in for every file.
+ * 
+ * At most {@link #getMaxTotal()} connections are lent out or idle at once, a
+ * request for a connection when the pool is exhausted waits up to the wait
+ * timeout for one to be released. Idle connections older than the idle
+ * timeout are closed the next time the pool is used (servers commonly drop
+ * idle clients after a few minutes), and a connection which has been idle
+ * longer than the validate interval is checked with a NOOP before it's lent
+ * out.
+ * 
+ * Every connection taken with {@link #acquire()} must be given back exactly
+ * once with {@link #release(FtpConnection)} or
+ * {@link #invalidate(FtpConnection)}.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class FtpPool
+{
+
+	// The default maximum number of connections lent out or idle at once.
+	public static final int DEFAULT_MAX_TOTAL = 4;
+
+	// The default number of milliseconds a connection can be idle before it's
+	// closed.
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	// The default number of milliseconds a connection can be idle before it's
+	// validated when it's lent out.
+	public static final long DEFAULT_VALIDATE_INTERVAL = 5000;
+
+	// The default number of milliseconds to wait for a connection when the
+	// pool is exhausted.
+	public static final long DEFAULT_WAIT_TIMEOUT = 30000;
+
+	private final InetSocketAddress address;
+	private final String username;
+	private final String password;
+	private final ResourcePool<FtpConnection, IOException> pool;
+
+	private volatile int timeout = FtpConnection.DEFAULT_TIMEOUT;
+
+	/**
+	 * Instantiates a new FtpPool with the default maximum number of
+	 * connections.
+	 * 
+	 * @param address
+	 *        The address of the FTP server.
+	 * @param username
+	 *        The user name to sign into the server.
+	 * @param password
+	 *        The password to sign into the server.
+	 */
+	public FtpPool( InetSocketAddress address, String username, String password )
+	{
+		this( address, username, password, DEFAULT_MAX_TOTAL );
+	}
+
+	/**
+	 * Instantiates a new FtpPool.
+	 * 
+	 * @param address
+	 *        The address of the FTP server.
+	 * @param username
+	 *        The user name to sign into the server.
+	 * @param password
+	 *        The password to sign into the server.
+	 * @param maxTotal
+	 *        The maximum number of connections lent out or idle at once.
+	 */
+	public FtpPool( InetSocketAddress address, String username, String password, int maxTotal )
+	{
+		this.address = address;
+		this.username = username;
+		this.password = password;
+		this.pool = new ResourcePool<FtpConnection, IOException>( new FtpConnectionFactory(), maxTotal, maxTotal );
+		this.pool.setIdleTimeout( DEFAULT_IDLE_TIMEOUT );
+		this.pool.setValidateInterval( DEFAULT_VALIDATE_INTERVAL );
+		this.pool.setWaitTimeout( DEFAULT_WAIT_TIMEOUT );
+	}
+
+	/**
+	 * Lends out a connection. An idle connection is reused if one is valid,
+	 * otherwise a new connection is created and logged in.
+	 * 
+	 * @return The connection.
+	 * @throws IOException
+	 *         The pool was exhausted for longer than the wait timeout, or an
+	 *         error occurred creating a connection.
+	 */
+	public FtpConnection acquire() throws IOException
+	{
+		FtpConnection connection = null;
+
+		try
+		{
+			connection = pool.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException( "Interrupted waiting for an FTP connection" );
+		}
+
+		if (connection == null)
+		{
+			throw new IOException( "Timed out waiting for an FTP connection" );
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Returns a connection to the pool, or closes it if it has failed.
+	 * 
+	 * @param connection
+	 *        The connection to return.
+	 */
+	public void release( FtpConnection connection )
+	{
+		pool.release( connection );
+	}
+
+	/**
+	 * Closes a connection which can't be reused, for example after an error.
+	 * 
+	 * @param connection
+	 *        The connection to close.
+	 */
+	public void invalidate( FtpConnection connection )
+	{
+		pool.invalidate( connection );
+	}
+
+	/**
+	 * Closes all connections which have been idle longer than the idle
+	 * timeout.
+	 */
+	public void evict()
+	{
+		pool.evict();
+	}
+
+	/**
+	 * Closes all idle connections. Connections currently lent out are kept
+	 * until they are released.
+	 */
+	public void clear()
+	{
+		pool.clear();
+	}
+
+	/**
+	 * The address of the FTP server.
+	 * 
+	 * @return The address connections are made to.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * The maximum number of connections lent out or idle at once.
+	 * 
+	 * @return The maximum number of connections.
+	 */
+	public int getMaxTotal()
+	{
+		return pool.getMaxTotal();
+	}
+
+	/**
+	 * The number of milliseconds a connection can be idle before it's closed.
+	 * 
+	 * @return The idle timeout in milliseconds.
+	 */
+	public long getIdleTimeout()
+	{
+		return pool.getIdleTimeout();
+	}
+
+	/**
+	 * Sets the number of milliseconds a connection can be idle before it's
+	 * closed.
+	 * 
+	 * @param idleTimeout
+	 *        The idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout( long idleTimeout )
+	{
+		pool.setIdleTimeout( idleTimeout );
+	}
+
+	/**
+	 * The number of milliseconds a connection can be idle before it's
+	 * validated when it's lent out.
+	 * 
+	 * @return The validate interval in milliseconds.
+	 */
+	public long getValidateInterval()
+	{
+		return pool.getValidateInterval();
+	}
+
+	/**
+	 * Sets the number of milliseconds a connection can be idle before it's
+	 * validated when it's lent out.
+	 * 
+	 * @param validateInterval
+	 *        The validate interval in milliseconds.
+	 */
+	public void setValidateInterval( long validateInterval )
+	{
+		pool.setValidateInterval( validateInterval );
+	}
+
+	/**
+	 * The number of milliseconds to wait for a connection when the pool is
+	 * exhausted.
+	 * 
+	 * @return The wait timeout in milliseconds.
+	 */
+	public long getWaitTimeout()
+	{
+		return pool.getWaitTimeout();
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for a connection when the pool
+	 * is exhausted.
+	 * 
+	 * @param waitTimeout
+	 *        The wait timeout in milliseconds.
+	 */
+	public void setWaitTimeout( long waitTimeout )
+	{
+		pool.setWaitTimeout( waitTimeout );
+	}
+
+	/**
+	 * The number of milliseconds new connections wait for the server.
+	 * 
+	 * @return The timeout of new connections in milliseconds.
+	 */
+	public int getTimeout()
+	{
+		return timeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds new connections wait for the server.
+	 * 
+	 * @param timeout
+	 *        The timeout of new connections in milliseconds.
+	 */
+	public void setTimeout( int timeout )
+	{
+		this.timeout = timeout;
+	}
+
+	/**
+	 * The number of connections currently lent out.
+	 * 
+	 * @return The number of active connections.
+	 */
+	public int getActiveCount()
+	{
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * The number of connections currently idle in the pool.
+	 * 
+	 * @return The number of idle connections.
+	 */
+	public int getIdleCount()
+	{
+		return pool.getIdleCount();
+	}
+
+	/**
+	 * The number of connections created (and logged in) by the pool.
+	 * 
+	 * @return The number of connections created.
+	 */
+	public long getCreatedCount()
+	{
+		return pool.getCreatedCount();
+	}
+
+	/**
+	 * The number of connections closed by the pool.
+	 * 
+	 * @return The number of connections closed.
+	 */
+	public long getDestroyedCount()
+	{
+		return pool.getDestroyedCount();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FtpPool[" + pool + "]";
+	}
+
+	/**
+	 * Logs in, checks and logs out the connections of the pool.
+	 */
+	private class FtpConnectionFactory implements ResourcePool.Factory<FtpConnection, IOException>
+	{
+
+		public FtpConnection create() throws IOException
+		{
+			return new FtpConnection( address, username, password, timeout );
+		}
+
+		public boolean isOpen( FtpConnection connection )
+		{
+			return connection.isOpen();
+		}
+
+		public boolean validate( FtpConnection connection )
+		{
+			return connection.validate();
+		}
+
+		public void destroy( FtpConnection connection )
+		{
+			connection.close();
+		}
+	}
+
+}
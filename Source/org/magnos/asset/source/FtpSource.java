@@ -16,16 +16,34 @@
 
 package org.magnos.asset.source;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
 
 
 /**
  * A source that reads assets from an FTP server.
+ * <p>
+ * By default each request is made with an ftp:// URL, which logs into the
+ * server and out again for every asset. A pooled source instead keeps logged
+ * in control connections in an {@link FtpPool} and reuses them for every
+ * request, and can fetch all files of a directory over one connection with
+ * {@link #getDirectory(String)}.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -36,7 +54,12 @@ public class FtpSource extends BaseAssetSource
 	// The regular expression used to validate a resource on an FTP server
 	public static final Pattern REGEX_VALID = Pattern.compile( "^ftp\\://[^:]+\\:[^@]+@/?([a-zA-Z0-9\\-\\._\\?\\,\\'/\\\\\\+&amp;%\\$#\\=~])*$" );
 
+	// The size of the buffer used to read files fetched in a batch.
+	private static final int BATCH_BUFFER = 8192;
+
 	private final String url;
+	private final FtpPool pool;
+	private final String directory;
 
 	/**
 	 * Instantiates a new FtpSource.
@@ -52,10 +75,48 @@ public class FtpSource extends BaseAssetSource
 	 *        The password to use to sign into the server.
 	 */
 	public FtpSource( String host, String username, String password )
+	{
+		this( host, username, password, 0 );
+	}
+
+	/**
+	 * Instantiates a new FtpSource.
+	 * 
+	 * @param host
+	 *        The host name (or IP) of the FTP server, as well as the directory
+	 *        path where the assets are contained. This host often should end in
+	 *        a slash (/) unless one has already been specified in the host and
+	 *        the remainder of the host name is a prefix to a set of assets.
+	 * @param username
+	 *        The user name to use sign into the server.
+	 * @param password
+	 *        The password to use to sign into the server.
+	 * @param poolSize
+	 *        The maximum number of control connections kept to the server, or
+	 *        zero to make each request with an ftp:// URL.
+	 */
+	public FtpSource( String host, String username, String password, int poolSize )
 	{
 		super( REGEX_VALID, null, "" );
 
 		url = String.format( "ftp://%s:%s@%s{0};type=i", username, password, host );
+
+		if (poolSize > 0)
+		{
+			int slash = host.indexOf( '/' );
+			String authority = (slash == -1 ? host : host.substring( 0, slash ));
+			int colon = authority.lastIndexOf( ':' );
+			String name = (colon == -1 ? authority : authority.substring( 0, colon ));
+			int port = (colon == -1 ? FtpConnection.DEFAULT_PORT : Integer.parseInt( authority.substring( colon + 1 ) ));
+
+			pool = new FtpPool( new InetSocketAddress( name, port ), username, password, poolSize );
+			directory = (slash == -1 ? "" : host.substring( slash + 1 ));
+		}
+		else
+		{
+			pool = null;
+			directory = null;
+		}
 	}
 
 	/**
@@ -78,8 +139,296 @@ public class FtpSource extends BaseAssetSource
 	@Override
 	public InputStream getStream( String request ) throws Exception
 	{
-		URL url = new URL( getAbsolute( request ) );
-		return url.openStream();
+		if (pool == null)
+		{
+			URL url = new URL( getAbsolute( request ) );
+			return openStream( url );
+		}
+
+		FtpConnection connection = pool.acquire();
+
+		try
+		{
+			InputStream input = connection.retrieve( directory + request );
+
+			long size = SizedInputStream.getSize( input );
+
+			return new SizedInputStream( new PooledInputStream( input, connection, size ), size );
+		}
+		catch (FileNotFoundException e)
+		{
+			pool.release( connection );
+
+			throw e;
+		}
+		catch (IOException e)
+		{
+			pool.invalidate( connection );
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the metadata of the request with the SIZE and MDTM commands if
+	 * this source is pooled, the file itself is not transferred.
+	 */
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		if (pool == null)
+		{
+			return super.getMetadata( request );
+		}
+
+		FtpConnection connection = pool.acquire();
+
+		try
+		{
+			return connection.getMetadata( directory + request );
+		}
+		finally
+		{
+			pool.release( connection );
+		}
+	}
+
+	/**
+	 * Returns the names of the files in the given directory, relative to the
+	 * directory of this source so each name can be requested from it. This
+	 * source must be pooled.
+	 * 
+	 * @param path
+	 *        The directory relative to the directory of this source, an empty
+	 *        string is the directory of this source.
+	 * @return The requests of the files in the directory.
+	 * @throws IOException
+	 *         An error occurred listing the directory.
+	 */
+	public List<String> list( String path ) throws IOException
+	{
+		FtpConnection connection = acquire();
+
+		try
+		{
+			return list( connection, path );
+		}
+		finally
+		{
+			pool.release( connection );
+		}
+	}
+
+	/**
+	 * Fetches every file in the given directory over a single connection,
+	 * which costs one listing and one transfer per file instead of a login per
+	 * file. This source must be pooled.
+	 * 
+	 * @param path
+	 *        The directory relative to the directory of this source, an empty
+	 *        string is the directory of this source.
+	 * @return The bytes of each file by request, in the order listed.
+	 * @throws IOException
+	 *         An error occurred listing the directory or fetching a file.
+	 */
+	public Map<String, byte[]> getDirectory( String path ) throws IOException
+	{
+		Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+		FtpConnection connection = acquire();
+
+		try
+		{
+			byte[] buffer = new byte[BATCH_BUFFER];
+
+			for (String request : list( connection, path ))
+			{
+				InputStream input;
+
+				try
+				{
+					input = connection.retrieve( directory + request );
+				}
+				catch (FileNotFoundException e)
+				{
+					// a sub-directory or a file removed since listing
+					continue;
+				}
+
+				try
+				{
+					long size = SizedInputStream.getSize( input );
+					ByteArrayOutputStream output = new ByteArrayOutputStream( size > 0 ? (int)size : BATCH_BUFFER );
+					int read;
+
+					while ((read = input.read( buffer )) != -1)
+					{
+						output.write( buffer, 0, read );
+					}
+
+					files.put( request, output.toByteArray() );
+				}
+				finally
+				{
+					input.close();
+				}
+			}
+		}
+		finally
+		{
+			pool.release( connection );
+		}
+
+		return files;
+	}
+
+	/**
+	 * Lists the given directory on the given connection.
+	 */
+	private List<String> list( FtpConnection connection, String path ) throws IOException
+	{
+		String prefix = (path.length() == 0 || path.endsWith( "/" ) ? path : path + "/");
+		List<String> requests = new ArrayList<String>();
+
+		for (String name : connection.list( directory + path ))
+		{
+			// servers either list bare names or the path as requested
+			int slash = name.lastIndexOf( '/' );
+
+			requests.add( prefix + name.substring( slash + 1 ) );
+		}
+
+		return requests;
+	}
+
+	/**
+	 * Takes a connection from the pool of this source.
+	 */
+	private FtpConnection acquire() throws IOException
+	{
+		if (pool == null)
+		{
+			throw new IllegalStateException( "The FtpSource is not pooled" );
+		}
+
+		return pool.acquire();
+	}
+
+	/**
+	 * The pool of control connections of this source.
+	 * 
+	 * @return The reference to the pool, or null if the source isn't pooled.
+	 */
+	public FtpPool getPool()
+	{
+		return pool;
+	}
+
+	/**
+	 * Closes the idle connections of this source if it's pooled.
+	 */
+	public void close()
+	{
+		if (pool != null)
+		{
+			pool.clear();
+		}
+	}
+
+	/**
+	 * The stream of a file transferred over a pooled connection, which gives
+	 * the connection back to the pool once the transfer has been read to the
+	 * end (or as many bytes as the server said it would send). A transfer
+	 * closed before then was aborted, and since the server may still send
+	 * replies for it the connection is closed instead of reused.
+	 */
+	private class PooledInputStream extends FilterInputStream
+	{
+		private FtpConnection connection;
+		private long remaining;
+		private boolean finished;
+
+		public PooledInputStream( InputStream in, FtpConnection connection, long size )
+		{
+			super( in );
+			this.connection = connection;
+			this.remaining = size;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = (connection == null ? -1 : in.read());
+
+			onRead( b == -1 ? -1 : 1 );
+
+			return b;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			int read = (connection == null ? -1 : in.read( b, off, len ));
+
+			onRead( read );
+
+			return read;
+		}
+
+		@Override
+		public long skip( long n ) throws IOException
+		{
+			long skipped = (connection == null ? 0 : in.skip( n ));
+
+			onRead( (int)skipped );
+
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return (connection == null ? 0 : in.available());
+		}
+
+		private void onRead( int read ) throws IOException
+		{
+			if (read > 0 && remaining > 0)
+			{
+				remaining -= read;
+			}
+			if (read == -1 || remaining == 0)
+			{
+				finished = true;
+				close();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			if (connection == null)
+			{
+				return;
+			}
+
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				if (finished)
+				{
+					pool.release( connection );
+				}
+				else
+				{
+					pool.invalidate( connection );
+				}
+
+				connection = null;
+			}
+		}
 	}
 
 }
@@ -16,14 +16,36 @@
 
 package org.magnos.asset.source;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
 
 
 /**
  * A source that reads assets from a JAR file.
+ * <p>
+ * The JAR file is opened once, the first time an asset is requested, and an
+ * index of its entries is kept in memory so checking whether an asset exists
+ * or getting its metadata doesn't touch the archive. A JAR file which is not
+ * on the file-system is downloaded once to a temporary file which is deleted
+ * when the source is closed.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -31,6 +53,14 @@ import org.magnos.asset.base.BaseAssetSource;
 public class JarSource extends BaseAssetSource
 {
 
+	// The size of the buffer used to download remote JAR files.
+	private static final int DOWNLOAD_BUFFER = 8192;
+
+	private final String url;
+	private JarFile jar;
+	private File download;
+	private Map<String, JarEntry> entries;
+
 	/**
 	 * Instantiates a new JarSource.
 	 * 
@@ -40,14 +70,218 @@ public class JarSource extends BaseAssetSource
 	public JarSource( String url )
 	{
 		super( null, "jar:" + url + "!/", "" );
+		
+		this.url = url;
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		JarEntry entry = getEntries().get( request );
+
+		if (entry == null)
+		{
+			return AssetMetadata.NOT_PRESENT;
+		}
+
+		String tag = (entry.getCrc() == -1 ? null : Long.toHexString( entry.getCrc() ) + "-" + Long.toHexString( entry.getSize() ));
+
+		return new AssetMetadata( entry.getSize(), entry.getTime(), tag );
+	}
+
+	@Override
+	public boolean isPresent( String request )
+	{
+		try
+		{
+			return getEntries().containsKey( request );
+		}
+		catch (Exception e)
+		{
+			// if the archive can't be opened no asset is present
+			return false;
+		}
 	}
 
 	@Override
 	public InputStream getStream( String request ) throws Exception
 	{
-		URL url = new URL( getAbsolute( request ) );
+		JarFile file;
+		JarEntry entry;
+
+		synchronized (this)
+		{
+			entry = getEntries().get( request );
+			file = jar;
+		}
+
+		if (entry == null)
+		{
+			throw new FileNotFoundException( getAbsolute( request ) );
+		}
+
+		return new SizedInputStream( file.getInputStream( entry ), entry.getSize() );
+	}
+
+	/**
+	 * Returns the index of the entries in the JAR file by name, opening the
+	 * JAR file if it isn't open already. Directories are not indexed.
+	 * 
+	 * @return The entries of the JAR file.
+	 * @throws IOException
+	 *         An error occurred opening or downloading the JAR file.
+	 */
+	private synchronized Map<String, JarEntry> getEntries() throws IOException
+	{
+		if (jar == null)
+		{
+			URL location = new URL( url );
+
+			if (location.getProtocol().equals( "file" ))
+			{
+				jar = new JarFile( URLDecoder.decode( location.getPath().replace( "+", "%2B" ), "UTF-8" ) );
+			}
+			else
+			{
+				File file = download( location );
+				boolean opened = false;
+
+				try
+				{
+					jar = new JarFile( file );
+					opened = true;
+				}
+				finally
+				{
+					// the download is not a JAR file, don't leave it behind
+					if (!opened)
+					{
+						file.delete();
+					}
+				}
+
+				download = file;
+			}
+
+			Map<String, JarEntry> index = new HashMap<String, JarEntry>();
+			Enumeration<JarEntry> enumeration = jar.entries();
+
+			while (enumeration.hasMoreElements())
+			{
+				JarEntry entry = enumeration.nextElement();
+
+				if (!entry.isDirectory())
+				{
+					index.put( entry.getName(), entry );
+				}
+			}
+
+			entries = index;
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Downloads the JAR file at the given URL to a temporary file.
+	 * 
+	 * @param location
+	 *        The URL of the JAR file.
+	 * @return The temporary file the JAR file was downloaded to.
+	 * @throws IOException
+	 *         An error occurred downloading the JAR file.
+	 */
+	private static File download( URL location ) throws IOException
+	{
+		File file = File.createTempFile( "jarsource", ".jar" );
+		file.deleteOnExit();
+
+		InputStream input = null;
+		OutputStream output = null;
+
+		try
+		{
+			input = location.openStream();
+			output = new FileOutputStream( file );
+
+			byte[] buffer = new byte[DOWNLOAD_BUFFER];
+			int read;
+
+			while ((read = input.read( buffer )) != -1)
+			{
+				output.write( buffer, 0, read );
+			}
+		}
+		catch (IOException e)
+		{
+			file.delete();
+			throw e;
+		}
+		finally
+		{
+			if (input != null)
+			{
+				input.close();
+			}
+			if (output != null)
+			{
+				output.close();
+			}
+		}
+
+		return file;
+	}
+
+	/**
+	 * Returns the names of every asset in the JAR file.
+	 * 
+	 * @return The unmodifiable set of entry names.
+	 * @throws IOException
+	 *         An error occurred opening or downloading the JAR file.
+	 */
+	public Set<String> getNames() throws IOException
+	{
+		return Collections.unmodifiableSet( getEntries().keySet() );
+	}
+
+	/**
+	 * Returns the URL of the JAR file.
+	 * 
+	 * @return The URL of the JAR file.
+	 */
+	public String getUrl()
+	{
+		return url;
+	}
+
+	/**
+	 * Closes the JAR file and deletes its downloaded copy if it was not on the
+	 * file-system. Streams returned by this source should be closed before
+	 * the source, the next request opens the JAR file again.
+	 * 
+	 * @throws IOException
+	 *         An error occurred closing the JAR file.
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (jar != null)
+		{
+			try
+			{
+				jar.close();
+			}
+			finally
+			{
+				jar = null;
+				entries = null;
 
-		return url.openStream();
+				if (download != null)
+				{
+					download.delete();
+					download = null;
+				}
+			}
+		}
 	}
 
 	/**
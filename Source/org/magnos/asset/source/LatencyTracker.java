@@ -0,0 +1,295 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.util.Arrays;
+
+
+/**
+ * Tracks the latency and errors of requests made to a source over a sliding
+ * window of the most recent requests. The average is exponentially weighted
+ * so it follows changes in latency quickly, and percentiles are computed over
+ * the successful requests in the window.
+ * <p>
+ * A request which was cancelled before it finished (because it was no longer
+ * needed) is not an error, but the time it ran is a lower bound of its
+ * latency: it's included in percentiles and raises the average when it's
+ * slower, so a source which keeps losing races doesn't appear faster than it
+ * is.
+ * </p>
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class LatencyTracker
+{
+
+	// The default number of requests in the window.
+	public static final int DEFAULT_WINDOW = 128;
+
+	// The weight of the latest request in the average.
+	public static final double DEFAULT_WEIGHT = 0.2;
+
+	// The outcomes of a request.
+	private static final byte SUCCESS = 0;
+	private static final byte FAILURE = 1;
+	private static final byte CANCELLED = 2;
+
+	private final long[] latencies;
+	private final byte[] outcomes;
+	private final double weight;
+	private int next;
+	private int size;
+	private double average = -1;
+	private long requests;
+	private long failed;
+	private long cancelled;
+
+	/**
+	 * Instantiates a new LatencyTracker with the default window and weight.
+	 */
+	public LatencyTracker()
+	{
+		this( DEFAULT_WINDOW, DEFAULT_WEIGHT );
+	}
+
+	/**
+	 * Instantiates a new LatencyTracker.
+	 * 
+	 * @param window
+	 *        The number of recent requests tracked.
+	 * @param weight
+	 *        The weight of the latest request in the average, between 0 and 1.
+	 */
+	public LatencyTracker( int window, double weight )
+	{
+		if (window <= 0)
+		{
+			throw new IllegalArgumentException( "window must be positive" );
+		}
+
+		this.latencies = new long[window];
+		this.outcomes = new byte[window];
+		this.weight = weight;
+	}
+
+	/**
+	 * Records a successful request.
+	 * 
+	 * @param latency
+	 *        The number of milliseconds the request took.
+	 */
+	public synchronized void success( long latency )
+	{
+		add( latency, SUCCESS );
+
+		average = (average < 0 ? latency : average + weight * (latency - average));
+	}
+
+	/**
+	 * Records a failed request.
+	 * 
+	 * @param latency
+	 *        The number of milliseconds until the request failed.
+	 */
+	public synchronized void failure( long latency )
+	{
+		add( latency, FAILURE );
+
+		failed++;
+	}
+
+	/**
+	 * Records a request which was cancelled before it finished.
+	 * 
+	 * @param latency
+	 *        The number of milliseconds until the request was cancelled, the
+	 *        least the request would have taken.
+	 */
+	public synchronized void cancelled( long latency )
+	{
+		add( latency, CANCELLED );
+
+		if (latency > average)
+		{
+			average = (average < 0 ? latency : average + weight * (latency - average));
+		}
+
+		cancelled++;
+	}
+
+	private void add( long latency, byte outcome )
+	{
+		latencies[next] = latency;
+		outcomes[next] = outcome;
+		next = (next + 1) % latencies.length;
+		size = Math.min( size + 1, latencies.length );
+		requests++;
+	}
+
+	/**
+	 * Returns the weighted average latency of successful requests, raised by
+	 * cancelled requests which ran longer.
+	 * 
+	 * @return The average in milliseconds, or -1 if no request has succeeded
+	 *         or been cancelled.
+	 */
+	public synchronized double getAverage()
+	{
+		return average;
+	}
+
+	/**
+	 * Returns the latency which the given fraction of the successful and
+	 * cancelled requests in the window completed within, a cancelled request
+	 * counting as having taken as long as it ran.
+	 * 
+	 * @param percentile
+	 *        The fraction of requests, for example 0.95.
+	 * @return The latency in milliseconds, or -1 if no request in the window
+	 *         succeeded or was cancelled.
+	 */
+	public synchronized long getPercentile( double percentile )
+	{
+		long[] sorted = new long[size];
+		int count = 0;
+
+		for (int i = 0; i < size; i++)
+		{
+			if (outcomes[i] != FAILURE)
+			{
+				sorted[count++] = latencies[i];
+			}
+		}
+
+		if (count == 0)
+		{
+			return -1;
+		}
+
+		Arrays.sort( sorted, 0, count );
+
+		int index = (int)Math.ceil( percentile * count ) - 1;
+
+		return sorted[Math.max( 0, Math.min( count - 1, index ) )];
+	}
+
+	/**
+	 * Returns the fraction of the requests in the window which failed, a
+	 * cancelled request is not a failure.
+	 * 
+	 * @return The error rate between 0 and 1.
+	 */
+	public synchronized double getErrorRate()
+	{
+		int count = 0;
+
+		for (int i = 0; i < size; i++)
+		{
+			if (outcomes[i] == FAILURE)
+			{
+				count++;
+			}
+		}
+
+		return (size == 0 ? 0 : (double)count / size);
+	}
+
+	/**
+	 * Returns the fraction of the requests in the window, successful or not,
+	 * which took longer than the given latency.
+	 * 
+	 * @param latency
+	 *        The latency in milliseconds a request is slow beyond.
+	 * @return The slow rate between 0 and 1.
+	 */
+	public synchronized double getSlowRate( long latency )
+	{
+		int count = 0;
+
+		for (int i = 0; i < size; i++)
+		{
+			if (latencies[i] > latency)
+			{
+				count++;
+			}
+		}
+
+		return (size == 0 ? 0 : (double)count / size);
+	}
+
+	/**
+	 * Returns the number of requests in the window.
+	 * 
+	 * @return The number of requests in the window.
+	 */
+	public synchronized int getWindowSize()
+	{
+		return size;
+	}
+
+	/**
+	 * Returns the number of requests ever recorded.
+	 * 
+	 * @return The number of requests.
+	 */
+	public synchronized long getRequestCount()
+	{
+		return requests;
+	}
+
+	/**
+	 * Returns the number of failed requests ever recorded.
+	 * 
+	 * @return The number of failed requests.
+	 */
+	public synchronized long getFailureCount()
+	{
+		return failed;
+	}
+
+	/**
+	 * Returns the number of cancelled requests ever recorded.
+	 * 
+	 * @return The number of cancelled requests.
+	 */
+	public synchronized long getCancelledCount()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Forgets every request recorded.
+	 */
+	public synchronized void reset()
+	{
+		next = 0;
+		size = 0;
+		average = -1;
+		requests = 0;
+		failed = 0;
+		cancelled = 0;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format( "LatencyTracker[average=%.1f p95=%d errors=%.2f requests=%d]",
+			average, getPercentile( 0.95 ), getErrorRate(), requests );
+	}
+
+}
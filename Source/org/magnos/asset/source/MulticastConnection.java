@@ -0,0 +1,454 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.source;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * A long-lived membership in the multicast group of a {@link MulticastSource}.
+ * The group is joined once and a daemon thread receives every packet sent to
+ * it, decoding the path of each response once and handing the asset to the
+ * requests waiting for that path. Requests for the same path made at the same
+ * time share a single response.
+ * 
+ * Requests accept a response in fragments, which are reassembled into an
+ * array of the asset's size. Each waiting request sends its request packet
+ * again whenever the resend interval passes without a complete response, and
+ * the fragments already received are kept.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class MulticastConnection implements Runnable
+{
+
+	// The socket which has joined the group.
+	private final MulticastSocket socket;
+
+	// The group joined.
+	private final InetAddress group;
+
+	// The port of the group.
+	private final int port;
+
+	// The largest packet which can be received.
+	private final int packetSize;
+
+	// The requests waiting for a response by absolute path. Requests are
+	// added and removed while synchronized on the map.
+	private final ConcurrentHashMap<String, Request> requests;
+
+	// The thread receiving packets from the group.
+	private final Thread receiver;
+
+	// The error which closed the connection, or null if it's open.
+	private volatile IOException failure;
+
+	/**
+	 * Instantiates a new MulticastConnection, joining the group and starting to
+	 * receive responses.
+	 * 
+	 * @param group
+	 *        The multicast address to join.
+	 * @param port
+	 *        The port to listen to on the multicast address.
+	 * @param packetSize
+	 *        The largest packet to receive, in bytes.
+	 * @throws IOException
+	 *         An error occurred joining the group.
+	 */
+	public MulticastConnection( InetAddress group, int port, int packetSize ) throws IOException
+	{
+		this.group = group;
+		this.port = port;
+		this.packetSize = packetSize;
+		this.requests = new ConcurrentHashMap<String, Request>();
+		this.socket = new MulticastSocket( port );
+
+		try
+		{
+			socket.joinGroup( group );
+		}
+		catch (IOException e)
+		{
+			socket.close();
+
+			throw e;
+		}
+
+		this.receiver = new Thread( this, "MulticastConnection " + group + ":" + port );
+		this.receiver.setDaemon( true );
+		this.receiver.start();
+	}
+
+	/**
+	 * Requests an asset from the group. This blocks until a response arrives.
+	 * 
+	 * @param absolute
+	 *        The absolute path of the asset.
+	 * @param resendInterval
+	 *        The number of milliseconds to wait for a response before sending
+	 *        the request again.
+	 * @param maxResends
+	 *        The number of resends before the request fails.
+	 * @param maxWait
+	 *        The most milliseconds to wait for a response, or zero to wait
+	 *        until the resends run out.
+	 * @return The bytes of the asset.
+	 * @throws IOException
+	 *         An error occurred communicating with the group, or no server
+	 *         responded.
+	 */
+	public byte[] requestBytes( String absolute, int resendInterval, int maxResends, int maxWait ) throws IOException
+	{
+		byte[] packet = MulticastSource.getFragmentRequestPacket( absolute, packetSize );
+
+		if (packet.length > packetSize)
+		{
+			throw new IOException( "Request packet cannot be larger than " + packetSize + " bytes." );
+		}
+
+		Request request = register( absolute );
+
+		try
+		{
+			long start = System.currentTimeMillis();
+			int resends = 0;
+
+			send( packet );
+
+			for (;;)
+			{
+				long wait = resendInterval;
+
+				if (maxWait > 0)
+				{
+					wait = Math.min( wait, start + maxWait - System.currentTimeMillis() );
+				}
+
+				if (wait > 0 && request.done.await( wait, TimeUnit.MILLISECONDS ))
+				{
+					break;
+				}
+
+				if (maxWait > 0 && System.currentTimeMillis() - start >= maxWait)
+				{
+					throw new IOException( "No response for " + absolute + " within " + maxWait + " ms" );
+				}
+
+				if (++resends > maxResends)
+				{
+					throw new IOException( "No response for " + absolute + " after " + maxResends + " resends" );
+				}
+
+				send( packet );
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException( "Interrupted waiting for a response" );
+		}
+		finally
+		{
+			unregister( absolute, request );
+		}
+
+		if (request.error != null)
+		{
+			IOException e = new IOException( request.error.getMessage() );
+			e.initCause( request.error );
+
+			throw e;
+		}
+
+		return request.data;
+	}
+
+	/**
+	 * Returns the request waiting for the given path, adding one if there is
+	 * none.
+	 */
+	private Request register( String absolute ) throws IOException
+	{
+		checkOpen();
+
+		Request request = null;
+
+		synchronized (requests)
+		{
+			request = requests.get( absolute );
+
+			if (request == null)
+			{
+				request = new Request();
+				requests.put( absolute, request );
+			}
+
+			request.waiters++;
+		}
+
+		// the connection may have failed before the request was registered.
+		if (failure != null)
+		{
+			unregister( absolute, request );
+			checkOpen();
+		}
+
+		return request;
+	}
+
+	/**
+	 * Removes the request for the given path once nothing waits for it.
+	 */
+	private void unregister( String absolute, Request request )
+	{
+		synchronized (requests)
+		{
+			if (--request.waiters == 0)
+			{
+				requests.remove( absolute );
+			}
+		}
+	}
+
+	/**
+	 * Sends a request packet to the group.
+	 */
+	private void send( byte[] packet ) throws IOException
+	{
+		socket.send( new DatagramPacket( packet, packet.length, group, port ) );
+	}
+
+	/**
+	 * Receives packets from the group until the connection is closed.
+	 */
+	public void run()
+	{
+		byte[] buffer = new byte[packetSize];
+		DatagramPacket incoming = new DatagramPacket( buffer, packetSize );
+
+		try
+		{
+			for (;;)
+			{
+				incoming.setLength( packetSize );
+				socket.receive( incoming );
+
+				int length = incoming.getLength();
+				String path = MulticastSource.getResponseString( buffer, length );
+
+				// requests and responses no one is waiting for are ignored.
+				if (path == null)
+				{
+					continue;
+				}
+
+				Request request = requests.get( path );
+
+				if (request == null || request.done.getCount() == 0)
+				{
+					continue;
+				}
+
+				if (buffer[0] == MulticastSource.FLAG_FRAGMENT)
+				{
+					request.receive( buffer, length );
+
+					continue;
+				}
+
+				int size = MulticastSource.getResponseSize( buffer, length );
+
+				if (size < 0)
+				{
+					request.fail( new IOException( "Invalid response. Packet invalid or not large enough to contain asset." ) );
+
+					continue;
+				}
+
+				byte[] data = new byte[size];
+				System.arraycopy( buffer, (buffer[1] & 0xFF) + 4, data, 0, size );
+
+				request.data = data;
+				request.done.countDown();
+			}
+		}
+		catch (IOException e)
+		{
+			if (failure == null)
+			{
+				failure = e;
+			}
+		}
+		finally
+		{
+			close();
+
+			for (Request request : requests.values())
+			{
+				request.fail( failure );
+			}
+		}
+	}
+
+	/**
+	 * Throws the error which closed the connection, if any.
+	 */
+	private void checkOpen() throws IOException
+	{
+		if (failure != null)
+		{
+			throw new IOException( "Connection closed: " + failure.getMessage() );
+		}
+	}
+
+	/**
+	 * Determines whether the connection can still be used for requests.
+	 * 
+	 * @return True if the connection is open, otherwise false.
+	 */
+	public boolean isOpen()
+	{
+		return failure == null && !socket.isClosed();
+	}
+
+	/**
+	 * Leaves the group and closes the connection. Requests which are waiting
+	 * for a response fail.
+	 */
+	public void close()
+	{
+		if (failure == null)
+		{
+			failure = new EOFException( "Connection closed" );
+		}
+
+		if (!socket.isClosed())
+		{
+			try
+			{
+				socket.leaveGroup( group );
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+
+			socket.close();
+		}
+	}
+
+	/**
+	 * A response waited on by one or more requests for the same path. Only the
+	 * receiving thread changes the response.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private static class Request
+	{
+
+		private final CountDownLatch done = new CountDownLatch( 1 );
+		private int waiters;
+		private byte[] data;
+		private BitSet received;
+		private int count;
+		private int remaining;
+		private int fragmentSize;
+		private IOException error;
+
+		/**
+		 * Copies the fragment in the given packet into the asset. Fragments
+		 * split differently than the first fragment received (by a server with
+		 * a smaller packet size) and fragments cut short are ignored.
+		 */
+		public void receive( byte[] packet, int length )
+		{
+			int offset = 2 + (packet[1] & 0xFF);
+
+			if (offset + MulticastSource.FRAGMENT_HEADER > length)
+			{
+				return;
+			}
+
+			ByteBuffer header = ByteBuffer.wrap( packet );
+			int index = header.getInt( offset );
+			int fragmentCount = header.getInt( offset + 4 );
+			long size = header.getLong( offset + 8 );
+
+			if (fragmentCount <= 0 || size < 0 || size > MulticastSource.MAX_SIZE)
+			{
+				return;
+			}
+
+			if (data == null)
+			{
+				data = new byte[(int)size];
+				count = fragmentCount;
+				remaining = count;
+				fragmentSize = MulticastSource.getFragmentSize( size, count );
+				received = new BitSet( count );
+			}
+
+			if (fragmentCount != count || size != data.length || index < 0 || index >= count || received.get( index ))
+			{
+				return;
+			}
+
+			int start = index * fragmentSize;
+			int fragmentLength = Math.min( fragmentSize, data.length - start );
+
+			if (length - offset - MulticastSource.FRAGMENT_HEADER != fragmentLength)
+			{
+				return;
+			}
+
+			System.arraycopy( packet, offset + MulticastSource.FRAGMENT_HEADER, data, start, fragmentLength );
+			received.set( index );
+
+			if (--remaining == 0)
+			{
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Completes this request with the given error.
+		 */
+		public void fail( IOException e )
+		{
+			if (done.getCount() > 0)
+			{
+				error = e;
+				done.countDown();
+			}
+		}
+	}
+
+}
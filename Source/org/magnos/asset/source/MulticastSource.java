@@ -16,14 +16,14 @@
 
 package org.magnos.asset.source;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
 
 import org.magnos.asset.base.BaseAssetSource;
-import org.magnos.asset.source.UdpSource.DatagramInputStream;
+import org.magnos.asset.base.SizedInputStream;
 
 
 /**
@@ -31,7 +31,12 @@ import org.magnos.asset.source.UdpSource.DatagramInputStream;
  * unreliable method since other traffic may already exist on the multicast
  * group.
  * 
- * TODO maxWaitTime resendInterval fragment?
+ * Assets are requested in fragments, so they may be larger than a packet.
+ * 
+ * The group is joined on the first request and left when the source is
+ * closed, and all requests share a single {@link MulticastConnection} which
+ * hands each response to the requests waiting for its path. A request is sent
+ * again whenever the resend interval passes without a response.
  * 
  * @author Philip Diffenderfer
  * 
@@ -39,18 +44,53 @@ import org.magnos.asset.source.UdpSource.DatagramInputStream;
 public class MulticastSource extends BaseAssetSource
 {
 
-	// The default packet size to use for reading an asset. Any asset that
-	// has more bytes than this may be truncated and may result in an
-	// exception being thrown when being parsed by the format.
+	// The default packet size to use for reading an asset. Assets with more
+	// bytes than this are split into fragments.
 	public static final int DEFAULT_PACKET = 1380;
 
 	// The default base of the source. By default this is an empty string
 	// meaning all requests given must be a full path.
 	public static final String DEFAULT_BASE = "";
 
+	// The flag of a request packet.
+	public static final byte FLAG_REQUEST = 0;
+
+	// The flag of a response packet holding an entire asset.
+	public static final byte FLAG_RESPONSE = 1;
+
+	// The flag of a response packet holding one fragment of an asset.
+	public static final byte FLAG_FRAGMENT = 2;
+
+	// The flag of a request packet from a source which can reassemble
+	// fragments, the path is followed by the largest packet it can receive.
+	public static final byte FLAG_REQUEST_FRAGMENTS = 3;
+
+	// The number of bytes in a fragment between its path and its data: the
+	// fragment index, the fragment count and the size of the asset.
+	public static final int FRAGMENT_HEADER = 16;
+
+	// The largest asset that can be reassembled.
+	public static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	// The default number of milliseconds to wait for a response before
+	// sending the request again.
+	public static final int DEFAULT_RESEND_INTERVAL = 250;
+
+	// The default number of resends without a response before a request
+	// fails.
+	public static final int DEFAULT_MAX_RESENDS = 8;
+
+	// The default number of milliseconds to wait for a response, zero means a
+	// request waits until the resends run out.
+	public static final int DEFAULT_MAX_WAIT = 0;
+
 	private final int packetSize;
 	private final int port;
 	private final InetAddress address;
+	private MulticastConnection connection;
+	private volatile int resendInterval = DEFAULT_RESEND_INTERVAL;
+	private volatile int maxResends = DEFAULT_MAX_RESENDS;
+	private volatile int maxWait = DEFAULT_MAX_WAIT;
 
 	/**
 	 * Instantiates a new MulticastSource given the address and port to join.
@@ -96,9 +136,8 @@ public class MulticastSource extends BaseAssetSource
 	 *        to each request string. If null it will be handled as the default
 	 *        base.
 	 * @param packetSize
-	 *        The maximum packet size an asset is expected to be. Any asset
-	 *        received thats larger than this will be truncated to this length
-	 *        which may result in a parsing error from the asset format.
+	 *        The maximum packet size to receive, in bytes. Assets larger than
+	 *        this are sent in fragments.
 	 */
 	public MulticastSource( InetAddress address, int port, String base, int packetSize )
 	{
@@ -129,9 +168,8 @@ public class MulticastSource extends BaseAssetSource
 	}
 
 	/**
-	 * The maximum packet size an asset is expected to be. Any asset received
-	 * thats larger than this will be truncated to this length which may result
-	 * in a parsing error from the asset format.
+	 * The maximum packet size to receive. Assets larger than this are sent in
+	 * fragments.
 	 * 
 	 * @return The maximum packet size in bytes.
 	 */
@@ -140,64 +178,145 @@ public class MulticastSource extends BaseAssetSource
 		return packetSize;
 	}
 
-	@Override
-	public InputStream getStream( String request ) throws Exception
+	/**
+	 * Returns the number of milliseconds to wait for a response before
+	 * sending the request again.
+	 * 
+	 * @return The resend interval in milliseconds.
+	 */
+	public int getResendInterval()
 	{
-		// | flag | path length | path | response length | response
-		// +------+---------------+--------+-----------------+-------------
-		// | byte | unsigned byte | byte[] | unsigned short | byte[]
-		//
-		// When the flag is 0 it is a request
-		// When the flag is 1 it is a response
-
-		String absolute = getAbsolute( request );
-		byte[] requestPacket = getRequestPacket( absolute );
+		return resendInterval;
+	}
 
-		if (requestPacket.length > packetSize)
+	/**
+	 * Sets the number of milliseconds to wait for a response before sending
+	 * the request again.
+	 * 
+	 * @param resendInterval
+	 *        The resend interval in milliseconds, greater than zero.
+	 */
+	public void setResendInterval( int resendInterval )
+	{
+		if (resendInterval <= 0)
 		{
-			throw new Exception( "Request packet cannot be larger than " + packetSize + " bytes." );
+			throw new IllegalArgumentException( "The resend interval must be positive" );
 		}
 
-		DatagramPacket outgoing = new DatagramPacket( requestPacket, requestPacket.length, address, port );
-		DatagramPacket incoming = new DatagramPacket( new byte[packetSize], packetSize );
-
-		MulticastSocket s = new MulticastSocket( port );
+		this.resendInterval = resendInterval;
+	}
 
-		// Join the group and send the request.
-		s.joinGroup( address );
-		s.send( outgoing );
+	/**
+	 * Returns the number of resends without a response before a request
+	 * fails.
+	 * 
+	 * @return The maximum number of resends.
+	 */
+	public int getMaxResends()
+	{
+		return maxResends;
+	}
 
-		// Receive the incoming response.
-		for (;;)
+	/**
+	 * Sets the number of resends without a response before a request fails.
+	 * 
+	 * @param maxResends
+	 *        The maximum number of resends, zero or more.
+	 */
+	public void setMaxResends( int maxResends )
+	{
+		if (maxResends < 0)
 		{
-			s.receive( incoming );
+			throw new IllegalArgumentException( "The maximum number of resends can't be negative" );
+		}
 
-			String response = getResponseString( incoming.getData() );
+		this.maxResends = maxResends;
+	}
 
-			// If its non-null and matches break from loop.
-			if (response != null && response.equals( absolute ))
-			{
-				break;
-			}
+	/**
+	 * Returns the most milliseconds a request waits for a response, or zero if
+	 * it waits until the resends run out.
+	 * 
+	 * @return The maximum wait time in milliseconds.
+	 */
+	public int getMaxWait()
+	{
+		return maxWait;
+	}
+
+	/**
+	 * Sets the most milliseconds a request waits for a response.
+	 * 
+	 * @param maxWait
+	 *        The maximum wait time in milliseconds, or zero to wait until the
+	 *        resends run out.
+	 */
+	public void setMaxWait( int maxWait )
+	{
+		if (maxWait < 0)
+		{
+			throw new IllegalArgumentException( "The maximum wait time can't be negative" );
 		}
 
-		// Leave the group
-		s.leaveGroup( address );
+		this.maxWait = maxWait;
+	}
+
+	@Override
+	public InputStream getStream( String request ) throws Exception
+	{
+		// | flag | path length | path | response length | response
+		// +------+---------------+--------+-----------------+-------------
+		// | byte | unsigned byte | byte[] | unsigned short | byte[]
+		//
+		// When the flag is 0 it is a request
+		// When the flag is 1 it is a response
+		//
+		// | flag | path length | path | packet size
+		// +------+---------------+--------+------------
+		// | byte | unsigned byte | byte[] | int
+		//
+		// When the flag is 3 it is a request which accepts fragments
+		//
+		// | flag | path length | path | index | count | size | fragment
+		// +------+---------------+--------+-------+-------+------+---------
+		// | byte | unsigned byte | byte[] | int | int | long | byte[]
+		//
+		// When the flag is 2 it is a fragment of a response
+
+		byte[] data = getConnection().requestBytes( getAbsolute( request ), resendInterval, maxResends, maxWait );
 
-		// Get the response data and validate it.
-		byte[] response = incoming.getData();
-		int responseLength = getResponseSize( response );
+		return new SizedInputStream( new ByteArrayInputStream( data ), data.length );
+	}
 
-		if (responseLength < 0)
+	/**
+	 * Returns the membership shared by all requests of this source, joining
+	 * the group if it has not been joined yet or the membership was closed.
+	 * 
+	 * @return The membership in the group.
+	 * @throws IOException
+	 *         An error occurred joining the group.
+	 */
+	protected synchronized MulticastConnection getConnection() throws IOException
+	{
+		if (connection == null || !connection.isOpen())
 		{
-			throw new Exception( "Invalid response. Packet invalid or not large enough to contain asset." );
+			connection = new MulticastConnection( address, port, packetSize );
 		}
 
-		int offset = absolute.length() + 4;
-		int end = offset + responseLength;
+		return connection;
+	}
 
-		// Return the asset as a byte array.
-		return new DatagramInputStream( response, offset, end, s );
+	/**
+	 * Leaves the group. Requests which are waiting for a response fail, and
+	 * the next request joins the group again.
+	 */
+	public synchronized void close()
+	{
+		if (connection != null)
+		{
+			connection.close();
+			connection = null;
+		}
 	}
 
 	/**
@@ -210,6 +329,40 @@ public class MulticastSource extends BaseAssetSource
 	 *         The given request was too large to fit in the packet.
 	 */
 	public static byte[] getRequestPacket( String request ) throws IOException
+	{
+		return getRequestPacket( request, FLAG_REQUEST, 0 );
+	}
+
+	/**
+	 * Creates a packet for making an Asset request which accepts a response in
+	 * fragments.
+	 * 
+	 * @param request
+	 *        The absolute path of the asset requested.
+	 * @param packetSize
+	 *        The largest packet the requester can receive.
+	 * @return The packet data as a byte array.
+	 * @throws Exception
+	 *         The given request was too large to fit in the packet.
+	 */
+	public static byte[] getFragmentRequestPacket( String request, int packetSize ) throws IOException
+	{
+		byte[] packet = getRequestPacket( request, FLAG_REQUEST_FRAGMENTS, 4 );
+		int offset = packet.length - 4;
+
+		packet[offset + 0] = (byte)((packetSize >> 24) & 0xFF);
+		packet[offset + 1] = (byte)((packetSize >> 16) & 0xFF);
+		packet[offset + 2] = (byte)((packetSize >> 8) & 0xFF);
+		packet[offset + 3] = (byte)((packetSize >> 0) & 0xFF);
+
+		return packet;
+	}
+
+	/**
+	 * Creates a request packet with the given flag and room for the given
+	 * number of bytes after the path.
+	 */
+	private static byte[] getRequestPacket( String request, byte flag, int extra ) throws IOException
 	{
 		byte[] path = request.getBytes();
 		int pathLength = path.length;
@@ -219,10 +372,10 @@ public class MulticastSource extends BaseAssetSource
 			throw new IOException( "Request cannot be more than 255 characters" );
 		}
 
-		int packetLength = 2 + pathLength;
+		int packetLength = 2 + pathLength + extra;
 		byte[] packet = new byte[packetLength];
 
-		packet[0] = 0;
+		packet[0] = flag;
 		packet[1] = (byte)pathLength;
 		System.arraycopy( path, 0, packet, 2, pathLength );
 
@@ -250,10 +403,15 @@ public class MulticastSource extends BaseAssetSource
 			throw new IOException( "Request cannot be more than 255 characters" );
 		}
 
+		if (data.length > 0xFFFF)
+		{
+			throw new IOException( "The asset " + request + " is too large for a single packet, it must be requested in fragments" );
+		}
+
 		int packetLength = 2 + pathLength + 2 + data.length;
 		byte[] packet = new byte[packetLength];
 
-		packet[0] = 1;
+		packet[0] = FLAG_RESPONSE;
 		packet[1] = (byte)pathLength;
 		System.arraycopy( path, 0, packet, 2, pathLength );
 
@@ -265,6 +423,74 @@ public class MulticastSource extends BaseAssetSource
 		return packet;
 	}
 
+	/**
+	 * Writes a fragment of an asset into the given packet buffer.
+	 * 
+	 * @param packet
+	 *        The buffer to write the fragment to.
+	 * @param path
+	 *        The absolute path of the asset.
+	 * @param index
+	 *        The index of the fragment.
+	 * @param count
+	 *        The number of fragments.
+	 * @param size
+	 *        The size of the asset in bytes.
+	 * @param data
+	 *        The bytes of the asset.
+	 * @param offset
+	 *        The offset of the fragment in the asset.
+	 * @param length
+	 *        The number of bytes in the fragment.
+	 * @return The number of bytes written to the packet buffer.
+	 */
+	public static int putFragment( byte[] packet, byte[] path, int index, int count, long size, byte[] data, int offset, int length )
+	{
+		ByteBuffer buffer = ByteBuffer.wrap( packet );
+
+		buffer.put( FLAG_FRAGMENT );
+		buffer.put( (byte)path.length );
+		buffer.put( path );
+		buffer.putInt( index );
+		buffer.putInt( count );
+		buffer.putLong( size );
+		buffer.put( data, offset, length );
+
+		return buffer.position();
+	}
+
+	/**
+	 * Returns the number of fragments an asset is split into.
+	 * 
+	 * @param size
+	 *        The size of the asset in bytes.
+	 * @param capacity
+	 *        The number of asset bytes which fit in one fragment.
+	 * @return The number of fragments, at least one.
+	 */
+	public static int getFragmentCount( long size, int capacity )
+	{
+		capacity = Math.max( 1, capacity );
+
+		return (int)Math.max( 1, (size + capacity - 1) / capacity );
+	}
+
+	/**
+	 * Returns the number of bytes in every fragment except possibly the last.
+	 * The asset is spread evenly over its fragments, so a requester can compute
+	 * the offset of any fragment from the size and count alone.
+	 * 
+	 * @param size
+	 *        The size of the asset in bytes.
+	 * @param count
+	 *        The number of fragments.
+	 * @return The number of bytes in a fragment.
+	 */
+	public static int getFragmentSize( long size, int count )
+	{
+		return (int)((size + count - 1) / count);
+	}
+
 	/**
 	 * Returns the request string from the given request packet. If the packet is
 	 * not a request packet (i.e. a response packet) or the packet is invalid
@@ -276,18 +502,34 @@ public class MulticastSource extends BaseAssetSource
 	 */
 	public static String getRequestString( byte[] data )
 	{
-		if (data.length < 2)
+		return getRequestString( data, data.length );
+	}
+
+	/**
+	 * Returns the request string from the given request packet. If the packet is
+	 * not a request packet (i.e. a response packet) or the packet is invalid
+	 * null will be returned.
+	 * 
+	 * @param data
+	 *        The packet data.
+	 * @param packetLength
+	 *        The number of bytes received in the packet data.
+	 * @return The request in the request packet or null.
+	 */
+	public static String getRequestString( byte[] data, int packetLength )
+	{
+		if (packetLength < 2)
 		{
 			return null;
 		}
 
-		if (data[0] != 0)
+		if (data[0] != FLAG_REQUEST && data[0] != FLAG_REQUEST_FRAGMENTS)
 		{
 			return null;
 		}
 
 		int length = data[1] & 0xFF;
-		int actual = data.length - 2;
+		int actual = packetLength - 2;
 
 		if (actual < length)
 		{
@@ -297,6 +539,34 @@ public class MulticastSource extends BaseAssetSource
 		return new String( data, 2, length );
 	}
 
+	/**
+	 * Returns the largest packet the requester of the given request packet can
+	 * receive, if it accepts a response in fragments.
+	 * 
+	 * @param data
+	 *        The packet data.
+	 * @param packetLength
+	 *        The number of bytes received in the packet data.
+	 * @return The packet size of the requester, or -1 if the request must be
+	 *         answered with a single response packet.
+	 */
+	public static int getRequestPacketSize( byte[] data, int packetLength )
+	{
+		if (packetLength < 2 || data[0] != FLAG_REQUEST_FRAGMENTS)
+		{
+			return -1;
+		}
+
+		int offset = 2 + (data[1] & 0xFF);
+
+		if (offset + 4 > packetLength)
+		{
+			return -1;
+		}
+
+		return ByteBuffer.wrap( data ).getInt( offset );
+	}
+
 	/**
 	 * Returns the response string from the given response packet. If the packet
 	 * is not a response packet (i.e. a request packet) or the packet is invalid
@@ -308,18 +578,34 @@ public class MulticastSource extends BaseAssetSource
 	 */
 	public static String getResponseString( byte[] data )
 	{
-		if (data.length < 2)
+		return getResponseString( data, data.length );
+	}
+
+	/**
+	 * Returns the response string from the given response packet. If the packet
+	 * is not a response packet (i.e. a request packet) or the packet is invalid
+	 * null will be returned.
+	 * 
+	 * @param data
+	 *        The packet data.
+	 * @param packetLength
+	 *        The number of bytes received in the packet data.
+	 * @return The response string in the response packet or null.
+	 */
+	public static String getResponseString( byte[] data, int packetLength )
+	{
+		if (packetLength < 2)
 		{
 			return null;
 		}
 
-		if (data[0] != 1)
+		if (data[0] != FLAG_RESPONSE && data[0] != FLAG_FRAGMENT)
 		{
 			return null;
 		}
 
 		int length = data[1] & 0xFF;
-		int actual = data.length - 2;
+		int actual = packetLength - 2;
 
 		if (actual < length)
 		{
@@ -340,30 +626,47 @@ public class MulticastSource extends BaseAssetSource
 	 * @return The size of the asset in the response in bytes, or -1 if unknown.
 	 */
 	public static int getResponseSize( byte[] data )
+	{
+		return getResponseSize( data, data.length );
+	}
+
+	/**
+	 * Returns the size of the asset in bytes in the given response packet. If
+	 * the packet is invalid or does not contain the complete asset then -1 is
+	 * returned. A valid response packet with all of the asset will return a
+	 * positive (possibly zero) integer.
+	 * 
+	 * @param data
+	 *        The packet data from the response.
+	 * @param packetLength
+	 *        The number of bytes received in the packet data.
+	 * @return The size of the asset in the response in bytes, or -1 if unknown.
+	 */
+	public static int getResponseSize( byte[] data, int packetLength )
 	{
 		// At least 4 bytes are required (flag, path length, asset length).
-		if (data.length < 4)
+		if (packetLength < 4)
 		{
 			return -1;
 		}
 
 		// Flag must equal 1
-		if (data[0] != 1)
+		if (data[0] != FLAG_RESPONSE)
 		{
 			return -1;
 		}
 
 		int pathLength = data[1] & 0xFF;
 
-		// Path length must exist in [0,255]
-		if (pathLength < 0 || pathLength > 255)
+		// Path length must exist in [0,255] and fit in the packet
+		if (pathLength < 0 || pathLength > 255 || pathLength + 4 > packetLength)
 		{
 			return -1;
 		}
 
 		// Get the size of the response in bytes.
 		int responseSize = ((data[pathLength + 2] & 0xFF) << 8) | (data[pathLength + 3] & 0xFF);
-		int remaining = data.length - pathLength - 4;
+		int remaining = packetLength - pathLength - 4;
 
 		// If not enough data is in the packet, cannot read it!
 		if (responseSize > remaining)
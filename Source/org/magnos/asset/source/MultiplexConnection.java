@@ -0,0 +1,677 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.source;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.base.SizedInputStream;
+
+
+/**
+ * A single connection to a TcpServer which carries many requests at once
+ * using version 2 of the TCP protocol. Every request is given an ID, and the
+ * server answers each request as soon as it's able to in frames tagged with
+ * that ID, so responses arrive in any order and the frames of large responses
+ * are interleaved with those of small ones.
+ * 
+ * Every frame in either direction is {@code [int id][byte type][int length]}
+ * followed by length bytes of payload. A request for an asset is answered with
+ * a {@link #RESPONSE_BEGIN} frame containing the size of the asset as a long
+ * (or -1 if it's not known), any number of {@link #RESPONSE_DATA} frames, and a
+ * {@link #RESPONSE_END} frame. If the asset could not be found a
+ * {@link #RESPONSE_NOT_FOUND} frame is sent instead, and if the server fails to
+ * read the asset after it began sending it a {@link #RESPONSE_FAILED} frame
+ * ends the response.
+ * 
+ * With version 3 of the protocol a response may begin with a
+ * {@link #RESPONSE_ENCODED} frame instead, in which case the data frames carry
+ * the asset encoded by the named {@link TransportCodec} and the stream
+ * returned decodes them.
+ * 
+ * A daemon thread reads all frames from the server and hands them to the
+ * streams of the requests they belong to. Each stream holds at most
+ * {@link #RESPONSE_WINDOW} frames which haven't been read, once a stream is
+ * full the thread waits for it to be read (or closed) before reading more
+ * from the socket, which in turn makes the server wait. A stream which stays
+ * full for {@link #STALL_TIMEOUT} milliseconds fails and is cancelled so it
+ * can't hold up the other requests on the connection forever.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class MultiplexConnection implements Runnable
+{
+
+	// Requests an asset, the payload is the absolute path.
+	public static final byte REQUEST_STREAM = 0;
+
+	// Requests the metadata of an asset, the payload is the absolute path.
+	public static final byte REQUEST_METADATA = 1;
+
+	// Cancels a request whose stream was closed before it was read entirely.
+	public static final byte REQUEST_CANCEL = 2;
+
+	// The first frame of an asset, the payload is the size of the asset as a long.
+	public static final byte RESPONSE_BEGIN = 0;
+
+	// A section of an asset.
+	public static final byte RESPONSE_DATA = 1;
+
+	// The last frame of an asset.
+	public static final byte RESPONSE_END = 2;
+
+	// The requested asset could not be found.
+	public static final byte RESPONSE_NOT_FOUND = 3;
+
+	// The metadata of an asset, written with TcpSource.writeMetadata.
+	public static final byte RESPONSE_METADATA = 4;
+
+	// The server failed to read the rest of an asset it began sending.
+	public static final byte RESPONSE_FAILED = 5;
+
+	// The first frame of an encoded asset, the payload is the size of the
+	// decoded asset as a long followed by the name of the codec (as UTF).
+	public static final byte RESPONSE_ENCODED = 6;
+
+	// The largest payload of a frame in either direction, a frame claiming to
+	// be larger (or negative) closes the connection.
+	public static final int MAX_FRAME_SIZE = 1024 * 1024;
+
+	// The number of frames of a response which can wait to be read.
+	public static final int RESPONSE_WINDOW = 16;
+
+	// The number of milliseconds a response can stay full before it fails.
+	public static final long STALL_TIMEOUT = 30000;
+
+	// The number of milliseconds between checks of whether a full response
+	// was closed while waiting to hand it a frame.
+	private static final long DELIVER_INTERVAL = 100;
+
+	// The marker placed in a response queue once the asset has been received.
+	private static final Object END = new Object();
+
+	// The socket connected to the server.
+	private final Socket socket;
+
+	// The stream frames are read from.
+	private final DataInputStream input;
+
+	// The stream frames are written to, writers must synchronize on it.
+	private final DataOutputStream output;
+
+	// The responses waiting for frames from the server by request ID.
+	private final ConcurrentHashMap<Integer, BlockingQueue<Object>> responses;
+
+	// The codecs responses may be encoded with by name.
+	private final Map<String, TransportCodec> codecs;
+
+	// The source of request IDs.
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	// The thread reading frames from the server.
+	private final Thread reader;
+
+	// The error which closed the connection, or null if it's open.
+	private volatile IOException failure;
+
+	/**
+	 * Instantiates a new MultiplexConnection and starts reading responses. The
+	 * socket must have already agreed on version 2 of the protocol with the
+	 * server.
+	 * 
+	 * @param socket
+	 *        The socket connected to the server.
+	 * @throws IOException
+	 *         An error occurred getting the streams of the socket.
+	 */
+	public MultiplexConnection( Socket socket ) throws IOException
+	{
+		this( socket, Collections.<TransportCodec>emptyList() );
+	}
+
+	/**
+	 * Instantiates a new MultiplexConnection and starts reading responses. The
+	 * socket must have already agreed on version 2 or later of the protocol
+	 * with the server, and sent it the codecs if it agreed on version 3.
+	 * 
+	 * @param socket
+	 *        The socket connected to the server.
+	 * @param codecs
+	 *        The codecs the server may encode responses with.
+	 * @throws IOException
+	 *         An error occurred getting the streams of the socket.
+	 */
+	public MultiplexConnection( Socket socket, List<TransportCodec> codecs ) throws IOException
+	{
+		this.socket = socket;
+		this.codecs = new HashMap<String, TransportCodec>();
+
+		for (TransportCodec codec : codecs)
+		{
+			this.codecs.put( codec.getName(), codec );
+		}
+
+		this.input = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+		this.output = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+		this.responses = new ConcurrentHashMap<Integer, BlockingQueue<Object>>();
+		this.reader = new Thread( this, "MultiplexConnection " + socket.getRemoteSocketAddress() );
+		this.reader.setDaemon( true );
+		this.reader.start();
+	}
+
+	/**
+	 * Requests an asset. This blocks until the server begins responding.
+	 * 
+	 * @param absolute
+	 *        The absolute path of the asset.
+	 * @return The stream of the asset which is read as frames arrive.
+	 * @throws FileNotFoundException
+	 *         The asset could not be found by the server.
+	 * @throws IOException
+	 *         An error occurred communicating with the server.
+	 */
+	public InputStream requestStream( String absolute ) throws IOException
+	{
+		int id = nextId.incrementAndGet();
+		BlockingQueue<Object> response = request( id, REQUEST_STREAM, absolute );
+		Object first = take( response );
+
+		if (first == END)
+		{
+			throw new FileNotFoundException( absolute );
+		}
+
+		if (first instanceof Encoding)
+		{
+			Encoding encoding = (Encoding)first;
+			InputStream decoded = encoding.codec.decode( new ResponseInputStream( id, response ) );
+
+			return new SizedInputStream( decoded, encoding.size );
+		}
+
+		long size = ((Long)first).longValue();
+
+		return new SizedInputStream( new ResponseInputStream( id, response ), size );
+	}
+
+	/**
+	 * Requests the metadata of an asset. This blocks until the server responds.
+	 * 
+	 * @param absolute
+	 *        The absolute path of the asset.
+	 * @return The metadata of the asset.
+	 * @throws IOException
+	 *         An error occurred communicating with the server.
+	 */
+	public AssetMetadata requestMetadata( String absolute ) throws IOException
+	{
+		BlockingQueue<Object> response = request( nextId.incrementAndGet(), REQUEST_METADATA, absolute );
+
+		return (AssetMetadata)take( response );
+	}
+
+	/**
+	 * Registers a response and sends its request to the server.
+	 */
+	private BlockingQueue<Object> request( int id, byte type, String absolute ) throws IOException
+	{
+		checkOpen();
+
+		BlockingQueue<Object> response = new LinkedBlockingQueue<Object>( RESPONSE_WINDOW );
+		responses.put( id, response );
+
+		// the connection may have failed before the response was registered.
+		if (failure != null)
+		{
+			responses.remove( id );
+			checkOpen();
+		}
+
+		byte[] path = absolute.getBytes();
+
+		try
+		{
+			synchronized (output)
+			{
+				writeFrame( output, id, type, path, 0, path.length );
+				output.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			fail( e );
+
+			throw e;
+		}
+
+		return response;
+	}
+
+	/**
+	 * Takes the next object from the response, throwing any error the
+	 * connection encountered.
+	 */
+	private Object take( BlockingQueue<Object> response ) throws IOException
+	{
+		Object next = null;
+
+		try
+		{
+			next = response.take();
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException( "Interrupted waiting for a response" );
+		}
+
+		if (next instanceof IOException)
+		{
+			IOException cause = (IOException)next;
+			IOException e = new IOException( cause.getMessage() );
+			e.initCause( cause );
+
+			throw e;
+		}
+
+		return next;
+	}
+
+	/**
+	 * Reads frames from the server until the connection is closed.
+	 */
+	public void run()
+	{
+		try
+		{
+			for (;;)
+			{
+				int id = input.readInt();
+				byte type = input.readByte();
+				byte[] payload = new byte[readFrameLength( input )];
+				input.readFully( payload );
+
+				BlockingQueue<Object> response = responses.get( id );
+
+				if (response == null)
+				{
+					// the stream was closed, discard the rest of the asset.
+					continue;
+				}
+
+				switch (type)
+				{
+				case RESPONSE_BEGIN:
+					deliver( id, response, new DataInputStream( new ByteArrayInputStream( payload ) ).readLong() );
+					break;
+				case RESPONSE_ENCODED:
+					deliver( id, response, getEncoding( payload ) );
+					break;
+				case RESPONSE_DATA:
+					deliver( id, response, payload );
+					break;
+				case RESPONSE_METADATA:
+					deliver( id, response, TcpSource.readMetadata( new DataInputStream( new ByteArrayInputStream( payload ) ) ) );
+					responses.remove( id );
+					break;
+				case RESPONSE_END:
+				case RESPONSE_NOT_FOUND:
+					deliver( id, response, END );
+					responses.remove( id );
+					break;
+				case RESPONSE_FAILED:
+					deliver( id, response, new IOException( "The server failed to send the asset" ) );
+					responses.remove( id );
+					break;
+				default:
+					throw new IOException( "Unknown frame type " + type );
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			fail( e );
+		}
+	}
+
+	/**
+	 * Hands a frame to a response, waiting while the response is full. The
+	 * frame is discarded if the response's stream is closed while waiting, and
+	 * the response fails if it isn't read for {@link #STALL_TIMEOUT}.
+	 */
+	private void deliver( int id, BlockingQueue<Object> response, Object frame ) throws IOException
+	{
+		long deadline = System.currentTimeMillis() + STALL_TIMEOUT;
+
+		try
+		{
+			while (!response.offer( frame, DELIVER_INTERVAL, TimeUnit.MILLISECONDS ))
+			{
+				if (responses.get( id ) != response)
+				{
+					return;
+				}
+
+				if (System.currentTimeMillis() >= deadline)
+				{
+					cancel( id );
+					response.clear();
+					response.offer( new IOException( "The response was not read for " + STALL_TIMEOUT + "ms" ) );
+					return;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			throw new InterruptedIOException( "Interrupted delivering a response" );
+		}
+	}
+
+	/**
+	 * Reads the length of a frame's payload, rejecting lengths which are
+	 * negative or larger than {@link #MAX_FRAME_SIZE}.
+	 * 
+	 * @param input
+	 *        The stream positioned at the length of the payload.
+	 * @return The length of the payload.
+	 * @throws IOException
+	 *         The length is invalid or could not be read.
+	 */
+	public static int readFrameLength( DataInputStream input ) throws IOException
+	{
+		int length = input.readInt();
+
+		if (length < 0 || length > MAX_FRAME_SIZE)
+		{
+			throw new IOException( "Invalid frame length " + length );
+		}
+
+		return length;
+	}
+
+	/**
+	 * Reads the payload of a {@link #RESPONSE_ENCODED} frame.
+	 */
+	private Encoding getEncoding( byte[] payload ) throws IOException
+	{
+		DataInputStream in = new DataInputStream( new ByteArrayInputStream( payload ) );
+		long size = in.readLong();
+		String name = in.readUTF();
+		TransportCodec codec = codecs.get( name );
+
+		if (codec == null)
+		{
+			throw new IOException( "The server encoded a response with the unknown codec " + name );
+		}
+
+		return new Encoding( size, codec );
+	}
+
+	/**
+	 * Closes the connection failing all requests which are waiting for a
+	 * response.
+	 * 
+	 * @param e
+	 *        The error that caused the connection to close.
+	 */
+	private void fail( IOException e )
+	{
+		if (failure == null)
+		{
+			failure = e;
+		}
+
+		close();
+
+		for (Integer id : responses.keySet())
+		{
+			BlockingQueue<Object> response = responses.remove( id );
+
+			// the unread frames are useless once the connection failed, make
+			// room for the failure so the reader of a full response sees it.
+			if (response != null && !response.offer( failure ))
+			{
+				response.clear();
+				response.offer( failure );
+			}
+		}
+	}
+
+	/**
+	 * Throws the error which closed the connection, if any.
+	 */
+	private void checkOpen() throws IOException
+	{
+		if (failure != null)
+		{
+			throw new IOException( "Connection closed: " + failure.getMessage() );
+		}
+	}
+
+	/**
+	 * Determines whether the connection can still be used for requests.
+	 * 
+	 * @return True if the connection is open, otherwise false.
+	 */
+	public boolean isOpen()
+	{
+		return failure == null && !socket.isClosed();
+	}
+
+	/**
+	 * Closes the connection. Requests which are waiting for a response fail.
+	 */
+	public void close()
+	{
+		if (failure == null)
+		{
+			failure = new EOFException( "Connection closed" );
+		}
+
+		try
+		{
+			socket.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+	}
+
+	/**
+	 * Tells the server it can stop sending the given request.
+	 */
+	private void cancel( int id )
+	{
+		if (responses.remove( id ) == null || !isOpen())
+		{
+			return;
+		}
+
+		try
+		{
+			synchronized (output)
+			{
+				writeFrame( output, id, REQUEST_CANCEL, null, 0, 0 );
+				output.flush();
+			}
+		}
+		catch (IOException e)
+		{
+			fail( e );
+		}
+	}
+
+	/**
+	 * Writes a single frame to the given stream. The caller is responsible
+	 * for synchronizing on the stream and flushing it.
+	 * 
+	 * @param output
+	 *        The stream to write to.
+	 * @param id
+	 *        The ID of the request the frame belongs to.
+	 * @param type
+	 *        The type of the frame.
+	 * @param payload
+	 *        The array containing the payload, or null if length is zero.
+	 * @param offset
+	 *        The index of the first byte of the payload in the array.
+	 * @param length
+	 *        The number of bytes in the payload.
+	 * @throws IOException
+	 *         An error occurred writing to the stream.
+	 */
+	public static void writeFrame( DataOutputStream output, int id, byte type, byte[] payload, int offset, int length ) throws IOException
+	{
+		output.writeInt( id );
+		output.writeByte( type );
+		output.writeInt( length );
+
+		if (length > 0)
+		{
+			output.write( payload, offset, length );
+		}
+	}
+
+	/**
+	 * The size and codec of an encoded response.
+	 */
+	private static class Encoding
+	{
+		private final long size;
+		private final TransportCodec codec;
+
+		private Encoding( long size, TransportCodec codec )
+		{
+			this.size = size;
+			this.codec = codec;
+		}
+	}
+
+	/**
+	 * A stream which reads the frames of a single response as they arrive.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private class ResponseInputStream extends InputStream
+	{
+
+		private final int id;
+		private final BlockingQueue<Object> response;
+		private byte[] chunk = new byte[0];
+		private int index = 0;
+		private boolean ended;
+
+		public ResponseInputStream( int id, BlockingQueue<Object> response )
+		{
+			this.id = id;
+			this.response = response;
+		}
+
+		public int read() throws IOException
+		{
+			if (!next())
+			{
+				return -1;
+			}
+
+			return chunk[index++] & 0xFF;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (!next())
+			{
+				return -1;
+			}
+
+			int copied = Math.min( len, chunk.length - index );
+			System.arraycopy( chunk, index, b, off, copied );
+			index += copied;
+
+			return copied;
+		}
+
+		public int available()
+		{
+			return chunk.length - index;
+		}
+
+		public void close()
+		{
+			if (!ended)
+			{
+				ended = true;
+				cancel( id );
+			}
+		}
+
+		/**
+		 * Waits for data if the current chunk has been read, returns false
+		 * once the asset has been read entirely.
+		 */
+		private boolean next() throws IOException
+		{
+			while (index == chunk.length)
+			{
+				if (ended)
+				{
+					return false;
+				}
+
+				Object next = take( response );
+
+				if (next == END)
+				{
+					ended = true;
+					return false;
+				}
+
+				chunk = (byte[])next;
+				index = 0;
+			}
+
+			return true;
+		}
+	}
+
+}
@@ -0,0 +1,496 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.magnos.asset.base.BaseAssetSource;
+
+
+/**
+ * Builds pack files read by a {@link PackSource}. Assets are added by name
+ * (from files, whole directories or bytes) and written to the pack in name
+ * order, each one starting on a multiple of the alignment so buffers of
+ * primitives can be mapped directly from the pack.
+ * <p>
+ * When compressing, an asset is compressed with deflate only if it is at
+ * least {@link #getMinCompress()} bytes and compressing it saves enough space
+ * (see {@link #getMaxRatio()}), so already compressed assets like PNG, JPEG
+ * and ZIP files are stored as is.
+ * </p>
+ * The builder can be run from the command line:
+ * 
+ * <pre>
+ * java org.magnos.asset.source.PackBuilder [-store] [-align N] directory pack
+ * </pre>
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class PackBuilder
+{
+
+	// The default alignment of the assets in the pack.
+	public static final int DEFAULT_ALIGNMENT = 8;
+
+	// The default size in bytes an asset must be before it's compressed.
+	public static final int DEFAULT_MIN_COMPRESS = 256;
+
+	// The default largest compressed to original size ratio that is kept.
+	public static final float DEFAULT_MAX_RATIO = 0.9f;
+
+	private final Map<String, Object> assets = new TreeMap<String, Object>();
+	private int alignment = DEFAULT_ALIGNMENT;
+	private boolean compressing = true;
+	private int minCompress = DEFAULT_MIN_COMPRESS;
+	private float maxRatio = DEFAULT_MAX_RATIO;
+	private int compressedCount;
+
+	/**
+	 * Adds a file to the pack, the file is not read until the pack is written.
+	 * 
+	 * @param name
+	 *        The name of the asset in the pack.
+	 * @param file
+	 *        The file of the asset.
+	 */
+	public void add( String name, File file )
+	{
+		assets.put( name, file );
+	}
+
+	/**
+	 * Adds an asset to the pack.
+	 * 
+	 * @param name
+	 *        The name of the asset in the pack.
+	 * @param data
+	 *        The bytes of the asset.
+	 */
+	public void add( String name, byte[] data )
+	{
+		assets.put( name, data );
+	}
+
+	/**
+	 * Adds every file in the given directory and its sub-directories to the
+	 * pack, named by their path relative to the directory separated by '/'.
+	 * 
+	 * @param directory
+	 *        The directory to add.
+	 * @return The number of files added.
+	 * @throws IOException
+	 *         The directory does not exist or could not be listed.
+	 */
+	public int addDirectory( File directory ) throws IOException
+	{
+		if (!directory.isDirectory())
+		{
+			throw new IOException( directory + " is not a directory" );
+		}
+
+		return addDirectory( directory, "" );
+	}
+
+	private int addDirectory( File directory, String prefix ) throws IOException
+	{
+		File[] files = directory.listFiles();
+
+		if (files == null)
+		{
+			throw new IOException( "Unable to list " + directory );
+		}
+
+		int added = 0;
+
+		for (File file : files)
+		{
+			if (file.isDirectory())
+			{
+				added += addDirectory( file, prefix + file.getName() + "/" );
+			}
+			else
+			{
+				add( prefix + file.getName(), file );
+				added++;
+			}
+		}
+
+		return added;
+	}
+
+	/**
+	 * Writes the assets added to the builder to a pack file.
+	 * 
+	 * @param pack
+	 *        The pack file to write, any existing file is replaced.
+	 * @throws IOException
+	 *         An error occurred reading an asset or writing the pack, or the
+	 *         pack is larger than {@link PackSource#MAX_SIZE}.
+	 */
+	public void write( File pack ) throws IOException
+	{
+		int count = assets.size();
+		String[] names = new String[count];
+		byte[] methods = new byte[count];
+		long[] offsets = new long[count];
+		int[] stored = new int[count];
+		int[] lengths = new int[count];
+		int[] crcs = new int[count];
+
+		DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( pack ) ) );
+		long position = 0;
+		long index;
+
+		compressedCount = 0;
+
+		try
+		{
+			out.writeInt( PackSource.MAGIC );
+			out.writeInt( PackSource.VERSION );
+			out.writeInt( alignment );
+			out.writeInt( count );
+			out.writeLong( 0 );
+			out.writeLong( System.currentTimeMillis() );
+			position = PackSource.HEADER_SIZE;
+
+			int i = 0;
+
+			for (Map.Entry<String, Object> asset : assets.entrySet())
+			{
+				byte[] data = getBytes( asset.getValue() );
+				byte[] compressed = (compressing && data.length >= minCompress ? compress( data ) : null);
+
+				CRC32 crc = new CRC32();
+				crc.update( data );
+
+				if (compressed != null && compressed.length <= data.length * maxRatio)
+				{
+					methods[i] = PackSource.METHOD_DEFLATED;
+					compressedCount++;
+				}
+				else
+				{
+					methods[i] = PackSource.METHOD_STORED;
+					compressed = data;
+				}
+
+				position += pad( out, position );
+
+				names[i] = asset.getKey();
+				offsets[i] = position;
+				stored[i] = compressed.length;
+				lengths[i] = data.length;
+				crcs[i] = (int)crc.getValue();
+
+				out.write( compressed );
+				position += compressed.length;
+				i++;
+
+				checkSize( position );
+			}
+
+			index = position;
+
+			for (i = 0; i < count; i++)
+			{
+				byte[] name = names[i].getBytes( "UTF-8" );
+
+				if (name.length > 0xFFFF)
+				{
+					throw new IOException( "The name " + names[i] + " is too long" );
+				}
+
+				out.writeShort( name.length );
+				out.write( name );
+				out.writeByte( methods[i] );
+				out.writeLong( offsets[i] );
+				out.writeInt( stored[i] );
+				out.writeInt( lengths[i] );
+				out.writeInt( crcs[i] );
+				position += PackSource.ENTRY_SIZE + name.length;
+
+				checkSize( position );
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+
+		RandomAccessFile file = new RandomAccessFile( pack, "rw" );
+		try
+		{
+			file.seek( 16 );
+			file.writeLong( index );
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+
+	/**
+	 * Throws an exception if the pack has grown past the size a PackSource
+	 * can map.
+	 */
+	private void checkSize( long position ) throws IOException
+	{
+		if (position > PackSource.MAX_SIZE)
+		{
+			throw new IOException( "The pack is larger than " + PackSource.MAX_SIZE + " bytes" );
+		}
+	}
+
+	/**
+	 * Writes zeros until the given position is a multiple of the alignment.
+	 */
+	private int pad( DataOutputStream out, long position ) throws IOException
+	{
+		int padding = (int)((alignment - position % alignment) % alignment);
+
+		for (int i = 0; i < padding; i++)
+		{
+			out.write( 0 );
+		}
+
+		return padding;
+	}
+
+	/**
+	 * Returns the bytes of an asset added to the builder.
+	 */
+	private static byte[] getBytes( Object asset ) throws IOException
+	{
+		if (asset instanceof byte[])
+		{
+			return (byte[])asset;
+		}
+
+		InputStream input = new FileInputStream( (File)asset );
+		try
+		{
+			return BaseAssetSource.readFully( input );
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Compresses the given bytes with deflate.
+	 */
+	private static byte[] compress( byte[] data )
+	{
+		Deflater deflater = new Deflater( Deflater.BEST_COMPRESSION );
+		try
+		{
+			deflater.setInput( data );
+			deflater.finish();
+
+			byte[] buffer = new byte[data.length + 64];
+			int length = 0;
+
+			while (!deflater.finished())
+			{
+				if (length == buffer.length)
+				{
+					// compressing grows the data, it will be stored instead
+					return null;
+				}
+
+				length += deflater.deflate( buffer, length, buffer.length - length );
+			}
+
+			byte[] compressed = new byte[length];
+			System.arraycopy( buffer, 0, compressed, 0, length );
+
+			return compressed;
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/**
+	 * The number of assets added to the builder.
+	 * 
+	 * @return The number of assets.
+	 */
+	public int getCount()
+	{
+		return assets.size();
+	}
+
+	/**
+	 * The number of assets compressed the last time a pack was written.
+	 * 
+	 * @return The number of compressed assets.
+	 */
+	public int getCompressedCount()
+	{
+		return compressedCount;
+	}
+
+	/**
+	 * The alignment of the assets in the pack.
+	 * 
+	 * @return The number of bytes the offset of each asset is a multiple of.
+	 */
+	public int getAlignment()
+	{
+		return alignment;
+	}
+
+	/**
+	 * Sets the alignment of the assets in the pack.
+	 * 
+	 * @param alignment
+	 *        The number of bytes the offset of each asset is a multiple of, a
+	 *        power of two.
+	 */
+	public void setAlignment( int alignment )
+	{
+		if (alignment <= 0 || (alignment & (alignment - 1)) != 0)
+		{
+			throw new IllegalArgumentException( "alignment must be a power of two" );
+		}
+
+		this.alignment = alignment;
+	}
+
+	/**
+	 * Whether assets are compressed when it saves space.
+	 * 
+	 * @return True if assets are compressed, false if they're all stored.
+	 */
+	public boolean isCompressing()
+	{
+		return compressing;
+	}
+
+	/**
+	 * Sets whether assets are compressed when it saves space.
+	 * 
+	 * @param compressing
+	 *        True if assets are compressed, false if they're all stored.
+	 */
+	public void setCompressing( boolean compressing )
+	{
+		this.compressing = compressing;
+	}
+
+	/**
+	 * The size in bytes an asset must be before it's compressed.
+	 * 
+	 * @return The minimum size of a compressed asset.
+	 */
+	public int getMinCompress()
+	{
+		return minCompress;
+	}
+
+	/**
+	 * Sets the size in bytes an asset must be before it's compressed.
+	 * 
+	 * @param minCompress
+	 *        The minimum size of a compressed asset.
+	 */
+	public void setMinCompress( int minCompress )
+	{
+		this.minCompress = minCompress;
+	}
+
+	/**
+	 * The largest compressed to original size ratio that is kept, assets
+	 * that don't compress to this ratio are stored as is.
+	 * 
+	 * @return The maximum compression ratio.
+	 */
+	public float getMaxRatio()
+	{
+		return maxRatio;
+	}
+
+	/**
+	 * Sets the largest compressed to original size ratio that is kept.
+	 * 
+	 * @param maxRatio
+	 *        The maximum compression ratio.
+	 */
+	public void setMaxRatio( float maxRatio )
+	{
+		this.maxRatio = maxRatio;
+	}
+
+	/**
+	 * Builds a pack file from a directory.
+	 * 
+	 * @param args
+	 *        [-store] [-align N] directory pack
+	 * @throws IOException
+	 *         An error occurred reading the directory or writing the pack.
+	 */
+	public static void main( String[] args ) throws IOException
+	{
+		PackBuilder builder = new PackBuilder();
+		int i = 0;
+
+		for (; i < args.length && args[i].startsWith( "-" ); i++)
+		{
+			if (args[i].equals( "-store" ))
+			{
+				builder.setCompressing( false );
+			}
+			else if (args[i].equals( "-align" ) && i + 1 < args.length)
+			{
+				builder.setAlignment( Integer.parseInt( args[++i] ) );
+			}
+			else
+			{
+				i = args.length;
+			}
+		}
+
+		if (args.length - i != 2)
+		{
+			System.err.println( "Usage: PackBuilder [-store] [-align N] directory pack" );
+			System.exit( 1 );
+		}
+
+		File pack = new File( args[i + 1] );
+		int added = builder.addDirectory( new File( args[i] ) );
+
+		builder.write( pack );
+
+		System.out.println( "Packed " + added + " assets (" + builder.getCompressedCount() + " compressed) into " + pack + " (" + pack.length() + " bytes)" );
+	}
+
+}
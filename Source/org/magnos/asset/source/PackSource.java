@@ -0,0 +1,484 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
+
+
+/**
+ * A source that reads assets from a pack file built by a {@link PackBuilder}.
+ * <p>
+ * The pack file is memory-mapped once, the first time an asset is requested,
+ * and its index of entries is read into memory. Assets are then served as
+ * slices of the mapping, so no system calls are made per asset and the pages
+ * of the pack are faulted in lazily by the operating system.
+ * </p>
+ * <h2>Format</h2>
+ * All numbers are big-endian.
+ * <pre>
+ * header: int magic, int version, int alignment, int count, long index, long modified
+ * data:   the bytes of each entry, starting on a multiple of the alignment
+ * index:  count entries sorted by name of
+ *         short length, byte[length] name (UTF-8), byte method,
+ *         long offset, int stored, int length, int crc
+ * </pre>
+ * The method of an entry is either {@link #METHOD_STORED} or
+ * {@link #METHOD_DEFLATED}, stored is the number of bytes of the entry in the
+ * pack and length is the number of bytes of the asset. The crc is the CRC-32
+ * of the asset.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class PackSource extends BaseAssetSource
+{
+
+	// The first four bytes of every pack file ("AZPK").
+	public static final int MAGIC = 0x415A504B;
+
+	// The version of the pack format.
+	public static final int VERSION = 1;
+
+	// The number of bytes in the header of a pack file.
+	public static final int HEADER_SIZE = 32;
+
+	// The number of bytes in an index entry besides its name.
+	public static final int ENTRY_SIZE = 23;
+
+	// The largest pack file in bytes, the pack is mapped as a single buffer.
+	public static final long MAX_SIZE = Integer.MAX_VALUE;
+
+	// An entry whose bytes are stored as is.
+	public static final byte METHOD_STORED = 0;
+
+	// An entry whose bytes are compressed with deflate (zlib).
+	public static final byte METHOD_DEFLATED = 1;
+
+	private final String path;
+	private ByteBuffer pack;
+	private Map<String, Entry> entries;
+	private long modified;
+
+	/**
+	 * Instantiates a new PackSource.
+	 * 
+	 * @param path
+	 *        The path to the pack file on the file-system.
+	 */
+	public PackSource( String path )
+	{
+		this( path, DEFAULT_BASE );
+	}
+
+	/**
+	 * Instantiates a new PackSource.
+	 * 
+	 * @param path
+	 *        The path to the pack file on the file-system.
+	 * @param base
+	 *        The base to use to load assets from within the pack. This base is
+	 *        effectively prepended to each request string. If null it will be
+	 *        handled as the default base.
+	 */
+	public PackSource( String path, String base )
+	{
+		super( null, base, DEFAULT_BASE );
+
+		this.path = path;
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		Entry entry = getEntries().get( getAbsolute( request ) );
+
+		if (entry == null)
+		{
+			return AssetMetadata.NOT_PRESENT;
+		}
+
+		String tag = Integer.toHexString( entry.crc ) + "-" + Integer.toHexString( entry.length );
+
+		return new AssetMetadata( entry.length, modified, tag );
+	}
+
+	@Override
+	public boolean isPresent( String request )
+	{
+		try
+		{
+			return getEntries().containsKey( getAbsolute( request ) );
+		}
+		catch (Exception e)
+		{
+			// if the pack can't be opened no asset is present
+			return false;
+		}
+	}
+
+	@Override
+	public InputStream getStream( String request ) throws Exception
+	{
+		ByteBuffer buffer;
+		Entry entry;
+
+		synchronized (this)
+		{
+			entry = getEntries().get( getAbsolute( request ) );
+			buffer = pack;
+		}
+
+		if (entry == null)
+		{
+			throw new FileNotFoundException( path + "!" + getAbsolute( request ) );
+		}
+
+		InputStream input = new EntryInputStream( slice( buffer, entry ) );
+
+		if (entry.method == METHOD_DEFLATED)
+		{
+			input = new InflaterInputStream( input );
+		}
+
+		return new SizedInputStream( input, entry.length );
+	}
+
+	/**
+	 * Returns the requested asset as a read-only buffer. A stored asset is a
+	 * slice of the mapped pack and is not copied, a compressed asset is
+	 * inflated into a new buffer.
+	 * 
+	 * @param request
+	 *        The request for the asset.
+	 * @return The read-only buffer of the asset.
+	 * @throws IOException
+	 *         The asset does not exist or an error occurred opening the pack
+	 *         or inflating the asset.
+	 */
+	public ByteBuffer map( String request ) throws IOException
+	{
+		ByteBuffer buffer;
+		Entry entry;
+
+		synchronized (this)
+		{
+			entry = getEntries().get( getAbsolute( request ) );
+			buffer = pack;
+		}
+
+		if (entry == null)
+		{
+			throw new FileNotFoundException( path + "!" + getAbsolute( request ) );
+		}
+
+		ByteBuffer slice = slice( buffer, entry );
+
+		if (entry.method == METHOD_STORED)
+		{
+			return slice;
+		}
+
+		byte[] stored = new byte[entry.stored];
+		byte[] asset = new byte[entry.length];
+		slice.get( stored );
+
+		Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput( stored );
+
+			if (inflater.inflate( asset ) != asset.length)
+			{
+				throw new IOException( "Entry " + request + " of " + path + " is corrupt" );
+			}
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException( "Entry " + request + " of " + path + " is corrupt: " + e.getMessage() );
+		}
+		finally
+		{
+			inflater.end();
+		}
+
+		return ByteBuffer.wrap( asset ).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Returns a read-only buffer over the stored bytes of the given entry.
+	 * 
+	 * @param buffer
+	 *        The mapping of the pack.
+	 * @param entry
+	 *        The entry to return the bytes of.
+	 * @return The new buffer, which shares the mapping.
+	 */
+	private static ByteBuffer slice( ByteBuffer buffer, Entry entry )
+	{
+		ByteBuffer slice = buffer.duplicate();
+		slice.limit( entry.offset + entry.stored );
+		slice.position( entry.offset );
+
+		return slice.slice();
+	}
+
+	/**
+	 * Returns the index of the entries in the pack by name, mapping the pack
+	 * if it isn't mapped already.
+	 * 
+	 * @return The entries of the pack.
+	 * @throws IOException
+	 *         An error occurred opening the pack or it is not a valid pack.
+	 */
+	private synchronized Map<String, Entry> getEntries() throws IOException
+	{
+		if (pack == null)
+		{
+			RandomAccessFile file = new RandomAccessFile( path, "r" );
+			try
+			{
+				FileChannel channel = file.getChannel();
+
+				if (channel.size() > Integer.MAX_VALUE)
+				{
+					throw new IOException( path + " is larger than 2GB, split it into several packs" );
+				}
+
+				// The mapping remains valid after the channel is closed.
+				ByteBuffer buffer = channel.map( MapMode.READ_ONLY, 0, channel.size() );
+
+				entries = readIndex( buffer );
+				pack = buffer;
+			}
+			finally
+			{
+				file.close();
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Reads the header and index of the mapped pack.
+	 * 
+	 * @param buffer
+	 *        The mapping of the pack.
+	 * @return The entries of the pack by name.
+	 * @throws IOException
+	 *         The pack is not a valid pack.
+	 */
+	private Map<String, Entry> readIndex( ByteBuffer buffer ) throws IOException
+	{
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt( 0 ) != MAGIC)
+		{
+			throw new IOException( path + " is not a pack file" );
+		}
+
+		if (buffer.getInt( 4 ) != VERSION)
+		{
+			throw new IOException( path + " is pack version " + buffer.getInt( 4 ) + ", expected " + VERSION );
+		}
+
+		int count = buffer.getInt( 12 );
+		long index = buffer.getLong( 16 );
+
+		if (index < HEADER_SIZE || index > buffer.limit())
+		{
+			throw new IOException( path + " is truncated" );
+		}
+
+		if (count < 0 || count > (buffer.limit() - index) / ENTRY_SIZE)
+		{
+			throw new IOException( path + " has a corrupt index: " + count + " entries" );
+		}
+
+		modified = buffer.getLong( 24 );
+
+		ByteBuffer input = buffer.duplicate();
+		input.position( (int)index );
+
+		try
+		{
+			Map<String, Entry> result = new HashMap<String, Entry>( count * 4 / 3 + 1 );
+
+			for (int i = 0; i < count; i++)
+			{
+				byte[] name = new byte[input.getShort() & 0xFFFF];
+				input.get( name );
+
+				Entry entry = new Entry();
+				entry.method = input.get();
+				long offset = input.getLong();
+				entry.stored = input.getInt();
+				entry.length = input.getInt();
+				entry.crc = input.getInt();
+
+				if (entry.stored < 0 || entry.length < 0)
+				{
+					throw new IOException( path + " has an entry with a negative size" );
+				}
+
+				if (offset < HEADER_SIZE || offset + entry.stored > index)
+				{
+					throw new IOException( path + " has an entry outside of its data" );
+				}
+
+				entry.offset = (int)offset;
+
+				result.put( new String( name, "UTF-8" ), entry );
+			}
+
+			return result;
+		}
+		catch (RuntimeException e)
+		{
+			throw new IOException( path + " has a corrupt index: " + e );
+		}
+	}
+
+	/**
+	 * Returns the names of every asset in the pack.
+	 * 
+	 * @return The unmodifiable set of entry names.
+	 * @throws IOException
+	 *         An error occurred opening the pack.
+	 */
+	public Set<String> getNames() throws IOException
+	{
+		return Collections.unmodifiableSet( getEntries().keySet() );
+	}
+
+	/**
+	 * Returns the path to the pack file.
+	 * 
+	 * @return The path to the pack file.
+	 */
+	public String getPath()
+	{
+		return path;
+	}
+
+	/**
+	 * Releases the mapping of the pack, the next request maps the pack again.
+	 * The mapping itself is released by the garbage collector once the
+	 * streams and buffers returned by this source are no longer referenced.
+	 */
+	public synchronized void close()
+	{
+		pack = null;
+		entries = null;
+	}
+
+	/**
+	 * Instantiates a PackSource referencing a pack file on the file-system.
+	 * 
+	 * @param file
+	 *        The pack file.
+	 * @return The reference to the new PackSource.
+	 */
+	public static PackSource fromFile( File file )
+	{
+		return new PackSource( file.getPath() );
+	}
+
+	/**
+	 * The location of an asset in a pack.
+	 */
+	private static class Entry
+	{
+		private byte method;
+		private int offset;
+		private int stored;
+		private int length;
+		private int crc;
+	}
+
+	/**
+	 * A stream over a slice of the mapped pack.
+	 */
+	private static class EntryInputStream extends InputStream
+	{
+
+		private final ByteBuffer buffer;
+
+		private EntryInputStream( ByteBuffer buffer )
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return (buffer.hasRemaining() ? buffer.get() & 0xFF : -1);
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len )
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+
+			if (!buffer.hasRemaining())
+			{
+				return -1;
+			}
+
+			int read = Math.min( len, buffer.remaining() );
+			buffer.get( b, off, read );
+
+			return read;
+		}
+
+		@Override
+		public long skip( long n )
+		{
+			int skipped = (int)Math.max( 0, Math.min( n, buffer.remaining() ) );
+			buffer.position( buffer.position() + skipped );
+
+			return skipped;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+
+	}
+
+}
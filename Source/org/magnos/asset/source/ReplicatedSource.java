@@ -0,0 +1,583 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.AssetSource;
+import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
+
+
+/**
+ * A source that reads assets from any of several equivalent sources, for
+ * example TcpSources to replicas of the same TcpServer.
+ * <p>
+ * Each request is sent to the replica with the lowest average latency. If it
+ * has not answered within the hedge percentile (by default the 95th) of its
+ * recent latencies, a hedge request is sent to the next fastest replica and
+ * the asset is taken from whichever finishes first, the slower request is
+ * cancelled and its result discarded. A replica which fails is skipped and
+ * the next replica is tried straight away. Hedging trades a few extra
+ * requests (about 5% by default) for a tail latency close to the median.
+ * </p>
+ * <p>
+ * The assets are read entirely by the replica's request before they are
+ * returned, so a replica which stalls part way through an asset is hedged
+ * as well.
+ * </p>
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class ReplicatedSource extends BaseAssetSource
+{
+
+	// The default percentile of a replica's latency after which a hedge
+	// request is sent.
+	public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+	// The default number of milliseconds to wait before hedging a request to
+	// a replica with too few requests to know its latency.
+	public static final long DEFAULT_INITIAL_HEDGE_DELAY = 100;
+
+	// The default least number of milliseconds to wait before hedging.
+	public static final long DEFAULT_MIN_HEDGE_DELAY = 5;
+
+	// The default maximum number of hedge requests per request.
+	public static final int DEFAULT_MAX_HEDGES = 1;
+
+	// The number of requests a replica must have made before its latency is
+	// used to decide when to hedge.
+	public static final int MIN_SAMPLES = 16;
+
+	// The number of milliseconds a failed request is considered to cost when
+	// ordering the replicas.
+	public static final long FAILURE_PENALTY = 1000;
+
+	// The outcomes of a request to a replica.
+	private static final int SUCCESS = 0;
+	private static final int FAILURE = 1;
+	private static final int CANCELLED = 2;
+
+	private final AssetSource[] replicas;
+	private final LatencyTracker[] trackers;
+	private final AtomicLong[] hedges;
+	private final AtomicLong[] wins;
+	private final ExecutorService executor;
+
+	private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+	private volatile long initialHedgeDelay = DEFAULT_INITIAL_HEDGE_DELAY;
+	private volatile long minHedgeDelay = DEFAULT_MIN_HEDGE_DELAY;
+	private volatile int maxHedges = DEFAULT_MAX_HEDGES;
+
+	/**
+	 * Instantiates a new ReplicatedSource.
+	 * 
+	 * @param replicas
+	 *        The equivalent sources to read assets from, there must be at
+	 *        least one. The first replica determines the absolute path of
+	 *        each request.
+	 */
+	public ReplicatedSource( AssetSource ... replicas )
+	{
+		super( null, replicas[0].getBase(), "" );
+
+		this.replicas = replicas.clone();
+		this.trackers = new LatencyTracker[replicas.length];
+		this.hedges = new AtomicLong[replicas.length];
+		this.wins = new AtomicLong[replicas.length];
+
+		for (int i = 0; i < replicas.length; i++)
+		{
+			trackers[i] = new LatencyTracker();
+			hedges[i] = new AtomicLong();
+			wins[i] = new AtomicLong();
+		}
+
+		this.executor = Executors.newCachedThreadPool( new ThreadFactory()
+		{
+			public Thread newThread( Runnable r )
+			{
+				Thread thread = new Thread( r, "ReplicatedSource" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+	}
+
+	@Override
+	public String getAbsolute( String request )
+	{
+		return replicas[0].getAbsolute( request );
+	}
+
+	@Override
+	public boolean isValid( String request )
+	{
+		return replicas[0].isValid( request );
+	}
+
+	@Override
+	public InputStream getStream( final String request ) throws Exception
+	{
+		Integer[] order = getOrder();
+		CompletionService<Fetched> completion = new ExecutorCompletionService<Fetched>( executor );
+		List<Fetch> pending = new ArrayList<Fetch>();
+		long hedgeDelay = getHedgeDelay( order[0] );
+		int launched = 0;
+		int failed = 0;
+		int hedged = 0;
+		Exception failure = null;
+
+		try
+		{
+			pending.add( submit( completion, order[launched++], request ) );
+
+			for (;;)
+			{
+				boolean canHedge = (hedged < maxHedges && launched < replicas.length);
+				Future<Fetched> done = (canHedge ? completion.poll( hedgeDelay, TimeUnit.MILLISECONDS ) : completion.take());
+
+				if (done == null)
+				{
+					hedges[order[launched]].incrementAndGet();
+					pending.add( submit( completion, order[launched++], request ) );
+					hedged++;
+
+					continue;
+				}
+
+				try
+				{
+					Fetched fetched = done.get();
+
+					if (launched > 1)
+					{
+						wins[fetched.replica].incrementAndGet();
+					}
+
+					return (fetched.data == null ? null : new SizedInputStream( new ByteArrayInputStream( fetched.data ), fetched.data.length ));
+				}
+				catch (ExecutionException e)
+				{
+					failure = (e.getCause() instanceof Exception ? (Exception)e.getCause() : e);
+					failed++;
+				}
+
+				if (failed == launched)
+				{
+					if (launched == replicas.length)
+					{
+						throw failure;
+					}
+
+					pending.add( submit( completion, order[launched++], request ) );
+				}
+			}
+		}
+		finally
+		{
+			for (Fetch fetch : pending)
+			{
+				fetch.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Submits a request for an asset to the given replica.
+	 */
+	private Fetch submit( CompletionService<Fetched> completion, int replica, String request )
+	{
+		Fetch fetch = new Fetch( replica, request );
+		fetch.future = completion.submit( fetch );
+
+		return fetch;
+	}
+
+	/**
+	 * Returns the metadata from the fastest replica which answers, the
+	 * request is not hedged.
+	 */
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		Exception failure = null;
+
+		for (Integer replica : getOrder())
+		{
+			long start = System.currentTimeMillis();
+
+			try
+			{
+				AssetMetadata metadata = replicas[replica].getMetadata( request );
+
+				trackers[replica].success( System.currentTimeMillis() - start );
+
+				return metadata;
+			}
+			catch (Exception e)
+			{
+				trackers[replica].failure( System.currentTimeMillis() - start );
+
+				failure = e;
+			}
+		}
+
+		throw failure;
+	}
+
+	/**
+	 * Returns the indices of the replicas from fastest to slowest. Replicas
+	 * which haven't answered a request yet are tried first so every replica's
+	 * latency becomes known, and replicas which have been failing are tried
+	 * last.
+	 */
+	private Integer[] getOrder()
+	{
+		final double[] scores = new double[replicas.length];
+		Integer[] order = new Integer[replicas.length];
+
+		for (int i = 0; i < replicas.length; i++)
+		{
+			double average = Math.max( 0, trackers[i].getAverage() );
+			double errors = trackers[i].getErrorRate();
+
+			scores[i] = average + errors * FAILURE_PENALTY;
+			order[i] = i;
+		}
+
+		Arrays.sort( order, new Comparator<Integer>()
+		{
+			public int compare( Integer a, Integer b )
+			{
+				return Double.compare( scores[a], scores[b] );
+			}
+		} );
+
+		return order;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait for the given replica before
+	 * sending a hedge request.
+	 */
+	private long getHedgeDelay( int replica )
+	{
+		LatencyTracker tracker = trackers[replica];
+
+		if (tracker.getRequestCount() < MIN_SAMPLES)
+		{
+			return initialHedgeDelay;
+		}
+
+		long percentile = tracker.getPercentile( hedgePercentile );
+
+		return Math.max( minHedgeDelay, percentile < 0 ? initialHedgeDelay : percentile );
+	}
+
+	/**
+	 * Stops the threads making requests to the replicas.
+	 */
+	public void close()
+	{
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Returns the number of replicas.
+	 * 
+	 * @return The number of replicas.
+	 */
+	public int getReplicaCount()
+	{
+		return replicas.length;
+	}
+
+	/**
+	 * Returns the replica at the given index.
+	 * 
+	 * @param index
+	 *        The index of the replica.
+	 * @return The reference to the replica.
+	 */
+	public AssetSource getReplica( int index )
+	{
+		return replicas[index];
+	}
+
+	/**
+	 * Returns the latency of the requests to the replica at the given index.
+	 * 
+	 * @param index
+	 *        The index of the replica.
+	 * @return The reference to the tracker of the replica.
+	 */
+	public LatencyTracker getTracker( int index )
+	{
+		return trackers[index];
+	}
+
+	/**
+	 * Returns the number of hedge requests sent to the replica at the given
+	 * index.
+	 * 
+	 * @param index
+	 *        The index of the replica.
+	 * @return The number of hedge requests sent to the replica.
+	 */
+	public long getHedgeCount( int index )
+	{
+		return hedges[index].get();
+	}
+
+	/**
+	 * Returns the number of times the replica at the given index answered
+	 * first when more than one replica was asked.
+	 * 
+	 * @param index
+	 *        The index of the replica.
+	 * @return The number of races the replica won.
+	 */
+	public long getWinCount( int index )
+	{
+		return wins[index].get();
+	}
+
+	/**
+	 * Returns the percentile of a replica's latency after which a hedge
+	 * request is sent.
+	 * 
+	 * @return The hedge percentile, between 0 and 1.
+	 */
+	public double getHedgePercentile()
+	{
+		return hedgePercentile;
+	}
+
+	/**
+	 * Sets the percentile of a replica's latency after which a hedge request
+	 * is sent.
+	 * 
+	 * @param hedgePercentile
+	 *        The hedge percentile, between 0 and 1.
+	 */
+	public void setHedgePercentile( double hedgePercentile )
+	{
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait before hedging a request to a
+	 * replica whose latency isn't known yet.
+	 * 
+	 * @return The initial hedge delay in milliseconds.
+	 */
+	public long getInitialHedgeDelay()
+	{
+		return initialHedgeDelay;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait before hedging a request to a
+	 * replica whose latency isn't known yet.
+	 * 
+	 * @param initialHedgeDelay
+	 *        The initial hedge delay in milliseconds.
+	 */
+	public void setInitialHedgeDelay( long initialHedgeDelay )
+	{
+		this.initialHedgeDelay = initialHedgeDelay;
+	}
+
+	/**
+	 * Returns the least number of milliseconds to wait before hedging.
+	 * 
+	 * @return The minimum hedge delay in milliseconds.
+	 */
+	public long getMinHedgeDelay()
+	{
+		return minHedgeDelay;
+	}
+
+	/**
+	 * Sets the least number of milliseconds to wait before hedging.
+	 * 
+	 * @param minHedgeDelay
+	 *        The minimum hedge delay in milliseconds.
+	 */
+	public void setMinHedgeDelay( long minHedgeDelay )
+	{
+		this.minHedgeDelay = minHedgeDelay;
+	}
+
+	/**
+	 * Returns the maximum number of hedge requests sent per request.
+	 * 
+	 * @return The maximum number of hedges.
+	 */
+	public int getMaxHedges()
+	{
+		return maxHedges;
+	}
+
+	/**
+	 * Sets the maximum number of hedge requests sent per request, zero
+	 * disables hedging. Replicas which fail are still skipped.
+	 * 
+	 * @param maxHedges
+	 *        The maximum number of hedges.
+	 */
+	public void setMaxHedges( int maxHedges )
+	{
+		this.maxHedges = maxHedges;
+	}
+
+	/**
+	 * The asset read from a replica.
+	 */
+	private static class Fetched
+	{
+		private final int replica;
+		private final byte[] data;
+
+		public Fetched( int replica, byte[] data )
+		{
+			this.replica = replica;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Reads an asset from a replica and records how long it took. A request
+	 * which is cancelled before it finishes (because another replica answered
+	 * first) is recorded as cancelled when it's cancelled, so the time it ran
+	 * already counts towards the replica's latency. Its stream is closed since
+	 * interrupting the thread doesn't stop a blocking read.
+	 */
+	private class Fetch implements Callable<Fetched>
+	{
+		private final int replica;
+		private final String request;
+		private final AtomicBoolean recorded = new AtomicBoolean();
+		private final long start = System.currentTimeMillis();
+		private Future<Fetched> future;
+		private volatile InputStream input;
+		private volatile boolean cancelled;
+
+		public Fetch( int replica, String request )
+		{
+			this.replica = replica;
+			this.request = request;
+		}
+
+		public Fetched call() throws Exception
+		{
+			try
+			{
+				input = replicas[replica].getStream( request );
+
+				if (cancelled)
+				{
+					closeInput();
+				}
+
+				byte[] data = (input == null ? null : readFully( input ));
+
+				record( SUCCESS );
+
+				return new Fetched( replica, data );
+			}
+			catch (Exception e)
+			{
+				record( FAILURE );
+
+				throw e;
+			}
+		}
+
+		public void cancel()
+		{
+			if (!future.isDone())
+			{
+				record( CANCELLED );
+			}
+
+			cancelled = true;
+			future.cancel( true );
+			closeInput();
+		}
+
+		private void closeInput()
+		{
+			InputStream current = input;
+
+			if (current != null)
+			{
+				try
+				{
+					current.close();
+				}
+				catch (IOException e)
+				{
+					// ignore
+				}
+			}
+		}
+
+		private void record( int outcome )
+		{
+			if (recorded.compareAndSet( false, true ))
+			{
+				long latency = System.currentTimeMillis() - start;
+
+				switch (outcome)
+				{
+				case SUCCESS:
+					trackers[replica].success( latency );
+					break;
+				case FAILURE:
+					trackers[replica].failure( latency );
+					break;
+				default:
+					trackers[replica].cancelled( latency );
+					break;
+				}
+			}
+		}
+	}
+
+}
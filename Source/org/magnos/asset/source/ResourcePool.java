@@ -0,0 +1,527 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * A bounded pool of reusable resources (sockets, connections) which are
+ * created, checked and closed by a {@link Factory}.
+ * 
+ * At most {@link #getMaxTotal()} resources are lent out or idle at once, a
+ * request for a resource when the pool is exhausted waits up to the wait
+ * timeout for one to be released. At most {@link #getMaxIdle()} released
+ * resources are kept, the most recently released is lent out first, and idle
+ * resources older than the idle timeout are destroyed the next time the pool
+ * is used or when {@link #evict()} is called. A resource which has been idle
+ * longer than the validate interval is validated before it's lent out.
+ * 
+ * Every resource taken with {@link #acquire()} must be given back exactly once
+ * with {@link #release(Object)} or {@link #invalidate(Object)}.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ * @param <R>
+ *        The type of resource pooled.
+ * @param <E>
+ *        The type of exception thrown creating a resource.
+ */
+public class ResourcePool<R, E extends Exception>
+{
+
+	// The default number of milliseconds a resource can be idle before it's
+	// destroyed.
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	// The default number of milliseconds a resource can be idle before it's
+	// validated when it's lent out.
+	public static final long DEFAULT_VALIDATE_INTERVAL = 1000;
+
+	// The default number of milliseconds to wait for a resource when the pool
+	// is exhausted.
+	public static final long DEFAULT_WAIT_TIMEOUT = 30000;
+
+	// Creates, checks and closes the resources.
+	private final Factory<R, E> factory;
+
+	// The maximum number of resources lent out or idle at once.
+	private final int maxTotal;
+
+	// The maximum number of idle resources.
+	private final int maxIdle;
+
+	// A permit for every resource that can be lent out.
+	private final Semaphore permits;
+
+	// The idle resources, the most recently released first.
+	private final LinkedList<Idle<R>> idle = new LinkedList<Idle<R>>();
+
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private volatile long validateInterval = DEFAULT_VALIDATE_INTERVAL;
+	private volatile long waitTimeout = DEFAULT_WAIT_TIMEOUT;
+
+	// Metrics
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong destroyed = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();
+
+	/**
+	 * Instantiates a new ResourcePool.
+	 * 
+	 * @param factory
+	 *        Creates, checks and closes the resources.
+	 * @param maxTotal
+	 *        The maximum number of resources lent out or idle at once.
+	 * @param maxIdle
+	 *        The maximum number of idle resources kept in the pool.
+	 */
+	public ResourcePool( Factory<R, E> factory, int maxTotal, int maxIdle )
+	{
+		if (maxTotal <= 0)
+		{
+			throw new IllegalArgumentException( "maxTotal must be positive" );
+		}
+
+		this.factory = factory;
+		this.maxTotal = maxTotal;
+		this.maxIdle = Math.min( maxIdle, maxTotal );
+		this.permits = new Semaphore( maxTotal, true );
+	}
+
+	/**
+	 * Lends out a resource. An idle resource is reused if one is valid,
+	 * otherwise a new resource is created.
+	 * 
+	 * @return The resource, or null if the pool was exhausted for longer than
+	 *         the wait timeout.
+	 * @throws E
+	 *         An error occurred creating a resource.
+	 * @throws InterruptedException
+	 *         The thread was interrupted waiting for a resource.
+	 */
+	public R acquire() throws E, InterruptedException
+	{
+		long start = System.nanoTime();
+
+		try
+		{
+			if (!permits.tryAcquire( waitTimeout, TimeUnit.MILLISECONDS ))
+			{
+				return null;
+			}
+		}
+		finally
+		{
+			waitTime.addAndGet( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) );
+		}
+
+		boolean acquired = false;
+
+		try
+		{
+			R resource = getIdle();
+
+			if (resource == null)
+			{
+				resource = factory.create();
+				created.incrementAndGet();
+			}
+
+			active.incrementAndGet();
+			acquired = true;
+
+			return resource;
+		}
+		finally
+		{
+			if (!acquired)
+			{
+				permits.release();
+			}
+		}
+	}
+
+	/**
+	 * Returns a resource to the pool. If the resource is no longer open or the
+	 * pool has enough idle resources it is destroyed instead.
+	 * 
+	 * @param resource
+	 *        The resource to return.
+	 */
+	public void release( R resource )
+	{
+		active.decrementAndGet();
+
+		boolean pooled = false;
+
+		if (factory.isOpen( resource ))
+		{
+			synchronized (idle)
+			{
+				if (idle.size() < maxIdle)
+				{
+					idle.addFirst( new Idle<R>( resource ) );
+					pooled = true;
+				}
+			}
+		}
+
+		if (!pooled)
+		{
+			destroy( resource );
+		}
+
+		permits.release();
+
+		evict();
+	}
+
+	/**
+	 * Destroys a resource which can't be reused, for example after an error.
+	 * 
+	 * @param resource
+	 *        The resource to destroy.
+	 */
+	public void invalidate( R resource )
+	{
+		active.decrementAndGet();
+
+		destroy( resource );
+
+		permits.release();
+	}
+
+	/**
+	 * Destroys all resources which have been idle longer than the idle
+	 * timeout.
+	 */
+	public void evict()
+	{
+		long oldest = System.currentTimeMillis() - idleTimeout;
+
+		for (;;)
+		{
+			Idle<R> expired = null;
+
+			synchronized (idle)
+			{
+				if (!idle.isEmpty() && idle.getLast().released < oldest)
+				{
+					expired = idle.removeLast();
+				}
+			}
+
+			if (expired == null)
+			{
+				break;
+			}
+
+			destroy( expired.resource );
+		}
+	}
+
+	/**
+	 * Destroys all idle resources. Resources currently lent out are kept until
+	 * they are released.
+	 */
+	public void clear()
+	{
+		for (;;)
+		{
+			Idle<R> next = null;
+
+			synchronized (idle)
+			{
+				next = idle.poll();
+			}
+
+			if (next == null)
+			{
+				break;
+			}
+
+			destroy( next.resource );
+		}
+	}
+
+	/**
+	 * Takes the most recently released idle resource that is still usable.
+	 */
+	private R getIdle()
+	{
+		long now = System.currentTimeMillis();
+
+		for (;;)
+		{
+			Idle<R> next = null;
+
+			synchronized (idle)
+			{
+				next = idle.poll();
+			}
+
+			if (next == null)
+			{
+				return null;
+			}
+
+			long idleTime = now - next.released;
+
+			if (idleTime < idleTimeout && (idleTime < validateInterval ? factory.isOpen( next.resource ) : factory.validate( next.resource )))
+			{
+				return next.resource;
+			}
+
+			destroy( next.resource );
+		}
+	}
+
+	/**
+	 * Destroys the given resource.
+	 */
+	private void destroy( R resource )
+	{
+		destroyed.incrementAndGet();
+
+		factory.destroy( resource );
+	}
+
+	/**
+	 * The maximum number of resources lent out or idle at once.
+	 * 
+	 * @return The maximum number of resources.
+	 */
+	public int getMaxTotal()
+	{
+		return maxTotal;
+	}
+
+	/**
+	 * The maximum number of idle resources kept in the pool.
+	 * 
+	 * @return The maximum number of idle resources.
+	 */
+	public int getMaxIdle()
+	{
+		return maxIdle;
+	}
+
+	/**
+	 * The number of milliseconds a resource can be idle before it's destroyed.
+	 * 
+	 * @return The idle timeout in milliseconds.
+	 */
+	public long getIdleTimeout()
+	{
+		return idleTimeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds a resource can be idle before it's
+	 * destroyed.
+	 * 
+	 * @param idleTimeout
+	 *        The idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout( long idleTimeout )
+	{
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * The number of milliseconds a resource can be idle before it's validated
+	 * when it's lent out.
+	 * 
+	 * @return The validate interval in milliseconds.
+	 */
+	public long getValidateInterval()
+	{
+		return validateInterval;
+	}
+
+	/**
+	 * Sets the number of milliseconds a resource can be idle before it's
+	 * validated when it's lent out. Zero validates every idle resource.
+	 * 
+	 * @param validateInterval
+	 *        The validate interval in milliseconds.
+	 */
+	public void setValidateInterval( long validateInterval )
+	{
+		this.validateInterval = validateInterval;
+	}
+
+	/**
+	 * The number of milliseconds to wait for a resource when the pool is
+	 * exhausted.
+	 * 
+	 * @return The wait timeout in milliseconds.
+	 */
+	public long getWaitTimeout()
+	{
+		return waitTimeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for a resource when the pool is
+	 * exhausted.
+	 * 
+	 * @param waitTimeout
+	 *        The wait timeout in milliseconds.
+	 */
+	public void setWaitTimeout( long waitTimeout )
+	{
+		this.waitTimeout = waitTimeout;
+	}
+
+	/**
+	 * The number of resources currently lent out.
+	 * 
+	 * @return The number of active resources.
+	 */
+	public int getActiveCount()
+	{
+		return active.get();
+	}
+
+	/**
+	 * The number of resources currently idle in the pool.
+	 * 
+	 * @return The number of idle resources.
+	 */
+	public int getIdleCount()
+	{
+		synchronized (idle)
+		{
+			return idle.size();
+		}
+	}
+
+	/**
+	 * The number of resources the pool has created.
+	 * 
+	 * @return The number of resources created.
+	 */
+	public long getCreatedCount()
+	{
+		return created.get();
+	}
+
+	/**
+	 * The number of resources the pool has destroyed.
+	 * 
+	 * @return The number of resources destroyed.
+	 */
+	public long getDestroyedCount()
+	{
+		return destroyed.get();
+	}
+
+	/**
+	 * The total number of milliseconds spent waiting for a resource because
+	 * the pool was exhausted.
+	 * 
+	 * @return The total wait time in milliseconds.
+	 */
+	public long getWaitTime()
+	{
+		return waitTime.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "active=%d idle=%d created=%d destroyed=%d wait=%dms",
+			getActiveCount(), getIdleCount(), getCreatedCount(), getDestroyedCount(), getWaitTime() );
+	}
+
+	/**
+	 * Creates, checks and closes the resources of a pool.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 * @param <R>
+	 *        The type of resource pooled.
+	 * @param <E>
+	 *        The type of exception thrown creating a resource.
+	 */
+	public interface Factory<R, E extends Exception>
+	{
+
+		/**
+		 * Creates a new resource.
+		 * 
+		 * @return The new resource.
+		 * @throws E
+		 *         An error occurred creating the resource.
+		 */
+		public R create() throws E;
+
+		/**
+		 * Quickly determines whether the resource has not been closed, this
+		 * is checked when a resource is released and when a recently released
+		 * resource is lent out.
+		 * 
+		 * @param resource
+		 *        The resource to check.
+		 * @return True if the resource may be reused, otherwise false.
+		 */
+		public boolean isOpen( R resource );
+
+		/**
+		 * Determines whether a resource which has been idle longer than the
+		 * validate interval can still be used, which may involve talking to
+		 * the other end.
+		 * 
+		 * @param resource
+		 *        The idle resource to validate.
+		 * @return True if the resource can be reused, otherwise false.
+		 */
+		public boolean validate( R resource );
+
+		/**
+		 * Closes the resource, ignoring errors.
+		 * 
+		 * @param resource
+		 *        The resource to close.
+		 */
+		public void destroy( R resource );
+	}
+
+	/**
+	 * An idle resource and the time it was released.
+	 */
+	private static class Idle<R>
+	{
+
+		private final R resource;
+		private final long released;
+
+		public Idle( R resource )
+		{
+			this.resource = resource;
+			this.released = System.currentTimeMillis();
+		}
+	}
+
+}
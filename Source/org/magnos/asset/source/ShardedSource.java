@@ -0,0 +1,353 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.AssetSource;
+import org.magnos.asset.base.BaseAssetSource;
+
+
+/**
+ * A source that spreads assets across several nodes (for example TcpSources
+ * to different TcpServers), each asset always being read from the same node
+ * so each server only has to cache its share of the assets.
+ * <p>
+ * The absolute path of a request is mapped to a node with a consistent hash
+ * ring. Every node is placed on the ring at many points (virtual nodes) so
+ * the assets are spread evenly, and an asset belongs to the node at the first
+ * point on the ring at or after the hash of its path. Adding or removing a
+ * node only moves the assets between that node and its neighbours on the
+ * ring, about 1/N of all assets.
+ * </p>
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class ShardedSource extends BaseAssetSource
+{
+
+	// The default number of points each node has on the ring.
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	// The default base of the source, requests are given to nodes as is.
+	public static final String DEFAULT_BASE = "";
+
+	private final int virtualNodes;
+	private final Map<String, Shard> shards = new TreeMap<String, Shard>();
+	private volatile TreeMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+
+	/**
+	 * Instantiates a new ShardedSource with the default number of virtual
+	 * nodes.
+	 */
+	public ShardedSource()
+	{
+		this( DEFAULT_VIRTUAL_NODES );
+	}
+
+	/**
+	 * Instantiates a new ShardedSource.
+	 * 
+	 * @param virtualNodes
+	 *        The number of points each node has on the ring.
+	 */
+	public ShardedSource( int virtualNodes )
+	{
+		super( null, DEFAULT_BASE, DEFAULT_BASE );
+
+		if (virtualNodes <= 0)
+		{
+			throw new IllegalArgumentException( "virtualNodes must be positive" );
+		}
+
+		this.virtualNodes = virtualNodes;
+	}
+
+	@Override
+	public InputStream getStream( String request ) throws Exception
+	{
+		Shard shard = getShard( request );
+		long start = System.currentTimeMillis();
+
+		try
+		{
+			InputStream input = shard.source.getStream( request );
+
+			shard.success( System.currentTimeMillis() - start );
+
+			return input;
+		}
+		catch (Exception e)
+		{
+			shard.failure( System.currentTimeMillis() - start );
+
+			throw e;
+		}
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		return getShard( request ).source.getMetadata( request );
+	}
+
+	/**
+	 * Adds a node to the ring, or replaces the source of the node with the
+	 * given name. A node's points on the ring are determined by its name, so
+	 * a node added again with the same name gets the same assets back.
+	 * 
+	 * @param name
+	 *        The unique name of the node, for example its host and port.
+	 * @param source
+	 *        The source to read the node's assets from.
+	 */
+	public synchronized void addNode( String name, AssetSource source )
+	{
+		shards.put( name, new Shard( name, source ) );
+
+		rebuild();
+	}
+
+	/**
+	 * Removes a node from the ring, its assets are spread over the remaining
+	 * nodes.
+	 * 
+	 * @param name
+	 *        The name of the node.
+	 * @return The source of the node, or null if there was no node with the
+	 *         given name.
+	 */
+	public synchronized AssetSource removeNode( String name )
+	{
+		Shard removed = shards.remove( name );
+
+		rebuild();
+
+		return (removed == null ? null : removed.source);
+	}
+
+	/**
+	 * Builds a new ring from the current nodes and swaps it in, requests in
+	 * progress keep using the ring they started with.
+	 */
+	private void rebuild()
+	{
+		TreeMap<Long, Shard> points = new TreeMap<Long, Shard>();
+
+		for (Shard shard : shards.values())
+		{
+			for (int i = 0; i < virtualNodes; i++)
+			{
+				long point = hash( shard.name + "#" + i );
+
+				// on the rare collision the node with the lowest name keeps the point
+				if (!points.containsKey( point ))
+				{
+					points.put( point, shard );
+				}
+			}
+		}
+
+		ring = points;
+	}
+
+	/**
+	 * Returns the shard the given request is read from.
+	 * 
+	 * @param request
+	 *        The request for an asset.
+	 * @return The shard of the request.
+	 * @throws IOException
+	 *         There are no nodes.
+	 */
+	public Shard getShard( String request ) throws IOException
+	{
+		TreeMap<Long, Shard> current = ring;
+
+		if (current.isEmpty())
+		{
+			throw new IOException( "There are no nodes to read " + request + " from" );
+		}
+
+		Map.Entry<Long, Shard> entry = current.ceilingEntry( hash( getAbsolute( request ) ) );
+
+		return (entry == null ? current.firstEntry() : entry).getValue();
+	}
+
+	/**
+	 * Returns the shards of every node, ordered by name.
+	 * 
+	 * @return A new list of the shards.
+	 */
+	public synchronized List<Shard> getShards()
+	{
+		return new ArrayList<Shard>( shards.values() );
+	}
+
+	/**
+	 * Returns the number of points each node has on the ring.
+	 * 
+	 * @return The number of virtual nodes.
+	 */
+	public int getVirtualNodes()
+	{
+		return virtualNodes;
+	}
+
+	/**
+	 * Hashes the given key to a point on the ring, FNV-1a followed by the
+	 * finalizer of MurmurHash3 to spread similar keys across the ring.
+	 * 
+	 * @param key
+	 *        The key to hash.
+	 * @return The 64-bit hash of the key.
+	 */
+	public static long hash( String key )
+	{
+		long h = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < key.length(); i++)
+		{
+			h ^= key.charAt( i );
+			h *= 0x100000001b3L;
+		}
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+
+		return h;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		StringBuilder out = new StringBuilder( "ShardedSource[" );
+
+		for (Shard shard : shards.values())
+		{
+			out.append( "\n  " ).append( shard );
+		}
+
+		return out.append( "]" ).toString();
+	}
+
+	/**
+	 * A node of a ShardedSource and the statistics of the requests it was
+	 * given.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	public static class Shard
+	{
+
+		private final String name;
+		private final AssetSource source;
+		private final LatencyTracker tracker = new LatencyTracker();
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+
+		private Shard( String name, AssetSource source )
+		{
+			this.name = name;
+			this.source = source;
+		}
+
+		private void success( long latency )
+		{
+			requests.incrementAndGet();
+			tracker.success( latency );
+		}
+
+		private void failure( long latency )
+		{
+			requests.incrementAndGet();
+			failures.incrementAndGet();
+			tracker.failure( latency );
+		}
+
+		/**
+		 * The name of the node.
+		 * 
+		 * @return The name of the node.
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * The source the node's assets are read from.
+		 * 
+		 * @return The reference to the source.
+		 */
+		public AssetSource getSource()
+		{
+			return source;
+		}
+
+		/**
+		 * The latency of the recent requests to the node.
+		 * 
+		 * @return The reference to the tracker of the node.
+		 */
+		public LatencyTracker getTracker()
+		{
+			return tracker;
+		}
+
+		/**
+		 * The number of assets requested from the node.
+		 * 
+		 * @return The number of requests.
+		 */
+		public long getRequestCount()
+		{
+			return requests.get();
+		}
+
+		/**
+		 * The number of requests to the node which failed.
+		 * 
+		 * @return The number of failed requests.
+		 */
+		public long getFailureCount()
+		{
+			return failures.get();
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format( "Shard[name=%s requests=%d failures=%d average=%.1f]",
+				name, getRequestCount(), getFailureCount(), tracker.getAverage() );
+		}
+
+	}
+
+}
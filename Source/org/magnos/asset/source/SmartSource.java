@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.AssetSource;
 import org.magnos.asset.base.BaseAssetSource;
 
@@ -44,6 +45,7 @@ public class SmartSource extends BaseAssetSource
 	public static final Pattern PATTERN_DATABASE = Pattern.compile( "^db://(.*)$" );
 	public static final Pattern PATTERN_JAR = Pattern.compile( "^jar://(.*)$" );
 	public static final Pattern PATTERN_FTP = Pattern.compile( "^ftp://(.*)$" );
+	public static final Pattern PATTERN_PACK = Pattern.compile( "^pak://(.*)$" );
 	public static final Pattern PATTERN_MULTICAST = Pattern.compile( "^multicast://(.*)$" );
 	public static final Pattern PATTERN_SSL = Pattern.compile( "^ssl://(.*)$" );
 	public static final Pattern PATTERN_TCP = Pattern.compile( "^tcp://(.*)$" );
@@ -100,6 +102,25 @@ public class SmartSource extends BaseAssetSource
 		return defaultSource.getStream( request );
 	}
 
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		final String requestLower = request.toLowerCase();
+
+		for (int i = sources.size() - 1; i >= 0; i--)
+		{
+			final PatternedSource source = sources.get( i );
+			final Matcher matcher = source.pattern.matcher( requestLower );
+
+			if (matcher.matches())
+			{
+				return source.source.getMetadata( matcher.group( source.patternGroup ) );
+			}
+		}
+
+		return defaultSource.getMetadata( request );
+	}
+
 	/**
 	 * Returns a matching source based on the request.
 	 * 
@@ -180,6 +201,17 @@ public class SmartSource extends BaseAssetSource
 		add( source, PATTERN_MULTICAST, PATTERN_GROUP );
 	}
 
+	/**
+	 * Adds a new PackSource with the default pattern.
+	 * 
+	 * @param source
+	 *        The new PackSource.
+	 */
+	public void addPack( PackSource source )
+	{
+		add( source, PATTERN_PACK, PATTERN_GROUP );
+	}
+
 	/**
 	 * Adds a new SslSource with the default pattern.
 	 * 
@@ -0,0 +1,484 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import javax.net.SocketFactory;
+
+
+/**
+ * A bounded pool of sockets connected to a single server.
+ * 
+ * At most {@link #getMaxTotal()} sockets are lent out or idle at once, a
+ * request for a socket when the pool is exhausted waits up to the wait timeout
+ * for one to be released. At most {@link #getMaxIdle()} released sockets are
+ * kept, and idle sockets older than the idle timeout are closed the next time
+ * the pool is used or when {@link #evict()} is called. A socket which has been
+ * idle longer than the validate interval is checked for a closed or half-open
+ * connection before it's lent out.
+ * 
+ * Every socket taken with {@link #acquire()} must be given back exactly once
+ * with {@link #release(Socket)} or {@link #invalidate(Socket)}.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class SocketPool
+{
+
+	// The default maximum number of sockets lent out or idle at once.
+	public static final int DEFAULT_MAX_TOTAL = 16;
+
+	// The default maximum number of idle sockets kept in the pool.
+	public static final int DEFAULT_MAX_IDLE = 8;
+
+	// The default number of milliseconds a socket can be idle before it's closed.
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000;
+
+	// The default number of milliseconds a socket can be idle before it's
+	// validated when it's lent out.
+	public static final long DEFAULT_VALIDATE_INTERVAL = 1000;
+
+	// The default number of milliseconds to wait for a connection to be made.
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	// The default number of milliseconds to wait for a socket when the pool is
+	// exhausted.
+	public static final long DEFAULT_WAIT_TIMEOUT = 30000;
+
+	// The address of the server.
+	private final InetSocketAddress address;
+
+	// The factory to use to create sockets.
+	private final SocketFactory socketFactory;
+
+	// The sockets lent out and idle.
+	private final ResourcePool<Socket, IOException> pool;
+
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+	/**
+	 * Instantiates a new SocketPool with the default sizes.
+	 * 
+	 * @param address
+	 *        The address of the server.
+	 * @param socketFactory
+	 *        The factory to use to create sockets.
+	 */
+	public SocketPool( InetSocketAddress address, SocketFactory socketFactory )
+	{
+		this( address, socketFactory, DEFAULT_MAX_TOTAL, DEFAULT_MAX_IDLE );
+	}
+
+	/**
+	 * Instantiates a new SocketPool.
+	 * 
+	 * @param address
+	 *        The address of the server.
+	 * @param socketFactory
+	 *        The factory to use to create sockets.
+	 * @param maxTotal
+	 *        The maximum number of sockets lent out or idle at once.
+	 * @param maxIdle
+	 *        The maximum number of idle sockets kept in the pool.
+	 */
+	public SocketPool( InetSocketAddress address, SocketFactory socketFactory, int maxTotal, int maxIdle )
+	{
+		this.address = address;
+		this.socketFactory = socketFactory;
+		this.pool = new ResourcePool<Socket, IOException>( new SocketFactoryAdapter(), maxTotal, maxIdle );
+		this.pool.setIdleTimeout( DEFAULT_IDLE_TIMEOUT );
+		this.pool.setValidateInterval( DEFAULT_VALIDATE_INTERVAL );
+		this.pool.setWaitTimeout( DEFAULT_WAIT_TIMEOUT );
+	}
+
+	/**
+	 * Lends out a socket connected to the server. An idle socket is reused if
+	 * one is valid, otherwise a new connection is made.
+	 * 
+	 * @return The socket connected to the server.
+	 * @throws SocketTimeoutException
+	 *         The pool was exhausted for longer than the wait timeout, or the
+	 *         connection could not be made within the connect timeout.
+	 * @throws IOException
+	 *         An error occurred connecting to the server.
+	 */
+	public Socket acquire() throws IOException
+	{
+		Socket socket = null;
+
+		try
+		{
+			socket = pool.acquire();
+		}
+		catch (InterruptedException e)
+		{
+			throw new IOException( "Interrupted waiting for a connection to " + address );
+		}
+
+		if (socket == null)
+		{
+			throw new SocketTimeoutException( "Timed out waiting for a connection to " + address );
+		}
+
+		return socket;
+	}
+
+	/**
+	 * Returns a socket to the pool once the response to a request has been
+	 * read entirely. If the socket is closed or the pool has enough idle
+	 * sockets it is closed instead.
+	 * 
+	 * @param socket
+	 *        The socket to return.
+	 */
+	public void release( Socket socket )
+	{
+		pool.release( socket );
+	}
+
+	/**
+	 * Closes a socket which can't be reused, for example after an error or
+	 * when a response was not read entirely.
+	 * 
+	 * @param socket
+	 *        The socket to close.
+	 */
+	public void invalidate( Socket socket )
+	{
+		pool.invalidate( socket );
+	}
+
+	/**
+	 * Closes all idle sockets which have been idle longer than the idle
+	 * timeout.
+	 */
+	public void evict()
+	{
+		pool.evict();
+	}
+
+	/**
+	 * Closes all idle sockets. Sockets currently lent out are closed when they
+	 * are released if the pool is full.
+	 */
+	public void clear()
+	{
+		pool.clear();
+	}
+
+	/**
+	 * Creates a new socket connected to the server with the factory and
+	 * connect timeout of this pool. The socket is not part of the pool and
+	 * must not be released to it.
+	 * 
+	 * @return The new socket connected to the server.
+	 * @throws IOException
+	 *         An error occurred connecting to the server.
+	 */
+	public Socket createSocket() throws IOException
+	{
+		Socket socket = socketFactory.createSocket();
+
+		try
+		{
+			socket.connect( address, connectTimeout );
+		}
+		catch (IOException e)
+		{
+			socket.close();
+
+			throw e;
+		}
+
+		return socket;
+	}
+
+	/**
+	 * Determines whether the socket has not been closed in either direction.
+	 */
+	private static boolean isOpen( Socket socket )
+	{
+		return socket.isConnected() && !socket.isClosed() && !socket.isInputShutdown() && !socket.isOutputShutdown();
+	}
+
+	/**
+	 * Determines whether an idle socket can be used for another request. The
+	 * server never sends data to an idle socket, so if a read does not time
+	 * out the server has closed the connection or left unexpected data on it.
+	 * 
+	 * @param socket
+	 *        The idle socket to validate.
+	 * @return True if the socket can be reused, otherwise false.
+	 */
+	protected boolean validate( Socket socket )
+	{
+		if (!isOpen( socket ))
+		{
+			return false;
+		}
+
+		try
+		{
+			InputStream input = socket.getInputStream();
+
+			if (input.available() > 0)
+			{
+				return false;
+			}
+
+			int timeout = socket.getSoTimeout();
+			socket.setSoTimeout( 1 );
+
+			try
+			{
+				input.read();
+
+				return false;
+			}
+			catch (SocketTimeoutException e)
+			{
+				return true;
+			}
+			finally
+			{
+				socket.setSoTimeout( timeout );
+			}
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * The address of the server the sockets are connected to.
+	 * 
+	 * @return The address of the server.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * The maximum number of sockets lent out or idle at once.
+	 * 
+	 * @return The maximum number of sockets.
+	 */
+	public int getMaxTotal()
+	{
+		return pool.getMaxTotal();
+	}
+
+	/**
+	 * The maximum number of idle sockets kept in the pool.
+	 * 
+	 * @return The maximum number of idle sockets.
+	 */
+	public int getMaxIdle()
+	{
+		return pool.getMaxIdle();
+	}
+
+	/**
+	 * The number of milliseconds a socket can be idle before it's closed.
+	 * 
+	 * @return The idle timeout in milliseconds.
+	 */
+	public long getIdleTimeout()
+	{
+		return pool.getIdleTimeout();
+	}
+
+	/**
+	 * Sets the number of milliseconds a socket can be idle before it's closed.
+	 * 
+	 * @param idleTimeout
+	 *        The idle timeout in milliseconds.
+	 */
+	public void setIdleTimeout( long idleTimeout )
+	{
+		pool.setIdleTimeout( idleTimeout );
+	}
+
+	/**
+	 * The number of milliseconds a socket can be idle before it's validated
+	 * when it's lent out.
+	 * 
+	 * @return The validate interval in milliseconds.
+	 */
+	public long getValidateInterval()
+	{
+		return pool.getValidateInterval();
+	}
+
+	/**
+	 * Sets the number of milliseconds a socket can be idle before it's
+	 * validated when it's lent out. Zero validates every idle socket.
+	 * 
+	 * @param validateInterval
+	 *        The validate interval in milliseconds.
+	 */
+	public void setValidateInterval( long validateInterval )
+	{
+		pool.setValidateInterval( validateInterval );
+	}
+
+	/**
+	 * The number of milliseconds to wait for a connection to be made.
+	 * 
+	 * @return The connect timeout in milliseconds.
+	 */
+	public int getConnectTimeout()
+	{
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for a connection to be made.
+	 * Zero waits indefinitely.
+	 * 
+	 * @param connectTimeout
+	 *        The connect timeout in milliseconds.
+	 */
+	public void setConnectTimeout( int connectTimeout )
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * The number of milliseconds to wait for a socket when the pool is
+	 * exhausted.
+	 * 
+	 * @return The wait timeout in milliseconds.
+	 */
+	public long getWaitTimeout()
+	{
+		return pool.getWaitTimeout();
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for a socket when the pool is
+	 * exhausted.
+	 * 
+	 * @param waitTimeout
+	 *        The wait timeout in milliseconds.
+	 */
+	public void setWaitTimeout( long waitTimeout )
+	{
+		pool.setWaitTimeout( waitTimeout );
+	}
+
+	/**
+	 * The number of sockets currently lent out.
+	 * 
+	 * @return The number of active sockets.
+	 */
+	public int getActiveCount()
+	{
+		return pool.getActiveCount();
+	}
+
+	/**
+	 * The number of sockets currently idle in the pool.
+	 * 
+	 * @return The number of idle sockets.
+	 */
+	public int getIdleCount()
+	{
+		return pool.getIdleCount();
+	}
+
+	/**
+	 * The number of sockets the pool has connected.
+	 * 
+	 * @return The number of sockets created.
+	 */
+	public long getCreatedCount()
+	{
+		return pool.getCreatedCount();
+	}
+
+	/**
+	 * The number of sockets the pool has closed.
+	 * 
+	 * @return The number of sockets destroyed.
+	 */
+	public long getDestroyedCount()
+	{
+		return pool.getDestroyedCount();
+	}
+
+	/**
+	 * The total number of milliseconds spent waiting for a socket because the
+	 * pool was exhausted.
+	 * 
+	 * @return The total wait time in milliseconds.
+	 */
+	public long getWaitTime()
+	{
+		return pool.getWaitTime();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "SocketPool[" + address + " " + pool + "]";
+	}
+
+	/**
+	 * Connects, checks and closes the sockets of the pool.
+	 */
+	private class SocketFactoryAdapter implements ResourcePool.Factory<Socket, IOException>
+	{
+
+		public Socket create() throws IOException
+		{
+			return createSocket();
+		}
+
+		public boolean isOpen( Socket socket )
+		{
+			return SocketPool.isOpen( socket );
+		}
+
+		public boolean validate( Socket socket )
+		{
+			return SocketPool.this.validate( socket );
+		}
+
+		public void destroy( Socket socket )
+		{
+			try
+			{
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+}
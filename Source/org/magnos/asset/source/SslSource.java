@@ -16,46 +16,23 @@
 
 package org.magnos.asset.source;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
-import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
-import org.magnos.asset.base.BaseAssetSource;
-
-import org.magnos.asset.source.TcpSource.SocketInputStream;
-
 
 /**
  * A source that sends the request to a server over SSL and the server returns
- * the asset requested.
+ * the asset requested. The protocol is the same as {@link TcpSource}.
  * 
  * @author Philip Diffenderfer
  * 
  */
-public class SslSource extends BaseAssetSource
+public class SslSource extends TcpSource
 {
 
-	// The default base of the source. By default this is an empty string
-	// meaning all requests given must be a full path.
-	public static final String DEFAULT_BASE = "";
-
-	// A queue of available sockets.
-	private final ConcurrentLinkedQueue<Socket> socketPool;
-
-	// The factory to use to create sockets.
-	private final SocketFactory socketFactory;
-
-	// The address of the server.
-	private final InetSocketAddress address;
-
 	/**
-	 * Instantiates a new TcpSource with the default base.
+	 * Instantiates a new SslSource with the default base.
 	 * 
 	 * @param host
 	 *        The host name or IP address to the server.
@@ -68,7 +45,7 @@ public class SslSource extends BaseAssetSource
 	}
 
 	/**
-	 * Instantiates a new TcpSource.
+	 * Instantiates a new SslSource.
 	 * 
 	 * @param host
 	 *        The host name or IP address to the server.
@@ -85,7 +62,7 @@ public class SslSource extends BaseAssetSource
 	}
 
 	/**
-	 * Instantiates a new TcpSource with the default base.
+	 * Instantiates a new SslSource with the default base.
 	 * 
 	 * @param address
 	 *        The address to the server.
@@ -96,7 +73,7 @@ public class SslSource extends BaseAssetSource
 	}
 
 	/**
-	 * Instantiates a new TcpSource.
+	 * Instantiates a new SslSource.
 	 * 
 	 * @param address
 	 *        The address to the server.
@@ -107,33 +84,23 @@ public class SslSource extends BaseAssetSource
 	 */
 	public SslSource( InetSocketAddress address, String base )
 	{
-		super( null, base, DEFAULT_BASE );
-
-		this.address = address;
-		this.socketPool = new ConcurrentLinkedQueue<Socket>();
-		this.socketFactory = SSLSocketFactory.getDefault();
+		this( new SocketPool( address, SSLSocketFactory.getDefault() ), base );
 	}
 
-	@Override
-	public InputStream getStream( String request ) throws Exception
+	/**
+	 * Instantiates a new SslSource which uses the given pool of sockets. The
+	 * pool should create its sockets with an SSLSocketFactory.
+	 * 
+	 * @param socketPool
+	 *        The pool of sockets connected to the server.
+	 * @param base
+	 *        The base to use to load assets. This base is effectively prepended
+	 *        to each request string. If null it will be handled as the default
+	 *        base.
+	 */
+	public SslSource( SocketPool socketPool, String base )
 	{
-		byte[] path = getAbsolute( request ).getBytes();
-
-		Socket s = socketPool.poll();
-		if (s == null || s.isClosed() || s.isOutputShutdown() || s.isInputShutdown())
-		{
-			s = socketFactory.createSocket( address.getAddress(), address.getPort() );
-		}
-
-		DataOutputStream o = new DataOutputStream( s.getOutputStream() );
-		o.writeInt( path.length );
-		o.write( path );
-		o.flush();
-
-		DataInputStream i = new DataInputStream( s.getInputStream() );
-		int size = i.readInt();
-
-		return new SocketInputStream( s, size, socketPool );
+		super( socketPool, base );
 	}
 
 }
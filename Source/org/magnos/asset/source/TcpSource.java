@@ -16,21 +16,38 @@
 
 package org.magnos.asset.source;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import javax.net.SocketFactory;
+
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
 
 
 /**
  * A source that sends the request to a server over TCP and the server returns
  * the asset requested.
+ * <p>
+ * With version 3 of the protocol the source tells the server which
+ * {@link TransportCodec}s it supports, and the server may compress each
+ * response with one of them. Compression only applies to the multiplexed
+ * protocol, and can be disabled with {@link #setCompressed(boolean)}.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -42,11 +59,82 @@ public class TcpSource extends BaseAssetSource
 	// meaning all requests given must be a full path.
 	public static final String DEFAULT_BASE = "";
 
-	// A queue of available sockets.
-	private final ConcurrentLinkedQueue<Socket> socketPool;
+	// A request begins with the length of the path, a negative length is an
+	// operation. The metadata operation is followed by the length of the path
+	// and the path, and the response is the metadata of the asset.
+	public static final int OP_METADATA = -1;
+
+	// An operation sent once when a connection is opened to agree on a protocol
+	// version. It's followed by the highest version the client supports and the
+	// server responds with the highest version both support. Servers which
+	// don't know this operation close the connection or never respond.
+	public static final int OP_HELLO = -2;
+
+	// The result of a negotiation the server never answered, either it timed
+	// out or the connection was reset. The protocol is still unknown.
+	public static final int PROTOCOL_UNKNOWN = 0;
+
+	// The original protocol, one request at a time on each socket.
+	public static final int PROTOCOL_SINGLE = 1;
+
+	// The multiplexed protocol, many requests at a time on one socket.
+	public static final int PROTOCOL_MULTIPLEX = 2;
+
+	// The multiplexed protocol with compressed responses. Once the version is
+	// agreed on the client sends the number of codecs it supports followed by
+	// their names, and the server may encode responses with any of them.
+	public static final int PROTOCOL_COMPRESSED = 3;
+
+	// The highest protocol version supported.
+	public static final int PROTOCOL_VERSION = PROTOCOL_COMPRESSED;
+
+	// The default number of milliseconds to wait for the server to answer the
+	// hello before using the original protocol for that request.
+	public static final int DEFAULT_HANDSHAKE_TIMEOUT = 2000;
+
+	// The default number of milliseconds to wait after an unanswered hello
+	// before negotiating again, pooled sockets are used in the meantime.
+	public static final int DEFAULT_RENEGOTIATE_INTERVAL = 30000;
+
+	// The longest request path in bytes, a longer (or negative) length closes
+	// the connection.
+	public static final int MAX_REQUEST_LENGTH = 65536;
+
+	// The size sent in place of an asset that could not be found.
+	public static final int SIZE_NOT_FOUND = -1;
+
+	// When an asset's stream is closed before it's fully read, the remaining
+	// bytes are read and discarded so the socket can be reused if there are at
+	// most this many. If there are more the socket is closed instead.
+	public static final int DRAIN_LIMIT = 65536;
+
+	// The pool of sockets connected to the server.
+	private final SocketPool socketPool;
+
+	// Whether the multiplexed protocol is used if the server supports it.
+	private boolean multiplexed = true;
+
+	// The number of milliseconds to wait for the server to answer the hello.
+	private int handshakeTimeout = DEFAULT_HANDSHAKE_TIMEOUT;
+
+	// The number of milliseconds to wait after an unanswered hello before
+	// negotiating again.
+	private int renegotiateInterval = DEFAULT_RENEGOTIATE_INTERVAL;
+
+	// The protocol version agreed on with the server, zero until negotiated.
+	private int protocolVersion;
+
+	// The time in milliseconds before which negotiation isn't attempted again.
+	private long renegotiateTime;
+
+	// The connection used for the multiplexed protocol.
+	private MultiplexConnection connection;
 
-	// The address of the server.
-	private final InetSocketAddress address;
+	// The codecs the server may compress responses with.
+	private final List<TransportCodec> codecs = new CopyOnWriteArrayList<TransportCodec>();
+
+	// Whether the server is allowed to compress responses.
+	private boolean compressed = true;
 
 	/**
 	 * Instantiates a new TcpSource with the default base.
@@ -100,40 +188,509 @@ public class TcpSource extends BaseAssetSource
 	 *        base.
 	 */
 	public TcpSource( InetSocketAddress address, String base )
+	{
+		this( new SocketPool( address, SocketFactory.getDefault() ), base );
+	}
+
+	/**
+	 * Instantiates a new TcpSource which uses the given pool of sockets.
+	 * 
+	 * @param socketPool
+	 *        The pool of sockets connected to the server.
+	 * @param base
+	 *        The base to use to load assets. This base is effectively prepended
+	 *        to each request string. If null it will be handled as the default
+	 *        base.
+	 */
+	public TcpSource( SocketPool socketPool, String base )
 	{
 		super( null, base, DEFAULT_BASE );
 
-		this.address = address;
-		this.socketPool = new ConcurrentLinkedQueue<Socket>();
+		this.socketPool = socketPool;
+		this.codecs.add( new DeflateCodec() );
 	}
 
 	@Override
 	public InputStream getStream( String request ) throws Exception
 	{
-		byte[] path = getAbsolute( request ).getBytes();
+		MultiplexConnection multiplex = getConnection();
+
+		if (multiplex != null)
+		{
+			try
+			{
+				return multiplex.requestStream( getAbsolute( request ) );
+			}
+			catch (FileNotFoundException e)
+			{
+				throw e;
+			}
+			catch (IOException e)
+			{
+				// the server may have closed the connection while it was idle,
+				// retry once on a new connection.
+				if (multiplex.isOpen() || (multiplex = getConnection()) == null)
+				{
+					throw e;
+				}
+
+				return multiplex.requestStream( getAbsolute( request ) );
+			}
+		}
+
+		return requestStream( socketPool, getAbsolute( request ) );
+	}
+
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		MultiplexConnection multiplex = getConnection();
+
+		if (multiplex != null)
+		{
+			try
+			{
+				return multiplex.requestMetadata( getAbsolute( request ) );
+			}
+			catch (IOException e)
+			{
+				// the server may have closed the connection while it was idle,
+				// retry once on a new connection.
+				if (multiplex.isOpen() || (multiplex = getConnection()) == null)
+				{
+					throw e;
+				}
+
+				return multiplex.requestMetadata( getAbsolute( request ) );
+			}
+		}
+
+		return requestMetadata( socketPool, getAbsolute( request ) );
+	}
+
+	/**
+	 * Returns the connection for the multiplexed protocol, connecting and
+	 * negotiating with the server if there's no open connection. If the
+	 * server only supports the original protocol, or multiplexing is
+	 * disabled, null is returned and pooled sockets are used instead. If the
+	 * server doesn't answer the hello null is returned until the renegotiate
+	 * interval has passed.
+	 */
+	private synchronized MultiplexConnection getConnection() throws IOException
+	{
+		if (!multiplexed || protocolVersion == PROTOCOL_SINGLE)
+		{
+			return null;
+		}
+
+		if (connection != null && connection.isOpen())
+		{
+			return connection;
+		}
+
+		if (System.currentTimeMillis() < renegotiateTime)
+		{
+			return null;
+		}
+
+		Socket s = socketPool.createSocket();
+		int version;
+
+		try
+		{
+			version = negotiate( s, PROTOCOL_VERSION, handshakeTimeout );
+
+			if (version >= PROTOCOL_COMPRESSED)
+			{
+				writeCodecs( s, compressed ? codecs : Collections.<TransportCodec>emptyList() );
+			}
+		}
+		catch (IOException e)
+		{
+			s.close();
+
+			throw e;
+		}
+
+		if (version == PROTOCOL_UNKNOWN)
+		{
+			s.close();
+
+			renegotiateTime = System.currentTimeMillis() + renegotiateInterval;
+
+			return null;
+		}
+
+		protocolVersion = version;
+
+		if (protocolVersion < PROTOCOL_MULTIPLEX)
+		{
+			s.close();
+
+			return null;
+		}
+
+		connection = new MultiplexConnection( s, codecs );
+
+		return connection;
+	}
+
+	/**
+	 * Closes the multiplexed connection and all idle pooled sockets.
+	 */
+	public synchronized void close()
+	{
+		if (connection != null)
+		{
+			connection.close();
+			connection = null;
+		}
+
+		socketPool.clear();
+	}
+
+	/**
+	 * Agrees on a protocol version with the server over a newly connected
+	 * socket. A server which closes the connection is assumed to only support
+	 * the original protocol. If the server doesn't answer within the timeout
+	 * or the connection is reset the protocol is unknown, the server may be
+	 * slow rather than old.
+	 * 
+	 * @param s
+	 *        The newly connected socket.
+	 * @param version
+	 *        The highest protocol version the client supports.
+	 * @param timeout
+	 *        The number of milliseconds to wait for the server to answer.
+	 * @return The protocol version agreed on, or {@link #PROTOCOL_UNKNOWN} if
+	 *         the server didn't answer.
+	 * @throws IOException
+	 *         An error occurred sending the hello.
+	 */
+	public static int negotiate( Socket s, int version, int timeout ) throws IOException
+	{
+		DataOutputStream o = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+		o.writeInt( OP_HELLO );
+		o.writeInt( version );
+		o.flush();
+
+		int previousTimeout = s.getSoTimeout();
+		s.setSoTimeout( timeout );
+
+		try
+		{
+			int agreed = new DataInputStream( s.getInputStream() ).readInt();
+
+			s.setSoTimeout( previousTimeout );
+
+			return Math.min( agreed, version );
+		}
+		catch (EOFException e)
+		{
+			return PROTOCOL_SINGLE;
+		}
+		catch (SocketTimeoutException e)
+		{
+			return PROTOCOL_UNKNOWN;
+		}
+		catch (SocketException e)
+		{
+			return PROTOCOL_UNKNOWN;
+		}
+	}
+
+	/**
+	 * Sends the names of the given codecs to the server once version 3 of the
+	 * protocol has been agreed on.
+	 * 
+	 * @param s
+	 *        The socket which negotiated the protocol.
+	 * @param codecs
+	 *        The codecs the server may encode responses with.
+	 * @throws IOException
+	 *         An error occurred sending the codecs.
+	 */
+	public static void writeCodecs( Socket s, List<TransportCodec> codecs ) throws IOException
+	{
+		DataOutputStream o = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+		o.writeInt( codecs.size() );
 
-		Socket s = socketPool.poll();
-		if (s == null || s.isClosed() || s.isOutputShutdown() || s.isInputShutdown())
+		for (TransportCodec codec : codecs)
 		{
-			s = new Socket();
-			s.connect( address );
+			o.writeUTF( codec.getName() );
 		}
 
-		DataOutputStream o = new DataOutputStream( s.getOutputStream() );
-		o.writeInt( path.length );
-		o.write( path );
 		o.flush();
+	}
+
+	/**
+	 * Reads the names of the codecs sent by
+	 * {@link #writeCodecs(Socket, List)}.
+	 * 
+	 * @param input
+	 *        The InputStream to read from.
+	 * @return The names of the codecs the client supports.
+	 * @throws IOException
+	 *         An error occurred reading data from the InputStream.
+	 */
+	public static List<String> readCodecs( DataInputStream input ) throws IOException
+	{
+		int count = input.readInt();
+
+		if (count < 0 || count > 255)
+		{
+			throw new IOException( "Invalid number of codecs " + count );
+		}
+
+		List<String> names = new ArrayList<String>( count );
+
+		for (int i = 0; i < count; i++)
+		{
+			names.add( input.readUTF() );
+		}
+
+		return names;
+	}
+
+	/**
+	 * Adds a codec the server may compress responses with. This only affects
+	 * connections made after it's added.
+	 * 
+	 * @param codec
+	 *        The codec to add, replacing any codec with the same name.
+	 */
+	public void addCodec( TransportCodec codec )
+	{
+		for (TransportCodec existing : codecs)
+		{
+			if (existing.getName().equals( codec.getName() ))
+			{
+				codecs.remove( existing );
+			}
+		}
 
-		DataInputStream i = new DataInputStream( s.getInputStream() );
-		int size = i.readInt();
+		codecs.add( codec );
+	}
 
-		return new SocketInputStream( s, size, socketPool );
+	/**
+	 * The codecs the server may compress responses with.
+	 * 
+	 * @return The reference to the list of codecs.
+	 */
+	public List<TransportCodec> getCodecs()
+	{
+		return codecs;
 	}
 
 	/**
-	 * An input stream that wraps both a Socket and the sockets input stream.
-	 * This is used to ensure that when the input stream is closed the socket is
-	 * closed with it.
+	 * Whether the server is allowed to compress responses.
+	 * 
+	 * @return True if responses may be compressed, otherwise false.
+	 */
+	public boolean isCompressed()
+	{
+		return compressed;
+	}
+
+	/**
+	 * Sets whether the server is allowed to compress responses. This only
+	 * affects connections made after it's set.
+	 * 
+	 * @param compressed
+	 *        True if responses may be compressed, otherwise false.
+	 */
+	public void setCompressed( boolean compressed )
+	{
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Whether the multiplexed protocol is used when the server supports it.
+	 * 
+	 * @return True if requests are multiplexed over one connection, false if
+	 *         each request uses its own pooled socket.
+	 */
+	public boolean isMultiplexed()
+	{
+		return multiplexed;
+	}
+
+	/**
+	 * Sets whether the multiplexed protocol is used when the server supports
+	 * it. This only affects connections made after it's set.
+	 * 
+	 * @param multiplexed
+	 *        True if requests should be multiplexed over one connection, false
+	 *        if each request should use its own pooled socket.
+	 */
+	public void setMultiplexed( boolean multiplexed )
+	{
+		this.multiplexed = multiplexed;
+	}
+
+	/**
+	 * The number of milliseconds to wait for the server to answer the hello
+	 * before using the original protocol for that request.
+	 * 
+	 * @return The handshake timeout in milliseconds.
+	 */
+	public int getHandshakeTimeout()
+	{
+		return handshakeTimeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for the server to answer the
+	 * hello before using the original protocol for that request.
+	 * 
+	 * @param handshakeTimeout
+	 *        The handshake timeout in milliseconds.
+	 */
+	public void setHandshakeTimeout( int handshakeTimeout )
+	{
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * The number of milliseconds to wait after the server didn't answer the
+	 * hello before negotiating again.
+	 * 
+	 * @return The renegotiate interval in milliseconds.
+	 */
+	public synchronized int getRenegotiateInterval()
+	{
+		return renegotiateInterval;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait after the server didn't answer
+	 * the hello before negotiating again. Pooled sockets are used for requests
+	 * made in the meantime.
+	 * 
+	 * @param renegotiateInterval
+	 *        The renegotiate interval in milliseconds.
+	 */
+	public synchronized void setRenegotiateInterval( int renegotiateInterval )
+	{
+		this.renegotiateInterval = renegotiateInterval;
+	}
+
+	/**
+	 * The protocol version agreed on with the server.
+	 * 
+	 * @return The protocol version, or {@link #PROTOCOL_UNKNOWN} if one hasn't
+	 *         been agreed on yet.
+	 */
+	public synchronized int getProtocolVersion()
+	{
+		return protocolVersion;
+	}
+
+	/**
+	 * The pool of sockets connected to the server. The pool can be configured
+	 * and its metrics examined through this reference.
+	 * 
+	 * @return The reference to the pool of sockets.
+	 */
+	public SocketPool getSocketPool()
+	{
+		return socketPool;
+	}
+
+	/**
+	 * Requests an asset over a socket from the given pool.
+	 * 
+	 * @param socketPool
+	 *        The pool to take the socket from and to return the socket to once
+	 *        the asset has been read.
+	 * @param absolute
+	 *        The absolute path of the asset.
+	 * @return The stream of the asset.
+	 * @throws IOException
+	 *         An error occurred communicating with the server or the asset
+	 *         could not be found.
+	 */
+	protected static InputStream requestStream( SocketPool socketPool, String absolute ) throws IOException
+	{
+		byte[] path = absolute.getBytes();
+		Socket s = socketPool.acquire();
+
+		try
+		{
+			DataOutputStream o = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+			o.writeInt( path.length );
+			o.write( path );
+			o.flush();
+
+			DataInputStream i = new DataInputStream( s.getInputStream() );
+			int size = i.readInt();
+
+			if (size == SIZE_NOT_FOUND)
+			{
+				socketPool.release( s );
+
+				throw new FileNotFoundException( absolute );
+			}
+
+			return new SizedInputStream( new SocketInputStream( s, size, socketPool ), size );
+		}
+		catch (FileNotFoundException e)
+		{
+			throw e;
+		}
+		catch (IOException e)
+		{
+			socketPool.invalidate( s );
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Requests the metadata of an asset over a socket from the given pool.
+	 * 
+	 * @param socketPool
+	 *        The pool to take the socket from and to return the socket to once
+	 *        the metadata has been read.
+	 * @param absolute
+	 *        The absolute path of the asset.
+	 * @return The metadata of the asset.
+	 * @throws IOException
+	 *         An error occurred communicating with the server.
+	 */
+	protected static AssetMetadata requestMetadata( SocketPool socketPool, String absolute ) throws IOException
+	{
+		byte[] path = absolute.getBytes();
+		Socket s = socketPool.acquire();
+
+		try
+		{
+			DataOutputStream o = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+			o.writeInt( OP_METADATA );
+			o.writeInt( path.length );
+			o.write( path );
+			o.flush();
+
+			AssetMetadata metadata = readMetadata( new DataInputStream( s.getInputStream() ) );
+
+			socketPool.release( s );
+
+			return metadata;
+		}
+		catch (IOException e)
+		{
+			socketPool.invalidate( s );
+
+			throw e;
+		}
+	}
+
+	/**
+	 * An input stream that wraps both a Socket and the sockets input stream,
+	 * and reads at most the size of the asset from the socket. When the stream
+	 * is closed the socket is returned to the pool if it's positioned at the
+	 * end of the asset, otherwise the remainder is drained (up to
+	 * {@link TcpSource#DRAIN_LIMIT} bytes) or the socket is closed.
 	 * 
 	 * @author Philip Diffenderfer
 	 * 
@@ -141,10 +698,12 @@ public class TcpSource extends BaseAssetSource
 	protected static class SocketInputStream extends InputStream
 	{
 
-		private final Queue<Socket> socketPool;
+		private final SocketPool socketPool;
 		private final InputStream socketInput;
 		private final Socket socket;
 		private int max;
+		private boolean broken;
+		private boolean closed;
 
 		/**
 		 * Instantiates a new SocketInputStream.
@@ -156,7 +715,7 @@ public class TcpSource extends BaseAssetSource
 		 * @throws IOException
 		 *         An error occurred creating the sockets input stream.
 		 */
-		public SocketInputStream( Socket socket, int max, Queue<Socket> socketPool ) throws IOException
+		public SocketInputStream( Socket socket, int max, SocketPool socketPool ) throws IOException
 		{
 			this.socket = socket;
 			this.socketInput = socket.getInputStream();
@@ -166,7 +725,57 @@ public class TcpSource extends BaseAssetSource
 
 		public int read() throws IOException
 		{
-			return (--max < 0 ? -1 : socketInput.read());
+			if (max <= 0)
+			{
+				return -1;
+			}
+
+			int b = socketInput.read();
+
+			if (b == -1)
+			{
+				throw disconnected();
+			}
+
+			max--;
+
+			return b;
+		}
+
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			if (len == 0)
+			{
+				return 0;
+			}
+			if (max <= 0)
+			{
+				return -1;
+			}
+
+			int read = socketInput.read( b, off, Math.min( len, max ) );
+
+			if (read == -1)
+			{
+				throw disconnected();
+			}
+
+			max -= read;
+
+			return read;
+		}
+
+		public long skip( long n ) throws IOException
+		{
+			if (n <= 0 || max <= 0)
+			{
+				return 0;
+			}
+
+			long skipped = socketInput.skip( Math.min( n, max ) );
+			max -= skipped;
+
+			return skipped;
 		}
 
 		public int available()
@@ -176,7 +785,57 @@ public class TcpSource extends BaseAssetSource
 
 		public void close() throws IOException
 		{
-			socketPool.offer( socket );
+			if (closed)
+			{
+				return;
+			}
+
+			closed = true;
+
+			if (!broken && max > 0 && max <= DRAIN_LIMIT)
+			{
+				try
+				{
+					drain();
+				}
+				catch (IOException e)
+				{
+					broken = true;
+				}
+			}
+
+			if (broken || max > 0)
+			{
+				socketPool.invalidate( socket );
+			}
+			else
+			{
+				socketPool.release( socket );
+			}
+		}
+
+		/**
+		 * Reads and discards the remainder of the asset.
+		 */
+		private void drain() throws IOException
+		{
+			byte[] discard = new byte[Math.min( max, 8192 )];
+
+			while (max > 0)
+			{
+				read( discard, 0, discard.length );
+			}
+		}
+
+		/**
+		 * Marks the socket as unusable and returns the exception to throw when
+		 * the server closed the connection before the whole asset was sent.
+		 */
+		private EOFException disconnected()
+		{
+			broken = true;
+
+			return new EOFException( "Connection closed with " + max + " bytes of the asset remaining" );
 		}
 	}
 
@@ -192,16 +851,78 @@ public class TcpSource extends BaseAssetSource
 	 */
 	public static String getRequest( DataInputStream input ) throws IOException
 	{
-		int length = input.readInt();
-		int read = 0;
-		byte[] data = new byte[length];
+		return getRequest( input, input.readInt() );
+	}
 
-		while (read < length)
+	/**
+	 * Gets the request string from the given InputStream given the length of
+	 * the request string which has already been read.
+	 * 
+	 * @param input
+	 *        The InputStream to read from.
+	 * @param length
+	 *        The length of the request string in bytes.
+	 * @return The request string from the InputStream.
+	 * @throws IOException
+	 *         An error occurred reading data from the InputStream, or the
+	 *         length is negative or longer than {@link #MAX_REQUEST_LENGTH}.
+	 */
+	public static String getRequest( DataInputStream input, int length ) throws IOException
+	{
+		if (length < 0 || length > MAX_REQUEST_LENGTH)
 		{
-			read += input.read( data, read, length - read );
+			throw new IOException( "Invalid request length " + length );
 		}
 
+		byte[] data = new byte[length];
+
+		input.readFully( data );
+
 		return new String( data );
 	}
 
+	/**
+	 * Writes the given metadata to the OutputStream.
+	 * 
+	 * @param output
+	 *        The OutputStream to write to.
+	 * @param metadata
+	 *        The metadata to write.
+	 * @throws IOException
+	 *         An error occurred writing data to the OutputStream.
+	 */
+	public static void writeMetadata( DataOutputStream output, AssetMetadata metadata ) throws IOException
+	{
+		String tag = metadata.getTag();
+
+		output.writeBoolean( metadata.isPresent() );
+		output.writeLong( metadata.getLength() );
+		output.writeLong( metadata.getLastModified() );
+		output.writeBoolean( tag != null );
+		if (tag != null)
+		{
+			output.writeUTF( tag );
+		}
+	}
+
+	/**
+	 * Reads metadata written by {@link #writeMetadata(DataOutputStream, AssetMetadata)}
+	 * from the given InputStream.
+	 * 
+	 * @param input
+	 *        The InputStream to read from.
+	 * @return The metadata read.
+	 * @throws IOException
+	 *         An error occurred reading data from the InputStream.
+	 */
+	public static AssetMetadata readMetadata( DataInputStream input ) throws IOException
+	{
+		boolean present = input.readBoolean();
+		long length = input.readLong();
+		long lastModified = input.readLong();
+		String tag = (input.readBoolean() ? input.readUTF() : null);
+
+		return (present ? new AssetMetadata( length, lastModified, tag ) : AssetMetadata.NOT_PRESENT);
+	}
+
 }
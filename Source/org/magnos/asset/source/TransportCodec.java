@@ -0,0 +1,68 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * A codec which compresses assets sent between a {@link TcpSource} and a
+ * TcpServer. The source tells the server the names of the codecs it supports
+ * when it connects, and the server chooses per response whether to encode the
+ * asset and with which codec.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public interface TransportCodec
+{
+
+	/**
+	 * The name of the codec which identifies it to the other side of the
+	 * connection.
+	 * 
+	 * @return The name of the codec.
+	 */
+	public String getName();
+
+	/**
+	 * Returns a stream which encodes the bytes written to it and writes them
+	 * to the given stream. Closing the returned stream finishes the encoding
+	 * and closes the given stream.
+	 * 
+	 * @param output
+	 *        The stream to write the encoded bytes to.
+	 * @return The stream to write the bytes to encode to.
+	 * @throws IOException
+	 *         An error occurred creating the stream.
+	 */
+	public OutputStream encode( OutputStream output ) throws IOException;
+
+	/**
+	 * Returns a stream which decodes the bytes read from the given stream.
+	 * 
+	 * @param input
+	 *        The stream to read the encoded bytes from.
+	 * @return The stream to read the decoded bytes from.
+	 * @throws IOException
+	 *         An error occurred creating the stream.
+	 */
+	public InputStream decode( InputStream input ) throws IOException;
+
+}
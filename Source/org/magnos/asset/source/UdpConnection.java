@@ -0,0 +1,585 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.source;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.magnos.asset.AssetMetadata;
+
+
+/**
+ * A single non-blocking DatagramChannel to a UdpServer which is shared by
+ * every request of a {@link UdpSource}. Each request is given an ID which the
+ * server places at the start of every packet it sends in response, so any
+ * number of requests can be waiting on the channel at once.
+ * 
+ * A daemon thread receives every packet into the same buffer and copies the
+ * fragments it carries straight into the array of the request they belong to.
+ * The same thread sends requests again whenever their resend interval passes
+ * without receiving anything, so a caller only ever waits for its request to
+ * complete.
+ * 
+ * @author Philip Diffenderfer
+ * 
+ */
+public class UdpConnection implements Runnable
+{
+
+	// The channel connected to the server.
+	private final DatagramChannel channel;
+
+	// The selector the channel is registered with for reading.
+	private final Selector selector;
+
+	// The largest packet which can be received.
+	private final int packetSize;
+
+	// The requests waiting for packets from the server by request ID.
+	private final ConcurrentHashMap<Integer, Request> requests;
+
+	// The source of request IDs.
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	// The thread receiving packets from the server.
+	private final Thread receiver;
+
+	// The error which closed the connection, or null if it's open.
+	private volatile IOException failure;
+
+	/**
+	 * Instantiates a new UdpConnection and starts receiving responses.
+	 * 
+	 * @param address
+	 *        The address of the server.
+	 * @param packetSize
+	 *        The largest packet to receive, in bytes.
+	 * @throws IOException
+	 *         An error occurred opening the channel.
+	 */
+	public UdpConnection( SocketAddress address, int packetSize ) throws IOException
+	{
+		this.packetSize = packetSize;
+		this.requests = new ConcurrentHashMap<Integer, Request>();
+		this.channel = DatagramChannel.open();
+
+		try
+		{
+			channel.socket().setReceiveBufferSize( UdpSource.RECEIVE_BUFFER );
+			channel.connect( address );
+			channel.configureBlocking( false );
+
+			this.selector = Selector.open();
+			channel.register( selector, SelectionKey.OP_READ );
+		}
+		catch (IOException e)
+		{
+			channel.close();
+
+			throw e;
+		}
+
+		this.receiver = new Thread( this, "UdpConnection " + address );
+		this.receiver.setDaemon( true );
+		this.receiver.start();
+	}
+
+	/**
+	 * Requests an asset. This blocks until every fragment of the asset has been
+	 * received.
+	 * 
+	 * @param path
+	 *        The absolute path of the asset.
+	 * @param resendInterval
+	 *        The number of milliseconds to wait for a packet before requesting
+	 *        the asset (or its missing fragments) again.
+	 * @param maxResends
+	 *        The number of resends without receiving anything before the
+	 *        request fails.
+	 * @param maxWait
+	 *        The most milliseconds to wait for the whole asset, or zero to wait
+	 *        for as long as the server keeps responding.
+	 * @return The bytes of the asset.
+	 * @throws FileNotFoundException
+	 *         The asset could not be found by the server.
+	 * @throws IOException
+	 *         An error occurred communicating with the server, or it stopped
+	 *         responding.
+	 */
+	public byte[] requestBytes( byte[] path, int resendInterval, int maxResends, int maxWait ) throws IOException
+	{
+		Request request = new Request( UdpSource.OP_FRAGMENTS, path, resendInterval, maxResends );
+
+		execute( request, maxWait );
+
+		return request.data;
+	}
+
+	/**
+	 * Requests the metadata of an asset. This blocks until the server responds.
+	 * 
+	 * @param path
+	 *        The absolute path of the asset.
+	 * @param resendInterval
+	 *        The number of milliseconds to wait for the response before
+	 *        requesting the metadata again.
+	 * @param maxResends
+	 *        The number of resends before the request fails.
+	 * @param maxWait
+	 *        The most milliseconds to wait for the response, or zero to wait
+	 *        until the resends run out.
+	 * @return The metadata of the asset.
+	 * @throws IOException
+	 *         An error occurred communicating with the server, or it stopped
+	 *         responding.
+	 */
+	public AssetMetadata requestMetadata( byte[] path, int resendInterval, int maxResends, int maxWait ) throws IOException
+	{
+		Request request = new Request( UdpSource.OP_METADATA, path, resendInterval, maxResends );
+
+		execute( request, maxWait );
+
+		return request.metadata;
+	}
+
+	/**
+	 * Registers the request, sends it and waits for it to complete.
+	 */
+	private void execute( Request request, int maxWait ) throws IOException
+	{
+		checkOpen();
+
+		requests.put( request.id, request );
+
+		try
+		{
+			// the connection may have failed before the request was registered.
+			checkOpen();
+
+			send( request.getPacket( null, 0 ) );
+			selector.wakeup();
+
+			boolean completed = true;
+
+			try
+			{
+				if (maxWait > 0)
+				{
+					completed = request.done.await( maxWait, TimeUnit.MILLISECONDS );
+				}
+				else
+				{
+					request.done.await();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException( "Interrupted waiting for a response" );
+			}
+
+			if (!completed)
+			{
+				throw new IOException( "No complete response for " + new String( request.path ) + " within " + maxWait + " ms" );
+			}
+		}
+		finally
+		{
+			requests.remove( request.id );
+		}
+
+		if (request.error instanceof FileNotFoundException)
+		{
+			throw new FileNotFoundException( request.error.getMessage() );
+		}
+
+		if (request.error != null)
+		{
+			IOException e = new IOException( request.error.getMessage() );
+			e.initCause( request.error );
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Sends a packet to the server. A packet the channel has no room for is
+	 * dropped like any other lost packet and will be sent again.
+	 */
+	private void send( byte[] packet ) throws IOException
+	{
+		try
+		{
+			channel.write( ByteBuffer.wrap( packet ) );
+		}
+		catch (PortUnreachableException e)
+		{
+			// the server is not listening yet, resend later.
+		}
+	}
+
+	/**
+	 * Receives packets from the server and resends requests until the
+	 * connection is closed.
+	 */
+	public void run()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate( packetSize );
+		long timeout = 0;
+
+		try
+		{
+			while (failure == null)
+			{
+				selector.select( timeout );
+				selector.selectedKeys().clear();
+
+				for (;;)
+				{
+					buffer.clear();
+
+					try
+					{
+						if (channel.receive( buffer ) == null)
+						{
+							break;
+						}
+					}
+					catch (PortUnreachableException e)
+					{
+						// the server is not listening yet, resend later.
+						continue;
+					}
+
+					buffer.flip();
+					receive( buffer );
+				}
+
+				timeout = resend( System.currentTimeMillis() );
+			}
+		}
+		catch (ClosedSelectorException e)
+		{
+			// closed
+		}
+		catch (IOException e)
+		{
+			if (failure == null)
+			{
+				failure = e;
+			}
+		}
+		finally
+		{
+			close();
+
+			for (Request request : requests.values())
+			{
+				request.fail( failure );
+			}
+
+			try
+			{
+				selector.close();
+			}
+			catch (IOException e)
+			{
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * Hands a packet to the request it belongs to. Packets for requests which
+	 * completed already are discarded.
+	 */
+	private void receive( ByteBuffer packet ) throws IOException
+	{
+		if (packet.remaining() < 4)
+		{
+			return;
+		}
+
+		Request request = requests.get( packet.getInt( 0 ) );
+
+		if (request != null && request.done.getCount() > 0)
+		{
+			request.receive( packet, System.currentTimeMillis() );
+		}
+	}
+
+	/**
+	 * Resends every request which has not received anything within its resend
+	 * interval, failing those which ran out of resends.
+	 * 
+	 * @param now
+	 *        The current time in milliseconds.
+	 * @return The number of milliseconds until the next request needs to be
+	 *         resent, or zero if no requests are waiting.
+	 */
+	private long resend( long now ) throws IOException
+	{
+		long next = Long.MAX_VALUE;
+
+		for (Request request : requests.values())
+		{
+			if (request.done.getCount() == 0)
+			{
+				continue;
+			}
+
+			long wait = request.lastReceived + request.resendInterval - now;
+
+			if (wait <= 0)
+			{
+				if (++request.resends > request.maxResends)
+				{
+					request.fail( new IOException( "No response for " + new String( request.path ) + " after " + request.maxResends + " resends" ) );
+
+					continue;
+				}
+
+				request.resend();
+				request.lastReceived = now;
+				wait = request.resendInterval;
+			}
+
+			next = Math.min( next, wait );
+		}
+
+		return (next == Long.MAX_VALUE ? 0 : next);
+	}
+
+	/**
+	 * Throws the error which closed the connection, if any.
+	 */
+	private void checkOpen() throws IOException
+	{
+		if (failure != null)
+		{
+			throw new IOException( "Connection closed: " + failure.getMessage() );
+		}
+	}
+
+	/**
+	 * Determines whether the connection can still be used for requests.
+	 * 
+	 * @return True if the connection is open, otherwise false.
+	 */
+	public boolean isOpen()
+	{
+		return failure == null && channel.isOpen();
+	}
+
+	/**
+	 * Closes the connection. Requests which are waiting for a response fail.
+	 */
+	public void close()
+	{
+		if (failure == null)
+		{
+			failure = new EOFException( "Connection closed" );
+		}
+
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			// ignore
+		}
+
+		selector.wakeup();
+	}
+
+	/**
+	 * A request waiting for its response. Only the receiving thread changes
+	 * the state of a request once it has been sent.
+	 * 
+	 * @author Philip Diffenderfer
+	 * 
+	 */
+	private class Request
+	{
+
+		private final int id = nextId.incrementAndGet();
+		private final byte operation;
+		private final byte[] path;
+		private final int resendInterval;
+		private final int maxResends;
+		private final CountDownLatch done = new CountDownLatch( 1 );
+		private volatile long lastReceived = System.currentTimeMillis();
+		private int resends;
+		private byte[] data;
+		private BitSet received;
+		private int count;
+		private int remaining;
+		private int fragmentSize;
+		private AssetMetadata metadata;
+		private IOException error;
+
+		public Request( byte operation, byte[] path, int resendInterval, int maxResends )
+		{
+			this.operation = operation;
+			this.path = path;
+			this.resendInterval = resendInterval;
+			this.maxResends = maxResends;
+		}
+
+		/**
+		 * Returns the packet for this request, with the given fragment indices.
+		 */
+		public byte[] getPacket( int[] indices, int indexCount )
+		{
+			byte op = (indexCount > 0 ? UdpSource.OP_RESEND : operation);
+
+			return UdpSource.getRequestPacket( op, id, packetSize, indices, indexCount, path );
+		}
+
+		/**
+		 * Sends the request again, asking only for the missing fragments if
+		 * any have been received.
+		 */
+		public void resend() throws IOException
+		{
+			if (data == null)
+			{
+				send( getPacket( null, 0 ) );
+
+				return;
+			}
+
+			int capacity = Math.max( 1, Math.min( UdpSource.MAX_RESEND_INDICES, (packetSize - UdpSource.REQUEST_HEADER - path.length) / 4 ) );
+			int[] indices = new int[capacity];
+			int indexCount = 0;
+
+			for (int i = received.nextClearBit( 0 ); i < count; i = received.nextClearBit( i + 1 ))
+			{
+				indices[indexCount++] = i;
+
+				if (indexCount == capacity)
+				{
+					send( getPacket( indices, indexCount ) );
+					indexCount = 0;
+				}
+			}
+
+			if (indexCount > 0)
+			{
+				send( getPacket( indices, indexCount ) );
+			}
+		}
+
+		/**
+		 * Handles a packet for this request.
+		 */
+		public void receive( ByteBuffer packet, long now ) throws IOException
+		{
+			if (operation == UdpSource.OP_METADATA)
+			{
+				metadata = UdpSource.getMetadata( new DatagramPacket( packet.array(), packet.limit() ) );
+				done.countDown();
+
+				return;
+			}
+
+			if (packet.remaining() < UdpSource.FRAGMENT_HEADER)
+			{
+				return;
+			}
+
+			int index = packet.getInt( 4 );
+			int fragmentCount = packet.getInt( 8 );
+			long size = packet.getLong( 12 );
+
+			if (fragmentCount == 0)
+			{
+				fail( new FileNotFoundException( new String( path ) ) );
+
+				return;
+			}
+
+			if (data == null)
+			{
+				if (size < 0 || size > UdpSource.MAX_SIZE)
+				{
+					fail( new IOException( "The asset " + new String( path ) + " has an invalid size of " + size ) );
+
+					return;
+				}
+
+				data = new byte[(int)size];
+				count = fragmentCount;
+				remaining = count;
+				fragmentSize = UdpSource.getFragmentSize( size, count );
+				received = new BitSet( count );
+			}
+
+			if (index < 0 || index >= count || received.get( index ))
+			{
+				return;
+			}
+
+			int offset = index * fragmentSize;
+			int length = Math.min( fragmentSize, data.length - offset );
+
+			if (packet.remaining() - UdpSource.FRAGMENT_HEADER != length)
+			{
+				fail( new IOException( "Fragment " + index + " of " + new String( path ) + " has " + (packet.remaining() - UdpSource.FRAGMENT_HEADER) + " bytes, expected " + length ) );
+
+				return;
+			}
+
+			packet.position( UdpSource.FRAGMENT_HEADER );
+			packet.get( data, offset, length );
+			received.set( index );
+			resends = 0;
+			lastReceived = now;
+
+			if (--remaining == 0)
+			{
+				done.countDown();
+			}
+		}
+
+		/**
+		 * Completes this request with the given error.
+		 */
+		public void fail( IOException e )
+		{
+			error = e;
+			done.countDown();
+		}
+	}
+
+}
@@ -16,22 +16,42 @@
 
 package org.magnos.asset.source;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.SizedInputStream;
 
 
 /**
- * A source that reads assets from a UDP server. This source will send a packet
- * containing only the request string to the server and wait for a packet to
- * return.
- * 
- * TODO maxWaitTime resendInterval fragment?
+ * A source that reads assets from a UDP server.
+ * <p>
+ * An asset is requested with a packet that holds a request id, the largest
+ * packet this source can receive and the path of the asset. The server splits
+ * the asset into numbered fragments that each fit in one packet, and each
+ * fragment carries the request id, its index, the number of fragments and the
+ * size of the asset. The fragments are reassembled into a buffer of the asset's
+ * size, and if no fragment is received within the resend interval the indices
+ * of the missing fragments are requested again. Only after the maximum number
+ * of resends pass without any progress does the request fail.
+ * </p>
+ * <p>
+ * All requests of a source share one {@link UdpConnection}, which matches the
+ * packets it receives to the waiting requests by their id.
+ * </p>
+ * <p>
+ * A packet that holds only the path is still answered with the asset in a
+ * single packet, for clients which predate fragmentation.
+ * </p>
  * 
  * @author Philip Diffenderfer
  * 
@@ -39,17 +59,68 @@ import org.magnos.asset.base.BaseAssetSource;
 public class UdpSource extends BaseAssetSource
 {
 
-	// The default packet size to use for reading an asset. Any asset that
-	// has more bytes than this may be truncated and may result in an
-	// exception being thrown when being parsed by the format.
+	// The default packet size to use for reading an asset. Assets with more
+	// bytes than this are split into fragments.
 	public static final int DEFAULT_PACKET = 1380;
 
 	// The default base of the source. By default this is an empty string
 	// meaning all requests given must be a full path.
 	public static final String DEFAULT_BASE = "";
 
+	// A request packet that begins with this byte is an operation, the byte
+	// following it is the operation and the remainder is the path. A request
+	// packet without it is the path of the asset requested.
+	public static final byte OP_MARKER = 0;
+
+	// The operation for requesting the metadata of an asset.
+	public static final byte OP_METADATA = 1;
+
+	// The operation for requesting an asset split into fragments.
+	public static final byte OP_FRAGMENTS = 2;
+
+	// The operation for requesting the given fragments of an asset again.
+	public static final byte OP_RESEND = 3;
+
+	// The number of bytes before the path in an operation packet: the marker,
+	// the operation, the request id, the packet size and the index count.
+	public static final int REQUEST_HEADER = 14;
+
+	// The number of bytes before the data in a fragment: the request id, the
+	// fragment index, the fragment count and the size of the asset.
+	public static final int FRAGMENT_HEADER = 20;
+
+	// The most fragment indices requested by a single resend packet.
+	public static final int MAX_RESEND_INDICES = 256;
+
+	// The smallest packet size a client can ask for, so a tiny request can't
+	// make the server answer with a flood of tiny fragments.
+	public static final int MIN_PACKET = FRAGMENT_HEADER + 512;
+
+	// The default number of milliseconds to wait for a packet before sending
+	// the request again.
+	public static final int DEFAULT_RESEND_INTERVAL = 250;
+
+	// The default number of resends without receiving anything before a
+	// request fails.
+	public static final int DEFAULT_MAX_RESENDS = 8;
+
+	// The receive buffer requested for the channel, so a burst of fragments
+	// is not dropped by the operating system.
+	public static final int RECEIVE_BUFFER = 1 << 20;
+
+	// The largest asset that can be reassembled.
+	public static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	// The default number of milliseconds to wait for a whole asset, zero means
+	// a request waits for as long as the server keeps responding.
+	public static final int DEFAULT_MAX_WAIT = 0;
+
 	private final int packetSize;
 	private final SocketAddress address;
+	private UdpConnection connection;
+	private volatile int resendInterval = DEFAULT_RESEND_INTERVAL;
+	private volatile int maxResends = DEFAULT_MAX_RESENDS;
+	private volatile int maxWait = DEFAULT_MAX_WAIT;
 
 	/**
 	 * Instantiates a new UdpSource with the default base and packet size.
@@ -164,12 +235,18 @@ public class UdpSource extends BaseAssetSource
 	 *        to each request string. If null it will be handled as the default
 	 *        base.
 	 * @param packetSize
-	 *        The maximum packet size to expect for receiving assets, in bytes.
+	 *        The maximum packet size to expect for receiving assets, in bytes,
+	 *        at least {@link #MIN_PACKET}.
 	 */
 	public UdpSource( SocketAddress address, String base, int packetSize )
 	{
 		super( null, base, DEFAULT_BASE );
 
+		if (packetSize < MIN_PACKET)
+		{
+			throw new IllegalArgumentException( "packetSize must be at least " + MIN_PACKET );
+		}
+
 		this.address = address;
 		this.packetSize = packetSize;
 	}
@@ -177,99 +254,418 @@ public class UdpSource extends BaseAssetSource
 	@Override
 	public InputStream getStream( String request ) throws Exception
 	{
-		byte[] path = getAbsolute( request ).getBytes();
+		byte[] data = getConnection().requestBytes( getAbsolute( request ).getBytes(), resendInterval, maxResends, maxWait );
 
-		DatagramPacket outgoing = new DatagramPacket( path, path.length );
-		DatagramPacket incoming = new DatagramPacket( new byte[packetSize], packetSize );
+		return new SizedInputStream( new ByteArrayInputStream( data ), data.length );
+	}
 
-		DatagramSocket s = new DatagramSocket();
-		s.connect( address );
-		s.send( outgoing );
-		s.receive( incoming );
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		return getConnection().requestMetadata( getAbsolute( request ).getBytes(), resendInterval, maxResends, maxWait );
+	}
 
-		return new DatagramInputStream( incoming.getData(), 0, incoming.getLength(), s );
+	/**
+	 * Returns the channel shared by all requests of this source, opening a
+	 * new one if it has not been opened yet or has been closed.
+	 * 
+	 * @return The connection to the server.
+	 * @throws IOException
+	 *         An error occurred opening the channel.
+	 */
+	protected synchronized UdpConnection getConnection() throws IOException
+	{
+		if (connection == null || !connection.isOpen())
+		{
+			connection = new UdpConnection( address, packetSize );
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Closes the channel of this source. Requests which are waiting for a
+	 * response fail, and the next request opens a new channel.
+	 */
+	public synchronized void close()
+	{
+		if (connection != null)
+		{
+			connection.close();
+			connection = null;
+		}
 	}
 
 	/**
-	 * An input stream that wraps a DatagramSocket and the packet that was
-	 * received.
+	 * Returns the maximum packet size this source can receive, in bytes.
 	 * 
-	 * @author Philip Diffenderfer
+	 * @return The maximum packet size.
+	 */
+	public int getPacketSize()
+	{
+		return packetSize;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait for a packet before requesting
+	 * the asset (or its missing fragments) again.
+	 * 
+	 * @return The resend interval in milliseconds.
+	 */
+	public int getResendInterval()
+	{
+		return resendInterval;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for a packet before requesting
+	 * the asset (or its missing fragments) again.
 	 * 
+	 * @param resendInterval
+	 *        The resend interval in milliseconds, greater than zero.
 	 */
-	protected static class DatagramInputStream extends InputStream
-	{
-
-		private final DatagramSocket socket;
-		private final byte[] data;
-		private final int length;
-		private int index = 0;
-		private int mark = -1;
-		private int max = 0;
-
-		/**
-		 * Instantiates a new DatagramInputStream.
-		 * 
-		 * @param packet
-		 *        The packet received by the request.
-		 * @param socket
-		 *        The socket connected to the magical cloud.
-		 */
-		public DatagramInputStream( byte[] packet, int offset, int length, DatagramSocket socket )
+	public void setResendInterval( int resendInterval )
+	{
+		if (resendInterval <= 0)
 		{
-			this.data = packet;
-			this.length = length;
-			this.index = offset;
-			this.socket = socket;
+			throw new IllegalArgumentException( "The resend interval must be positive" );
 		}
 
-		public int read() throws IOException
+		this.resendInterval = resendInterval;
+	}
+
+	/**
+	 * Returns the number of consecutive resends without receiving anything
+	 * before a request fails.
+	 * 
+	 * @return The maximum number of resends.
+	 */
+	public int getMaxResends()
+	{
+		return maxResends;
+	}
+
+	/**
+	 * Sets the number of consecutive resends without receiving anything before
+	 * a request fails. The maximum time a request waits for the server is
+	 * therefore the resend interval multiplied by one more than this.
+	 * 
+	 * @param maxResends
+	 *        The maximum number of resends, zero or more.
+	 */
+	public void setMaxResends( int maxResends )
+	{
+		if (maxResends < 0)
 		{
-			max--;
-			return (index >= length ? -1 : data[index++]);
+			throw new IllegalArgumentException( "The maximum number of resends can't be negative" );
 		}
 
-		public void close() throws IOException
+		this.maxResends = maxResends;
+	}
+
+	/**
+	 * Returns the most milliseconds a request waits for the whole asset (or
+	 * its metadata), or zero if it waits as long as the server keeps
+	 * responding.
+	 * 
+	 * @return The maximum wait time in milliseconds.
+	 */
+	public int getMaxWait()
+	{
+		return maxWait;
+	}
+
+	/**
+	 * Sets the most milliseconds a request waits for the whole asset (or its
+	 * metadata).
+	 * 
+	 * @param maxWait
+	 *        The maximum wait time in milliseconds, or zero to wait as long as
+	 *        the server keeps responding.
+	 */
+	public void setMaxWait( int maxWait )
+	{
+		if (maxWait < 0)
 		{
-			socket.close();
+			throw new IllegalArgumentException( "The maximum wait time can't be negative" );
 		}
 
-		public int available() throws IOException
+		this.maxWait = maxWait;
+	}
+
+	/**
+	 * Parses the request from the given DatagramPacket.
+	 * 
+	 * @param packet
+	 *        The packet to parse the request from.
+	 * @return The request contained in the packet.
+	 */
+	public static String getRequest( DatagramPacket packet )
+	{
+		int offset = 0;
+
+		if (getOperation( packet ) != 0)
 		{
-			return (length - index);
+			offset = REQUEST_HEADER + getIndexCount( packet ) * 4;
 		}
 
-		public void mark( int readlimit )
+		return new String( packet.getData(), packet.getOffset() + offset, packet.getLength() - offset );
+	}
+
+	/**
+	 * Returns the id of the given operation packet, which the response must
+	 * begin with.
+	 * 
+	 * @param packet
+	 *        The operation packet to parse the id from.
+	 * @return The id of the request.
+	 */
+	public static int getRequestId( DatagramPacket packet )
+	{
+		return ByteBuffer.wrap( packet.getData(), packet.getOffset(), packet.getLength() ).getInt( packet.getOffset() + 2 );
+	}
+
+	/**
+	 * Returns the largest packet the client of the given operation packet can
+	 * receive, never less than {@link #MIN_PACKET}.
+	 * 
+	 * @param packet
+	 *        The operation packet to parse the packet size from.
+	 * @return The maximum packet size of the client, in bytes.
+	 */
+	public static int getPacketSize( DatagramPacket packet )
+	{
+		int packetSize = ByteBuffer.wrap( packet.getData(), packet.getOffset(), packet.getLength() ).getInt( packet.getOffset() + 6 );
+
+		return Math.max( MIN_PACKET, packetSize );
+	}
+
+	/**
+	 * Returns the fragment indices of the given operation packet. Only a resend
+	 * request has indices.
+	 * 
+	 * @param packet
+	 *        The operation packet to parse the indices from.
+	 * @return The fragment indices requested.
+	 */
+	public static int[] getIndices( DatagramPacket packet )
+	{
+		ByteBuffer buffer = ByteBuffer.wrap( packet.getData(), packet.getOffset(), packet.getLength() );
+		int[] indices = new int[getIndexCount( packet )];
+
+		for (int i = 0; i < indices.length; i++)
 		{
-			mark = index;
-			max = readlimit;
+			indices[i] = buffer.getInt( packet.getOffset() + REQUEST_HEADER + i * 4 );
 		}
 
-		public void reset() throws IOException
+		return indices;
+	}
+
+	/**
+	 * Returns the number of fragment indices in the given operation packet,
+	 * checked against the length of the packet before anything is multiplied
+	 * or allocated with it.
+	 */
+	private static int getIndexCount( DatagramPacket packet )
+	{
+		int count = ByteBuffer.wrap( packet.getData(), packet.getOffset(), packet.getLength() ).getInt( packet.getOffset() + 10 );
+
+		if (count < 0 || count > MAX_RESEND_INDICES || count > (packet.getLength() - REQUEST_HEADER) / 4)
 		{
-			if (mark < 0 || max < 0)
-			{
-				throw new IOException();
-			}
-			index = mark;
+			throw new IllegalArgumentException( "The request packet has an invalid number of indices: " + count );
 		}
 
-		public boolean markSupported()
+		return count;
+	}
+
+	/**
+	 * Creates an operation packet.
+	 * 
+	 * @param operation
+	 *        The operation requested.
+	 * @param id
+	 *        The id of the request.
+	 * @param packetSize
+	 *        The largest packet the client can receive.
+	 * @param indices
+	 *        The fragment indices requested, or null if there are none.
+	 * @param indexCount
+	 *        The number of indices to take from the array.
+	 * @param path
+	 *        The absolute path of the asset.
+	 * @return The packet data as a byte array.
+	 */
+	public static byte[] getRequestPacket( byte operation, int id, int packetSize, int[] indices, int indexCount, byte[] path )
+	{
+		ByteBuffer packet = ByteBuffer.allocate( REQUEST_HEADER + indexCount * 4 + path.length );
+
+		packet.put( OP_MARKER );
+		packet.put( operation );
+		packet.putInt( id );
+		packet.putInt( packetSize );
+		packet.putInt( indexCount );
+		for (int i = 0; i < indexCount; i++)
 		{
-			return true;
+			packet.putInt( indices[i] );
 		}
+		packet.put( path );
+
+		return packet.array();
 	}
 
 	/**
-	 * Parses the request from the given DatagramPacket.
+	 * Returns the id of the request the given response packet answers.
 	 * 
 	 * @param packet
-	 *        The packet to parse the request from.
-	 * @return The request contained in the packet.
+	 *        The response packet.
+	 * @return The id of the request, or -1 if the packet is too small.
 	 */
-	public static String getRequest( DatagramPacket packet )
+	public static int getResponseId( DatagramPacket packet )
+	{
+		if (packet.getLength() < 4)
+		{
+			return -1;
+		}
+
+		return ByteBuffer.wrap( packet.getData(), packet.getOffset(), packet.getLength() ).getInt( packet.getOffset() );
+	}
+
+	/**
+	 * Returns the number of fragments an asset is split into.
+	 * 
+	 * @param size
+	 *        The size of the asset in bytes.
+	 * @param packetSize
+	 *        The largest packet the client can receive.
+	 * @return The number of fragments, at least one.
+	 */
+	public static int getFragmentCount( long size, int packetSize )
 	{
-		return new String( packet.getData(), 0, packet.getLength() );
+		int capacity = Math.max( 1, packetSize - FRAGMENT_HEADER );
+
+		return (int)Math.max( 1, (size + capacity - 1) / capacity );
+	}
+
+	/**
+	 * Returns the number of bytes in every fragment except possibly the last.
+	 * The asset is spread evenly over its fragments, so the client can compute
+	 * the offset of any fragment from the size and count alone.
+	 * 
+	 * @param size
+	 *        The size of the asset in bytes.
+	 * @param count
+	 *        The number of fragments.
+	 * @return The number of bytes in a fragment.
+	 */
+	public static int getFragmentSize( long size, int count )
+	{
+		return (int)((size + count - 1) / count);
+	}
+
+	/**
+	 * Writes a fragment of an asset into the given packet buffer.
+	 * 
+	 * @param packet
+	 *        The buffer to write the fragment to.
+	 * @param id
+	 *        The id of the request.
+	 * @param index
+	 *        The index of the fragment.
+	 * @param count
+	 *        The number of fragments, or zero if the asset does not exist.
+	 * @param size
+	 *        The size of the asset in bytes.
+	 * @param data
+	 *        The bytes of the asset.
+	 * @param offset
+	 *        The offset of the fragment in the asset.
+	 * @param length
+	 *        The number of bytes in the fragment.
+	 * @return The number of bytes written to the packet buffer.
+	 */
+	public static int putFragment( byte[] packet, int id, int index, int count, long size, byte[] data, int offset, int length )
+	{
+		ByteBuffer buffer = ByteBuffer.wrap( packet );
+
+		buffer.putInt( id );
+		buffer.putInt( index );
+		buffer.putInt( count );
+		buffer.putLong( size );
+		if (length > 0)
+		{
+			buffer.put( data, offset, length );
+		}
+
+		return buffer.position();
+	}
+
+	/**
+	 * Returns the operation of the given request packet.
+	 * 
+	 * @param packet
+	 *        The packet to parse the operation from.
+	 * @return The operation of the packet, or 0 if the packet is a request for
+	 *         an asset (or too short to hold the header of an operation).
+	 */
+	public static byte getOperation( DatagramPacket packet )
+	{
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+
+		return (packet.getLength() >= REQUEST_HEADER && data[offset] == OP_MARKER ? data[offset + 1] : 0);
+	}
+
+	/**
+	 * Creates a packet for responding to a metadata request.
+	 * 
+	 * @param id
+	 *        The id of the metadata request.
+	 * @param metadata
+	 *        The metadata of the requested asset.
+	 * @return The packet data as a byte array.
+	 * @throws IOException
+	 *         An error occurred writing the metadata.
+	 */
+	public static byte[] getMetadataPacket( int id, AssetMetadata metadata ) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream( bytes );
+		String tag = metadata.getTag();
+
+		output.writeInt( id );
+		output.writeBoolean( metadata.isPresent() );
+		output.writeLong( metadata.getLength() );
+		output.writeLong( metadata.getLastModified() );
+		if (tag != null)
+		{
+			output.write( tag.getBytes( "UTF-8" ) );
+		}
+		output.flush();
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Parses the metadata from the given response packet.
+	 * 
+	 * @param packet
+	 *        The packet to parse the metadata from.
+	 * @return The metadata contained in the packet.
+	 * @throws IOException
+	 *         The packet did not contain metadata.
+	 */
+	public static AssetMetadata getMetadata( DatagramPacket packet ) throws IOException
+	{
+		DataInputStream input = new DataInputStream( new ByteArrayInputStream( packet.getData(), packet.getOffset(), packet.getLength() ) );
+
+		input.readInt();
+		boolean present = input.readBoolean();
+		long length = input.readLong();
+		long lastModified = input.readLong();
+		int tagLength = packet.getLength() - 21;
+		String tag = (tagLength > 0 ? new String( packet.getData(), packet.getOffset() + 21, tagLength, "UTF-8" ) : null);
+
+		return (present ? new AssetMetadata( length, lastModified, tag ) : AssetMetadata.NOT_PRESENT);
 	}
 
 }
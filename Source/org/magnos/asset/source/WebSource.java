@@ -16,15 +16,41 @@
 
 package org.magnos.asset.source;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.base.BaseAssetSource;
+import org.magnos.asset.base.ByteCache;
+import org.magnos.asset.base.SizedInputStream;
 
 
 /**
  * A source that reads assets from a web URL (currently only HTTP tested).
+ * <p>
+ * Requests are made with connect and read timeouts and accept gzip and
+ * deflate encoded responses, which are decoded transparently. Connections are
+ * kept alive and reused by the HTTP client of the JVM as long as each
+ * response is read fully or closed, error responses included.
+ * </p>
+ * <p>
+ * Assets returned with an ETag or Last-Modified header are kept in a cache
+ * along with those validators, and the next request for the asset is made
+ * conditional. When the server answers that the asset has not been modified
+ * the cached bytes are returned without transferring the asset again.
+ * </p>
  * 
  * TODO test HTTPS
  * 
@@ -41,6 +67,27 @@ public class WebSource extends BaseAssetSource
 	// meaning all requests given must be a full path.
 	public static final String DEFAULT_BASE = "";
 
+	// The default number of milliseconds to wait for a connection.
+	public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+	// The default number of milliseconds to wait for data once connected.
+	public static final int DEFAULT_READ_TIMEOUT = 30000;
+
+	// The default size in bytes of the largest asset cached for revalidation.
+	public static final int DEFAULT_MAX_CACHED = 1024 * 1024;
+
+	// The encodings requested from the server.
+	public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+	private final ByteCache cache = new ByteCache( ByteCache.DEFAULT_CAPACITY, 0 );
+	private final ConcurrentHashMap<String, Validator> validators = new ConcurrentHashMap<String, Validator>();
+	private final AtomicLong revalidated = new AtomicLong();
+	private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile int maxCached = DEFAULT_MAX_CACHED;
+	private volatile boolean compressed = true;
+	private volatile boolean revalidating = true;
+
 	/**
 	 * Instantiates a new WebSource with the default base.
 	 */
@@ -65,7 +112,471 @@ public class WebSource extends BaseAssetSource
 	@Override
 	public InputStream getStream( String request ) throws Exception
 	{
-		return new URL( getAbsolute( request ) ).openStream();
+		String absolute = getAbsolute( request );
+		URLConnection connection = openConnection( absolute );
+
+		byte[] cached = null;
+
+		if (connection instanceof HttpURLConnection)
+		{
+			HttpURLConnection http = (HttpURLConnection)connection;
+			Validator validator = (revalidating ? validators.get( absolute ) : null);
+
+			if (validator != null && (cached = cache.get( absolute )) != null)
+			{
+				if (validator.etag != null)
+				{
+					http.setRequestProperty( "If-None-Match", validator.etag );
+				}
+				if (validator.lastModified != null)
+				{
+					http.setRequestProperty( "If-Modified-Since", validator.lastModified );
+				}
+			}
+
+			int code = http.getResponseCode();
+
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null)
+			{
+				discard( http );
+				revalidated.incrementAndGet();
+
+				return new SizedInputStream( new ByteArrayInputStream( cached ), cached.length );
+			}
+			if (code >= HttpURLConnection.HTTP_BAD_REQUEST)
+			{
+				discard( http );
+				validators.remove( absolute );
+				cache.remove( absolute );
+
+				if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE)
+				{
+					throw new FileNotFoundException( absolute );
+				}
+
+				throw new IOException( "GET " + absolute + " returned " + code );
+			}
+		}
+
+		InputStream input = connection.getInputStream();
+		String encoding = connection.getContentEncoding();
+		long size = getContentLength( connection );
+
+		if (encoding != null && !encoding.equalsIgnoreCase( "identity" ))
+		{
+			input = decode( input, encoding );
+			size = -1;
+		}
+
+		String etag = connection.getHeaderField( "ETag" );
+		String lastModified = connection.getHeaderField( "Last-Modified" );
+
+		if (revalidating && (etag != null || lastModified != null) && size <= maxCached)
+		{
+			input = new CachingInputStream( input, absolute, new Validator( etag, lastModified ), size );
+		}
+
+		return new SizedInputStream( input, size );
+	}
+
+	/**
+	 * Returns the metadata of the request with an HTTP HEAD request, the
+	 * asset itself is not transferred. If the server does not allow HEAD
+	 * requests the asset is requested instead.
+	 */
+	@Override
+	public AssetMetadata getMetadata( String request ) throws Exception
+	{
+		String url = getAbsolute( request );
+		HttpURLConnection connection = (HttpURLConnection)openConnection( url );
+		connection.setRequestMethod( "HEAD" );
+
+		int code = connection.getResponseCode();
+		discard( connection );
+
+		if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE)
+		{
+			return AssetMetadata.NOT_PRESENT;
+		}
+		if (code == HttpURLConnection.HTTP_BAD_METHOD)
+		{
+			return super.getMetadata( request );
+		}
+		if (code != HttpURLConnection.HTTP_OK)
+		{
+			throw new IOException( "HEAD " + url + " returned " + code );
+		}
+
+		return new AssetMetadata( getContentLength( connection ), connection.getLastModified(), connection.getHeaderField( "ETag" ) );
+	}
+
+	/**
+	 * Opens a connection to the given URL with the timeouts and encodings of
+	 * this source.
+	 * 
+	 * @param url
+	 *        The absolute URL to connect to.
+	 * @return The unconnected connection.
+	 * @throws IOException
+	 *         The URL could not be opened.
+	 */
+	protected URLConnection openConnection( String url ) throws IOException
+	{
+		URLConnection connection = new URL( url ).openConnection();
+		connection.setConnectTimeout( connectTimeout );
+		connection.setReadTimeout( readTimeout );
+
+		if (compressed)
+		{
+			connection.setRequestProperty( "Accept-Encoding", ACCEPT_ENCODING );
+		}
+
+		return connection;
+	}
+
+	/**
+	 * Reads and closes whatever body the given connection has so the
+	 * underlying connection can be kept alive and reused for later requests.
+	 * 
+	 * @param connection
+	 *        The connection to discard.
+	 */
+	private void discard( HttpURLConnection connection )
+	{
+		InputStream body = connection.getErrorStream();
+
+		try
+		{
+			if (body == null && connection.getResponseCode() < HttpURLConnection.HTTP_BAD_REQUEST)
+			{
+				body = connection.getInputStream();
+			}
+			if (body != null)
+			{
+				byte[] chunk = new byte[4096];
+				while (body.read( chunk ) != -1) 
+				{
+					// discard
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			// the connection won't be reused
+		}
+		finally
+		{
+			if (body != null)
+			{
+				try
+				{
+					body.close();
+				}
+				catch (IOException e)
+				{
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a stream which decodes the given stream of the given
+	 * Content-Encoding.
+	 * 
+	 * @param input
+	 *        The encoded stream.
+	 * @param encoding
+	 *        The Content-Encoding of the stream.
+	 * @return The decoded stream.
+	 * @throws IOException
+	 *         The encoding is not supported or the stream is corrupt.
+	 */
+	public static InputStream decode( InputStream input, String encoding ) throws IOException
+	{
+		String lower = encoding.trim().toLowerCase();
+
+		if (lower.equals( "gzip" ) || lower.equals( "x-gzip" ))
+		{
+			return new GZIPInputStream( input );
+		}
+		if (lower.equals( "deflate" ))
+		{
+			return new InflaterInputStream( input );
+		}
+
+		input.close();
+
+		throw new IOException( "Unsupported Content-Encoding: " + encoding );
+	}
+
+	/**
+	 * Removes every asset cached for revalidation.
+	 */
+	public void clearCache()
+	{
+		validators.clear();
+		cache.clear();
+	}
+
+	/**
+	 * Returns the cache of assets kept for revalidation.
+	 * 
+	 * @return The reference to the cache of this source.
+	 */
+	public ByteCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Returns the number of requests answered from the cache because the
+	 * server reported the asset had not been modified.
+	 * 
+	 * @return The number of revalidated requests.
+	 */
+	public long getRevalidatedCount()
+	{
+		return revalidated.get();
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait for a connection.
+	 * 
+	 * @return The connect timeout in milliseconds.
+	 */
+	public int getConnectTimeout()
+	{
+		return connectTimeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for a connection.
+	 * 
+	 * @param connectTimeout
+	 *        The connect timeout in milliseconds, zero waits indefinitely.
+	 */
+	public void setConnectTimeout( int connectTimeout )
+	{
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Returns the number of milliseconds to wait for data once connected.
+	 * 
+	 * @return The read timeout in milliseconds.
+	 */
+	public int getReadTimeout()
+	{
+		return readTimeout;
+	}
+
+	/**
+	 * Sets the number of milliseconds to wait for data once connected.
+	 * 
+	 * @param readTimeout
+	 *        The read timeout in milliseconds, zero waits indefinitely.
+	 */
+	public void setReadTimeout( int readTimeout )
+	{
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Returns the size in bytes of the largest asset cached for revalidation.
+	 * 
+	 * @return The maximum size of a cached asset.
+	 */
+	public int getMaxCached()
+	{
+		return maxCached;
+	}
+
+	/**
+	 * Sets the size in bytes of the largest asset cached for revalidation.
+	 * 
+	 * @param maxCached
+	 *        The maximum size of a cached asset.
+	 */
+	public void setMaxCached( int maxCached )
+	{
+		this.maxCached = maxCached;
+	}
+
+	/**
+	 * Returns whether compressed responses are requested.
+	 * 
+	 * @return True if gzip and deflate encodings are accepted.
+	 */
+	public boolean isCompressed()
+	{
+		return compressed;
+	}
+
+	/**
+	 * Sets whether compressed responses are requested.
+	 * 
+	 * @param compressed
+	 *        True if gzip and deflate encodings should be accepted.
+	 */
+	public void setCompressed( boolean compressed )
+	{
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Returns whether assets are cached and revalidated with conditional
+	 * requests.
+	 * 
+	 * @return True if conditional requests are made.
+	 */
+	public boolean isRevalidating()
+	{
+		return revalidating;
+	}
+
+	/**
+	 * Sets whether assets are cached and revalidated with conditional
+	 * requests. Disabling revalidation clears the cache.
+	 * 
+	 * @param revalidating
+	 *        True if conditional requests should be made.
+	 */
+	public void setRevalidating( boolean revalidating )
+	{
+		this.revalidating = revalidating;
+
+		if (!revalidating)
+		{
+			clearCache();
+		}
+	}
+
+	/**
+	 * Returns the Content-Length of the given connection as a long since
+	 * assets may be larger than {@link URLConnection#getContentLength()}
+	 * can represent.
+	 * 
+	 * @param connection
+	 *        The connection to get the length of.
+	 * @return The length of the content, or -1 if it's not known.
+	 */
+	public static long getContentLength( URLConnection connection )
+	{
+		String length = connection.getHeaderField( "Content-Length" );
+
+		try
+		{
+			return (length == null ? -1 : Long.parseLong( length.trim() ));
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * The validators a server returned with an asset.
+	 */
+	private static class Validator
+	{
+		public final String etag;
+		public final String lastModified;
+
+		public Validator( String etag, String lastModified )
+		{
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * A stream which keeps a copy of the bytes read through it, and once the
+	 * end of the stream is reached caches the copy along with the validators
+	 * of the asset. If the asset turns out to be larger than the maximum
+	 * cached size or isn't read to the end nothing is cached.
+	 */
+	private class CachingInputStream extends FilterInputStream
+	{
+		private final String url;
+		private final Validator validator;
+		private ByteArrayOutputStream copy;
+
+		public CachingInputStream( InputStream in, String url, Validator validator, long size )
+		{
+			super( in );
+			this.url = url;
+			this.validator = validator;
+			this.copy = new ByteArrayOutputStream( size > 0 ? (int)size : 4096 );
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			int b = in.read();
+
+			if (b == -1)
+			{
+				onEnd();
+			}
+			else if (copy != null)
+			{
+				copy.write( b );
+				onCopied();
+			}
+
+			return b;
+		}
+
+		@Override
+		public int read( byte[] b, int off, int len ) throws IOException
+		{
+			int read = in.read( b, off, len );
+
+			if (read == -1)
+			{
+				onEnd();
+			}
+			else if (copy != null)
+			{
+				copy.write( b, off, read );
+				onCopied();
+			}
+
+			return read;
+		}
+
+		@Override
+		public long skip( long n ) throws IOException
+		{
+			copy = null;
+
+			return in.skip( n );
+		}
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+
+		private void onCopied()
+		{
+			if (copy.size() > maxCached)
+			{
+				copy = null;
+			}
+		}
+
+		private void onEnd()
+		{
+			if (copy != null)
+			{
+				cache.put( url, copy.toByteArray() );
+				validators.put( url, validator );
+				copy = null;
+			}
+		}
 	}
 
 }
@@ -20,13 +20,19 @@ import org.junit.AfterClass;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.magnos.asset.source.TestClasspath;
+import org.magnos.asset.source.TestFailover;
+import org.magnos.asset.source.TestPack;
+import org.magnos.asset.source.TestSharded;
 import org.magnos.asset.source.TestFile;
 import org.magnos.asset.source.TestJarSource;
 import org.magnos.asset.source.TestMulticast;
+import org.magnos.asset.source.TestReplicated;
+import org.magnos.asset.source.TestResourcePool;
 import org.magnos.asset.source.TestSmart;
 import org.magnos.asset.source.TestTcp;
 import org.magnos.asset.source.TestUdp;
 import org.magnos.asset.source.TestWeb;
+import org.magnos.asset.source.db.TestDatabasePool;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses(
@@ -36,6 +42,7 @@ import org.magnos.asset.source.TestWeb;
 //	TestMySQL.class, // you need to have a MySQL server setup
 //	TestOracle.class, // you need to have an Oracle server setup
 //	TestPostgreSQL.class, // you need to have a PostgreSQL server setup
+	TestDatabasePool.class,
 	TestClasspath.class,
 	TestFile.class,
 //	TestFtp.class, // you need to have an FTP server setup
@@ -46,9 +53,15 @@ import org.magnos.asset.source.TestWeb;
 	TestUdp.class,
 	TestWeb.class,
 	TestSmart.class,
+	TestReplicated.class,
+	TestFailover.class,
+	TestSharded.class,
+	TestPack.class,
+	TestResourcePool.class,
 
 	/** CORE **/
 	TestAssets.class,
+	TestContentCache.class,
 	
 	/** FORMATS **/
 	TestAudio.class,
@@ -56,6 +69,7 @@ import org.magnos.asset.source.TestWeb;
 	TestCsv.class,
 	TestDat.class,
 	TestFont.class,
+	TestFormatUtility.class,
 	TestGif.class,
 	TestGzip.class,
 	TestImage.class,
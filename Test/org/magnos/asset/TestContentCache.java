@@ -0,0 +1,212 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.magnos.asset.base.ContentCache;
+import org.magnos.asset.dat.ChunkedBuffer;
+import org.magnos.asset.dat.DatFormat;
+import org.magnos.asset.info.ByteBufferInfo;
+import org.magnos.asset.source.FileSource;
+import org.magnos.asset.text.TextFormat;
+
+/**
+ * Tests the {@link ContentCache} class.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestContentCache 
+{
+
+	private static File directory;
+
+	@BeforeClass
+	public static void onBefore() throws IOException
+	{
+		directory = File.createTempFile( "testcontent", "" );
+		directory.delete();
+		directory.mkdir();
+		
+		write( "first.txt", "Hello World" );
+		write( "second.txt", "Hello World" );
+		write( "other.txt", "Goodbye World" );
+		
+		Assets.addFormat( new TextFormat() );
+		Assets.addFormat( new DatFormat() );
+		Assets.setDefaultSource( new FileSource( directory.getPath() + "/" ) );
+		Assets.setDeduplicating( true );
+	}
+	
+	@AfterClass
+	public static void onAfter()
+	{
+		Assets.unloadAll();
+		Assets.setDeduplicating( false );
+		Assets.reset();
+		
+		for (File file : directory.listFiles())
+		{
+			file.delete();
+		}
+		
+		directory.delete();
+	}
+	
+	@Before
+	public void onReset()
+	{
+		Assets.unloadAll();
+		Assets.getContentCache().clear();
+	}
+	
+	private static void write( String name, String content ) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream( new File( directory, name ) );
+		out.write( content.getBytes() );
+		out.close();
+	}
+	
+	@Test
+	public void testShared()
+	{
+		ContentCache contents = Assets.getContentCache();
+		
+		assertNotNull( contents );
+		assertTrue( Assets.isDeduplicating() );
+		
+		String first = Assets.load( "first.txt" );
+		String second = Assets.load( "second.txt" );
+		String other = Assets.load( "other.txt" );
+		
+		assertEquals( "Hello World", first );
+		assertSame( first, second );
+		assertNotSame( first, other );
+		assertEquals( "Goodbye World", other );
+		assertEquals( 1, contents.getHits() );
+		
+		// the content decoded into another type is shared separately
+		byte[] firstBytes = Assets.load( "first.txt", byte[].class );
+		byte[] secondBytes = Assets.load( "second.txt", byte[].class );
+		
+		assertSame( firstBytes, secondBytes );
+		assertEquals( 11, firstBytes.length );
+	}
+	
+	@Test
+	public void testVerifying()
+	{
+		ContentCache contents = Assets.getContentCache();
+		contents.setVerifying( true );
+		
+		try
+		{
+			String first = Assets.load( "first.txt" );
+			String second = Assets.load( "second.txt" );
+			
+			assertSame( first, second );
+			assertEquals( 0, contents.getCollisions() );
+		}
+		finally
+		{
+			contents.setVerifying( false );
+		}
+	}
+	
+	@Test
+	public void testUnsized() throws Exception
+	{
+		ContentCache contents = Assets.getContentCache();
+		AssetInfo info = Assets.info( "first.txt", "txt", null, null, null );
+		long maxSize = contents.getMaxSize();
+		
+		try
+		{
+			contents.setMaxSize( 4 );
+			
+			Object large = contents.load( new ByteArrayInputStream( "Hello World".getBytes() ), info );
+			
+			assertEquals( "Hello World", large );
+			assertEquals( 0, contents.size() );
+			assertEquals( 0, contents.getMisses() );
+			
+			contents.setMaxSize( 64 );
+			
+			Object small = contents.load( new ByteArrayInputStream( "Hello World".getBytes() ), info );
+			
+			assertEquals( "Hello World", small );
+			assertEquals( 1, contents.size() );
+		}
+		finally
+		{
+			contents.setMaxSize( maxSize );
+		}
+	}
+	
+	@Test
+	public void testBuffers()
+	{
+		ContentCache contents = Assets.getContentCache();
+		
+		// buffers have a position of their own and are never shared
+		ByteBuffer first = Assets.load( "first.txt", "dat", new ByteBufferInfo( ByteBuffer.class ) );
+		ByteBuffer second = Assets.load( "second.txt", "dat", new ByteBufferInfo( ByteBuffer.class ) );
+		
+		assertNotSame( first, second );
+		assertEquals( 'H', first.get() );
+		assertEquals( 0, second.position() );
+		
+		// mapped assets are mapped instead of read and hashed
+		ChunkedBuffer firstMapped = Assets.load( "first.txt", "dat", new ByteBufferInfo( ChunkedBuffer.class, false, true ) );
+		ChunkedBuffer secondMapped = Assets.load( "second.txt", "dat", new ByteBufferInfo( ChunkedBuffer.class, false, true ) );
+		
+		assertNotSame( firstMapped, secondMapped );
+		assertEquals( 11, firstMapped.size() );
+		assertEquals( 0, contents.getHits() );
+		assertEquals( 0, contents.getMisses() );
+	}
+	
+	@Test
+	public void testHash()
+	{
+		byte[] data = "The quick brown fox jumps over the lazy dog".getBytes();
+		byte[] changed = data.clone();
+		changed[changed.length - 1] ^= 1;
+		
+		assertEquals( ContentCache.hash( data, 0, data.length ), ContentCache.hash( data.clone(), 0, data.length ) );
+		assertFalse( ContentCache.hash( data, 0, data.length ) == ContentCache.hash( changed, 0, changed.length ) );
+		assertFalse( ContentCache.hash( data, 0, 8 ) == ContentCache.hash( data, 0, 9 ) );
+		assertFalse( ContentCache.hash( data, 0, 0 ) == ContentCache.hash( new byte[1], 0, 1 ) );
+	}
+	
+}
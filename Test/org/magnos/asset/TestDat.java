@@ -18,16 +18,24 @@ package org.magnos.asset;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.magnos.asset.dat.ChunkedBuffer;
 import org.magnos.asset.dat.DatFormat;
+import org.magnos.asset.info.ByteBufferInfo;
 import org.magnos.asset.source.ClasspathSource;
+import org.magnos.asset.source.FileSource;
 
 /**
  * Tests the {@link DatFormat} class.
@@ -43,6 +51,7 @@ public class TestDat
 	{
 		Assets.addFormat( new DatFormat() );
 		Assets.setDefaultSource( new ClasspathSource() );
+		Assets.addSource( "file", new FileSource() );
 	}
 	
 	@AfterClass
@@ -84,4 +93,100 @@ public class TestDat
 		assertEquals( 4, in.read() );
 	}
 	
+	@Test
+	public void testMappedByteBuffer()
+	{
+		ByteBuffer buffer = Assets.loadFrom("Test/info.dat", "file", new ByteBufferInfo( ByteBuffer.class, false, true ));
+		
+		assertNotNull( buffer );
+		assertTrue( buffer.isReadOnly() );
+		assertTrue( buffer.isDirect() );
+		assertEquals( 5, buffer.remaining() );
+		assertEquals( 0, buffer.get(0) );
+		assertEquals( 4, buffer.get(4) );
+	}
+	
+	@Test
+	public void testShortArray()
+	{
+		short[] data = Assets.loadFrom("Test/info.dat", "file", short[].class);
+		
+		assertNotNull( data );
+		assertEquals( 2, data.length );
+		assertEquals( 0x0001, data[0] );
+		assertEquals( 0x0203, data[1] );
+	}
+	
+	@Test
+	public void testLittleEndianShortArray()
+	{
+		short[] data = Assets.load("info.dat", new ByteBufferInfo( short[].class, ByteOrder.LITTLE_ENDIAN ));
+		
+		assertNotNull( data );
+		assertEquals( 2, data.length );
+		assertEquals( 0x0100, data[0] );
+		assertEquals( 0x0302, data[1] );
+	}
+	
+	@Test
+	public void testChunkedBuffer()
+	{
+		ChunkedBuffer buffer = Assets.load("info.dat", ChunkedBuffer.class);
+		
+		assertNotNull( buffer );
+		assertEquals( 5, buffer.size() );
+		assertEquals( 1, buffer.getSegmentCount() );
+		assertEquals( 0, buffer.get(0) );
+		assertEquals( 4, buffer.get(4) );
+		assertEquals( 0x00010203, buffer.getInt(0) );
+	}
+	
+	@Test
+	public void testMappedChunkedBuffer()
+	{
+		ChunkedBuffer buffer = Assets.loadFrom("Test/info.dat", "file", new ByteBufferInfo( ChunkedBuffer.class, false, true, ByteOrder.LITTLE_ENDIAN ));
+		
+		assertNotNull( buffer );
+		assertEquals( 5, buffer.size() );
+		assertTrue( buffer.getSegment(0).isDirect() );
+		assertEquals( 0x04030201, buffer.getInt(1) );
+	}
+	
+	@Test
+	public void testChunkedBufferSegments() throws IOException
+	{
+		byte[] data = new byte[20];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte)i;
+		}
+		
+		ChunkedBuffer buffer = ChunkedBuffer.read( new ByteArrayInputStream( data ), -1, 8, true );
+		
+		assertEquals( 20, buffer.size() );
+		assertEquals( 8, buffer.getSegmentSize() );
+		assertEquals( 3, buffer.getSegmentCount() );
+		assertEquals( 19, buffer.get(19) );
+		assertEquals( 0x06070809, buffer.getInt(6) );
+		assertEquals( 0x08090A0B0C0D0E0FL, buffer.getLong(8) );
+		
+		IntBuffer[] ints = buffer.asIntBuffers();
+		assertEquals( 3, ints.length );
+		assertEquals( 0x0C0D0E0F, ints[1].get(1) );
+		assertEquals( 0x10111213, ints[2].get(0) );
+		
+		byte[] copy = new byte[20];
+		InputStream in = buffer.getInputStream();
+		assertEquals( 20, in.read( copy ) );
+		assertEquals( -1, in.read() );
+		for (int i = 0; i < data.length; i++)
+		{
+			assertEquals( data[i], copy[i] );
+		}
+		
+		ChunkedBuffer sized = ChunkedBuffer.read( new ByteArrayInputStream( data ), 12, 8, false );
+		assertEquals( 20, sized.size() );
+		assertEquals( 0x0C0D0E0F, sized.getInt(12) );
+	}
+	
 }
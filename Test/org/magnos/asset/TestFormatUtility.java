@@ -0,0 +1,140 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+import org.magnos.asset.base.SizedInputStream;
+import org.magnos.asset.io.BufferPool;
+
+/**
+ * Tests the {@link FormatUtility} class.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestFormatUtility 
+{
+
+	private static byte[] getData( int length )
+	{
+		byte[] data = new byte[length];
+		
+		for (int i = 0; i < length; i++)
+		{
+			data[i] = (byte)(i * 31);
+		}
+		
+		return data;
+	}
+	
+	@Test
+	public void testBytesUnknownSize() throws IOException
+	{
+		byte[] data = getData( FormatUtility.CHUNK_SIZE * 3 + 7 );
+		
+		assertArrayEquals( data, FormatUtility.getBytes( new ByteArrayInputStream( data ) ) );
+		assertArrayEquals( new byte[0], FormatUtility.getBytes( new ByteArrayInputStream( new byte[0] ) ) );
+	}
+	
+	@Test
+	public void testBytesExactChunks() throws IOException
+	{
+		byte[] data = getData( FormatUtility.CHUNK_SIZE * 2 );
+		
+		assertArrayEquals( data, FormatUtility.getBytes( new ByteArrayInputStream( data ) ) );
+	}
+	
+	@Test
+	public void testBytesSized() throws IOException
+	{
+		byte[] data = getData( 5000 );
+		InputStream input = new SizedInputStream( new ByteArrayInputStream( data ), data.length );
+		
+		assertArrayEquals( data, FormatUtility.getBytes( input ) );
+	}
+	
+	@Test
+	public void testBytesWrongSize() throws IOException
+	{
+		byte[] data = getData( 5000 );
+		
+		assertArrayEquals( data, FormatUtility.getBytes( new ByteArrayInputStream( data ), 100 ) );
+		assertArrayEquals( data, FormatUtility.getBytes( new ByteArrayInputStream( data ), 9000 ) );
+		assertArrayEquals( data, FormatUtility.getBytes( new ByteArrayInputStream( data ), 0 ) );
+	}
+	
+	@Test
+	public void testOutput() throws IOException
+	{
+		byte[] data = getData( 40000 );
+		
+		assertArrayEquals( data, FormatUtility.getOutput( new ByteArrayInputStream( data ) ).toByteArray() );
+		assertArrayEquals( data, FormatUtility.getOutput( new ByteArrayInputStream( data ), 40000 ).toByteArray() );
+		assertArrayEquals( data, FormatUtility.getOutput( new ByteArrayInputStream( data ), 12 ).toByteArray() );
+	}
+	
+	@Test
+	public void testCopy() throws IOException
+	{
+		byte[] data = getData( 40000 );
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		
+		assertEquals( 40000L, FormatUtility.copy( new ByteArrayInputStream( data ), output ) );
+		assertArrayEquals( data, output.toByteArray() );
+		
+		output.reset();
+		FormatUtility.copy( new ByteArrayInputStream( data ), output, 100 );
+		assertEquals( 100, output.size() );
+	}
+	
+	@Test(expected = EOFException.class)
+	public void testCopyShort() throws IOException
+	{
+		FormatUtility.copy( new ByteArrayInputStream( getData( 10 ) ), new ByteArrayOutputStream(), 11 );
+	}
+	
+	@Test
+	public void testBufferPool()
+	{
+		BufferPool pool = new BufferPool( 16, 1 );
+		
+		byte[] a = pool.acquire();
+		byte[] b = pool.acquire();
+		
+		assertEquals( 16, a.length );
+		assertEquals( 0, pool.size() );
+		
+		pool.release( a );
+		pool.release( b );
+		pool.release( new byte[8] );
+		
+		assertEquals( 1, pool.size() );
+		assertEquals( a, pool.acquire() );
+		assertEquals( 0, pool.size() );
+	}
+	
+}
@@ -0,0 +1,92 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A check run from several threads at once, used to test sources which
+ * serve concurrent requests.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+abstract class ConcurrentCheck 
+{
+
+	/**
+	 * Makes and checks a single request.
+	 * 
+	 * @param iteration
+	 *        The number of checks the running thread has made so far.
+	 * @return True if the check passed.
+	 * @throws Exception
+	 *         An error occurred making the request.
+	 */
+	public abstract boolean check( int iteration ) throws Exception;
+
+	/**
+	 * Runs the check the given number of times on each of the given number of
+	 * threads and waits for every thread to finish.
+	 * 
+	 * @param threadCount
+	 *        The number of threads to run the check on.
+	 * @param iterations
+	 *        The number of times each thread runs the check.
+	 * @return The number of checks which passed.
+	 * @throws InterruptedException
+	 *         The current thread was interrupted while waiting.
+	 */
+	public int run( int threadCount, final int iterations ) throws InterruptedException
+	{
+		final AtomicInteger passed = new AtomicInteger();
+		Thread[] threads = new Thread[threadCount];
+		
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						for (int k = 0; k < iterations; k++)
+						{
+							if (check( k ))
+							{
+								passed.incrementAndGet();
+							}
+						}
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+		
+		return passed.get();
+	}
+	
+}
@@ -0,0 +1,266 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal FTP server for tests which serves the files of a directory in
+ * passive mode, and counts the logins and transfers made against it. It
+ * understands USER, PASS, TYPE, PASV, RETR, SIZE, MDTM, NLST, NOOP and QUIT.
+ * While aborting, a file transfer stops halfway and is answered with a 426
+ * followed by a 226 like some servers do.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class LocalFtpServer implements Runnable
+{
+
+	public final AtomicInteger logins = new AtomicInteger();
+	public final AtomicInteger transfers = new AtomicInteger();
+	public volatile boolean aborting;
+	
+	private final File root;
+	private final ServerSocket server;
+	
+	public LocalFtpServer( File root ) throws IOException
+	{
+		this.root = root;
+		this.server = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+		
+		Thread thread = new Thread( this );
+		thread.setDaemon( true );
+		thread.start();
+	}
+	
+	public int getPort()
+	{
+		return server.getLocalPort();
+	}
+	
+	public void close() throws IOException
+	{
+		server.close();
+	}
+	
+	public void run()
+	{
+		try
+		{
+			for (;;)
+			{
+				final Socket client = server.accept();
+				
+				Thread thread = new Thread()
+				{
+					public void run()
+					{
+						try
+						{
+							serve( client );
+						}
+						catch (IOException e)
+						{
+							// client gone
+						}
+						finally
+						{
+							try
+							{
+								client.close();
+							}
+							catch (IOException e)
+							{
+								// ignore
+							}
+						}
+					}
+				};
+				thread.setDaemon( true );
+				thread.start();
+			}
+		}
+		catch (IOException e)
+		{
+			// closed
+		}
+	}
+	
+	private void serve( Socket client ) throws IOException
+	{
+		BufferedReader in = new BufferedReader( new InputStreamReader( client.getInputStream(), "UTF-8" ) );
+		OutputStream out = client.getOutputStream();
+		ServerSocket passive = null;
+		boolean loggedIn = false;
+		
+		reply( out, "220-Welcome\r\n220 Ready" );
+		
+		String line;
+		while ((line = in.readLine()) != null)
+		{
+			int space = line.indexOf( ' ' );
+			String command = (space == -1 ? line : line.substring( 0, space )).toUpperCase();
+			String argument = (space == -1 ? "" : line.substring( space + 1 ));
+			File file = new File( root, argument );
+			
+			if (command.equals( "USER" ))
+			{
+				reply( out, "331 Password required" );
+			}
+			else if (command.equals( "PASS" ))
+			{
+				loggedIn = true;
+				logins.incrementAndGet();
+				reply( out, "230 Logged in" );
+			}
+			else if (!loggedIn)
+			{
+				reply( out, "530 Not logged in" );
+			}
+			else if (command.equals( "TYPE" ) || command.equals( "NOOP" ))
+			{
+				reply( out, "200 OK" );
+			}
+			else if (command.equals( "PASV" ))
+			{
+				if (passive != null)
+				{
+					passive.close();
+				}
+				passive = new ServerSocket( 0, 1, client.getLocalAddress() );
+				int port = passive.getLocalPort();
+				reply( out, "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xFF) + ")" );
+			}
+			else if (command.equals( "SIZE" ))
+			{
+				reply( out, file.isFile() ? "213 " + file.length() : "550 No such file" );
+			}
+			else if (command.equals( "MDTM" ))
+			{
+				SimpleDateFormat format = new SimpleDateFormat( "yyyyMMddHHmmss" );
+				format.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+				reply( out, file.isFile() ? "213 " + format.format( new Date( file.lastModified() ) ) : "550 No such file" );
+			}
+			else if (command.equals( "RETR" ) || command.equals( "NLST" ))
+			{
+				boolean list = command.equals( "NLST" );
+				if (passive == null)
+				{
+					reply( out, "425 Use PASV first" );
+				}
+				else if (list ? !file.isDirectory() : !file.isFile())
+				{
+					passive.close();
+					passive = null;
+					reply( out, "550 No such file" );
+				}
+				else
+				{
+					reply( out, list ? "150 Listing" : "150 Opening BINARY connection for " + argument + " (" + file.length() + " bytes)" );
+					Socket data = passive.accept();
+					passive.close();
+					passive = null;
+					boolean complete = true;
+					try
+					{
+						OutputStream dataOut = data.getOutputStream();
+						if (list)
+						{
+							for (String name : file.list())
+							{
+								dataOut.write( (name + "\r\n").getBytes( "UTF-8" ) );
+							}
+						}
+						else
+						{
+							transfers.incrementAndGet();
+							InputStream input = new FileInputStream( file );
+							byte[] buffer = new byte[4096];
+							long limit = (aborting ? file.length() / 2 : file.length());
+							long sent = 0;
+							int read;
+							try
+							{
+								while (sent < limit && (read = input.read( buffer, 0, (int)Math.min( buffer.length, limit - sent ) )) != -1)
+								{
+									dataOut.write( buffer, 0, read );
+									sent += read;
+								}
+								complete = (sent == file.length());
+							}
+							finally
+							{
+								input.close();
+							}
+						}
+					}
+					catch (IOException e)
+					{
+						complete = false;
+					}
+					finally
+					{
+						data.close();
+					}
+					if (!complete)
+					{
+						reply( out, "426 Connection closed; transfer aborted" );
+					}
+					if (complete || aborting)
+					{
+						reply( out, "226 Transfer complete" );
+					}
+				}
+			}
+			else if (command.equals( "QUIT" ))
+			{
+				reply( out, "221 Bye" );
+				break;
+			}
+			else
+			{
+				reply( out, "502 Not implemented" );
+			}
+		}
+		
+		if (passive != null)
+		{
+			passive.close();
+		}
+	}
+	
+	private void reply( OutputStream out, String reply ) throws IOException
+	{
+		out.write( (reply + "\r\n").getBytes( "UTF-8" ) );
+		out.flush();
+	}
+	
+}
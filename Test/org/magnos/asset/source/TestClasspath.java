@@ -17,14 +17,27 @@
 package org.magnos.asset.source;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
 import org.magnos.asset.image.ImageFormat;
 
 /**
@@ -60,4 +73,105 @@ public class TestClasspath
 		assertEquals( 214, img.getHeight() );
 	}
 	
+	@Test
+	public void testPresent() throws Exception
+	{
+		ClasspathSource source = new ClasspathSource();
+		
+		assertTrue( source.isPresent("troll.jpg") );
+		assertFalse( source.isPresent("missing.jpg") );
+		assertEquals( 5, source.getMetadata("info.dat").getLength() );
+	}
+	
+	@Test
+	public void testIndexed() throws Exception
+	{
+		ClasspathSource source = new ClasspathSource( null, null, true );
+		
+		assertTrue( source.isPresent("troll.jpg") );
+		assertFalse( source.isPresent("missing.jpg") );
+		assertEquals( 5, source.getMetadata("info.dat").getLength() );
+		assertEquals( 5, FormatUtility.getBytes( source.getStream("info.dat") ).length );
+		assertNull( source.getStream("missing.jpg") );
+		assertTrue( source.isPresent("org/magnos/asset/Assets.class") );
+		
+		assertTrue( source.getIndexedCount() > 6 );
+		
+		URLClassLoader jars = new URLClassLoader( new URL[] { new File("Test/testing.jar").toURI().toURL() }, null );
+		source.setLoader( jars );
+		
+		assertTrue( source.isPresent("dance.gif") );
+		assertEquals( 4952, source.getMetadata("dance.gif").getLength() );
+		assertEquals( 4952, FormatUtility.getBytes( source.getStream("dance.gif") ).length );
+		assertFalse( source.isPresent("troll.jpg") );
+		assertEquals( 6, source.getIndexedCount() );
+	}
+	
+	@Test
+	public void testManifestClassPath() throws Exception
+	{
+		File directory = File.createTempFile( "testclasspath", "" );
+		directory.delete();
+		directory.mkdir();
+		
+		File outer = new File( directory, "outer.jar" );
+		File inner = new File( directory, "inner.jar" );
+		
+		try
+		{
+			writeJar( outer, "inner.jar", "outer.txt" );
+			writeJar( inner, null, "inner.txt" );
+			
+			ClasspathSource source = new ClasspathSource( null, new URLClassLoader( new URL[] { outer.toURI().toURL() }, null ), true );
+			
+			assertTrue( source.isPresent("outer.txt") );
+			assertTrue( source.isPresent("inner.txt") );
+			assertTrue( source.isPresent("META-INF/MANIFEST.MF") );
+			assertEquals( 3, source.getIndexedCount() );
+		}
+		finally
+		{
+			outer.delete();
+			inner.delete();
+			directory.delete();
+		}
+	}
+	
+	@Test
+	public void testCustomLoader() throws Exception
+	{
+		final URL found = new File("Test/info.dat").toURI().toURL();
+		
+		ClassLoader custom = new ClassLoader( null )
+		{
+			protected URL findResource( String name )
+			{
+				return (name.equals( "custom.dat" ) ? found : null);
+			}
+		};
+		
+		ClasspathSource source = new ClasspathSource( null, custom, true );
+		
+		assertEquals( 0, source.getIndexedCount() );
+		assertTrue( source.isPresent("custom.dat") );
+		assertFalse( source.isPresent("missing.dat") );
+	}
+	
+	private static void writeJar( File file, String classPath, String entry ) throws IOException
+	{
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+		
+		if (classPath != null)
+		{
+			manifest.getMainAttributes().put( Attributes.Name.CLASS_PATH, classPath );
+		}
+		
+		JarOutputStream out = new JarOutputStream( new FileOutputStream( file ), manifest );
+		out.putNextEntry( new JarEntry( entry ) );
+		out.write( entry.getBytes() );
+		out.closeEntry();
+		out.close();
+	}
+	
 }
@@ -0,0 +1,149 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.junit.Test;
+import org.magnos.asset.FormatUtility;
+import org.magnos.asset.source.TestReplicated.StallingSource;
+
+/**
+ * Tests the {@link FailoverSource} class.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestFailover 
+{
+
+	@Test
+	public void testBreaker() throws Exception
+	{
+		StallingSource broken = new StallingSource();
+		StallingSource working = new StallingSource();
+		broken.failing = true;
+		
+		FailoverSource source = new FailoverSource( broken, working );
+		CircuitBreaker breaker = source.getBreaker(0);
+		breaker.setMinimumRequests( 4 );
+		breaker.setOpenDuration( 100 );
+		
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals( "Hello World", load( source, "greetings.txt" ) );
+		}
+		
+		assertEquals( 4, broken.requests.get() );
+		assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+		assertEquals( 6, breaker.getRejectedCount() );
+		
+		Thread.sleep( 150 );
+		assertEquals( CircuitBreaker.State.HALF_OPEN, breaker.getState() );
+		assertEquals( "Hello World", load( source, "greetings.txt" ) );
+		assertEquals( 5, broken.requests.get() );
+		assertEquals( CircuitBreaker.State.OPEN, breaker.getState() );
+		assertEquals( 2, breaker.getTripCount() );
+		
+		broken.failing = false;
+		Thread.sleep( 150 );
+		assertEquals( "Hello World", load( source, "greetings.txt" ) );
+		assertEquals( CircuitBreaker.State.CLOSED, breaker.getState() );
+		
+		int served = working.requests.get();
+		assertEquals( "Hello World", load( source, "greetings.txt" ) );
+		assertEquals( 7, broken.requests.get() );
+		assertEquals( served, working.requests.get() );
+	}
+	
+	@Test
+	public void testSlow() throws Exception
+	{
+		StallingSource slow = new StallingSource();
+		StallingSource fast = new StallingSource();
+		slow.delay = 30;
+		
+		FailoverSource source = new FailoverSource( slow, fast );
+		CircuitBreaker breaker = source.getBreaker(0);
+		breaker.setMinimumRequests( 3 );
+		breaker.setSlowThreshold( 10 );
+		
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals( 5, FormatUtility.getBytes( source.getStream("info.dat") ).length );
+		}
+		
+		assertEquals( 3, slow.requests.get() );
+		assertEquals( 7, fast.requests.get() );
+	}
+	
+	@Test
+	public void testMissing() throws Exception
+	{
+		StallingSource cache = new StallingSource();
+		FailoverSource source = new FailoverSource( new FileSource("./Test/missing/"), cache );
+		
+		assertEquals( "Hello World", load( source, "greetings.txt" ) );
+		assertTrue( source.getMetadata("greetings.txt").isPresent() );
+		assertFalse( source.getMetadata("missing.txt").isPresent() );
+		assertEquals( CircuitBreaker.State.CLOSED, source.getBreaker(0).getState() );
+		
+		try
+		{
+			source.getStream("missing.txt");
+			assertTrue( false );
+		}
+		catch (FileNotFoundException e)
+		{
+			// expected
+		}
+	}
+	
+	@Test
+	public void testMissingAndFailed() throws Exception
+	{
+		StallingSource broken = new StallingSource();
+		broken.failing = true;
+		
+		FailoverSource source = new FailoverSource( new FileSource("./Test/missing/"), broken );
+		
+		try
+		{
+			source.getStream("greetings.txt");
+			assertTrue( false );
+		}
+		catch (FileNotFoundException e)
+		{
+			assertTrue( false );
+		}
+		catch (IOException e)
+		{
+			assertEquals( "Replica unavailable", e.getMessage() );
+		}
+	}
+	
+	private String load( FailoverSource source, String request ) throws Exception
+	{
+		return new String( FormatUtility.getBytes( source.getStream( request ) ) );
+	}
+	
+}
@@ -17,15 +17,25 @@
 package org.magnos.asset.source;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.regex.Pattern;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.Assets;
 import org.magnos.asset.image.GifFormat;
+import org.magnos.asset.text.TextFormat;
 
 /**
  * Tests the {@link FileSource} class.
@@ -40,6 +50,7 @@ public class TestFile
 	public static void onBefore() 
 	{
 		Assets.addFormat( new GifFormat() );
+		Assets.addFormat( new TextFormat() );
 		Assets.setDefaultSource( new FileSource() );
 	}
 	
@@ -66,4 +77,140 @@ public class TestFile
 		}
 	}
 	
+	@Test
+	public void testMetadata() throws Exception
+	{
+		FileSource source = new FileSource();
+		
+		AssetMetadata metadata = source.getMetadata("Test/info.dat");
+		
+		assertTrue( metadata.isPresent() );
+		assertEquals( 5, metadata.getLength() );
+		assertTrue( metadata.getLastModified() > 0 );
+		assertNotNull( metadata.getTag() );
+		
+		assertFalse( source.isPresent("Test/missing.dat") );
+	}
+	
+	@Test
+	public void testWatch() throws Exception
+	{
+		File directory = File.createTempFile( "watch", "" );
+		directory.delete();
+		directory.mkdir();
+		
+		File reloaded = new File( directory, "reloaded.txt" );
+		File invalidated = new File( directory, "invalidated.txt" );
+		write( reloaded, "one" );
+		write( invalidated, "one" );
+		
+		FileSource source = new FileSource( directory.getAbsolutePath() + "/" );
+		Assets.addSource( "watched", source );
+		
+		FileWatcher watcher = source.watch();
+		watcher.setInterval( 20 );
+		watcher.setQuietPeriod( 100 );
+		watcher.setReloading( true );
+		
+		try
+		{
+			String original = Assets.loadFrom( "reloaded.txt", "watched" );
+			assertEquals( "one", original );
+			assertEquals( 1, watcher.getWatchedCount() );
+			
+			String[] saves = {"t", "tw", "two", "two!", "two!!"};
+			for (String save : saves)
+			{
+				write( reloaded, save );
+				Thread.sleep( 5 );
+			}
+			
+			waitFor( watcher, 1 );
+			
+			assertEquals( 1, watcher.getReloadedCount() );
+			assertEquals( "two!!", Assets.loadFrom( "reloaded.txt", "watched" ) );
+			assertSame( Assets.getInfo( source.getAbsolute("reloaded.txt") ).get(), Assets.loadFrom( "reloaded.txt", "watched" ) );
+			
+			watcher.setReloading( false );
+			assertEquals( "one", Assets.loadFrom( "invalidated.txt", "watched" ) );
+			write( invalidated, "three" );
+			
+			waitFor( watcher, 2 );
+			
+			assertEquals( 1, watcher.getInvalidatedCount() );
+			assertNull( Assets.getInfo( source.getAbsolute("invalidated.txt") ) );
+			assertEquals( "three", Assets.loadFrom( "invalidated.txt", "watched" ) );
+		}
+		finally
+		{
+			source.unwatch();
+			reloaded.delete();
+			invalidated.delete();
+			directory.delete();
+		}
+	}
+	
+	@Test
+	public void testWatchWrapped() throws Exception
+	{
+		File directory = File.createTempFile( "watch", "" );
+		directory.delete();
+		directory.mkdir();
+		
+		File changed = new File( directory, "changed.txt" );
+		write( changed, "one" );
+		
+		// the asset is cached under the path of the smart source
+		FileSource source = new FileSource( directory.getAbsolutePath() + "/" );
+		SmartSource smart = new SmartSource( false );
+		smart.add( source, Pattern.compile( "^watched:(.*)$" ), 1 );
+		Assets.addSource( "smart", smart );
+		
+		FileWatcher watcher = source.watch();
+		watcher.setInterval( 20 );
+		watcher.setQuietPeriod( 100 );
+		
+		try
+		{
+			assertEquals( "one", Assets.loadFrom( "watched:changed.txt", "smart" ) );
+			assertNotNull( Assets.getInfo( smart.getAbsolute("watched:changed.txt") ) );
+			assertEquals( 1, watcher.getWatchedCount() );
+			
+			write( changed, "three" );
+			
+			waitFor( watcher, 1 );
+			
+			assertEquals( 1, watcher.getInvalidatedCount() );
+			assertEquals( 0, watcher.getWatchedCount() );
+			assertNull( Assets.getInfo( smart.getAbsolute("watched:changed.txt") ) );
+			assertEquals( "three", Assets.loadFrom( "watched:changed.txt", "smart" ) );
+		}
+		finally
+		{
+			source.unwatch();
+			changed.delete();
+			directory.delete();
+		}
+	}
+	
+	private void waitFor( FileWatcher watcher, long changes ) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+		
+		while (watcher.getReloadedCount() + watcher.getInvalidatedCount() < changes && System.currentTimeMillis() < end)
+		{
+			Thread.sleep( 10 );
+		}
+		
+		// give a second reload, if one were to happen, the time to happen
+		Thread.sleep( 200 );
+	}
+	
+	private void write( File file, String text ) throws IOException
+	{
+		FileOutputStream out = new FileOutputStream( file );
+		out.write( text.getBytes() );
+		out.close();
+	}
+	
 }
@@ -16,15 +16,22 @@
 
 package org.magnos.asset.source;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.Font;
+import java.io.File;
+import java.io.InputStream;
+import java.util.Map;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
 import org.magnos.asset.font.FontFormat;
 import org.magnos.asset.font.FontInfo;
 
@@ -39,7 +46,7 @@ public class TestFtp
 {
 
 	@BeforeClass
-	public void onBefore() 
+	public static void onBefore() 
 	{
 		Assets.addFormat( new FontFormat() );
 		Assets.setDefaultSource( new FtpSource("127.0.0.1/", "testuser", "testpassword") );
@@ -61,4 +68,56 @@ public class TestFtp
 		assertEquals( FontInfo.DEFAULT_SIZE, fnt.getSize2D(), 0.00001 );
 	}
 	
+	@Test
+	public void testPooled() throws Exception
+	{
+		LocalFtpServer server = new LocalFtpServer( new File("Test") );
+		
+		try
+		{
+			FtpSource source = new FtpSource( "127.0.0.1:" + server.getPort() + "/", "testuser", "testpassword", 2 );
+			byte[] archive = FormatUtility.getBytes( new ClasspathSource().getStream("archive.zip") );
+			
+			for (int i = 0; i < 10; i++)
+			{
+				assertEquals( "Hello World", new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+				assertArrayEquals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) );
+			}
+			
+			InputStream partial = source.getStream("archive.zip");
+			partial.read( new byte[16] );
+			partial.close();
+			
+			// the aborted transfer's connection is not reused
+			assertEquals( 11, source.getMetadata("greetings.txt").getLength() );
+			assertTrue( source.isPresent("info.dat") );
+			assertFalse( source.isPresent("missing.txt") );
+			assertEquals( 2, server.logins.get() );
+			assertEquals( 21, server.transfers.get() );
+			
+			Map<String, byte[]> files = source.getDirectory("");
+			assertArrayEquals( archive, files.get("archive.zip") );
+			assertEquals( "Hello World", new String( files.get("greetings.txt") ) );
+			assertFalse( files.containsKey("org") );
+			assertTrue( source.list("org/magnos").contains("org/magnos/asset") );
+			assertEquals( 2, server.logins.get() );
+			
+			// a 426 and 226 for one transfer leave no stale reply behind
+			server.aborting = true;
+			assertTrue( FormatUtility.getBytes( source.getStream("archive.zip") ).length < archive.length );
+			server.aborting = false;
+			
+			assertEquals( 11, source.getMetadata("greetings.txt").getLength() );
+			assertEquals( "Hello World", new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+			assertEquals( 3, server.logins.get() );
+			
+			source.close();
+			assertEquals( 0, source.getPool().getIdleCount() );
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+	
 }
@@ -16,17 +16,31 @@
 
 package org.magnos.asset.source;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.magnos.asset.AssetMetadata;
 import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
 import org.magnos.asset.image.GifFormat;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /**
  * Tests the {@link FtpSource} class. This assumes there is an FTP server 
  * running which contains the abaddon.ttf file in its root directory.
@@ -59,4 +73,99 @@ public class TestJarSource
 		assertEquals( 8, img.length );
 	}
 	
+	@Test
+	public void testIndex() throws Exception
+	{
+		JarSource source = JarSource.fromFile("./Test/testing.jar");
+		
+		assertTrue( source.isPresent("dance.gif") );
+		assertFalse( source.isPresent("missing.gif") );
+		assertFalse( source.isPresent("org/magnos/asset/test/") );
+		assertEquals( 6, source.getNames().size() );
+		
+		AssetMetadata metadata = source.getMetadata("dance.gif");
+		assertTrue( metadata.isPresent() );
+		assertEquals( 4952, metadata.getLength() );
+		assertEquals( 4952, FormatUtility.getBytes( source.getStream("dance.gif") ).length );
+		assertFalse( source.getMetadata("missing.gif").isPresent() );
+		
+		source.close();
+		assertTrue( source.isPresent("dance.gif") );
+		source.close();
+	}
+	
+	@Test
+	public void testRemote() throws Exception
+	{
+		final byte[] jar = FormatUtility.getBytes( new FileSource().getStream("./Test/testing.jar") );
+		final AtomicInteger downloads = new AtomicInteger();
+		
+		HttpServer server = HttpServer.create( new InetSocketAddress("127.0.0.1", 0), 0 );
+		server.createContext( "/testing.jar", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				downloads.incrementAndGet();
+				exchange.sendResponseHeaders( 200, jar.length );
+				OutputStream out = exchange.getResponseBody();
+				out.write( jar );
+				out.close();
+			}
+		});
+		server.createContext( "/broken.jar", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				byte[] garbage = "not a jar".getBytes();
+				exchange.sendResponseHeaders( 200, garbage.length );
+				OutputStream out = exchange.getResponseBody();
+				out.write( garbage );
+				out.close();
+			}
+		});
+		server.start();
+		
+		try
+		{
+			int temporary = countDownloads();
+			JarSource broken = JarSource.fromHttp( "127.0.0.1:" + server.getAddress().getPort() + "/broken.jar" );
+			
+			assertFalse( broken.isPresent("dance.gif") );
+			assertEquals( temporary, countDownloads() );
+			
+			JarSource source = JarSource.fromHttp( "127.0.0.1:" + server.getAddress().getPort() + "/testing.jar" );
+			byte[] gif = FormatUtility.getBytes( JarSource.fromFile("./Test/testing.jar").getStream("dance.gif") );
+			
+			for (int i = 0; i < 5; i++)
+			{
+				assertArrayEquals( gif, FormatUtility.getBytes( source.getStream("dance.gif") ) );
+			}
+			
+			assertTrue( source.isPresent("org/magnos/asset/test/NormalClass.class") );
+			assertEquals( 1, downloads.get() );
+			
+			source.close();
+		}
+		finally
+		{
+			server.stop( 0 );
+		}
+	}
+	
+	private static int countDownloads()
+	{
+		String[] names = new File( System.getProperty("java.io.tmpdir") ).list();
+		int count = 0;
+		
+		for (String name : names)
+		{
+			if (name.startsWith("jarsource"))
+			{
+				count++;
+			}
+		}
+		
+		return count;
+	}
+	
 }
@@ -16,8 +16,11 @@
 
 package org.magnos.asset.source;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -27,7 +30,9 @@ import java.util.Properties;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.magnos.asset.AssetSource;
 import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
 import org.magnos.asset.props.PropertyFormat;
 import org.magnos.asset.server.AssetServer;
 import org.magnos.asset.server.multi.MulticastServer;
@@ -80,7 +85,7 @@ public class TestMulticast
 	}
 	
 	@Test
-	public void testMulticast() throws InterruptedException, IOException
+	public void testMulticast() throws Exception
 	{
 		/* SERVER START-UP */
 		AssetServer server = new MulticastServer(SERVER_PORT, SERVER_GROUP, SERVER_PACKET);
@@ -104,9 +109,112 @@ public class TestMulticast
 		assertEquals( "Hello World", message );
 		
 		
+		MulticastSource source = (MulticastSource)Assets.getDefaultSource();
+		testConcurrent( source );
+		
+		source.close();
+		assertEquals( "Hello World", new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+		
+		byte[] archive = FormatUtility.getBytes( new ClasspathSource().getStream("archive.zip") );
+		assertArrayEquals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) );
+		
+		MulticastSource small = new MulticastSource( SERVER_GROUP, SERVER_PORT, "", 256 );
+		assertArrayEquals( archive, FormatUtility.getBytes( small.getStream("archive.zip") ) );
+		small.close();
+		
+		assertTrue( ((MulticastServer)server).getCache().getHits() > 0 );
+		
+		
 		/* SERVER SHUT-DOWN */
 		server.stop();
 		/* SERVER SHUT-DOWN */
 	}
 	
+	@Test
+	public void testSuppression() throws Exception
+	{
+		/* SERVER START-UP */
+		MulticastServer first = new MulticastServer(SERVER_PORT + 2, SERVER_GROUP, SERVER_PACKET);
+		first.setSource(new ClasspathSource());
+		first.setResponseDelay(40);
+		first.start();
+		
+		MulticastServer second = new MulticastServer(SERVER_PORT + 2, SERVER_GROUP, SERVER_PACKET);
+		second.setSource(new ClasspathSource());
+		second.setResponseDelay(40);
+		second.start();
+		/* SERVER START-UP */
+		
+		MulticastSource source = new MulticastSource( SERVER_GROUP, SERVER_PORT + 2 );
+		
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals( "Hello World", new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+			
+			Thread.sleep( first.getSuppressWindow() + 40 );
+		}
+		
+		assertTrue( first.getSuppressedCount() + second.getSuppressedCount() > 0 );
+		
+		source.close();
+		
+		/* SERVER SHUT-DOWN */
+		first.stop();
+		second.stop();
+		/* SERVER SHUT-DOWN */
+	}
+	
+	@Test
+	public void testNoServer() throws Exception
+	{
+		MulticastSource source = new MulticastSource( SERVER_GROUP, SERVER_PORT + 1 );
+		source.setResendInterval( 50 );
+		source.setMaxResends( 2 );
+		
+		try
+		{
+			source.getStream( "greetings.txt" );
+			fail( "The request should fail without a server" );
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+		
+		source.setMaxResends( 100 );
+		source.setMaxWait( 200 );
+		
+		long start = System.currentTimeMillis();
+		
+		try
+		{
+			source.getStream( "greetings.txt" );
+			fail( "The request should fail without a server" );
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+		
+		assertTrue( System.currentTimeMillis() - start < 2000 );
+		
+		source.close();
+	}
+	
+	private void testConcurrent( final AssetSource source ) throws Exception
+	{
+		int loaded = new ConcurrentCheck()
+		{
+			public boolean check( int iteration ) throws Exception
+			{
+				String request = (iteration % 2 == 0 ? "greetings.txt" : "app.properties");
+				String actual = new String( FormatUtility.getBytes( source.getStream( request ) ) );
+				
+				return (iteration % 2 == 0 ? actual.equals( "Hello World" ) : actual.contains( "foo" ));
+			}
+		}.run( 8, 25 );
+		
+		assertEquals( 8 * 25, loaded );
+	}
+	
 }
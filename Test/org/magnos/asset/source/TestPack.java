@@ -0,0 +1,255 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
+import org.magnos.asset.dat.DatFormat;
+import org.magnos.asset.info.ByteBufferInfo;
+
+/**
+ * Tests the {@link PackSource} and {@link PackBuilder} classes.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestPack 
+{
+
+	private static final String[] ASSETS = {"greetings.txt", "app.properties", "archive.zip", "data.csv", "info.dat", "troll.jpg"};
+
+	private static File file;
+	private static PackBuilder builder;
+	private static PackSource source;
+	
+	@BeforeClass
+	public static void onBefore() throws Exception
+	{
+		file = File.createTempFile( "testpack", ".pak" );
+		
+		byte[] repeated = new byte[16384];
+		Arrays.fill( repeated, (byte)'a' );
+		
+		builder = new PackBuilder();
+		builder.setAlignment( 64 );
+		
+		for (String asset : ASSETS)
+		{
+			builder.add( asset, new File( "Test/" + asset ) );
+		}
+		
+		builder.add( "nested/repeated.txt", repeated );
+		builder.write( file );
+		
+		source = PackSource.fromFile( file );
+		
+		Assets.addFormat( new DatFormat() );
+		Assets.addSource( "pack", source );
+	}
+	
+	@AfterClass
+	public static void onAfter()
+	{
+		Assets.reset();
+		source.close();
+		file.delete();
+	}
+	
+	@Test
+	public void testAssets() throws Exception
+	{
+		ClasspathSource classpath = new ClasspathSource();
+		
+		for (String asset : ASSETS)
+		{
+			byte[] expected = FormatUtility.getBytes( classpath.getStream( asset ) );
+			AssetMetadata metadata = source.getMetadata( asset );
+			
+			assertArrayEquals( expected, FormatUtility.getBytes( source.getStream( asset ) ) );
+			assertTrue( metadata.isPresent() );
+			assertEquals( expected.length, metadata.getLength() );
+			assertNotNull( metadata.getTag() );
+		}
+		
+		byte[] repeated = FormatUtility.getBytes( source.getStream( "nested/repeated.txt" ) );
+		assertEquals( 16384, repeated.length );
+		assertEquals( 'a', repeated[16383] );
+		
+		assertEquals( ASSETS.length + 1, source.getNames().size() );
+		assertTrue( source.isPresent( "greetings.txt" ) );
+		assertFalse( source.isPresent( "missing.txt" ) );
+		assertFalse( source.getMetadata( "missing.txt" ).isPresent() );
+		
+		try
+		{
+			source.getStream( "missing.txt" );
+			fail( "A missing asset should not be served" );
+		}
+		catch (FileNotFoundException e)
+		{
+			// expected
+		}
+	}
+	
+	@Test
+	public void testLayout() throws Exception
+	{
+		// small assets and the already compressed zip and jpg are stored as is
+		assertEquals( 1, builder.getCompressedCount() );
+		assertTrue( source.map( "troll.jpg" ).isDirect() );
+		assertTrue( source.map( "archive.zip" ).isDirect() );
+		assertFalse( source.map( "nested/repeated.txt" ).isDirect() );
+		
+		RandomAccessFile raw = new RandomAccessFile( file, "r" );
+		try
+		{
+			assertEquals( PackSource.MAGIC, raw.readInt() );
+			assertEquals( PackSource.VERSION, raw.readInt() );
+			assertEquals( 64, raw.readInt() );
+			
+			int count = raw.readInt();
+			raw.seek( raw.readLong() );
+			
+			String previous = "";
+			
+			for (int i = 0; i < count; i++)
+			{
+				byte[] name = new byte[raw.readUnsignedShort()];
+				raw.readFully( name );
+				raw.readByte();
+				
+				String current = new String( name, "UTF-8" );
+				assertTrue( current.compareTo( previous ) > 0 );
+				assertEquals( 0, raw.readLong() % 64 );
+				
+				raw.skipBytes( 12 );
+				previous = current;
+			}
+		}
+		finally
+		{
+			raw.close();
+		}
+	}
+	
+	@Test
+	public void testMapped() throws Exception
+	{
+		ByteBuffer stored = source.map( "info.dat" );
+		
+		assertTrue( stored.isReadOnly() );
+		assertTrue( stored.isDirect() );
+		assertEquals( 5, stored.remaining() );
+		assertEquals( 4, stored.get( 4 ) );
+		
+		ByteBuffer inflated = source.map( "nested/repeated.txt" );
+		
+		assertTrue( inflated.isReadOnly() );
+		assertEquals( 16384, inflated.remaining() );
+		
+		ByteBuffer loaded = Assets.loadFrom( "info.dat", "pack", new ByteBufferInfo( ByteBuffer.class, false, true ) );
+		
+		assertTrue( loaded.isDirect() );
+		assertEquals( 5, loaded.remaining() );
+	}
+	
+	@Test
+	public void testCorrupt() throws Exception
+	{
+		RandomAccessFile raw = new RandomAccessFile( file, "r" );
+		long index;
+		int name;
+		try
+		{
+			raw.seek( 16 );
+			index = raw.readLong();
+			raw.seek( index );
+			name = raw.readUnsignedShort();
+		}
+		finally
+		{
+			raw.close();
+		}
+		
+		long stored = index + 2 + name + 1 + 8;
+		
+		assertCorrupt( 12, Integer.MAX_VALUE );
+		assertCorrupt( 12, -1 );
+		assertCorrupt( stored, -1 );
+		assertCorrupt( stored + 4, -1 );
+	}
+	
+	private void assertCorrupt( long position, int value ) throws Exception
+	{
+		File corrupt = File.createTempFile( "corruptpack", ".pak" );
+		FileOutputStream out = new FileOutputStream( corrupt );
+		out.write( FormatUtility.getBytes( new FileInputStream( file ) ) );
+		out.close();
+		
+		RandomAccessFile raw = new RandomAccessFile( corrupt, "rw" );
+		raw.seek( position );
+		raw.writeInt( value );
+		raw.close();
+		
+		PackSource pack = PackSource.fromFile( corrupt );
+		try
+		{
+			pack.getNames();
+			fail( "A corrupt pack should not be read" );
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+		finally
+		{
+			pack.close();
+			corrupt.delete();
+		}
+	}
+	
+	@Test
+	public void testSmart() throws Exception
+	{
+		SmartSource smart = new SmartSource();
+		smart.addPack( source );
+		
+		assertEquals( "Hello World", new String( FormatUtility.getBytes( smart.getStream( "pak://greetings.txt" ) ) ) );
+		assertTrue( smart.isPresent( "pak://nested/repeated.txt" ) );
+	}
+	
+}
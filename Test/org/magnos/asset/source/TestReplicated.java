@@ -0,0 +1,211 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.FormatUtility;
+import org.magnos.asset.base.BaseAssetSource;
+
+/**
+ * Tests the {@link ReplicatedSource} class.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestReplicated 
+{
+
+	@Test
+	public void testHedge() throws Exception
+	{
+		StallingSource slow = new StallingSource();
+		StallingSource fast = new StallingSource();
+		slow.delay = 2000;
+		
+		ReplicatedSource source = new ReplicatedSource( slow, fast );
+		source.setInitialHedgeDelay( 50 );
+		
+		long start = System.currentTimeMillis();
+		assertEquals( "Hello World", new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+		assertTrue( System.currentTimeMillis() - start < 1000 );
+		
+		assertEquals( 1, slow.requests.get() );
+		assertEquals( 1, fast.requests.get() );
+		assertEquals( 1, source.getHedgeCount(1) );
+		assertEquals( 1, source.getWinCount(1) );
+		assertEquals( 0, source.getTracker(0).getFailureCount() );
+		assertEquals( 1, source.getTracker(0).getCancelledCount() );
+		assertTrue( source.getTracker(0).getPercentile( 0.95 ) >= 50 );
+		
+		source.setInitialHedgeDelay( 500 );
+		
+		start = System.currentTimeMillis();
+		for (int i = 0; i < 20; i++)
+		{
+			assertEquals( 5, FormatUtility.getBytes( source.getStream("info.dat") ).length );
+		}
+		assertTrue( System.currentTimeMillis() - start < 1000 );
+		assertEquals( 1, slow.requests.get() );
+		assertEquals( 21, fast.requests.get() );
+		assertTrue( source.getTracker(1).getAverage() >= 0 );
+		
+		assertNull( source.getStream("missing.txt") );
+		
+		source.close();
+	}
+	
+	@Test
+	public void testFailover() throws Exception
+	{
+		StallingSource broken = new StallingSource();
+		StallingSource working = new StallingSource();
+		broken.failing = true;
+		
+		ReplicatedSource source = new ReplicatedSource( broken, working );
+		source.setMaxHedges( 0 );
+		
+		for (int i = 0; i < 5; i++)
+		{
+			assertEquals( "Hello World", new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+		}
+		
+		assertEquals( 1, broken.requests.get() );
+		assertEquals( 1, source.getTracker(0).getFailureCount() );
+		assertEquals( 11, source.getMetadata("greetings.txt").getLength() );
+		
+		working.failing = true;
+		
+		try
+		{
+			source.getStream("greetings.txt");
+			assertTrue( false );
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+		
+		source.close();
+	}
+	
+	@Test
+	public void testCancelCloses() throws Exception
+	{
+		final CountDownLatch closed = new CountDownLatch( 1 );
+		
+		StallingSource blocking = new StallingSource()
+		{
+			public InputStream getStream( String request ) throws Exception
+			{
+				requests.incrementAndGet();
+				
+				// A read which only ends when the stream is closed.
+				return new InputStream()
+				{
+					public int read() throws IOException
+					{
+						try
+						{
+							closed.await();
+						}
+						catch (InterruptedException e)
+						{
+							// interrupting doesn't stop a blocking read
+							Thread.interrupted();
+							
+							return read();
+						}
+						
+						throw new IOException( "Stream closed" );
+					}
+					
+					public void close()
+					{
+						closed.countDown();
+					}
+				};
+			}
+		};
+		StallingSource fast = new StallingSource();
+		
+		ReplicatedSource source = new ReplicatedSource( blocking, fast );
+		source.setInitialHedgeDelay( 50 );
+		
+		assertEquals( "Hello World", new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+		assertTrue( closed.await( 1000, TimeUnit.MILLISECONDS ) );
+		assertEquals( 1, source.getTracker(0).getCancelledCount() );
+		assertEquals( 0, source.getTracker(0).getFailureCount() );
+		
+		source.close();
+	}
+	
+	/**
+	 * A replica of the class-path which can be made to stall or fail.
+	 */
+	public static class StallingSource extends BaseAssetSource
+	{
+		public final AtomicInteger requests = new AtomicInteger();
+		public final ClasspathSource classpath = new ClasspathSource();
+		public volatile long delay;
+		public volatile boolean failing;
+		
+		public StallingSource()
+		{
+			super( null, "", "" );
+		}
+
+		@Override
+		public InputStream getStream( String request ) throws Exception
+		{
+			requests.incrementAndGet();
+			
+			if (delay > 0)
+			{
+				Thread.sleep( delay );
+			}
+			if (failing)
+			{
+				throw new IOException( "Replica unavailable" );
+			}
+			
+			return classpath.getStream( request );
+		}
+		
+		@Override
+		public AssetMetadata getMetadata( String request ) throws Exception
+		{
+			if (failing)
+			{
+				throw new IOException( "Replica unavailable" );
+			}
+			
+			return classpath.getMetadata( request );
+		}
+	}
+	
+}
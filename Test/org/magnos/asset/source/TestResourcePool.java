@@ -0,0 +1,172 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ResourcePool} class.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestResourcePool 
+{
+
+	@Test
+	public void testReuse() throws Exception
+	{
+		CountingFactory factory = new CountingFactory();
+		ResourcePool<Resource, IOException> pool = new ResourcePool<Resource, IOException>( factory, 2, 1 );
+		
+		Resource first = pool.acquire();
+		Resource second = pool.acquire();
+		
+		assertEquals( 2, pool.getCreatedCount() );
+		assertEquals( 2, pool.getActiveCount() );
+		
+		pool.setWaitTimeout( 10 );
+		assertNull( pool.acquire() );
+		
+		pool.release( first );
+		pool.release( second );
+		
+		// only one idle resource is kept
+		assertEquals( 1, pool.getIdleCount() );
+		assertEquals( 1, pool.getDestroyedCount() );
+		assertSame( first, pool.acquire() );
+		
+		first.open = false;
+		pool.release( first );
+		
+		assertEquals( 0, pool.getIdleCount() );
+		assertEquals( 2, pool.getDestroyedCount() );
+		assertEquals( 0, pool.getActiveCount() );
+	}
+	
+	@Test
+	public void testValidate() throws Exception
+	{
+		CountingFactory factory = new CountingFactory();
+		ResourcePool<Resource, IOException> pool = new ResourcePool<Resource, IOException>( factory, 2, 2 );
+		
+		Resource resource = pool.acquire();
+		pool.release( resource );
+		
+		assertSame( resource, pool.acquire() );
+		assertEquals( 0, factory.validated.get() );
+		pool.release( resource );
+		
+		pool.setValidateInterval( 0 );
+		resource.valid = false;
+		
+		Resource replaced = pool.acquire();
+		
+		assertTrue( replaced != resource );
+		assertEquals( 1, factory.validated.get() );
+		assertEquals( 1, pool.getDestroyedCount() );
+		
+		pool.release( replaced );
+		pool.setIdleTimeout( 0 );
+		Thread.sleep( 5 );
+		pool.evict();
+		
+		assertEquals( 0, pool.getIdleCount() );
+		assertEquals( 2, pool.getDestroyedCount() );
+	}
+	
+	@Test
+	public void testCreateFailure() throws Exception
+	{
+		CountingFactory factory = new CountingFactory();
+		ResourcePool<Resource, IOException> pool = new ResourcePool<Resource, IOException>( factory, 1, 1 );
+		
+		factory.failing = true;
+		
+		try
+		{
+			pool.acquire();
+			assertTrue( false );
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+		
+		// the permit of the failed resource was returned
+		factory.failing = false;
+		pool.setWaitTimeout( 10 );
+		
+		Resource resource = pool.acquire();
+		
+		assertTrue( resource != null );
+		assertEquals( 1, pool.getActiveCount() );
+		
+		pool.invalidate( resource );
+		
+		assertEquals( 0, pool.getActiveCount() );
+		assertEquals( 1, pool.getDestroyedCount() );
+	}
+	
+	public static class Resource
+	{
+		public volatile boolean open = true;
+		public volatile boolean valid = true;
+	}
+	
+	public static class CountingFactory implements ResourcePool.Factory<Resource, IOException>
+	{
+		public final AtomicInteger validated = new AtomicInteger();
+		public volatile boolean failing;
+		
+		public Resource create() throws IOException
+		{
+			if (failing)
+			{
+				throw new IOException( "Unavailable" );
+			}
+			
+			return new Resource();
+		}
+		
+		public boolean isOpen( Resource resource )
+		{
+			return resource.open;
+		}
+		
+		public boolean validate( Resource resource )
+		{
+			validated.incrementAndGet();
+			
+			return resource.valid;
+		}
+		
+		public void destroy( Resource resource )
+		{
+			resource.open = false;
+		}
+	}
+	
+}
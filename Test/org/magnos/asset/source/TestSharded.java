@@ -0,0 +1,163 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+package org.magnos.asset.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.magnos.asset.AssetSource;
+import org.magnos.asset.FormatUtility;
+import org.magnos.asset.server.AssetServer;
+import org.magnos.asset.server.AssetServerListenerAdapter;
+import org.magnos.asset.server.tcp.TcpServer;
+import org.magnos.asset.source.ShardedSource.Shard;
+
+/**
+ * Tests the {@link ShardedSource} class.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestSharded 
+{
+
+	private static final int SERVER_PORT = 8450;
+	private static final int SERVER_COUNT = 3;
+	private static final int KEY_COUNT = 3000;
+
+	@Test
+	public void testServers() throws Exception
+	{
+		AssetServer[] servers = new AssetServer[SERVER_COUNT];
+		final Map<AssetServer, AtomicInteger> requests = new HashMap<AssetServer, AtomicInteger>();
+		ShardedSource source = new ShardedSource();
+		
+		for (int i = 0; i < SERVER_COUNT; i++)
+		{
+			servers[i] = new TcpServer( SERVER_PORT + i, 32 );
+			servers[i].setSource( new ClasspathSource() );
+			servers[i].add( new AssetServerListenerAdapter()
+			{
+				public void onAssetRequest( AssetServer server, String request )
+				{
+					requests.get( server ).incrementAndGet();
+				}
+			});
+			requests.put( servers[i], new AtomicInteger() );
+			servers[i].start();
+			
+			source.addNode( "127.0.0.1:" + (SERVER_PORT + i), new TcpSource( "127.0.0.1", SERVER_PORT + i ) );
+		}
+		
+		try
+		{
+			String[] assets = {"greetings.txt", "app.properties", "info.dat", "archive.zip", "data.csv", "config.ini"};
+			
+			for (int k = 0; k < 3; k++)
+			{
+				for (String asset : assets)
+				{
+					InputStream expected = new ClasspathSource().getStream( asset );
+					assertEquals( FormatUtility.getBytes( expected ).length, FormatUtility.getBytes( source.getStream( asset ) ).length );
+				}
+			}
+			
+			long total = 0;
+			
+			for (int i = 0; i < SERVER_COUNT; i++)
+			{
+				Shard shard = source.getShards().get( i );
+				assertEquals( requests.get( servers[i] ).get(), shard.getRequestCount() );
+				total += shard.getRequestCount();
+			}
+			
+			assertEquals( assets.length * 3, total );
+		}
+		finally
+		{
+			for (AssetServer server : servers)
+			{
+				server.stop();
+				server.getThread().join();
+			}
+			
+			for (Shard shard : source.getShards())
+			{
+				((TcpSource)shard.getSource()).close();
+			}
+		}
+	}
+	
+	@Test
+	public void testRing() throws Exception
+	{
+		ShardedSource source = new ShardedSource();
+		
+		for (int i = 0; i < 4; i++)
+		{
+			source.addNode( "node" + i, new ClasspathSource() );
+		}
+		
+		Map<String, String> before = new HashMap<String, String>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		
+		for (int i = 0; i < KEY_COUNT; i++)
+		{
+			String node = source.getShard( "assets/" + i + ".png" ).getName();
+			before.put( "assets/" + i + ".png", node );
+			counts.put( node, (counts.containsKey( node ) ? counts.get( node ) : 0) + 1 );
+		}
+		
+		for (int count : counts.values())
+		{
+			assertTrue( count > KEY_COUNT / 4 * 0.75 && count < KEY_COUNT / 4 * 1.25 );
+		}
+		
+		AssetSource added = new ClasspathSource();
+		source.addNode( "node4", added );
+		
+		int moved = 0;
+		
+		for (Map.Entry<String, String> entry : before.entrySet())
+		{
+			Shard shard = source.getShard( entry.getKey() );
+			
+			if (!shard.getName().equals( entry.getValue() ))
+			{
+				assertSame( added, shard.getSource() );
+				moved++;
+			}
+		}
+		
+		assertTrue( moved > KEY_COUNT / 5 * 0.75 && moved < KEY_COUNT / 5 * 1.25 );
+		
+		source.removeNode( "node4" );
+		
+		for (Map.Entry<String, String> entry : before.entrySet())
+		{
+			assertEquals( entry.getValue(), source.getShard( entry.getKey() ).getName() );
+		}
+	}
+	
+}
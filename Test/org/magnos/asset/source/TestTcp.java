@@ -16,17 +16,36 @@
 
 package org.magnos.asset.source;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.AssetSource;
 import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
 import org.magnos.asset.props.PropertyFormat;
+import org.magnos.asset.base.SizedInputStream;
 import org.magnos.asset.server.AssetServer;
+import org.magnos.asset.server.tcp.CompressionStats;
 import org.magnos.asset.server.tcp.TcpServer;
 import org.magnos.asset.text.TextFormat;
 
@@ -40,6 +59,10 @@ public class TestTcp
 {
 
 	private static final int SERVER_PORT = 8434;
+	private static final int COMPRESSED_PORT = 8436;
+	private static final int FRAMES_PORT = 8437;
+	private static final int RENEGOTIATE_PORT = 8438;
+	private static final int LARGE_SIZE = 1024 * 1024;
 	private static final int SERVER_BACKLOG = 32;
 	private static final String SERVER_HOST = "127.0.0.1";
 
@@ -81,11 +104,370 @@ public class TestTcp
 		assertNotNull( message );
 		assertEquals( "Hello World", message );
 
+		
+		AssetSource source = Assets.getDefaultSource();
+		AssetMetadata metadata = source.getMetadata("greetings.txt");
+		
+		assertTrue( metadata.isPresent() );
+		assertEquals( 11, metadata.getLength() );
+		assertFalse( source.isPresent("missing.txt") );
+
+		
+		assertEquals( TcpSource.PROTOCOL_COMPRESSED, ((TcpSource)source).getProtocolVersion() );
+		
+		InputStream partial = source.getStream("greetings.txt");
+		assertEquals( 'H', partial.read() );
+		partial.close();
+		
+		assertEquals( "Hello World", read( source.getStream("greetings.txt") ) );
+
+		
+		TcpSource single = new TcpSource(SERVER_HOST, SERVER_PORT);
+		single.setMultiplexed( false );
+		
+		partial = single.getStream("greetings.txt");
+		assertEquals( 'H', partial.read() );
+		partial.close();
+		
+		byte[] data = new byte[32];
+		InputStream full = single.getStream("greetings.txt");
+		assertEquals( 11, full.read( data ) );
+		assertEquals( -1, full.read( data ) );
+		assertEquals( "Hello World", new String( data, 0, 11 ) );
+		full.close();
+		
+		
+		SocketPool pool = single.getSocketPool();
+		assertEquals( 0, pool.getActiveCount() );
+		assertEquals( 1, pool.getIdleCount() );
+		assertEquals( 1, pool.getCreatedCount() );
+
+		
+		/* SERVER RESTART */
+		server.stop();
+		server.getThread().join();
+		server = new TcpServer(SERVER_PORT, SERVER_BACKLOG);
+		server.setSource(new ClasspathSource());
+		server.start();
+		/* SERVER RESTART */
+		
+		pool.setValidateInterval( 0 );
+		
+		assertEquals( "Hello World", read( single.getStream("greetings.txt") ) );
+		assertEquals( 2, pool.getCreatedCount() );
+		assertEquals( 1, pool.getDestroyedCount() );
+		
+		Assets.unload("greetings.txt");
+		assertEquals( "Hello World", Assets.load("greetings.txt") );
+
+		
+		testConcurrent( source );
+		
+		byte[] archive = FormatUtility.getBytes( new ClasspathSource().getStream("archive.zip") );
+		assertArrayEquals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) );
+
 
 		/* SERVER SHUT-DOWN */
 		server.stop();
 		/* SERVER SHUT-DOWN */
 	}
-
+	
+	private void testConcurrent( final AssetSource source ) throws Exception
+	{
+		int loaded = new ConcurrentCheck()
+		{
+			public boolean check( int iteration ) throws Exception
+			{
+				return read( source.getStream("greetings.txt") ).equals("Hello World") && 
+					read( source.getStream("app.properties") ).contains("foo");
+			}
+		}.run( 8, 50 );
+		
+		assertEquals( 400, loaded );
+	}
+	
+	@Test
+	public void testCompressed() throws Exception
+	{
+		TcpServer server = new TcpServer(COMPRESSED_PORT, SERVER_BACKLOG);
+		server.setSource(new ClasspathSource());
+		server.start();
+		
+		TcpSource source = new TcpSource(SERVER_HOST, COMPRESSED_PORT);
+		ClasspathSource classpath = new ClasspathSource();
+		CompressionStats stats = server.getCompressionStats();
+		
+		try
+		{
+			// compressed: font and wave, skipped: jpg by type and text by size
+			String[] assets = {"abaddon.ttf", "cowbell.wav", "troll.jpg", "greetings.txt"};
+			long original = 0;
+			
+			for (String asset : assets)
+			{
+				byte[] expected = FormatUtility.getBytes( classpath.getStream( asset ) );
+				InputStream actual = source.getStream( asset );
+				
+				assertEquals( expected.length, SizedInputStream.getSize( actual ) );
+				assertArrayEquals( expected, FormatUtility.getBytes( actual ) );
+				actual.close();
+				
+				if (asset.endsWith( "ttf" ) || asset.endsWith( "wav" ))
+				{
+					original += expected.length;
+				}
+			}
+			
+			assertEquals( TcpSource.PROTOCOL_COMPRESSED, source.getProtocolVersion() );
+			assertEquals( 2, stats.getCompressedCount() );
+			assertEquals( 2, stats.getSkippedCount() );
+			assertEquals( original, stats.getOriginalBytes() );
+			assertTrue( stats.getRatio() < 1.0 );
+			assertTrue( stats.getCpuTime() > 0 );
+			
+			InputStream partial = source.getStream( "abaddon.ttf" );
+			assertEquals( 0, partial.read() );
+			partial.close();
+			
+			assertEquals( "Hello World", read( source.getStream( "greetings.txt" ) ) );
+			
+			TcpSource uncompressed = new TcpSource(SERVER_HOST, COMPRESSED_PORT);
+			uncompressed.setCompressed( false );
+			
+			long compressed = stats.getCompressedCount();
+			assertEquals( 25884, FormatUtility.getBytes( uncompressed.getStream( "abaddon.ttf" ) ).length );
+			assertEquals( compressed, stats.getCompressedCount() );
+			
+			uncompressed.close();
+		}
+		finally
+		{
+			source.close();
+			server.stop();
+			server.getThread().join();
+		}
+	}
+	
+	@Test
+	public void testFrames() throws Exception
+	{
+		TcpServer server = new TcpServer(FRAMES_PORT, SERVER_BACKLOG);
+		server.setSource(new ClasspathSource()
+		{
+			public InputStream getStream( String request ) throws Exception
+			{
+				if (request.equals("large.dat"))
+				{
+					byte[] data = new byte[LARGE_SIZE];
+					
+					for (int i = 0; i < data.length; i++)
+					{
+						data[i] = (byte)i;
+					}
+					
+					return new SizedInputStream( new ByteArrayInputStream( data ), data.length );
+				}
+				
+				return super.getStream( request );
+			}
+		});
+		server.start();
+		
+		try
+		{
+			// a stream read slowly holds at most a window of frames
+			TcpSource source = new TcpSource(SERVER_HOST, FRAMES_PORT);
+			source.setCompressed( false );
+			
+			InputStream large = source.getStream( "large.dat" );
+			Thread.sleep( 200 );
+			
+			byte[] data = FormatUtility.getBytes( large );
+			assertEquals( LARGE_SIZE, data.length );
+			assertEquals( (byte)(LARGE_SIZE - 1), data[LARGE_SIZE - 1] );
+			assertEquals( "Hello World", read( source.getStream( "greetings.txt" ) ) );
+			source.close();
+			
+			// invalid lengths close the connection instead of desynchronizing it
+			assertClosed( TcpSource.OP_METADATA, -5 );
+			assertClosed( TcpSource.OP_METADATA, Integer.MAX_VALUE );
+			assertClosed( TcpSource.OP_HELLO, TcpSource.PROTOCOL_MULTIPLEX, 1, MultiplexConnection.REQUEST_STREAM, -1 );
+			assertClosed( TcpSource.OP_HELLO, TcpSource.PROTOCOL_MULTIPLEX, 1, MultiplexConnection.REQUEST_STREAM, Integer.MAX_VALUE );
+		}
+		finally
+		{
+			server.stop();
+			server.getThread().join();
+		}
+	}
+	
+	private void assertClosed( int ... message ) throws IOException
+	{
+		Socket s = new Socket(SERVER_HOST, FRAMES_PORT);
+		s.setSoTimeout( 5000 );
+		
+		DataOutputStream out = new DataOutputStream( s.getOutputStream() );
+		
+		for (int i = 0; i < message.length; i++)
+		{
+			// the type of a multiplexed frame is a single byte
+			if (message.length == 5 && i == 3)
+			{
+				out.writeByte( message[i] );
+			}
+			else
+			{
+				out.writeInt( message[i] );
+			}
+		}
+		out.flush();
+		
+		DataInputStream in = new DataInputStream( s.getInputStream() );
+		
+		if (message[0] == TcpSource.OP_HELLO)
+		{
+			assertEquals( TcpSource.PROTOCOL_MULTIPLEX, in.readInt() );
+		}
+		
+		assertEquals( -1, in.read() );
+		s.close();
+	}
+	
+	@Test
+	public void testNegotiateWithOldServer() throws Exception
+	{
+		ServerSocket closing = new ServerSocket(0);
+		ServerSocket silent = new ServerSocket(0);
+		
+		Socket a = new Socket(SERVER_HOST, closing.getLocalPort());
+		closing.accept().close();
+		assertEquals( TcpSource.PROTOCOL_SINGLE, TcpSource.negotiate( a, TcpSource.PROTOCOL_VERSION, 1000 ) );
+		a.close();
+		
+		Socket b = new Socket(SERVER_HOST, silent.getLocalPort());
+		Socket accepted = silent.accept();
+		assertEquals( TcpSource.PROTOCOL_UNKNOWN, TcpSource.negotiate( b, TcpSource.PROTOCOL_VERSION, 100 ) );
+		b.close();
+		accepted.close();
+		
+		closing.close();
+		silent.close();
+	}
+	
+	@Test
+	public void testRenegotiate() throws Exception
+	{
+		TcpServer server = new TcpServer(RENEGOTIATE_PORT, SERVER_BACKLOG);
+		server.setSource(new ClasspathSource());
+		server.start();
+		
+		// the first connection is never answered, the rest are relayed to the server
+		final ServerSocket relay = new ServerSocket(0);
+		final List<Socket> sockets = Collections.synchronizedList( new ArrayList<Socket>() );
+		
+		Thread relayThread = new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					sockets.add( relay.accept() );
+					
+					for (;;)
+					{
+						Socket client = relay.accept();
+						Socket backend = new Socket(SERVER_HOST, RENEGOTIATE_PORT);
+						sockets.add( client );
+						sockets.add( backend );
+						pipe( client, backend );
+						pipe( backend, client );
+					}
+				}
+				catch (IOException e)
+				{
+					// the relay was closed
+				}
+			}
+		};
+		relayThread.start();
+		
+		TcpSource source = new TcpSource(SERVER_HOST, relay.getLocalPort());
+		source.setHandshakeTimeout( 100 );
+		source.setRenegotiateInterval( 1000 );
+		
+		try
+		{
+			// an unanswered hello falls back to pooled sockets for a while
+			assertEquals( "Hello World", read( source.getStream( "greetings.txt" ) ) );
+			assertEquals( TcpSource.PROTOCOL_UNKNOWN, source.getProtocolVersion() );
+			assertEquals( "Hello World", read( source.getStream( "greetings.txt" ) ) );
+			assertEquals( TcpSource.PROTOCOL_UNKNOWN, source.getProtocolVersion() );
+			
+			// and is negotiated again once the interval has passed
+			Thread.sleep( 1100 );
+			
+			assertEquals( "Hello World", read( source.getStream( "greetings.txt" ) ) );
+			assertEquals( TcpSource.PROTOCOL_COMPRESSED, source.getProtocolVersion() );
+		}
+		finally
+		{
+			source.close();
+			relay.close();
+			relayThread.join();
+			
+			synchronized (sockets)
+			{
+				for (Socket s : sockets)
+				{
+					s.close();
+				}
+			}
+			
+			server.stop();
+			server.getThread().join();
+		}
+	}
+	
+	private static void pipe( Socket from, Socket to ) throws IOException
+	{
+		final InputStream in = from.getInputStream();
+		final OutputStream out = to.getOutputStream();
+		
+		new Thread()
+		{
+			public void run()
+			{
+				try
+				{
+					byte[] buffer = new byte[4096];
+					int read;
+					
+					while ((read = in.read( buffer )) != -1)
+					{
+						out.write( buffer, 0, read );
+						out.flush();
+					}
+					
+					out.close();
+				}
+				catch (IOException e)
+				{
+					// either side was closed
+				}
+			}
+		}.start();
+	}
+	
+	private static String read( InputStream in ) throws IOException
+	{
+		try
+		{
+			return new String( FormatUtility.getBytes( in ) );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
 
 }
@@ -16,16 +16,28 @@
 
 package org.magnos.asset.source;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Properties;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.magnos.asset.AssetMetadata;
+import org.magnos.asset.AssetSource;
 import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
 import org.magnos.asset.props.PropertyFormat;
 import org.magnos.asset.server.AssetServer;
 import org.magnos.asset.server.udp.UdpServer;
@@ -82,9 +94,166 @@ public class TestUdp
 		assertEquals( "Hello World", message );
 
 		
+		AssetSource source = Assets.getDefaultSource();
+		AssetMetadata metadata = source.getMetadata("greetings.txt");
+		
+		assertTrue( metadata.isPresent() );
+		assertEquals( 11, metadata.getLength() );
+		assertFalse( source.isPresent("missing.txt") );
+
+		
+		byte[] archive = FormatUtility.getBytes( new ClasspathSource().getStream("archive.zip") );
+		assertArrayEquals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) );
+		
+		UdpSource small = new UdpSource( new InetSocketAddress("127.0.0.1", SERVER_PORT), 600 );
+		assertArrayEquals( archive, FormatUtility.getBytes( small.getStream("archive.zip") ) );
+		assertEquals( 5, FormatUtility.getBytes( small.getStream("info.dat") ).length );
+		assertFalse( small.isPresent("missing.txt") );
+		
+		DatagramSocket socket = new DatagramSocket();
+		socket.connect( new InetSocketAddress("127.0.0.1", SERVER_PORT) );
+		socket.setSoTimeout( 2000 );
+		byte[] resend = UdpSource.getRequestPacket( UdpSource.OP_RESEND, 7, 600, new int[] {3}, 1, "archive.zip".getBytes() );
+		socket.send( new DatagramPacket( resend, resend.length ) );
+		DatagramPacket fragment = new DatagramPacket( new byte[600], 600 );
+		socket.receive( fragment );
+		socket.close();
+		
+		ByteBuffer header = ByteBuffer.wrap( fragment.getData() );
+		int count = UdpSource.getFragmentCount( archive.length, 600 );
+		int fragmentSize = UdpSource.getFragmentSize( archive.length, count );
+		assertEquals( 7, header.getInt(0) );
+		assertEquals( 3, header.getInt(4) );
+		assertEquals( count, header.getInt(8) );
+		assertEquals( archive.length, header.getLong(12) );
+		assertEquals( archive[3 * fragmentSize], fragment.getData()[UdpSource.FRAGMENT_HEADER] );
+		
+		testConcurrent( small, archive );
+		small.close();
+
+		
 		/* SERVER SHUT-DOWN */
 		server.stop();
 		/* SERVER SHUT-DOWN */
 	}
 	
+	@Test
+	public void testNoServer() throws Exception
+	{
+		UdpSource source = new UdpSource( new InetSocketAddress("127.0.0.1", SERVER_PORT - 1) );
+		source.setResendInterval( 50 );
+		source.setMaxResends( 2 );
+		
+		long start = System.currentTimeMillis();
+		
+		try
+		{
+			source.getStream( "greetings.txt" );
+			fail( "The request should fail without a server" );
+		}
+		catch (IOException e)
+		{
+			// expected
+		}
+		
+		assertTrue( System.currentTimeMillis() - start < 2000 );
+		
+		source.close();
+	}
+	
+	@Test
+	public void testPacketOffset() throws Exception
+	{
+		byte[] path = "archive.zip".getBytes();
+		byte[] request = UdpSource.getRequestPacket( UdpSource.OP_RESEND, 42, 1400, new int[] { 3, 7 }, 2, path );
+		byte[] data = new byte[request.length + 9];
+		Arrays.fill( data, (byte)0x7F );
+		System.arraycopy( request, 0, data, 5, request.length );
+		
+		DatagramPacket packet = new DatagramPacket( data, 5, request.length );
+		
+		assertEquals( UdpSource.OP_RESEND, UdpSource.getOperation( packet ) );
+		assertEquals( 42, UdpSource.getRequestId( packet ) );
+		assertEquals( 1400, UdpSource.getPacketSize( packet ) );
+		assertArrayEquals( new int[] { 3, 7 }, UdpSource.getIndices( packet ) );
+		assertEquals( "archive.zip", UdpSource.getRequest( packet ) );
+		
+		// a plain request after other data isn't mistaken for an operation
+		data[5] = 'a';
+		assertEquals( 0, UdpSource.getOperation( new DatagramPacket( data, 5, request.length ) ) );
+		assertEquals( 0, UdpSource.getOperation( new DatagramPacket( new byte[] { 0, 1, 0, 0 }, 0, 4 ) ) );
+	}
+	
+	@Test
+	public void testHostilePackets() throws Exception
+	{
+		// a resend packet claiming far more indices than it holds
+		ByteBuffer oversized = ByteBuffer.allocate( 20 );
+		oversized.put( UdpSource.OP_MARKER ).put( UdpSource.OP_RESEND ).putInt( 1 ).putInt( 1400 ).putInt( 0x40000001 );
+		DatagramPacket packet = new DatagramPacket( oversized.array(), 20 );
+		
+		assertInvalid( packet );
+		
+		// more indices than a resend may ask for, even though they're present
+		int[] indices = new int[UdpSource.MAX_RESEND_INDICES + 1];
+		byte[] many = UdpSource.getRequestPacket( UdpSource.OP_RESEND, 1, 1400, indices, indices.length, "archive.zip".getBytes() );
+		
+		assertInvalid( new DatagramPacket( many, many.length ) );
+		
+		// a tiny packet size can't shrink the fragments
+		for (int size : new int[] { -5, 0, 1, 100 })
+		{
+			byte[] tiny = UdpSource.getRequestPacket( UdpSource.OP_FRAGMENTS, 1, size, null, 0, "archive.zip".getBytes() );
+			
+			assertEquals( UdpSource.MIN_PACKET, UdpSource.getPacketSize( new DatagramPacket( tiny, tiny.length ) ) );
+		}
+		
+		try
+		{
+			new UdpSource( new InetSocketAddress("127.0.0.1", SERVER_PORT), UdpSource.MIN_PACKET - 1 );
+			fail( "A packet size below the minimum should be rejected" );
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+	
+	private static void assertInvalid( DatagramPacket packet )
+	{
+		try
+		{
+			UdpSource.getIndices( packet );
+			fail( "The index count should be rejected" );
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+		
+		try
+		{
+			UdpSource.getRequest( packet );
+			fail( "The index count should be rejected" );
+		}
+		catch (IllegalArgumentException e)
+		{
+			// expected
+		}
+	}
+	
+	private void testConcurrent( final UdpSource source, final byte[] archive ) throws Exception
+	{
+		int loaded = new ConcurrentCheck()
+		{
+			public boolean check( int iteration ) throws Exception
+			{
+				return Arrays.equals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) ) &&
+					"Hello World".equals( new String( FormatUtility.getBytes( source.getStream("greetings.txt") ) ) );
+			}
+		}.run( 8, 25 );
+		
+		assertEquals( 8 * 25, loaded );
+	}
+	
 }
@@ -16,17 +16,34 @@
 
 package org.magnos.asset.source;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import org.magnos.asset.Assets;
+import org.magnos.asset.FormatUtility;
+import org.magnos.asset.base.BaseAssetSource;
 import org.magnos.asset.image.ImageFormat;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 /**
  * Tests the {@link WebSource} class.
  * 
@@ -60,4 +77,105 @@ public class TestWeb
 		assertEquals( 95, img.getHeight() );
 	}
 	
+	@Test
+	public void testLocal() throws Exception
+	{
+		final byte[] archive = FormatUtility.getBytes( new ClasspathSource().getStream("archive.zip") );
+		final AtomicInteger gzipped = new AtomicInteger();
+		final AtomicInteger notModified = new AtomicInteger();
+		final AtomicInteger heads = new AtomicInteger();
+		
+		HttpServer server = HttpServer.create( new InetSocketAddress("127.0.0.1", 0), 0 );
+		server.createContext( "/", new HttpHandler()
+		{
+			public void handle( HttpExchange exchange ) throws IOException
+			{
+				String path = exchange.getRequestURI().getPath();
+				InputStream in = exchange.getRequestBody();
+				
+				while (in.read() != -1)
+				{
+					// discard the request body
+				}
+				
+				if (!path.equals("/archive.zip"))
+				{
+					exchange.sendResponseHeaders( 404, -1 );
+					exchange.close();
+					return;
+				}
+				if ("\"v1\"".equals( exchange.getRequestHeaders().getFirst("If-None-Match") ))
+				{
+					notModified.incrementAndGet();
+					exchange.sendResponseHeaders( 304, -1 );
+					exchange.close();
+					return;
+				}
+				if (exchange.getRequestMethod().equals("HEAD"))
+				{
+					heads.incrementAndGet();
+					exchange.getResponseHeaders().set( "Content-Length", String.valueOf( archive.length ) );
+					exchange.sendResponseHeaders( 200, -1 );
+					exchange.close();
+					return;
+				}
+				
+				byte[] body = archive;
+				String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+				
+				if (accept != null && accept.contains("gzip"))
+				{
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					GZIPOutputStream gzip = new GZIPOutputStream( bytes );
+					gzip.write( archive );
+					gzip.close();
+					body = bytes.toByteArray();
+					exchange.getResponseHeaders().set( "Content-Encoding", "gzip" );
+					gzipped.incrementAndGet();
+				}
+				
+				exchange.getResponseHeaders().set( "ETag", "\"v1\"" );
+				exchange.sendResponseHeaders( 200, body.length );
+				
+				OutputStream out = exchange.getResponseBody();
+				out.write( body );
+				out.close();
+			}
+		});
+		server.start();
+		
+		try
+		{
+			WebSource source = new WebSource( "http://127.0.0.1:" + server.getAddress().getPort() + "/" );
+			
+			assertArrayEquals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) );
+			assertEquals( 1, gzipped.get() );
+			assertEquals( 0, source.getRevalidatedCount() );
+			
+			assertArrayEquals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) );
+			assertEquals( 1, gzipped.get() );
+			assertEquals( 1, notModified.get() );
+			assertEquals( 1, source.getRevalidatedCount() );
+			
+			assertEquals( archive.length, source.getMetadata("archive.zip").getLength() );
+			assertFalse( source.isPresent("missing.zip") );
+			
+			String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+			int headed = heads.get();
+			assertEquals( archive.length, BaseAssetSource.getMetadata( new URL( base + "archive.zip" ) ).getLength() );
+			assertFalse( BaseAssetSource.getMetadata( new URL( base + "missing.zip" ) ).isPresent() );
+			assertEquals( headed + 1, heads.get() );
+			
+			source.clearCache();
+			source.setCompressed( false );
+			assertArrayEquals( archive, FormatUtility.getBytes( source.getStream("archive.zip") ) );
+			assertEquals( 1, gzipped.get() );
+			assertEquals( 1, notModified.get() );
+		}
+		finally
+		{
+			server.stop( 0 );
+		}
+	}
+	
 }
@@ -0,0 +1,236 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.source.db;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+/**
+ * An in-memory stand-in for a JDBC database with a single table of assets,
+ * which counts the connections, statements and queries made against it. It
+ * understands queries whose first parameter (or parameters, for an IN list)
+ * are the names of assets and which select the asset, and optionally the
+ * name, of each matching row.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class MemoryDatabase 
+{
+
+	public final Map<String, byte[]> assets = new LinkedHashMap<String, byte[]>();
+	public final AtomicInteger connections = new AtomicInteger();
+	public final AtomicInteger statements = new AtomicInteger();
+	public final AtomicInteger queries = new AtomicInteger();
+	public final AtomicInteger openResults = new AtomicInteger();
+	
+	/**
+	 * Returns a DataSource which creates connections to this database.
+	 * 
+	 * @return The new DataSource.
+	 */
+	public DataSource getDataSource()
+	{
+		return proxy( DataSource.class, new InvocationHandler()
+		{
+			public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+			{
+				if (method.getName().equals("getConnection"))
+				{
+					connections.incrementAndGet();
+					
+					return getConnection();
+				}
+				
+				return defaultValue( method );
+			}
+		});
+	}
+	
+	/**
+	 * Returns a new connection to this database.
+	 * 
+	 * @return The new Connection.
+	 */
+	public Connection getConnection()
+	{
+		final boolean[] closed = {false};
+		
+		return proxy( Connection.class, new InvocationHandler()
+		{
+			public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+			{
+				String name = method.getName();
+				
+				if (name.equals("prepareStatement"))
+				{
+					statements.incrementAndGet();
+					
+					return getStatement( (String)args[0] );
+				}
+				if (name.equals("close"))
+				{
+					closed[0] = true;
+				}
+				if (name.equals("isClosed"))
+				{
+					return closed[0];
+				}
+				if (name.equals("isValid"))
+				{
+					return !closed[0];
+				}
+				
+				return defaultValue( method );
+			}
+		});
+	}
+	
+	private PreparedStatement getStatement( final String sql )
+	{
+		final Map<Integer, String> parameters = new LinkedHashMap<Integer, String>();
+		final boolean withName = sql.toLowerCase().replaceAll("\\s", "").matches("select[^,]+,.*");
+		
+		return proxy( PreparedStatement.class, new InvocationHandler()
+		{
+			public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+			{
+				String name = method.getName();
+				
+				if (name.equals("setString"))
+				{
+					parameters.put( (Integer)args[0], (String)args[1] );
+				}
+				if (name.equals("executeQuery"))
+				{
+					queries.incrementAndGet();
+					
+					List<String> rows = new ArrayList<String>();
+					
+					for (String request : parameters.values())
+					{
+						if (request != null && assets.containsKey( request ))
+						{
+							rows.add( request );
+						}
+					}
+					
+					parameters.clear();
+					
+					return getResults( rows, withName );
+				}
+				
+				return defaultValue( method );
+			}
+		});
+	}
+	
+	private ResultSet getResults( final List<String> rows, final boolean withName )
+	{
+		final int[] row = {-1};
+		final boolean[] closed = {false};
+		
+		openResults.incrementAndGet();
+		
+		return proxy( ResultSet.class, new InvocationHandler()
+		{
+			public Object invoke( Object proxy, Method method, Object[] args ) throws Throwable
+			{
+				String name = method.getName();
+				
+				if (name.equals("close"))
+				{
+					if (!closed[0])
+					{
+						closed[0] = true;
+						openResults.decrementAndGet();
+					}
+					
+					return null;
+				}
+				if (closed[0])
+				{
+					throw new SQLException( "ResultSet closed" );
+				}
+				if (name.equals("next"))
+				{
+					return ++row[0] < rows.size();
+				}
+				
+				String request = rows.get( row[0] );
+				int column = (Integer)args[0];
+				boolean asset = (column == (withName ? 2 : 1));
+				
+				if (name.equals("getBinaryStream") && asset)
+				{
+					return new ByteArrayInputStream( assets.get( request ) );
+				}
+				if (name.equals("getBytes") && asset)
+				{
+					return assets.get( request );
+				}
+				if (name.equals("getString") && !asset)
+				{
+					return request;
+				}
+				
+				throw new SQLException( "Unsupported " + name + " of column " + column );
+			}
+		});
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T proxy( Class<T> type, InvocationHandler handler )
+	{
+		return (T)Proxy.newProxyInstance( MemoryDatabase.class.getClassLoader(), new Class<?>[] {type}, handler );
+	}
+	
+	private static Object defaultValue( Method method )
+	{
+		Class<?> type = method.getReturnType();
+		
+		if (type == boolean.class)
+		{
+			return false;
+		}
+		if (type == int.class)
+		{
+			return 0;
+		}
+		if (type == long.class)
+		{
+			return 0L;
+		}
+		
+		return null;
+	}
+	
+}
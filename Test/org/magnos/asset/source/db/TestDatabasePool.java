@@ -0,0 +1,223 @@
+/* 
+ * NOTICE OF LICENSE
+ * 
+ * This source file is subject to the Open Software License (OSL 3.0) that is 
+ * bundled with this package in the file LICENSE.txt. It is also available 
+ * through the world-wide-web at http://opensource.org/licenses/osl-3.0.php
+ * If you did not receive a copy of the license and are unable to obtain it 
+ * through the world-wide-web, please send an email to magnos.software@gmail.com 
+ * so we can send you a copy immediately. If you use any of this software please
+ * notify me via our website or email, your feedback is much appreciated. 
+ * 
+ * @copyright   Copyright (c) 2011 Magnos Software (http://www.magnos.org)
+ * @license     http://opensource.org/licenses/osl-3.0.php
+ * 				Open Software License (OSL 3.0)
+ */
+
+
+package org.magnos.asset.source.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.magnos.asset.FormatUtility;
+import org.magnos.asset.source.DatabaseSource;
+
+/**
+ * Tests how {@link DatabaseSource} uses connections, statements and results
+ * against a {@link MemoryDatabase}.
+ * 
+ * @author Philip Diffenderfer
+ *
+ */
+public class TestDatabasePool 
+{
+
+	public static final String QUERY = "SELECT asset FROM asset_table WHERE name=?";
+	
+	private MemoryDatabase database;
+	
+	@Before
+	public void onBefore()
+	{
+		database = new MemoryDatabase();
+		
+		for (int i = 0; i < 20; i++)
+		{
+			database.assets.put( "asset" + i + ".txt", ("asset " + i).getBytes() );
+		}
+	}
+	
+	@Test
+	public void testPooled() throws Exception
+	{
+		DatabaseSource source = new DatabaseSource( database.getDataSource(), QUERY, 4 );
+		
+		for (int i = 0; i < 20; i++)
+		{
+			InputStream input = source.getStream( "asset" + i + ".txt" );
+			
+			// the results stay open while the asset is streamed.
+			assertEquals( 1, database.openResults.get() );
+			assertEquals( 1, source.getPool().getActiveCount() );
+			assertEquals( "asset " + i, new String( FormatUtility.getBytes( input ) ) );
+			
+			input.close();
+			
+			assertEquals( 0, database.openResults.get() );
+			assertEquals( 0, source.getPool().getActiveCount() );
+		}
+		
+		assertNull( source.getStream( "missing.txt" ) );
+		assertFalse( source.isPresent( "missing.txt" ) );
+		assertTrue( source.isPresent( "asset3.txt" ) );
+		
+		assertEquals( 1, database.connections.get() );
+		assertEquals( 1, database.statements.get() );
+		assertEquals( 0, database.openResults.get() );
+		
+		source.close();
+		
+		assertEquals( 0, source.getPool().getIdleCount() );
+	}
+	
+	@Test
+	public void testPooledConcurrent() throws Exception
+	{
+		final DatabaseSource source = new DatabaseSource( database.getDataSource(), QUERY, 3 );
+		final AtomicInteger loaded = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		
+		for (int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						for (int k = 0; k < 50; k++)
+						{
+							InputStream input = source.getStream( "asset" + (k % 20) + ".txt" );
+							
+							if (new String( FormatUtility.getBytes( input ) ).equals( "asset " + (k % 20) ))
+							{
+								loaded.incrementAndGet();
+							}
+							
+							input.close();
+						}
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		
+		for (Thread t : threads)
+		{
+			t.join();
+		}
+		
+		assertEquals( threads.length * 50, loaded.get() );
+		assertTrue( database.connections.get() <= 3 );
+		assertEquals( database.connections.get(), database.statements.get() );
+		assertEquals( 0, database.openResults.get() );
+	}
+	
+	@Test
+	public void testConnection() throws Exception
+	{
+		DatabaseSource source = new DatabaseSource( database.getConnection(), "asset_table", "asset", "name" );
+		
+		assertEquals( QUERY, source.getQuery() );
+		
+		for (int i = 0; i < 20; i++)
+		{
+			InputStream input = source.getStream( "asset" + i + ".txt" );
+			
+			// a shared connection is released before the asset is returned.
+			assertEquals( 0, database.openResults.get() );
+			assertEquals( "asset " + i, new String( FormatUtility.getBytes( input ) ) );
+		}
+		
+		assertEquals( 1, database.statements.get() );
+	}
+	
+	@Test
+	public void testBatch() throws Exception
+	{
+		DatabaseSource source = new DatabaseSource( database.getDataSource(), QUERY, 2 );
+		source.setBatchQuery( "SELECT name, asset FROM asset_table WHERE name IN (?)" );
+		source.setBatchSize( 8 );
+		
+		List<String> requests = new ArrayList<String>();
+		for (int i = 0; i < 25; i++)
+		{
+			requests.add( "asset" + i + ".txt" );
+		}
+		
+		Map<String, byte[]> found = source.getBytes( requests );
+		
+		assertEquals( 20, found.size() );
+		assertEquals( "asset 7", new String( found.get( "asset7.txt" ) ) );
+		assertFalse( found.containsKey( "asset21.txt" ) );
+		assertEquals( 4, database.queries.get() );
+		
+		// the three full batches share a statement, the last is prepared separately.
+		assertEquals( 2, database.statements.get() );
+		
+		assertEquals( 20, source.prefetch( requests ) );
+		assertEquals( 8, database.queries.get() );
+		
+		for (int i = 0; i < 20; i++)
+		{
+			assertEquals( "asset " + i, new String( FormatUtility.getBytes( source.getStream( "asset" + i + ".txt" ) ) ) );
+		}
+		
+		assertEquals( 8, database.queries.get() );
+		assertEquals( 0, source.getPrefetchedCount() );
+		assertEquals( 0, database.openResults.get() );
+	}
+	
+	@Test
+	public void testTableBatch() throws Exception
+	{
+		DatabaseSource source = new DatabaseSource( database.getConnection(), "asset_table", "asset", "name" );
+		
+		assertEquals( "SELECT name, asset FROM asset_table WHERE name IN (?)", source.getBatchQuery() );
+		assertEquals( 20, source.getBytes( database.assets.keySet() ).size() );
+		assertEquals( 1, database.queries.get() );
+	}
+	
+	@Test
+	public void testDataSource() throws Exception
+	{
+		DatabaseSource source = new DatabaseSource( database.getDataSource(), QUERY );
+		
+		InputStream input = source.getStream( "asset1.txt" );
+		
+		assertEquals( 1, database.openResults.get() );
+		assertEquals( "asset 1", new String( FormatUtility.getBytes( input ) ) );
+		
+		input.close();
+		
+		assertEquals( 0, database.openResults.get() );
+		assertNull( source.getStream( "missing.txt" ) );
+		assertEquals( 2, database.connections.get() );
+	}
+	
+}